@@ -1,16 +1,19 @@
 package com.devaldrete;
 
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 
 import com.devaldrete.domain.Administrator;
 import com.devaldrete.domain.Member;
 import com.devaldrete.domain.User;
 import com.devaldrete.repositories.PermissionRepository;
 import com.devaldrete.services.AuthService;
+import com.devaldrete.services.IntegrityChecker;
 import com.devaldrete.services.Library;
 import com.devaldrete.services.PersistenceService;
+import com.devaldrete.services.SnapshotContents;
+import com.devaldrete.services.SnapshotFormat;
 
 public class App {
 
@@ -24,16 +27,27 @@ public class App {
     // AuthService shares the Library's UserService so all users are in one store
     AuthService authService = new AuthService(library.getUserService(), new PermissionRepository());
 
-    PersistenceService persistence = new PersistenceService();
+    // Snapshots are binary; existing JSON data is read once and migrated
+    PersistenceService persistence = new PersistenceService(Paths.get("data"), SnapshotFormat.BINARY);
+
+    // "--fsck [--repair]" verifies (and optionally repairs) the data instead of starting the menus
+    if (args.length > 0 && args[0].equals("--fsck")) {
+      System.exit(fsck(library, persistence, args.length > 1 && args[1].equals("--repair")));
+    }
 
     // Load persisted data if it exists; otherwise seed defaults
-    if (Files.exists(Paths.get("data/users.json"))) {
+    if (persistence.hasSnapshot()) {
       IO.println("Loading saved data...");
-      persistence.loadAll(
-          library.getUserService(),
-          library.getBookService(),
-          library.getLoanService());
-      IO.println("Data loaded.");
+      long start = System.nanoTime();
+      try {
+        persistence.loadAll(
+            library.getUserService(),
+            library.getBookService(),
+            library.getLoanService());
+      } catch (IllegalArgumentException e) {
+        refuseInconsistentData(e);
+      }
+      IO.println("Data loaded in " + elapsedMillis(start) + " ms.");
     } else {
       // Seed default admin (ID "0" is stable so it can be referenced in tests/docs)
       library.addUser(new Administrator("0", "admin", "admin@example.com", "passwordsafe"));
@@ -46,7 +60,47 @@ public class App {
       library.addUser(new Member("5", "magnus", "magnus@example.com", "password123"));
     }
 
-    // --- Authentication loop ---
+    // Re-apply changes made since the last full save, then journal new ones.
+    // References between the files are only checked after the replay, which
+    // may restore what they point to
+    int replayed = 0;
+    try {
+      replayed = persistence.replayJournal(
+          library.getUserService(),
+          library.getBookService(),
+          library.getLoanService());
+    } catch (IllegalStateException e) {
+      refuseInconsistentData(e);
+    }
+    if (replayed > 0) {
+      IO.println("Recovered " + replayed + " unsaved change(s).");
+    }
+    persistence.openJournal(
+        library.getUserService(),
+        library.getBookService(),
+        library.getLoanService());
+
+    // Copies still set aside that no restored hold claims go back on the shelf
+    // (or to the next hold)
+    int released = library.getHoldService().releaseUnclaimedReservations();
+    if (released > 0) {
+      IO.println("Released " + released + " reserved copy(ies) from the last session.");
+    }
+
+    // Due dates and hold expiries fire from here on, on a virtual thread
+    library.getScheduler().start();
+
+    // Logging out returns here, so the Library and its holds outlive sessions
+    while (true) {
+      authenticate(authService, library, persistence);
+      IO.println("\nEnjoy your stay!");
+      runMainMenu(authService, library, persistence);
+    }
+  }
+
+  // --- Session loops ---
+
+  private static void authenticate(AuthService authService, Library library, PersistenceService persistence) {
     while (!authService.isAuthenticated()) {
       IO.println("\n=== Authentication ===\n");
       IO.println("1. Login");
@@ -62,6 +116,8 @@ public class App {
           handleSignup(authService);
           break;
         case "3":
+          IO.println("\nSaving data...");
+          saveAndClose(library, persistence);
           IO.println("\nExiting the application. Goodbye!");
           System.exit(0);
           break;
@@ -70,10 +126,12 @@ public class App {
           break;
       }
     }
+  }
 
-    IO.println("\nEnjoy your stay!");
-
-    // --- Main application loop ---
+  /**
+   * Runs the menu until the user logs out or the session ends.
+   */
+  private static void runMainMenu(AuthService authService, Library library, PersistenceService persistence) {
     boolean running = true;
     while (running) {
       // AuthService middleware guard: if somehow not authenticated, return to auth
@@ -91,10 +149,11 @@ public class App {
       IO.println("3. Manage Books  (admin)");
       IO.println("4. Manage Users  (admin)");
       IO.println("5. Manage Loans");
-      IO.println("6. Logout");
-      IO.println("7. Exit");
+      IO.println("6. Manage Holds");
+      IO.println("7. Logout");
+      IO.println("8. Exit");
 
-      String option = IO.readln("\nSelect an option (1-7): ");
+      String option = IO.readln("\nSelect an option (1-8): ");
 
       switch (option) {
         case "1":
@@ -131,38 +190,110 @@ public class App {
           break;
 
         case "6":
-          IO.println("\nSaving data...");
-          persistence.saveAll(
-              library.getUserService(),
-              library.getBookService(),
-              library.getLoanService());
+          // Hold management is role-aware inside manageHolds()
+          library.manageHolds(currentUser);
+          break;
+
+        case "7":
+          // Changes are already journaled and autosaved in the background;
+          // only exiting writes a full snapshot
           IO.println("\nLogging out...");
           authService.logout();
           IO.println("Logged out successfully.");
           running = false; // Exit main loop — re-enter auth loop on next iteration
           break;
 
-        case "7":
+        case "8":
           IO.println("\nSaving data...");
-          persistence.saveAll(
-              library.getUserService(),
-              library.getBookService(),
-              library.getLoanService());
+          saveAndClose(library, persistence);
           IO.println("\nExiting the application. Goodbye!");
           System.exit(0);
           break;
 
         default:
-          IO.println("Invalid option. Please select a valid option (1-7).");
+          IO.println("Invalid option. Please select a valid option (1-8).");
           break;
       }
+    }
+  }
 
-      // After logout, restart the outer flow from the top of main
-      if (!running) {
-        main(args);
-        return;
-      }
+  // --- Persistence helpers ---
+
+  /**
+   * Exits with status 1 when the saved data cannot be loaded as it is (older
+   * versions could leave loans of removed users behind).
+   */
+  private static void refuseInconsistentData(RuntimeException e) {
+    IO.println("The saved data is inconsistent: " + e.getMessage());
+    IO.println("Run with --fsck to list the problems, or --fsck --repair to fix them.");
+    System.exit(1);
+  }
+
+  private static void saveAndClose(Library library, PersistenceService persistence) {
+    long start = System.nanoTime();
+    // Stop due-date and expiry callbacks first, so none changes the data after
+    // the snapshot is taken or the journal is closed
+    library.getScheduler().close();
+    persistence.saveAll(
+        library.getUserService(),
+        library.getBookService(),
+        library.getLoanService());
+    persistence.close();
+    IO.println("Data saved in " + elapsedMillis(start) + " ms.");
+  }
+
+  /**
+   * Checks the snapshot in {@code data/} with {@link IntegrityChecker} and
+   * prints every problem. With {@code repair}, the repaired records are loaded,
+   * the journal is replayed on top and a new snapshot is written.
+   *
+   * @return the process exit code: 0 if the data is consistent or was
+   *         repaired, 1 if problems were found and left in place
+   */
+  private static int fsck(Library library, PersistenceService persistence, boolean repair) {
+    if (!persistence.hasSnapshot()) {
+      IO.println("No saved data to check.");
+      return 0;
+    }
+
+    long start = System.nanoTime();
+    SnapshotContents contents = persistence.readContents();
+    List<IntegrityChecker.Problem> problems = IntegrityChecker.check(contents);
+    for (IntegrityChecker.Problem problem : problems) {
+      IO.println(problem.toString());
     }
+    IO.println("Checked " + contents.users().size() + " users, " + contents.definitions().size()
+        + " definitions, " + contents.items().size() + " book items, " + contents.loans().size()
+        + " loans and " + contents.holds().size() + " holds in " + elapsedMillis(start) + " ms: "
+        + problems.size() + " problem(s).");
+    if (problems.isEmpty()) {
+      return 0;
+    }
+    if (!repair) {
+      IO.println("Run with --fsck --repair to fix them.");
+      return 1;
+    }
+
+    SnapshotContents repaired = IntegrityChecker.repair(contents);
+    library.getUserService().bulkLoad(repaired.users());
+    library.getBookService().bulkLoad(repaired.definitions(), repaired.items());
+    library.getLoanService().bulkLoad(repaired.loans());
+    library.getHoldService().bulkLoad(repaired.holds());
+    persistence.replayJournal(
+        library.getUserService(),
+        library.getBookService(),
+        library.getLoanService());
+    persistence.openJournal(
+        library.getUserService(),
+        library.getBookService(),
+        library.getLoanService());
+    saveAndClose(library, persistence);
+    IO.println("Repaired data saved.");
+    return 0;
+  }
+
+  private static long elapsedMillis(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1_000_000;
   }
 
   // --- Auth helpers ---
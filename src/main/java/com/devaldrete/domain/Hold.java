@@ -0,0 +1,83 @@
+package com.devaldrete.domain;
+
+import java.time.Instant;
+
+/**
+ * A member's place in the queue for a title. While the hold waits, it has no
+ * copy; once a copy is set aside for it, {@code bookItemId} names the copy
+ * (which is then {@link Status#RESERVED}) and {@code expiresAt} is the end of
+ * the pickup window.
+ */
+public class Hold {
+  private String id;
+  private String userId;
+  private String bookDefId;
+  private Instant placedAt;
+  private String bookItemId;
+  private Instant expiresAt;
+
+  public Hold(String id, String userId, String bookDefId, Instant placedAt, String bookItemId, Instant expiresAt) {
+    this.id = id;
+    this.userId = userId;
+    this.bookDefId = bookDefId;
+    this.placedAt = placedAt;
+    this.bookItemId = bookItemId;
+    this.expiresAt = expiresAt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public void setUserId(String userId) {
+    this.userId = userId;
+  }
+
+  public String getBookDefId() {
+    return bookDefId;
+  }
+
+  public void setBookDefId(String bookDefId) {
+    this.bookDefId = bookDefId;
+  }
+
+  public Instant getPlacedAt() {
+    return placedAt;
+  }
+
+  public void setPlacedAt(Instant placedAt) {
+    this.placedAt = placedAt;
+  }
+
+  public String getBookItemId() {
+    return bookItemId;
+  }
+
+  public void setBookItemId(String bookItemId) {
+    this.bookItemId = bookItemId;
+  }
+
+  public Instant getExpiresAt() {
+    return expiresAt;
+  }
+
+  public void setExpiresAt(Instant expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * @return true if a copy is waiting for pickup
+   */
+  public boolean isReady() {
+    return bookItemId != null;
+  }
+
+}
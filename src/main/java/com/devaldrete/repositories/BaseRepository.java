@@ -1,5 +1,9 @@
 package com.devaldrete.repositories;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Abstract base class providing common repository functionality and error
  * handling.
@@ -7,11 +11,78 @@ package com.devaldrete.repositories;
  * entity type.
  * This class handles argument validation and provides helper methods for
  * consistent error reporting.
+ * It also keeps the registered {@link RepositoryListener}s, which subclasses
+ * notify through the {@code fire*} methods while the entity's lock is held.
  *
  * @param <T> The entity type managed by this repository
  */
 public abstract class BaseRepository<T> implements IRepository<T> {
 
+  private final List<RepositoryListener<T>> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong modCount = new AtomicLong();
+
+  /**
+   * Returns a counter that advances on every change to the stored entities,
+   * bulk loads included. Two equal readings mean nothing changed in between,
+   * which lets persistence skip rewriting an unchanged file.
+   *
+   * @return the current modification count
+   */
+  public long getModCount() {
+    return modCount.get();
+  }
+
+  /**
+   * Advances the modification count. Called by the {@code fire*} methods;
+   * subclasses call it directly for changes that are not reported to
+   * listeners, such as bulk loads.
+   */
+  protected void markModified() {
+    modCount.incrementAndGet();
+  }
+
+  /**
+   * Registers a listener to be notified of every subsequent save, update and
+   * delete.
+   *
+   * @param listener the listener to add. Must not be null.
+   * @throws IllegalArgumentException if listener is null
+   */
+  public void addListener(RepositoryListener<T> listener) {
+    validateNotNull(listener, "Listener");
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregisters a listener. Unknown listeners are ignored.
+   *
+   * @param listener the listener to remove
+   */
+  public void removeListener(RepositoryListener<T> listener) {
+    listeners.remove(listener);
+  }
+
+  protected void fireSaved(T item) {
+    markModified();
+    for (RepositoryListener<T> listener : listeners) {
+      listener.saved(item);
+    }
+  }
+
+  protected void fireUpdated(T item) {
+    markModified();
+    for (RepositoryListener<T> listener : listeners) {
+      listener.updated(item);
+    }
+  }
+
+  protected void fireDeleted(String id) {
+    markModified();
+    for (RepositoryListener<T> listener : listeners) {
+      listener.deleted(id);
+    }
+  }
+
   /**
    * Validates that a required string parameter is not null or empty.
    *
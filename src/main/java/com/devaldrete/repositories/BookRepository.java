@@ -1,151 +1,452 @@
 package com.devaldrete.repositories;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
 import com.devaldrete.domain.BookDefinition;
 import com.devaldrete.domain.BookItem;
-
+import com.devaldrete.domain.Status;
+import com.devaldrete.utils.BarcodeGenerator;
+import com.devaldrete.utils.ISBNGenerator;
+
+/**
+ * BookRepository manages book definitions (titles) and book items (physical
+ * copies) in memory, indexed by barcode, ISBN and title/author trigrams, with
+ * a count of each title's copies per status.
+ *
+ * Reads never block; writes lock the stripes of the entities they touch.
+ *
+ * Error handling:
+ * - Throws IllegalArgumentException for invalid inputs, missing book
+ * definitions, and barcode/ISBN values already used by another entity
+ */
 public class BookRepository extends BaseRepository<BookItem> {
 
-  private List<BookItem> bookItems;
-  private List<BookDefinition> bookDefinitions;
+  private static final int STATUSES = Status.values().length;
+
+  private final InsertionOrderedMap<BookItem> bookItems;
+  private final InsertionOrderedMap<BookDefinition> bookDefinitions;
+
+  // Secondary index key -> entity ID
+  private final Map<String, String> itemIdsByBarcode;
+  private final Map<String, String> definitionIdsByIsbn;
+  private final ConcurrentHashMap<String, Set<String>> itemIdsByDefinitionId;
+
+  // Entity ID -> the keys it is currently indexed under
+  private final Map<String, ItemKeys> keysByItemId;
+  private final Map<String, String> isbnKeysByDefinitionId;
+
+  // Definition ID -> number of its items in each status (indexed by ordinal).
+  // The arrays are never changed once published.
+  private final ConcurrentHashMap<String, int[]> statusCountsByDefinitionId;
+  private final Set<String> availableDefinitionIds;
+
+  private final TrigramIndex titleIndex;
+  private final TrigramIndex authorIndex;
+
+  private final List<RepositoryListener<BookDefinition>> definitionListeners;
+  private final StripedLock locks;
+
+  /**
+   * The index keys a book item was stored under when it was last saved or
+   * updated.
+   */
+  private record ItemKeys(String barcodeKey, String definitionId, Status status) {
+  }
 
   public BookRepository() {
     super();
-    this.bookItems = new ArrayList<>();
-    this.bookDefinitions = new ArrayList<>();
+    this.bookItems = new InsertionOrderedMap<>();
+    this.bookDefinitions = new InsertionOrderedMap<>();
+    this.itemIdsByBarcode = new ConcurrentHashMap<>();
+    this.definitionIdsByIsbn = new ConcurrentHashMap<>();
+    this.itemIdsByDefinitionId = new ConcurrentHashMap<>();
+    this.keysByItemId = new ConcurrentHashMap<>();
+    this.isbnKeysByDefinitionId = new ConcurrentHashMap<>();
+    this.statusCountsByDefinitionId = new ConcurrentHashMap<>();
+    this.availableDefinitionIds = ConcurrentHashMap.newKeySet();
+    this.titleIndex = new TrigramIndex();
+    this.authorIndex = new TrigramIndex();
+    this.definitionListeners = new CopyOnWriteArrayList<>();
+    this.locks = new StripedLock();
+  }
+
+  /**
+   * Registers a listener to be notified of every subsequent book definition
+   * save, update and delete.
+   *
+   * @throws IllegalArgumentException if listener is null
+   */
+  public void addDefinitionListener(RepositoryListener<BookDefinition> listener) {
+    validateNotNull(listener, "Listener");
+    definitionListeners.add(listener);
   }
 
+  public void removeDefinitionListener(RepositoryListener<BookDefinition> listener) {
+    definitionListeners.remove(listener);
+  }
+
+  /**
+   * Persists a new book definition. Saving a definition whose ID is already
+   * present is a no-op.
+   *
+   * @throws IllegalArgumentException if the definition is invalid or its ISBN
+   *                                  is already used by another definition
+   */
+  @SuppressWarnings("try")
   public void saveBookDefinition(BookDefinition bookDefinition) {
     validateNotNull(bookDefinition, "BookDefinition");
     validateNotEmpty(bookDefinition.getId(), "BookDefinition ID");
 
-    if (!exists(bookDefinition.getId())) {
-      bookDefinitions.add(bookDefinition);
+    try (StripedLock.Held held = locks.lock(bookDefinition.getId())) {
+      if (bookDefinitions.containsKey(bookDefinition.getId())) {
+        return;
+      }
+
+      indexIsbn(bookDefinition);
+      indexText(bookDefinition);
+      bookDefinitions.put(bookDefinition.getId(), bookDefinition);
+      markModified();
+      for (RepositoryListener<BookDefinition> listener : definitionListeners) {
+        listener.saved(bookDefinition);
+      }
     }
   }
 
+  /**
+   * Replaces (or inserts) a book definition and re-indexes its ISBN, title and
+   * author.
+   *
+   * @throws IllegalArgumentException if the definition is invalid or its ISBN
+   *                                  is already used by another definition
+   */
+  @SuppressWarnings("try")
   public void updateBookDefinition(BookDefinition bookDefinition) {
     validateNotNull(bookDefinition, "BookDefinition");
     validateNotEmpty(bookDefinition.getId(), "BookDefinition ID");
 
-    bookDefinitions.removeIf(bd -> bd.getId().equals(bookDefinition.getId()));
-    bookDefinitions.add(bookDefinition);
+    try (StripedLock.Held held = locks.lock(bookDefinition.getId())) {
+      indexIsbn(bookDefinition);
+      indexText(bookDefinition);
+      bookDefinitions.put(bookDefinition.getId(), bookDefinition);
+      markModified();
+      for (RepositoryListener<BookDefinition> listener : definitionListeners) {
+        listener.updated(bookDefinition);
+      }
+    }
   }
 
   public BookDefinition getBookDefinitionById(String id) {
     validateNotEmpty(id, "BookDefinition ID");
 
-    return bookDefinitions.stream()
-        .filter(bd -> bd.getId().equals(id))
-        .findFirst()
-        .orElse(null);
+    return bookDefinitions.get(id);
   }
 
   public List<BookDefinition> getAllBookDefinitions() {
-    return new ArrayList<>(bookDefinitions);
+    return bookDefinitions.values();
   }
 
+  public int countBookDefinitions() {
+    return bookDefinitions.size();
+  }
+
+  /**
+   * Deletes a definition and its index entries. Its items are left in place;
+   * callers that must not orphan them check {@link #countByBookDefinitionId}
+   * or delete them first.
+   *
+   * @return false if no definition has the given ID
+   */
+  @SuppressWarnings("try")
   public boolean deleteBookDefinition(String id) {
     validateNotEmpty(id, "BookDefinition ID");
 
-    return bookDefinitions.removeIf(bd -> bd.getId().equals(id));
+    try (StripedLock.Held held = locks.lock(id)) {
+      if (bookDefinitions.remove(id) == null) {
+        return false;
+      }
+
+      String isbnKey = isbnKeysByDefinitionId.remove(id);
+      if (isbnKey != null) {
+        definitionIdsByIsbn.remove(isbnKey, id);
+      }
+      titleIndex.remove(id);
+      authorIndex.remove(id);
+      markModified();
+      for (RepositoryListener<BookDefinition> listener : definitionListeners) {
+        listener.deleted(id);
+      }
+      return true;
+    }
   }
 
   @Override
+  @SuppressWarnings("try")
   public void save(BookItem item) {
-    validateNotNull(item, "BookItem");
-    validateNotEmpty(item.getId(), "BookItem ID");
-    validateNotEmpty(item.getBookDefId(), "BookDefinition ID");
+    validateItem(item);
 
-    if (getBookDefinitionById(item.getBookDefId()) == null) {
-      throw new IllegalArgumentException("BookDefinition with ID " + item.getBookDefId() + " does not exist");
-    }
+    try (StripedLock.Held held = locks.lock(item.getId(), item.getBookDefId())) {
+      if (!bookDefinitions.containsKey(item.getBookDefId())) {
+        throw new IllegalArgumentException("BookDefinition with ID " + item.getBookDefId() + " does not exist");
+      }
+
+      if (exists(item.getId())) {
+        return;
+      }
 
-    if (!exists(item.getId())) {
-      bookItems.add(item);
+      index(item);
+      bookItems.put(item.getId(), item);
+      fireSaved(item);
     }
   }
 
   @Override
+  @SuppressWarnings("try")
   public void update(BookItem item) {
-    validateNotNull(item, "BookItem");
-    validateNotEmpty(item.getId(), "BookItem ID");
-    validateNotEmpty(item.getBookDefId(), "BookDefinition ID");
+    validateItem(item);
 
-    if (getBookDefinitionById(item.getBookDefId()) == null) {
-      throw new IllegalArgumentException("BookDefinition with ID " + item.getBookDefId() + " does not exist");
+    try (StripedLock.Held held = locks.lock(item.getId(), item.getBookDefId())) {
+      if (!bookDefinitions.containsKey(item.getBookDefId())) {
+        throw new IllegalArgumentException("BookDefinition with ID " + item.getBookDefId() + " does not exist");
+      }
+
+      index(item);
+      bookItems.put(item.getId(), item);
+      fireUpdated(item);
     }
+  }
 
-    bookItems.removeIf(bi -> bi.getId().equals(item.getId()));
-    bookItems.add(item);
+  /**
+   * Moves a book item from one status to another if, and only if, it is
+   * currently in the expected one; the item's status counts are adjusted and
+   * listeners notified as for {@link #update(BookItem)}. Of several threads
+   * moving the same copy out of a status, exactly one succeeds, which makes
+   * this the point where a checkout takes the copy.
+   *
+   * @return false if the item does not exist or is not in {@code expected}
+   */
+  @SuppressWarnings("try")
+  public boolean compareAndSetStatus(String id, Status expected, Status next) {
+    validateNotEmpty(id, "BookItem ID");
+    validateNotNull(next, "Status");
+
+    try (StripedLock.Held held = locks.lock(id)) {
+      BookItem item = bookItems.get(id);
+      if (item == null || item.getStatus() != expected) {
+        return false;
+      }
+
+      item.setStatus(next);
+      index(item);
+      fireUpdated(item);
+      return true;
+    }
   }
 
   @Override
+  @SuppressWarnings("try")
   public void delete(String id) {
     validateNotEmpty(id, "BookItem ID");
 
-    bookItems.removeIf(bi -> bi.getId().equals(id));
+    try (StripedLock.Held held = locks.lock(id)) {
+      if (bookItems.remove(id) == null) {
+        return;
+      }
+
+      unindex(id);
+      fireDeleted(id);
+    }
   }
 
   @Override
   public BookItem getById(String id) {
     validateNotEmpty(id, "BookItem ID");
 
-    return bookItems.stream()
-        .filter(bi -> bi.getId().equals(id))
-        .findFirst()
-        .orElse(null);
+    return bookItems.get(id);
   }
 
   @Override
   public List<BookItem> getAll() {
-    return new ArrayList<>(bookItems);
+    return bookItems.values();
+  }
+
+  public int count() {
+    return bookItems.size();
   }
 
+  /**
+   * Returns the copies of a definition, in the order they were added, through
+   * the reverse index.
+   */
   public List<BookItem> getByBookDefinitionId(String bookDefId) {
     validateNotEmpty(bookDefId, "BookDefinition ID");
 
-    return bookItems.stream()
-        .filter(bi -> bi.getBookDefId().equals(bookDefId))
-        .toList();
+    return bookItems.valuesOf(itemIdsByDefinitionId.getOrDefault(bookDefId, Set.of()));
+  }
+
+  public int countByBookDefinitionId(String bookDefId) {
+    validateNotEmpty(bookDefId, "BookDefinition ID");
+
+    return itemIdsByDefinitionId.getOrDefault(bookDefId, Set.of()).size();
+  }
+
+  /**
+   * Counts the copies of a definition in a given status, in constant time.
+   */
+  public int countByStatus(String bookDefId, Status status) {
+    validateNotEmpty(bookDefId, "BookDefinition ID");
+    validateNotNull(status, "Status");
+
+    int[] counts = statusCountsByDefinitionId.get(bookDefId);
+    return counts == null ? 0 : counts[status.ordinal()];
+  }
+
+  /**
+   * Returns the number of copies of a definition in every status, zeros
+   * included, in constant time. The counts are read together, so they are
+   * consistent with each other.
+   */
+  public Map<Status, Integer> getStatusCounts(String bookDefId) {
+    validateNotEmpty(bookDefId, "BookDefinition ID");
+
+    int[] counts = statusCountsByDefinitionId.get(bookDefId);
+    Map<Status, Integer> result = new EnumMap<>(Status.class);
+    for (Status status : Status.values()) {
+      result.put(status, counts == null ? 0 : counts[status.ordinal()]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the definitions with at least one {@link Status#AVAILABLE} copy,
+   * in the order they were added. The cost is proportional to their number,
+   * not to the size of the catalog.
+   */
+  public List<BookDefinition> getAvailableBookDefinitions() {
+    return bookDefinitions.valuesOf(availableDefinitionIds);
   }
 
   public BookItem findByBarcode(String barcode) {
     validateNotEmpty(barcode, "Barcode");
 
-    return bookItems.stream()
-        .filter(bi -> bi.getBarcode().equalsIgnoreCase(barcode))
-        .findFirst()
-        .orElse(null);
+    String id = itemIdsByBarcode.get(barcodeKey(barcode));
+    return id == null ? null : bookItems.get(id);
   }
 
   public BookDefinition findByISBN(String isbn) {
     validateNotEmpty(isbn, "ISBN");
 
-    return bookDefinitions.stream()
-        .filter(bd -> bd.getIsbn().equals(isbn))
-        .findFirst()
-        .orElse(null);
+    String id = definitionIdsByIsbn.get(ISBNGenerator.canonicalize(isbn));
+    return id == null ? null : bookDefinitions.get(id);
   }
 
+  /**
+   * Finds definitions whose title contains the given text, ignoring case and
+   * accents, in the order they were added.
+   */
   public List<BookDefinition> findByTitle(String title) {
     validateNotEmpty(title, "Title");
 
-    String lower = title.toLowerCase();
-    return bookDefinitions.stream()
-        .filter(bd -> bd.getTitle().toLowerCase().contains(lower))
-        .toList();
+    return bookDefinitions.valuesOf(titleIndex.search(title));
   }
 
+  /**
+   * Finds definitions whose author contains the given text, ignoring case and
+   * accents, in the order they were added.
+   */
   public List<BookDefinition> findByAuthor(String author) {
     validateNotEmpty(author, "Author");
 
-    String lower = author.toLowerCase();
-    return bookDefinitions.stream()
-        .filter(bd -> bd.getAuthor().toLowerCase().contains(lower))
-        .toList();
+    return bookDefinitions.valuesOf(authorIndex.search(author));
+  }
+
+  /**
+   * Inserts a whole catalog in one pass, typically when loading a snapshot at
+   * startup.
+   *
+   * Everything is validated before anything is stored: IDs, barcodes and ISBNs
+   * must be unique both within the batch and against what the repository
+   * already holds, and every item's book definition must be present in the
+   * batch or the repository. Item-to-definition references are resolved as a
+   * hash join against the definition IDs, so the cost is linear in the batch
+   * size. If validation fails the repository is left unchanged. Other writers
+   * wait for the whole load.
+   *
+   * @param definitions the definitions to insert. Must not be null.
+   * @param items       the items to insert. Must not be null.
+   * @throws IllegalArgumentException if any entity is invalid, duplicated or
+   *                                  references a missing definition
+   */
+  @SuppressWarnings("try")
+  public void bulkLoad(Collection<BookDefinition> definitions, Collection<BookItem> items) {
+    validateNotNull(definitions, "BookDefinitions");
+    validateNotNull(items, "BookItems");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      Set<String> definitionIds = new HashSet<>();
+      Set<String> isbnKeys = new HashSet<>();
+      for (BookDefinition definition : definitions) {
+        validateNotNull(definition, "BookDefinition");
+        validateNotEmpty(definition.getId(), "BookDefinition ID");
+        if (bookDefinitions.containsKey(definition.getId()) || !definitionIds.add(definition.getId())) {
+          throw new IllegalArgumentException("Duplicate BookDefinition ID " + definition.getId());
+        }
+        String isbn = definition.getIsbn();
+        if (isbn != null && !isbn.isBlank()) {
+          String key = ISBNGenerator.canonicalize(isbn);
+          if (definitionIdsByIsbn.containsKey(key) || !isbnKeys.add(key)) {
+            throw new IllegalArgumentException("A book definition with ISBN " + isbn + " already exists");
+          }
+        }
+      }
+
+      Set<String> itemIds = new HashSet<>();
+      Set<String> barcodeKeys = new HashSet<>();
+      for (BookItem item : items) {
+        validateItem(item);
+        if (bookItems.containsKey(item.getId()) || !itemIds.add(item.getId())) {
+          throw new IllegalArgumentException("Duplicate BookItem ID " + item.getId());
+        }
+        if (!definitionIds.contains(item.getBookDefId()) && !bookDefinitions.containsKey(item.getBookDefId())) {
+          throw new IllegalArgumentException("BookDefinition with ID " + item.getBookDefId() + " does not exist");
+        }
+        String key = barcodeKey(item.getBarcode());
+        if (itemIdsByBarcode.containsKey(key) || !barcodeKeys.add(key)) {
+          throw new IllegalArgumentException("Barcode " + item.getBarcode() + " is already assigned to another book item");
+        }
+      }
+
+      for (BookDefinition definition : definitions) {
+        indexIsbn(definition);
+        indexText(definition);
+        bookDefinitions.put(definition.getId(), definition);
+      }
+      for (BookItem item : items) {
+        index(item);
+        bookItems.put(item.getId(), item);
+      }
+      markModified();
+    }
+  }
+
+  /**
+   * Runs {@code action} with every stripe held, so no write to the book definitions and items
+   * is in progress or starts until it returns. Reads are not blocked.
+   */
+  @SuppressWarnings("try")
+  public <R> R whileWritesBlocked(Supplier<R> action) {
+    validateNotNull(action, "Action");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      return action.get();
+    }
   }
 
   @Override
@@ -159,7 +460,135 @@ public class BookRepository extends BaseRepository<BookItem> {
   protected boolean exists(String id) {
     validateNotEmpty(id, "ID");
 
-    return bookItems.stream()
-        .anyMatch(bi -> bi.getId().equals(id));
+    return bookItems.containsKey(id);
+  }
+
+  // --- Index maintenance ---
+  //
+  // Called with the stripes of the entity (and, for items, its definition)
+  // held, so the remembered keys of one entity are never changed concurrently.
+
+  private void validateItem(BookItem item) {
+    validateNotNull(item, "BookItem");
+    validateNotEmpty(item.getId(), "BookItem ID");
+    validateNotEmpty(item.getBookDefId(), "BookDefinition ID");
+    validateNotEmpty(item.getBarcode(), "Barcode");
+    validateNotNull(item.getStatus(), "Status");
+  }
+
+  private void indexText(BookDefinition definition) {
+    titleIndex.put(definition.getId(), definition.getTitle());
+    authorIndex.put(definition.getId(), definition.getAuthor());
+  }
+
+  private static String barcodeKey(String barcode) {
+    return BarcodeGenerator.canonicalize(barcode);
+  }
+
+  /**
+   * Points a unique index key at an entity ID unless another entity already
+   * holds it.
+   *
+   * @return false if the key belongs to another entity
+   */
+  private static boolean claim(Map<String, String> index, String key, String id) {
+    String owner = index.putIfAbsent(key, id);
+    return owner == null || owner.equals(id);
+  }
+
+  /**
+   * Points the barcode index at the item's current barcode, files the item
+   * under its current definition and counts it under its current status,
+   * undoing whatever the item was previously indexed under.
+   */
+  private void index(BookItem item) {
+    String id = item.getId();
+    String barcodeKey = barcodeKey(item.getBarcode());
+    if (!claim(itemIdsByBarcode, barcodeKey, id)) {
+      throw new IllegalArgumentException("Barcode " + item.getBarcode() + " is already assigned to another book item");
+    }
+
+    ItemKeys keys = new ItemKeys(barcodeKey, item.getBookDefId(), item.getStatus());
+    ItemKeys previous = keysByItemId.put(id, keys);
+    if (keys.equals(previous)) {
+      return;
+    }
+    if (previous != null && !previous.barcodeKey().equals(barcodeKey)) {
+      itemIdsByBarcode.remove(previous.barcodeKey(), id);
+    }
+    if (previous == null || !previous.definitionId().equals(keys.definitionId())) {
+      if (previous != null) {
+        removeFromDefinition(previous.definitionId(), id);
+      }
+      itemIdsByDefinitionId.compute(keys.definitionId(), (definitionId, ids) -> {
+        Set<String> bucket = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+        bucket.add(id);
+        return bucket;
+      });
+    }
+    if (previous != null) {
+      count(previous.definitionId(), previous.status(), -1);
+    }
+    count(keys.definitionId(), keys.status(), 1);
+  }
+
+  private void unindex(String itemId) {
+    ItemKeys keys = keysByItemId.remove(itemId);
+    if (keys == null) {
+      return;
+    }
+    itemIdsByBarcode.remove(keys.barcodeKey(), itemId);
+    removeFromDefinition(keys.definitionId(), itemId);
+    count(keys.definitionId(), keys.status(), -1);
+  }
+
+  private void removeFromDefinition(String definitionId, String itemId) {
+    itemIdsByDefinitionId.computeIfPresent(definitionId, (id, ids) -> {
+      ids.remove(itemId);
+      return ids.isEmpty() ? null : ids;
+    });
+  }
+
+  /**
+   * Adjusts a definition's count for one status. The counts of a definition
+   * are replaced atomically, together with its membership of the available
+   * set, so concurrent changes to copies of the same title are not lost.
+   */
+  private void count(String definitionId, Status status, int delta) {
+    statusCountsByDefinitionId.compute(definitionId, (id, counts) -> {
+      int[] next = counts == null ? new int[STATUSES] : counts.clone();
+      next[status.ordinal()] += delta;
+      if (next[Status.AVAILABLE.ordinal()] > 0) {
+        availableDefinitionIds.add(id);
+      } else {
+        availableDefinitionIds.remove(id);
+      }
+      for (int n : next) {
+        if (n != 0) {
+          return next;
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Points the ISBN index at the definition's current ISBN, dropping the entry
+   * for the ISBN it was previously indexed under (if any). Definitions with a
+   * blank ISBN are stored but not indexed.
+   */
+  private void indexIsbn(BookDefinition definition) {
+    String isbn = definition.getIsbn();
+    String key = isbn == null || isbn.isBlank() ? null : ISBNGenerator.canonicalize(isbn);
+    if (key != null && !claim(definitionIdsByIsbn, key, definition.getId())) {
+      throw new IllegalArgumentException("A book definition with ISBN " + isbn + " already exists");
+    }
+
+    String previous = key == null
+        ? isbnKeysByDefinitionId.remove(definition.getId())
+        : isbnKeysByDefinitionId.put(definition.getId(), key);
+    if (previous != null && !previous.equals(key)) {
+      definitionIdsByIsbn.remove(previous, definition.getId());
+    }
   }
 }
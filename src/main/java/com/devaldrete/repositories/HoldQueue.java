@@ -0,0 +1,146 @@
+package com.devaldrete.repositories;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.devaldrete.domain.Hold;
+
+/**
+ * The waiting holds of one title, first come first served: a doubly linked
+ * list threaded through nodes that are also found by hold ID. Adding at either
+ * end, taking the head and removing any hold are O(1), so a popular title with
+ * thousands of holds costs no more per operation than one with a single hold.
+ *
+ * Not thread-safe; HoldRepository guards each queue with its title's stripe
+ * lock.
+ */
+final class HoldQueue {
+
+  private static final class Node {
+    private final Hold hold;
+    private Node prev;
+    private Node next;
+
+    private Node(Hold hold) {
+      this.hold = hold;
+    }
+  }
+
+  private final Map<String, Node> nodes;
+  private Node head;
+  private Node tail;
+
+  HoldQueue() {
+    this.nodes = new HashMap<>();
+  }
+
+  int size() {
+    return nodes.size();
+  }
+
+  boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  boolean contains(String holdId) {
+    return nodes.containsKey(holdId);
+  }
+
+  /**
+   * Queues a hold behind every other one.
+   */
+  void addLast(Hold hold) {
+    Node node = new Node(hold);
+    nodes.put(hold.getId(), node);
+    node.prev = tail;
+    if (tail == null) {
+      head = node;
+    } else {
+      tail.next = node;
+    }
+    tail = node;
+  }
+
+  /**
+   * Queues a hold ahead of every other one, for a hold that was at the head
+   * and lost its copy.
+   */
+  void addFirst(Hold hold) {
+    Node node = new Node(hold);
+    nodes.put(hold.getId(), node);
+    node.next = head;
+    if (head == null) {
+      tail = node;
+    } else {
+      head.prev = node;
+    }
+    head = node;
+  }
+
+  /**
+   * Replaces a queued hold with a new version of it, in the same place.
+   */
+  void replace(Hold hold) {
+    Node old = nodes.get(hold.getId());
+    Node node = new Node(hold);
+    node.prev = old.prev;
+    node.next = old.next;
+    if (old.prev == null) {
+      head = node;
+    } else {
+      old.prev.next = node;
+    }
+    if (old.next == null) {
+      tail = node;
+    } else {
+      old.next.prev = node;
+    }
+    nodes.put(hold.getId(), node);
+  }
+
+  /**
+   * @return the first hold, now removed, or null if the queue is empty
+   */
+  Hold pollFirst() {
+    if (head == null) {
+      return null;
+    }
+    Hold first = head.hold;
+    remove(first.getId());
+    return first;
+  }
+
+  /**
+   * @return false if the hold was not queued
+   */
+  boolean remove(String holdId) {
+    Node node = nodes.remove(holdId);
+    if (node == null) {
+      return false;
+    }
+    if (node.prev == null) {
+      head = node.next;
+    } else {
+      node.prev.next = node.next;
+    }
+    if (node.next == null) {
+      tail = node.prev;
+    } else {
+      node.next.prev = node.prev;
+    }
+    return true;
+  }
+
+  /**
+   * @return the queued holds, first to last
+   */
+  List<Hold> toList() {
+    List<Hold> holds = new ArrayList<>(nodes.size());
+    for (Node node = head; node != null; node = node.next) {
+      holds.add(node.hold);
+    }
+    return holds;
+  }
+}
@@ -0,0 +1,517 @@
+package com.devaldrete.repositories;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import com.devaldrete.domain.Hold;
+
+/**
+ * HoldRepository manages the holds members place on titles, in memory: one
+ * first-come, first-served queue per title, indexed by user, copy and pickup
+ * deadline.
+ *
+ * Writes lock the stripe of the hold's title.
+ *
+ * Error Handling:
+ * - Throws IllegalArgumentException for invalid inputs
+ * - Throws IllegalStateException when attempting invalid state transitions
+ */
+public class HoldRepository extends BaseRepository<Hold> {
+
+  private final InsertionOrderedMap<Hold> holds;
+  private final Map<String, HoldKeys> keysByHoldId;
+  private final ConcurrentHashMap<String, HoldQueue> queuesByDefinitionId;
+  private final ConcurrentHashMap<String, Map<String, Hold>> holdsByUserId;
+  private final ConcurrentHashMap<String, String> holdIdByUserAndDefinition;
+  private final ConcurrentHashMap<String, Hold> readyByBookItemId;
+  private final ConcurrentSkipListMap<Instant, ConcurrentHashMap<String, Hold>> readyByExpiry;
+  private final StripedLock locks;
+
+  // Guards readyByExpiry writes; a deadline bucket holds holds of many titles
+  private final Object expiryLock;
+
+  /**
+   * The index keys a hold was stored under when it was last saved or updated.
+   */
+  private record HoldKeys(String userId, String bookDefId, String bookItemId, Instant expiresAt) {
+  }
+
+  /**
+   * Constructs a new HoldRepository with no holds.
+   */
+  public HoldRepository() {
+    super();
+    this.holds = new InsertionOrderedMap<>();
+    this.keysByHoldId = new ConcurrentHashMap<>();
+    this.queuesByDefinitionId = new ConcurrentHashMap<>();
+    this.holdsByUserId = new ConcurrentHashMap<>();
+    this.holdIdByUserAndDefinition = new ConcurrentHashMap<>();
+    this.readyByBookItemId = new ConcurrentHashMap<>();
+    this.readyByExpiry = new ConcurrentSkipListMap<>();
+    this.locks = new StripedLock();
+    this.expiryLock = new Object();
+  }
+
+  /**
+   * Persists a new hold. A waiting hold joins the back of its title's queue; a
+   * ready one claims its copy.
+   *
+   * @param item the hold to save. Must not be null.
+   * @throws IllegalArgumentException if item is null or incomplete, a hold with
+   *                                  the same ID exists, the user already holds
+   *                                  the title, or the copy is set aside for
+   *                                  another hold
+   */
+  @Override
+  @SuppressWarnings("try")
+  public void save(Hold item) {
+    validateHold(item);
+
+    try (StripedLock.Held held = locks.lock(item.getBookDefId())) {
+      if (exists(item.getId())) {
+        throw new IllegalArgumentException("Hold with ID " + item.getId() + " already exists");
+      }
+      String userKey = userKey(item);
+      if (holdIdByUserAndDefinition.putIfAbsent(userKey, item.getId()) != null) {
+        throw new IllegalArgumentException(
+            "User " + item.getUserId() + " already has a hold on book " + item.getBookDefId());
+      }
+      try {
+        claimBookItem(item);
+      } catch (IllegalArgumentException e) {
+        holdIdByUserAndDefinition.remove(userKey, item.getId());
+        throw e;
+      }
+
+      insert(item);
+      fireSaved(item);
+    }
+  }
+
+  /**
+   * Inserts many holds at once, in the order given, without notifying
+   * listeners. Waiting holds join their title's queue in that order, so a
+   * list taken from {@link #getAll()} rebuilds the same queues. Intended for
+   * loading persisted data; see HoldService.bulkLoad.
+   *
+   * @param items the holds to insert. Must not be null.
+   * @throws IllegalArgumentException if any hold is invalid or conflicting;
+   *                                  nothing is inserted in that case
+   */
+  @SuppressWarnings("try")
+  public void bulkLoad(Collection<Hold> items) {
+    validateNotNull(items, "Holds");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      Set<String> ids = new HashSet<>();
+      Set<String> userKeys = new HashSet<>();
+      Set<String> bookItemIds = new HashSet<>();
+      for (Hold item : items) {
+        validateHold(item);
+        if (exists(item.getId()) || !ids.add(item.getId())) {
+          throw new IllegalArgumentException("Hold with ID " + item.getId() + " already exists");
+        }
+        if (holdIdByUserAndDefinition.containsKey(userKey(item)) || !userKeys.add(userKey(item))) {
+          throw new IllegalArgumentException(
+              "User " + item.getUserId() + " already has a hold on book " + item.getBookDefId());
+        }
+        if (item.isReady()
+            && (readyByBookItemId.containsKey(item.getBookItemId()) || !bookItemIds.add(item.getBookItemId()))) {
+          throw new IllegalArgumentException("Book item " + item.getBookItemId() + " is already set aside");
+        }
+      }
+
+      for (Hold item : items) {
+        holdIdByUserAndDefinition.put(userKey(item), item.getId());
+        if (item.isReady()) {
+          readyByBookItemId.put(item.getBookItemId(), item);
+        }
+        insert(item);
+      }
+      markModified();
+    }
+  }
+
+  /**
+   * Runs {@code action} with every stripe held, so no write to the holds
+   * is in progress or starts until it returns. Reads are not blocked.
+   */
+  @SuppressWarnings("try")
+  public <R> R whileWritesBlocked(Supplier<R> action) {
+    validateNotNull(action, "Action");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      return action.get();
+    }
+  }
+
+  /**
+   * Updates an existing hold. A hold that stays waiting keeps its place; one
+   * that becomes ready leaves the queue; one that loses its copy goes back to
+   * the front of the queue, where it was when the copy was set aside.
+   *
+   * @param item the hold to update. Must not be null.
+   * @throws IllegalArgumentException if item is null or incomplete, its user or
+   *                                  title changed, or the copy is set aside
+   *                                  for another hold
+   * @throws IllegalStateException    if hold with given ID does not exist
+   */
+  @Override
+  @SuppressWarnings("try")
+  public void update(Hold item) {
+    validateHold(item);
+
+    try (StripedLock.Held held = locks.lock(item.getBookDefId())) {
+      HoldKeys previous = keysByHoldId.get(item.getId());
+      if (previous == null) {
+        throw new IllegalStateException("Cannot update: Hold with ID " + item.getId() + " does not exist");
+      }
+      if (!previous.userId().equals(item.getUserId()) || !previous.bookDefId().equals(item.getBookDefId())) {
+        throw new IllegalArgumentException("A hold cannot move to another user or book");
+      }
+      claimBookItem(item);
+      if (previous.bookItemId() != null && !previous.bookItemId().equals(item.getBookItemId())) {
+        readyByBookItemId.remove(previous.bookItemId(), holds.get(item.getId()));
+      }
+
+      HoldQueue queue = queuesByDefinitionId.get(item.getBookDefId());
+      boolean queued = queue != null && queue.contains(item.getId());
+      if (item.isReady() && queued) {
+        dequeue(item.getBookDefId(), item.getId());
+      } else if (!item.isReady() && queued) {
+        queue.replace(item);
+      } else if (!item.isReady()) {
+        queuesByDefinitionId.computeIfAbsent(item.getBookDefId(), k -> new HoldQueue()).addFirst(item);
+      }
+
+      unindex(item.getId());
+      holds.put(item.getId(), item);
+      index(item);
+      fireUpdated(item);
+    }
+  }
+
+  /**
+   * Deletes a hold from the repository by its ID.
+   *
+   * @param id the unique identifier of the hold to delete. Must not be null or
+   *           empty.
+   * @throws IllegalArgumentException if id is null or empty
+   * @throws IllegalStateException    if hold with given ID does not exist
+   */
+  @Override
+  public void delete(String id) {
+    if (deleteIfExists(id) == null) {
+      throw new IllegalStateException("Cannot delete: Hold with ID " + id + " does not exist");
+    }
+  }
+
+  /**
+   * Deletes a hold if it still exists. When several threads delete the same
+   * hold (a pickup racing an expiry, say), exactly one of them gets it back.
+   *
+   * @param id the unique identifier of the hold to delete. Must not be null or
+   *           empty.
+   * @return the deleted hold, or null if there was none
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  @SuppressWarnings("try")
+  public Hold deleteIfExists(String id) {
+    validateNotEmpty(id, "Hold ID");
+
+    while (true) {
+      HoldKeys keys = keysByHoldId.get(id);
+      if (keys == null) {
+        return null;
+      }
+      try (StripedLock.Held held = locks.lock(keys.bookDefId())) {
+        if (keysByHoldId.get(id) != keys) {
+          // Changed or deleted before the lock was taken; look again
+          continue;
+        }
+        Hold hold = holds.remove(id);
+        dequeue(keys.bookDefId(), id);
+        unindex(id);
+        holdIdByUserAndDefinition.remove(keys.userId() + '\u0000' + keys.bookDefId(), id);
+        if (keys.bookItemId() != null) {
+          readyByBookItemId.remove(keys.bookItemId(), hold);
+        }
+        fireDeleted(id);
+        return hold;
+      }
+    }
+  }
+
+  /**
+   * Takes the hold at the front of a title's queue and sets a copy aside for
+   * it, in one step.
+   *
+   * @param bookDefId  the title. Must not be null or empty.
+   * @param bookItemId the copy to set aside. Must not be null or empty.
+   * @param expiresAt  the end of the pickup window. Must not be null.
+   * @return the hold, now ready, or null if no hold was waiting
+   * @throws IllegalArgumentException if an argument is missing or the copy is
+   *                                  already set aside for another hold
+   */
+  @SuppressWarnings("try")
+  public Hold assignNext(String bookDefId, String bookItemId, Instant expiresAt) {
+    validateNotEmpty(bookDefId, "Book definition ID");
+    validateNotEmpty(bookItemId, "Book item ID");
+    validateNotNull(expiresAt, "Expiry");
+
+    try (StripedLock.Held held = locks.lock(bookDefId)) {
+      HoldQueue queue = queuesByDefinitionId.get(bookDefId);
+      if (queue == null) {
+        return null;
+      }
+      Hold next = queue.pollFirst();
+      if (queue.isEmpty()) {
+        queuesByDefinitionId.remove(bookDefId);
+      }
+      if (next == null) {
+        return null;
+      }
+
+      next.setBookItemId(bookItemId);
+      next.setExpiresAt(expiresAt);
+      try {
+        claimBookItem(next);
+      } catch (IllegalArgumentException e) {
+        next.setBookItemId(null);
+        next.setExpiresAt(null);
+        queuesByDefinitionId.computeIfAbsent(bookDefId, k -> new HoldQueue()).addFirst(next);
+        throw e;
+      }
+      unindex(next.getId());
+      index(next);
+      fireUpdated(next);
+      return next;
+    }
+  }
+
+  /**
+   * Retrieves a hold by its ID.
+   *
+   * @param id the unique identifier of the hold to retrieve. Must not be null or
+   *           empty.
+   * @return the hold if found, null if not found
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  @Override
+  public Hold getById(String id) {
+    validateNotEmpty(id, "Hold ID");
+
+    return holds.get(id);
+  }
+
+  /**
+   * Retrieves all holds from the repository, in the order they were placed.
+   *
+   * @return a list containing all holds. Never null, may be empty.
+   */
+  @Override
+  public List<Hold> getAll() {
+    return holds.values();
+  }
+
+  public int count() {
+    return holds.size();
+  }
+
+  @Override
+  protected String getId(Hold item) {
+    validateNotNull(item, "Hold");
+    return item.getId();
+  }
+
+  /**
+   * Determines if a hold with the given ID exists in the repository.
+   *
+   * @param id the unique identifier to check. Must not be null or empty.
+   * @return true if hold exists, false otherwise
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  @Override
+  protected boolean exists(String id) {
+    validateNotEmpty(id, "Hold ID");
+
+    return holds.containsKey(id);
+  }
+
+  /**
+   * Retrieves the holds a user has placed, waiting and ready.
+   *
+   * @param userId the user ID. Must not be null or empty.
+   * @return the user's holds. Never null, may be empty.
+   */
+  public List<Hold> findByUserId(String userId) {
+    validateNotEmpty(userId, "User ID");
+
+    Map<String, Hold> userHolds = holdsByUserId.get(userId);
+    return userHolds == null ? List.of() : List.copyOf(userHolds.values());
+  }
+
+  /**
+   * Retrieves the waiting holds on a title, first in line first.
+   *
+   * @param bookDefId the title. Must not be null or empty.
+   * @return the queue. Never null, may be empty.
+   */
+  @SuppressWarnings("try")
+  public List<Hold> findWaiting(String bookDefId) {
+    validateNotEmpty(bookDefId, "Book definition ID");
+
+    try (StripedLock.Held held = locks.lock(bookDefId)) {
+      HoldQueue queue = queuesByDefinitionId.get(bookDefId);
+      return queue == null ? List.of() : queue.toList();
+    }
+  }
+
+  /**
+   * Counts the waiting holds on a title without materializing them.
+   *
+   * @param bookDefId the title. Must not be null or empty.
+   * @return the length of the queue
+   */
+  @SuppressWarnings("try")
+  public int countWaiting(String bookDefId) {
+    validateNotEmpty(bookDefId, "Book definition ID");
+
+    try (StripedLock.Held held = locks.lock(bookDefId)) {
+      HoldQueue queue = queuesByDefinitionId.get(bookDefId);
+      return queue == null ? 0 : queue.size();
+    }
+  }
+
+  /**
+   * Finds the ready hold a copy is set aside for.
+   *
+   * @param bookItemId the book item ID. Must not be null or empty.
+   * @return the hold, or null if the copy is not set aside
+   */
+  public Hold findReadyByBookItemId(String bookItemId) {
+    validateNotEmpty(bookItemId, "Book item ID");
+
+    return readyByBookItemId.get(bookItemId);
+  }
+
+  /**
+   * Retrieves the ready holds whose pickup window ended strictly before the
+   * given instant, earliest first.
+   *
+   * @param asOf the reference instant. Must not be null.
+   * @return the expired holds. Never null, may be empty.
+   */
+  public List<Hold> findExpiredAsOf(Instant asOf) {
+    validateNotNull(asOf, "As-of instant");
+
+    List<Hold> result = new ArrayList<>();
+    for (Map<String, Hold> bucket : readyByExpiry.headMap(asOf, false).values()) {
+      result.addAll(bucket.values());
+    }
+    return result;
+  }
+
+  // --- Index maintenance ---
+
+  private void validateHold(Hold item) {
+    validateNotNull(item, "Hold");
+    validateNotNull(item.getId(), "Hold ID");
+    validateNotEmpty(item.getUserId(), "User ID");
+    validateNotEmpty(item.getBookDefId(), "Book definition ID");
+    if (item.isReady()) {
+      validateNotNull(item.getExpiresAt(), "Expiry of a ready hold");
+    }
+  }
+
+  /**
+   * Stores a hold whose user and copy keys are already claimed, queueing it if
+   * it waits. The caller holds the title's stripe.
+   */
+  private void insert(Hold item) {
+    holds.put(item.getId(), item);
+    if (!item.isReady()) {
+      queuesByDefinitionId.computeIfAbsent(item.getBookDefId(), k -> new HoldQueue()).addLast(item);
+    }
+    index(item);
+  }
+
+  private static String userKey(Hold item) {
+    return item.getUserId() + '\u0000' + item.getBookDefId();
+  }
+
+  /**
+   * Points the book item index at a ready hold, unless another hold already
+   * has the copy. The check and the update are one atomic step.
+   */
+  private void claimBookItem(Hold item) {
+    if (!item.isReady()) {
+      return;
+    }
+    Hold holder = readyByBookItemId.compute(item.getBookItemId(),
+        (bookItemId, current) -> current == null || current.getId().equals(item.getId()) ? item : current);
+    if (holder != item) {
+      throw new IllegalArgumentException(
+          "Book item " + item.getBookItemId() + " is already set aside (hold " + holder.getId() + ")");
+    }
+  }
+
+  private void dequeue(String bookDefId, String holdId) {
+    HoldQueue queue = queuesByDefinitionId.get(bookDefId);
+    if (queue != null && queue.remove(holdId) && queue.isEmpty()) {
+      queuesByDefinitionId.remove(bookDefId);
+    }
+  }
+
+  /**
+   * Remembers the hold's keys and files it under its user and, when ready,
+   * its pickup deadline. The caller holds the title's stripe.
+   */
+  private void index(Hold hold) {
+    HoldKeys keys = new HoldKeys(hold.getUserId(), hold.getBookDefId(), hold.getBookItemId(),
+        hold.getExpiresAt());
+    keysByHoldId.put(hold.getId(), keys);
+    holdsByUserId.compute(keys.userId(), (k, bucket) -> {
+      Map<String, Hold> copy = bucket == null ? new LinkedHashMap<>() : new LinkedHashMap<>(bucket);
+      copy.put(hold.getId(), hold);
+      return copy;
+    });
+    if (keys.bookItemId() != null) {
+      synchronized (expiryLock) {
+        readyByExpiry.computeIfAbsent(keys.expiresAt(), k -> new ConcurrentHashMap<>()).put(hold.getId(), hold);
+      }
+    }
+  }
+
+  /**
+   * Removes the hold from the user and deadline indexes.
+   */
+  private void unindex(String holdId) {
+    HoldKeys keys = keysByHoldId.remove(holdId);
+    if (keys == null) {
+      return;
+    }
+    holdsByUserId.computeIfPresent(keys.userId(), (k, bucket) -> {
+      Map<String, Hold> copy = new LinkedHashMap<>(bucket);
+      copy.remove(holdId);
+      return copy.isEmpty() ? null : copy;
+    });
+    if (keys.bookItemId() != null) {
+      synchronized (expiryLock) {
+        Map<String, Hold> bucket = readyByExpiry.get(keys.expiresAt());
+        if (bucket != null && bucket.remove(holdId) != null && bucket.isEmpty()) {
+          readyByExpiry.remove(keys.expiresAt());
+        }
+      }
+    }
+  }
+}
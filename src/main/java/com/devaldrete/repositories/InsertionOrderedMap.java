@@ -0,0 +1,100 @@
+package com.devaldrete.repositories;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent replacement for a {@code LinkedHashMap<String, V>}: entities are
+ * found by ID in a {@link ConcurrentHashMap} and listed in insertion order
+ * from a {@link ConcurrentSkipListMap} keyed by an insertion sequence number.
+ *
+ * Reads never block. Iteration is weakly consistent: it reflects some state
+ * between the start and the end of the call and never fails. Writes to the
+ * same key must be serialized by the caller (the repositories hold that key's
+ * stripe lock); writes to different keys may run concurrently.
+ */
+final class InsertionOrderedMap<V> {
+
+  private record Slot<V>(long sequence, V value) {
+  }
+
+  private final ConcurrentHashMap<String, Slot<V>> slots;
+  private final ConcurrentSkipListMap<Long, V> order;
+  private final AtomicLong sequence;
+
+  InsertionOrderedMap() {
+    this.slots = new ConcurrentHashMap<>();
+    this.order = new ConcurrentSkipListMap<>();
+    this.sequence = new AtomicLong();
+  }
+
+  V get(String key) {
+    Slot<V> slot = slots.get(key);
+    return slot == null ? null : slot.value();
+  }
+
+  boolean containsKey(String key) {
+    return slots.containsKey(key);
+  }
+
+  int size() {
+    return slots.size();
+  }
+
+  /**
+   * Inserts or replaces a value. A replaced value keeps its position.
+   *
+   * @return the previous value, or null
+   */
+  V put(String key, V value) {
+    Slot<V> previous = slots.get(key);
+    long position = previous == null ? sequence.incrementAndGet() : previous.sequence();
+    order.put(position, value);
+    slots.put(key, new Slot<>(position, value));
+    return previous == null ? null : previous.value();
+  }
+
+  /**
+   * @return the removed value, or null if the key was absent
+   */
+  V remove(String key) {
+    Slot<V> previous = slots.remove(key);
+    if (previous == null) {
+      return null;
+    }
+    order.remove(previous.sequence());
+    return previous.value();
+  }
+
+  /**
+   * @return every value, in insertion order
+   */
+  List<V> values() {
+    return new ArrayList<>(order.values());
+  }
+
+  /**
+   * Resolves keys to their values, in insertion order. Absent keys are
+   * skipped.
+   */
+  List<V> valuesOf(Collection<String> keys) {
+    List<Slot<V>> found = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Slot<V> slot = slots.get(key);
+      if (slot != null) {
+        found.add(slot);
+      }
+    }
+    found.sort(Comparator.comparingLong(Slot::sequence));
+    List<V> result = new ArrayList<>(found.size());
+    for (Slot<V> slot : found) {
+      result.add(slot.value());
+    }
+    return result;
+  }
+}
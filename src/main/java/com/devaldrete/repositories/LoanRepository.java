@@ -1,18 +1,27 @@
 package com.devaldrete.repositories;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
 
 import com.devaldrete.domain.Loan;
 
 /**
- * LoanRepository manages the persistence of Loan entities using an in-memory
- * list.
+ * LoanRepository manages the persistence of Loan entities in memory, indexed
+ * by user, book item and due date.
  * 
- * This repository provides CRUD operations for loans with proper validation and
- * error handling. All loans are stored in memory and persisted throughout the
- * application lifecycle.
+ * Reads never block; writes lock the loan's stripe.
  * 
  * Error handling:
  * - Validates all input parameters (null/empty checks)
@@ -21,56 +30,129 @@ import com.devaldrete.domain.Loan;
  */
 public class LoanRepository extends BaseRepository<Loan> {
 
-  private List<Loan> loans;
+  private final InsertionOrderedMap<Loan> loans;
+  private final Map<String, LoanKeys> keysByLoanId;
+  private final ConcurrentHashMap<String, Map<String, Loan>> loansByUserId;
+  private final ConcurrentHashMap<String, Loan> loansByBookItemId;
+  private final ConcurrentSkipListMap<Instant, ConcurrentHashMap<String, Loan>> loansByDueDate;
+  private final Clock clock;
+  private final StripedLock locks;
+
+  // Guards loansByDueDate writes, overdueWatermark and overdueCount. Loans due
+  // strictly before the watermark are counted in overdueCount.
+  private final Object dueDateLock;
+  private Instant overdueWatermark;
+  private int overdueCount;
 
   /**
-   * Constructs a new LoanRepository with an empty loan collection.
+   * The index keys a loan was stored under when it was last saved or updated.
+   */
+  private record LoanKeys(String userId, String bookId, Instant dueDate) {
+  }
+
+  /**
+   * Constructs a new LoanRepository with an empty loan collection that uses the
+   * system UTC clock.
    */
   public LoanRepository() {
+    this(Clock.systemUTC());
+  }
+
+  /**
+   * Constructs a new LoanRepository with an empty loan collection.
+   * 
+   * @param clock the clock used to decide which loans are overdue. Must not be
+   *              null.
+   */
+  public LoanRepository(Clock clock) {
     super();
-    this.loans = new ArrayList<>();
+    validateNotNull(clock, "Clock");
+    this.clock = clock;
+    this.dueDateLock = new Object();
+    this.overdueWatermark = Instant.MIN;
+    this.loans = new InsertionOrderedMap<>();
+    this.keysByLoanId = new ConcurrentHashMap<>();
+    this.loansByUserId = new ConcurrentHashMap<>();
+    this.loansByBookItemId = new ConcurrentHashMap<>();
+    this.loansByDueDate = new ConcurrentSkipListMap<>();
+    this.locks = new StripedLock();
   }
 
   /**
    * Persists a new loan to the repository.
    * 
    * @param item the loan to save. Must not be null.
-   * @throws IllegalArgumentException if item is null or loan already exists with
-   *                                  same ID
+   * @throws IllegalArgumentException if item is null, loan already exists with
+   *                                  same ID, or the book item is already on
+   *                                  loan
    */
   @Override
   public void save(Loan item) {
-    validateNotNull(item, "Loan");
-    validateNotNull(item.getId(), "Loan ID");
+    saveIfBelowLimit(item, Integer.MAX_VALUE);
+  }
 
-    if (exists(item.getId())) {
-      throw new IllegalArgumentException("Loan with ID " + item.getId() + " already exists");
-    }
+  /**
+   * Persists a new loan unless its user already holds {@code limit} loans.
+   * The book item is claimed and the user's loans are counted and extended in
+   * atomic steps, so concurrent checkouts can neither lend one copy twice nor
+   * take a user past the limit.
+   * 
+   * @param item  the loan to save. Must not be null.
+   * @param limit the most loans the user may hold, this one included
+   * @return false, leaving the repository unchanged, if the user already holds
+   *         {@code limit} loans
+   * @throws IllegalArgumentException if item is null, loan already exists with
+   *                                  same ID, or the book item is already on
+   *                                  loan
+   */
+  @SuppressWarnings("try")
+  public boolean saveIfBelowLimit(Loan item, int limit) {
+    validateLoan(item);
 
-    loans.add(item);
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (exists(item.getId())) {
+        throw new IllegalArgumentException("Loan with ID " + item.getId() + " already exists");
+      }
+      claimBookItem(item);
+      if (!fileUnderUser(item, limit)) {
+        releaseBookItem(item.getBookId(), item.getId());
+        return false;
+      }
+
+      loans.put(item.getId(), item);
+      index(item);
+      fireSaved(item);
+      return true;
+    }
   }
 
   /**
    * Updates an existing loan in the repository.
    * 
    * @param item the loan to update. Must not be null.
-   * @throws IllegalArgumentException if item is null
+   * @throws IllegalArgumentException if item is null or the book item is
+   *                                  already on loan under another loan
    * @throws IllegalStateException    if loan with given ID does not exist
    */
   @Override
+  @SuppressWarnings("try")
   public void update(Loan item) {
-    validateNotNull(item, "Loan");
-    validateNotNull(item.getId(), "Loan ID");
+    validateLoan(item);
 
-    if (!exists(item.getId())) {
-      throw new IllegalStateException("Cannot update: Loan with ID " + item.getId() + " does not exist");
-    }
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (!exists(item.getId())) {
+        throw new IllegalStateException("Cannot update: Loan with ID " + item.getId() + " does not exist");
+      }
+      claimBookItem(item);
 
-    for (int i = 0; i < loans.size(); i++) {
-      if (loans.get(i).getId().equals(item.getId())) {
-        loans.set(i, item);
-        return;
+      LoanKeys previous = unindex(item.getId());
+      if (previous != null && !previous.bookId().equals(item.getBookId())) {
+        releaseBookItem(previous.bookId(), item.getId());
       }
+      fileUnderUser(item, Integer.MAX_VALUE);
+      loans.put(item.getId(), item);
+      index(item);
+      fireUpdated(item);
     }
   }
 
@@ -84,13 +166,38 @@ public class LoanRepository extends BaseRepository<Loan> {
    */
   @Override
   public void delete(String id) {
-    validateNotEmpty(id, "Loan ID");
-
-    if (!exists(id)) {
+    if (deleteIfExists(id) == null) {
       throw new IllegalStateException("Cannot delete: Loan with ID " + id + " does not exist");
     }
+  }
+
+  /**
+   * Deletes a loan if it still exists. When several threads delete the same
+   * loan, exactly one of them gets it back, which makes this the point where
+   * a return takes effect.
+   * 
+   * @param id the unique identifier of the loan to delete. Must not be null or
+   *           empty.
+   * @return the deleted loan, or null if there was none
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  @SuppressWarnings("try")
+  public Loan deleteIfExists(String id) {
+    validateNotEmpty(id, "Loan ID");
+
+    try (StripedLock.Held held = locks.lock(id)) {
+      Loan loan = loans.remove(id);
+      if (loan == null) {
+        return null;
+      }
 
-    loans.removeIf(loan -> loan.getId().equals(id));
+      LoanKeys keys = unindex(id);
+      if (keys != null) {
+        releaseBookItem(keys.bookId(), id);
+      }
+      fireDeleted(id);
+      return loan;
+    }
   }
 
   /**
@@ -105,10 +212,7 @@ public class LoanRepository extends BaseRepository<Loan> {
   public Loan getById(String id) {
     validateNotEmpty(id, "Loan ID");
 
-    return getAll().stream()
-        .filter(loan -> loan.getId().equals(id))
-        .findFirst()
-        .orElse(null);
+    return loans.get(id);
   }
 
   /**
@@ -118,7 +222,7 @@ public class LoanRepository extends BaseRepository<Loan> {
    */
   @Override
   public List<Loan> getAll() {
-    return new ArrayList<>(loans);
+    return loans.values();
   }
 
   @Override
@@ -138,27 +242,323 @@ public class LoanRepository extends BaseRepository<Loan> {
   protected boolean exists(String id) {
     validateNotEmpty(id, "Loan ID");
 
-    return getAll().stream()
-        .anyMatch(loan -> loan.getId().equals(id));
+    return loans.containsKey(id);
   }
 
+  /**
+   * Retrieves the loans held by a user.
+   * 
+   * @param userId the user ID. Must not be null or empty.
+   * @return the user's loans. Never null, may be empty.
+   */
   public List<Loan> findByUserId(String userId) {
     validateNotEmpty(userId, "User ID");
 
-    return loans.stream()
-        .filter(loan -> loan.getUserId().equals(userId))
-        .toList();
+    Map<String, Loan> userLoans = loansByUserId.get(userId);
+    return userLoans == null ? List.of() : List.copyOf(userLoans.values());
+  }
+
+  /**
+   * Counts the loans held by a user without materializing them.
+   * 
+   * @param userId the user ID. Must not be null or empty.
+   * @return the number of loans held by the user
+   */
+  public int countByUserId(String userId) {
+    validateNotEmpty(userId, "User ID");
+
+    Map<String, Loan> userLoans = loansByUserId.get(userId);
+    return userLoans == null ? 0 : userLoans.size();
   }
 
+  /**
+   * Finds the loan currently holding a book item.
+   * 
+   * @param bookItemId the book item ID. Must not be null or empty.
+   * @return the loan, or null if the copy is not on loan
+   */
+  public Loan findByBookItemId(String bookItemId) {
+    validateNotEmpty(bookItemId, "Book item ID");
+
+    return loansByBookItemId.get(bookItemId);
+  }
+
+  /**
+   * Retrieves the loans whose due date has already passed, oldest first.
+   * 
+   * @return the overdue loans. Never null, may be empty.
+   */
   public List<Loan> findOverdue() {
-    Instant now = Instant.now();
+    return findOverdueAsOf(clock.instant());
+  }
+
+  /**
+   * Retrieves the loans that are overdue as of the given instant, i.e. whose
+   * due date is strictly before it, oldest first.
+   * 
+   * @param asOf the reference instant. Must not be null.
+   * @return the overdue loans. Never null, may be empty.
+   */
+  public List<Loan> findOverdueAsOf(Instant asOf) {
+    validateNotNull(asOf, "As-of instant");
+
+    return collect(loansByDueDate.headMap(asOf, false));
+  }
+
+  /**
+   * Retrieves the loans that are not yet overdue but fall due within the given
+   * window from now, ordered by due date.
+   * 
+   * @param window how far ahead to look. Must not be null or negative.
+   * @return the loans due soon. Never null, may be empty.
+   */
+  public List<Loan> findDueWithin(Duration window) {
+    validateNotNull(window, "Window");
+    if (window.isNegative()) {
+      throw new IllegalArgumentException("Window must not be negative");
+    }
+
+    Instant now = clock.instant();
+    return findDueBetween(now, now.plus(window));
+  }
+
+  /**
+   * Counts the loans that are overdue now.
+   * 
+   * @return the number of overdue loans
+   */
+  public int countOverdue() {
+    return countOverdueAsOf(clock.instant());
+  }
+
+  /**
+   * Counts the loans that are overdue as of the given instant. Advances the
+   * overdue watermark, so successive calls with non-decreasing instants only
+   * visit the loans that became overdue in between.
+   * 
+   * @param asOf the reference instant. Must not be null.
+   * @return the number of loans due strictly before {@code asOf}
+   */
+  public int countOverdueAsOf(Instant asOf) {
+    validateNotNull(asOf, "As-of instant");
+
+    synchronized (dueDateLock) {
+      if (asOf.isBefore(overdueWatermark)) {
+        overdueCount = countLoans(loansByDueDate.headMap(asOf, false));
+      } else if (asOf.isAfter(overdueWatermark)) {
+        overdueCount += countLoans(loansByDueDate.subMap(overdueWatermark, true, asOf, false));
+      }
+      overdueWatermark = asOf;
+      return overdueCount;
+    }
+  }
+
+  /**
+   * Retrieves the loans due in the half-open range {@code [from, to)}, ordered
+   * by due date.
+   * 
+   * @param from inclusive lower bound. Must not be null.
+   * @param to   exclusive upper bound. Must not be null.
+   * @return the loans due in the range. Never null, may be empty.
+   */
+  public List<Loan> findDueBetween(Instant from, Instant to) {
+    validateNotNull(from, "From");
+    validateNotNull(to, "To");
 
-    return loans.stream()
-        .filter(loan -> loan.getDueDate().isBefore(now))
-        .toList();
+    if (!from.isBefore(to)) {
+      return List.of();
+    }
+    return collect(loansByDueDate.subMap(from, true, to, false));
   }
 
   public int count() {
     return loans.size();
   }
+
+  /**
+   * Inserts many loans in one pass, typically when loading a snapshot at
+   * startup. Loan IDs must be unique and each book item may be held by at most
+   * one loan, within the batch and against existing loans. Everything is
+   * validated before anything is stored, so a failed load leaves the repository
+   * unchanged. References to users and book items are not checked here; see
+   * LoanService.bulkLoad.
+   *
+   * @param items the loans to insert. Must not be null.
+   * @throws IllegalArgumentException if any loan is invalid or conflicting
+   */
+  @SuppressWarnings("try")
+  public void bulkLoad(Collection<Loan> items) {
+    validateNotNull(items, "Loans");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      Set<String> ids = new HashSet<>();
+      Set<String> bookIds = new HashSet<>();
+      for (Loan item : items) {
+        validateLoan(item);
+        if (loans.containsKey(item.getId()) || !ids.add(item.getId())) {
+          throw new IllegalArgumentException("Loan with ID " + item.getId() + " already exists");
+        }
+        if (loansByBookItemId.containsKey(item.getBookId()) || !bookIds.add(item.getBookId())) {
+          throw new IllegalArgumentException("Book item " + item.getBookId() + " is already on loan");
+        }
+      }
+
+      // Group by bucket first, so each copied-on-write user bucket is published once
+      Map<String, Map<String, Loan>> byUser = new HashMap<>();
+      Map<Instant, Map<String, Loan>> byDueDate = new HashMap<>();
+      for (Loan item : items) {
+        loans.put(item.getId(), item);
+        keysByLoanId.put(item.getId(), new LoanKeys(item.getUserId(), item.getBookId(), item.getDueDate()));
+        loansByBookItemId.put(item.getBookId(), item);
+        byUser.computeIfAbsent(item.getUserId(), k -> new LinkedHashMap<>()).put(item.getId(), item);
+        byDueDate.computeIfAbsent(item.getDueDate(), k -> new LinkedHashMap<>()).put(item.getId(), item);
+      }
+      byUser.forEach((userId, added) -> loansByUserId.merge(userId, added, LoanRepository::concat));
+      synchronized (dueDateLock) {
+        byDueDate.forEach((dueDate, added) -> {
+          loansByDueDate.computeIfAbsent(dueDate, k -> new ConcurrentHashMap<>()).putAll(added);
+          if (dueDate.isBefore(overdueWatermark)) {
+            overdueCount += added.size();
+          }
+        });
+      }
+      markModified();
+    }
+  }
+
+  /**
+   * Runs {@code action} with every stripe held, so no write to the loans
+   * is in progress or starts until it returns. Reads are not blocked.
+   */
+  @SuppressWarnings("try")
+  public <R> R whileWritesBlocked(Supplier<R> action) {
+    validateNotNull(action, "Action");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      return action.get();
+    }
+  }
+
+  // --- Index maintenance ---
+
+  private void validateLoan(Loan item) {
+    validateNotNull(item, "Loan");
+    validateNotNull(item.getId(), "Loan ID");
+    validateNotEmpty(item.getUserId(), "User ID");
+    validateNotEmpty(item.getBookId(), "Book item ID");
+    validateNotNull(item.getDueDate(), "Due date");
+  }
+
+  /**
+   * Points the book item index at the loan, unless another loan already holds
+   * the copy. The check and the update are one atomic step.
+   */
+  private void claimBookItem(Loan item) {
+    Loan holder = loansByBookItemId.compute(item.getBookId(),
+        (bookId, current) -> current == null || current.getId().equals(item.getId()) ? item : current);
+    if (holder != item) {
+      throw new IllegalArgumentException(
+          "Book item " + item.getBookId() + " is already on loan (loan " + holder.getId() + ")");
+    }
+  }
+
+  private void releaseBookItem(String bookId, String loanId) {
+    loansByBookItemId.computeIfPresent(bookId, (k, holder) -> holder.getId().equals(loanId) ? null : holder);
+  }
+
+  /**
+   * Adds the loan to its user's loans unless the user already holds
+   * {@code limit} of them. Counting and adding are one atomic step per user.
+   *
+   * @return false if the user is at the limit
+   */
+  private boolean fileUnderUser(Loan loan, int limit) {
+    Map<String, Loan> bucket = loansByUserId.compute(loan.getUserId(),
+        (userId, current) -> current != null && current.size() >= limit && !current.containsKey(loan.getId())
+            ? current
+            : with(current, loan));
+    return bucket.get(loan.getId()) == loan;
+  }
+
+  /**
+   * Remembers the loan's keys and files it under its due date. The user and
+   * book item indexes are kept by {@link #fileUnderUser(Loan, int)} and
+   * {@link #claimBookItem(Loan)}.
+   */
+  private void index(Loan loan) {
+    LoanKeys keys = new LoanKeys(loan.getUserId(), loan.getBookId(), loan.getDueDate());
+    keysByLoanId.put(loan.getId(), keys);
+    synchronized (dueDateLock) {
+      loansByDueDate.computeIfAbsent(keys.dueDate(), k -> new ConcurrentHashMap<>()).put(loan.getId(), loan);
+      if (keys.dueDate().isBefore(overdueWatermark)) {
+        overdueCount++;
+      }
+    }
+  }
+
+  /**
+   * Removes the loan from the user and due-date indexes.
+   *
+   * @return the keys it was filed under, or null if it was not indexed
+   */
+  private LoanKeys unindex(String loanId) {
+    LoanKeys keys = keysByLoanId.remove(loanId);
+    if (keys == null) {
+      return null;
+    }
+
+    loansByUserId.computeIfPresent(keys.userId(), (k, bucket) -> without(bucket, loanId));
+    synchronized (dueDateLock) {
+      Map<String, Loan> bucket = loansByDueDate.get(keys.dueDate());
+      if (bucket != null && bucket.remove(loanId) != null && bucket.isEmpty()) {
+        loansByDueDate.remove(keys.dueDate());
+      }
+      if (keys.dueDate().isBefore(overdueWatermark)) {
+        overdueCount--;
+      }
+    }
+    return keys;
+  }
+
+  // User buckets are copied on write so readers can iterate them unlocked and
+  // in insertion order. Due-date buckets are concurrent maps changed in place,
+  // since many loans can share a due date (loans imported with day precision)
+  // and copying such a bucket on every return would make returns O(n).
+
+  private static Map<String, Loan> with(Map<String, Loan> bucket, Loan loan) {
+    Map<String, Loan> copy = bucket == null ? new LinkedHashMap<>() : new LinkedHashMap<>(bucket);
+    copy.put(loan.getId(), loan);
+    return copy;
+  }
+
+  private static Map<String, Loan> without(Map<String, Loan> bucket, String loanId) {
+    if (bucket == null) {
+      return null;
+    }
+    Map<String, Loan> copy = new LinkedHashMap<>(bucket);
+    copy.remove(loanId);
+    return copy.isEmpty() ? null : copy;
+  }
+
+  private static Map<String, Loan> concat(Map<String, Loan> bucket, Map<String, Loan> added) {
+    Map<String, Loan> copy = new LinkedHashMap<>(bucket);
+    copy.putAll(added);
+    return copy;
+  }
+
+  private static int countLoans(Map<Instant, ConcurrentHashMap<String, Loan>> range) {
+    int total = 0;
+    for (Map<String, Loan> bucket : range.values()) {
+      total += bucket.size();
+    }
+    return total;
+  }
+
+  private static List<Loan> collect(Map<Instant, ConcurrentHashMap<String, Loan>> range) {
+    List<Loan> result = new ArrayList<>();
+    for (Map<String, Loan> bucket : range.values()) {
+      result.addAll(bucket.values());
+    }
+    return result;
+  }
 }
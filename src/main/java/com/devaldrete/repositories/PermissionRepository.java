@@ -1,7 +1,6 @@
 package com.devaldrete.repositories;
 
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
 
 import com.devaldrete.domain.Permission;
@@ -10,13 +9,19 @@ import com.devaldrete.domain.Permission;
  * Initializes the PermissionRepository with an empty permissions list.
  * Manages Permission instances with full CRUD operations and soft-delete
  * support.
+ *
+ * Permissions are kept in an insertion-ordered concurrent map keyed by ID, so
+ * lookups by ID are constant time and reads never block. Writes lock the
+ * permission's stripe (see {@link StripedLock}).
  */
 public class PermissionRepository extends BaseRepository<Permission> {
-  private List<Permission> permissions;
+  private final InsertionOrderedMap<Permission> permissions;
+  private final StripedLock locks;
 
   public PermissionRepository() {
     super();
-    this.permissions = new ArrayList<>();
+    this.permissions = new InsertionOrderedMap<>();
+    this.locks = new StripedLock();
   }
 
   /**
@@ -27,18 +32,21 @@ public class PermissionRepository extends BaseRepository<Permission> {
    *                                  permission already exists
    */
   @Override
+  @SuppressWarnings("try")
   public void save(Permission item) {
     validateNotNull(item, "Permission");
     validateNotNull(item.getId(), "Permission ID");
     validateNotEmpty(item.getId(), "Permission ID");
 
-    if (exists(item.getId())) {
-      throw new IllegalArgumentException("Permission with ID '" + item.getId() + "' already exists");
-    }
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (exists(item.getId())) {
+        throw new IllegalArgumentException("Permission with ID '" + item.getId() + "' already exists");
+      }
 
-    item.setCreatedAt(Instant.now());
-    item.setUpdatedAt(Instant.now());
-    permissions.add(item);
+      item.setCreatedAt(Instant.now());
+      item.setUpdatedAt(Instant.now());
+      permissions.put(item.getId(), item);
+    }
   }
 
   /**
@@ -50,21 +58,19 @@ public class PermissionRepository extends BaseRepository<Permission> {
    * @throws IllegalStateException    if permission does not exist in repository
    */
   @Override
+  @SuppressWarnings("try")
   public void update(Permission item) {
     validateNotNull(item, "Permission");
     validateNotNull(item.getId(), "Permission ID");
     validateNotEmpty(item.getId(), "Permission ID");
 
-    if (!exists(item.getId())) {
-      throw new IllegalStateException("Permission with ID '" + item.getId() + "' not found");
-    }
-
-    item.setUpdatedAt(Instant.now());
-    for (int i = 0; i < permissions.size(); i++) {
-      if (permissions.get(i).getId().equals(item.getId())) {
-        permissions.set(i, item);
-        return;
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (!exists(item.getId())) {
+        throw new IllegalStateException("Permission with ID '" + item.getId() + "' not found");
       }
+
+      item.setUpdatedAt(Instant.now());
+      permissions.put(item.getId(), item);
     }
   }
 
@@ -78,14 +84,17 @@ public class PermissionRepository extends BaseRepository<Permission> {
    * @throws IllegalStateException    if permission with given id does not exist
    */
   @Override
+  @SuppressWarnings("try")
   public void delete(String id) {
     validateNotEmpty(id, "Permission ID");
 
-    if (!exists(id)) {
-      throw new IllegalStateException("Permission with ID '" + id + "' not found");
-    }
+    try (StripedLock.Held held = locks.lock(id)) {
+      if (!exists(id)) {
+        throw new IllegalStateException("Permission with ID '" + id + "' not found");
+      }
 
-    permissions.removeIf(permission -> permission.getId().equals(id));
+      permissions.remove(id);
+    }
   }
 
   /**
@@ -99,7 +108,7 @@ public class PermissionRepository extends BaseRepository<Permission> {
   public Permission getById(String id) {
     validateNotEmpty(id, "Permission ID");
 
-    return permissions.stream().filter(permission -> permission.getId().equals(id)).findFirst().orElse(null);
+    return permissions.get(id);
   }
 
   /**
@@ -109,7 +118,7 @@ public class PermissionRepository extends BaseRepository<Permission> {
    */
   @Override
   public List<Permission> getAll() {
-    return new ArrayList<>(permissions);
+    return permissions.values();
   }
 
   /**
@@ -137,7 +146,7 @@ public class PermissionRepository extends BaseRepository<Permission> {
       return false;
     }
 
-    return permissions.stream().anyMatch(permission -> permission.getId().equals(id));
+    return permissions.containsKey(id);
   }
 
   /**
@@ -150,7 +159,8 @@ public class PermissionRepository extends BaseRepository<Permission> {
   public Permission findByName(String name) {
     validateNotEmpty(name, "Permission name");
 
-    return permissions.stream().filter(permission -> permission.getName().equals(name)).findFirst().orElse(null);
+    return permissions.values().stream().filter(permission -> permission.getName().equals(name)).findFirst()
+        .orElse(null);
   }
 
   /**
@@ -172,6 +182,6 @@ public class PermissionRepository extends BaseRepository<Permission> {
   public boolean nameExists(String name) {
     validateNotEmpty(name, "Permission name");
 
-    return permissions.stream().anyMatch(permission -> permission.getName().equals(name));
+    return permissions.values().stream().anyMatch(permission -> permission.getName().equals(name));
   }
 }
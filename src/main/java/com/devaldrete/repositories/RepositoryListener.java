@@ -0,0 +1,40 @@
+package com.devaldrete.repositories;
+
+/**
+ * Receives a callback after each successful mutation of a repository.
+ *
+ * Callbacks run synchronously on the thread that performed the mutation, after
+ * the repository's storage and indexes have been updated. Bulk loads are not
+ * reported: they restore state that was already persisted.
+ *
+ * All methods default to doing nothing, so implementations only override the
+ * events they care about.
+ *
+ * @param <T> The entity type managed by the observed repository
+ */
+public interface RepositoryListener<T> {
+
+  /**
+   * Called after a new entity has been stored.
+   *
+   * @param item the stored entity
+   */
+  default void saved(T item) {
+  }
+
+  /**
+   * Called after an entity has been replaced or re-indexed.
+   *
+   * @param item the entity in its new state
+   */
+  default void updated(T item) {
+  }
+
+  /**
+   * Called after an entity has been removed.
+   *
+   * @param id the unique identifier of the removed entity
+   */
+  default void deleted(String id) {
+  }
+}
@@ -0,0 +1,107 @@
+package com.devaldrete.repositories;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed array of locks that writers take by key, so writes to different
+ * entities proceed in parallel while two writes to the same entity are
+ * serialized. Keys are hashed onto the stripes; unrelated keys occasionally
+ * share a stripe, which only costs some parallelism.
+ *
+ * Several keys are locked at once through {@link #lock(String...)}, which
+ * takes the stripes in ascending index order so two writers can never wait on
+ * each other in a cycle. Readers do not use these locks.
+ */
+final class StripedLock {
+
+  private final ReentrantLock[] stripes;
+
+  /**
+   * A set of stripes held by the current thread; closing it releases them.
+   * It is taken in a try-with-resources whose body never refers to it, so
+   * callers suppress the "try" lint warning on the enclosing method.
+   */
+  final class Held implements AutoCloseable {
+
+    private final int[] indexes;
+
+    private Held(int[] indexes) {
+      this.indexes = indexes;
+    }
+
+    @Override
+    public void close() {
+      for (int i = indexes.length - 1; i >= 0; i--) {
+        stripes[indexes[i]].unlock();
+      }
+    }
+  }
+
+  /**
+   * @param minimumStripes the least number of stripes; rounded up to a power of
+   *                       two
+   */
+  StripedLock(int minimumStripes) {
+    int size = Integer.highestOneBit(Math.max(1, minimumStripes - 1)) << 1;
+    this.stripes = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * One stripe per four cores, and at least 64, so uniformly spread keys
+   * rarely collide.
+   */
+  StripedLock() {
+    this(Math.max(64, Runtime.getRuntime().availableProcessors() * 4));
+  }
+
+  /**
+   * Locks the stripes of the given keys, ignoring null keys and locking a
+   * stripe shared by several keys once.
+   *
+   * @return the held stripes, to be closed in a finally block or
+   *         try-with-resources
+   */
+  Held lock(String... keys) {
+    int[] indexes = new int[keys.length];
+    int count = 0;
+    for (String key : keys) {
+      if (key != null) {
+        indexes[count++] = stripeOf(key);
+      }
+    }
+    Arrays.sort(indexes, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+        indexes[distinct++] = indexes[i];
+      }
+    }
+    return acquire(Arrays.copyOf(indexes, distinct));
+  }
+
+  /**
+   * Locks every stripe, excluding all other writers; used by bulk loads that
+   * validate a whole batch before storing it.
+   */
+  Held lockAll() {
+    int[] indexes = new int[stripes.length];
+    Arrays.setAll(indexes, i -> i);
+    return acquire(indexes);
+  }
+
+  private Held acquire(int[] indexes) {
+    for (int i = 0; i < indexes.length; i++) {
+      stripes[indexes[i]].lock();
+    }
+    return new Held(indexes);
+  }
+
+  private int stripeOf(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (stripes.length - 1);
+  }
+}
@@ -0,0 +1,166 @@
+package com.devaldrete.repositories;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index answering "which documents contain this substring"
+ * for short text fields such as titles and author names. Text is normalized
+ * (accents stripped, case-folded) and split into 3-character grams.
+ *
+ * Searches never block; updates to the same document must be serialized by the
+ * owning repository.
+ */
+final class TrigramIndex {
+
+  private static final int GRAM = 3;
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+  private final Map<String, Set<String>> postings;
+  private final Map<String, String> documents;
+
+  TrigramIndex() {
+    this.postings = new ConcurrentHashMap<>();
+    this.documents = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Folds text for matching: decomposes accented characters, drops the
+   * combining marks and lower-cases the result ("Gabriel García Márquez"
+   * becomes "gabriel garcia marquez").
+   *
+   * @param text the raw text, may be null
+   * @return the folded text, empty for null input
+   */
+  static String normalize(String text) {
+    if (text == null || text.isEmpty()) {
+      return "";
+    }
+    String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+    return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Indexes (or re-indexes) a document. Only the grams that differ from the
+   * document's previous text are touched.
+   */
+  void put(String docId, String text) {
+    String normalized = normalize(text);
+    String previous = documents.put(docId, normalized);
+    if (normalized.equals(previous)) {
+      return;
+    }
+
+    Set<String> oldGrams = previous == null ? Set.of() : grams(previous);
+    Set<String> newGrams = grams(normalized);
+
+    for (String gram : oldGrams) {
+      if (!newGrams.contains(gram)) {
+        unpost(gram, docId);
+      }
+    }
+    for (String gram : newGrams) {
+      if (!oldGrams.contains(gram)) {
+        postings.compute(gram, (g, posting) -> {
+          Set<String> ids = posting == null ? ConcurrentHashMap.newKeySet() : posting;
+          ids.add(docId);
+          return ids;
+        });
+      }
+    }
+  }
+
+  /**
+   * Removes a document from the index. Unknown IDs are ignored.
+   */
+  void remove(String docId) {
+    String previous = documents.remove(docId);
+    if (previous == null) {
+      return;
+    }
+    for (String gram : grams(previous)) {
+      unpost(gram, docId);
+    }
+  }
+
+  /**
+   * Returns the IDs of the documents whose normalized text contains the
+   * normalized query.
+   *
+   * @param query the substring to look for
+   * @return matching document IDs, empty if none
+   */
+  List<String> search(String query) {
+    String needle = normalize(query);
+    if (needle.isEmpty()) {
+      return List.of();
+    }
+
+    if (needle.length() < GRAM) {
+      List<String> matches = new ArrayList<>();
+      for (Map.Entry<String, String> doc : documents.entrySet()) {
+        if (doc.getValue().contains(needle)) {
+          matches.add(doc.getKey());
+        }
+      }
+      return matches;
+    }
+
+    List<Set<String>> lists = new ArrayList<>();
+    for (String gram : grams(needle)) {
+      Set<String> posting = postings.get(gram);
+      if (posting == null) {
+        return List.of();
+      }
+      lists.add(posting);
+    }
+    lists.sort(Comparator.comparingInt(Set::size));
+
+    List<String> matches = new ArrayList<>();
+    Set<String> smallest = lists.get(0);
+    candidates: for (String docId : smallest) {
+      for (int i = 1; i < lists.size(); i++) {
+        if (!lists.get(i).contains(docId)) {
+          continue candidates;
+        }
+      }
+      // Every gram is present; confirm they occur contiguously. The document
+      // may have been removed since its ID was read from the posting lists.
+      String text = documents.get(docId);
+      if (text != null && text.contains(needle)) {
+        matches.add(docId);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * @return the number of distinct grams currently indexed
+   */
+  int gramCount() {
+    return postings.size();
+  }
+
+  private void unpost(String gram, String docId) {
+    postings.computeIfPresent(gram, (g, posting) -> {
+      posting.remove(docId);
+      return posting.isEmpty() ? null : posting;
+    });
+  }
+
+  private static Set<String> grams(String normalized) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM <= normalized.length(); i++) {
+      grams.add(normalized.substring(i, i + GRAM));
+    }
+    return grams;
+  }
+}
@@ -1,63 +1,100 @@
 package com.devaldrete.repositories;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
 import com.devaldrete.domain.User;
 
+/**
+ * UserRepository manages User entities (and its subclasses) in memory, indexed
+ * by normalized email and username (see {@link #normalize(String)}).
+ *
+ * Reads never block; writes lock the user's stripe.
+ */
 public class UserRepository extends BaseRepository<User> {
 
-  private List<User> users;
+  private final InsertionOrderedMap<User> users;
+  private final Map<String, String> idsByEmail;
+  private final Map<String, String> idsByUsername;
+  private final Map<String, String> emailKeysById;
+  private final Map<String, String> usernameKeysById;
+  private final StripedLock locks;
 
   /**
-   * Initializes the UserRepository with an empty user list.
+   * Initializes the UserRepository with an empty user collection.
    * Supports managing User instances and its subclasses (Administrator, Member).
    */
   public UserRepository() {
     super();
-    this.users = new ArrayList<>();
+    this.users = new InsertionOrderedMap<>();
+    this.idsByEmail = new ConcurrentHashMap<>();
+    this.idsByUsername = new ConcurrentHashMap<>();
+    this.emailKeysById = new ConcurrentHashMap<>();
+    this.usernameKeysById = new ConcurrentHashMap<>();
+    this.locks = new StripedLock();
+  }
+
+  /**
+   * Normalizes an email or username into its index key: surrounding whitespace
+   * is trimmed and the value is case-folded.
+   *
+   * @param value the raw value
+   * @return the index key, or null if value is null
+   */
+  public static String normalize(String value) {
+    return value == null ? null : value.trim().toLowerCase(Locale.ROOT);
   }
 
   /**
    * Persists a new user to the repository.
    * 
    * @param item the user to save. Must not be null.
-   * @throws IllegalArgumentException if item is null or user already exists
+   * @throws IllegalArgumentException if item is null, user already exists, or
+   *                                  the email or username is already taken
    */
   @Override
+  @SuppressWarnings("try")
   public void save(User item) {
-    validateNotNull(item, "User");
-    validateNotNull(item.getId(), "User ID");
-    validateNotEmpty(item.getId(), "User ID");
+    validateUser(item);
 
-    if (exists(item.getId())) {
-      throw new IllegalArgumentException("User with ID '" + item.getId() + "' already exists");
-    }
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (exists(item.getId())) {
+        throw new IllegalArgumentException("User with ID '" + item.getId() + "' already exists");
+      }
 
-    users.add(item);
+      index(item);
+      users.put(item.getId(), item);
+      fireSaved(item);
+    }
   }
 
   /**
    * Updates an existing user in the repository.
    * 
    * @param item the user to update. Must not be null.
-   * @throws IllegalArgumentException if item is null
+   * @throws IllegalArgumentException if item is null or the email or username
+   *                                  is taken by another user
    * @throws IllegalStateException    if user does not exist in repository
    */
   @Override
+  @SuppressWarnings("try")
   public void update(User item) {
-    validateNotNull(item, "User");
-    validateNotNull(item.getId(), "User ID");
-    validateNotEmpty(item.getId(), "User ID");
-
-    if (!exists(item.getId())) {
-      throw new IllegalStateException("User with ID '" + item.getId() + "' not found");
-    }
+    validateUser(item);
 
-    for (int i = 0; i < users.size(); i++) {
-      if (users.get(i).getId().equals(item.getId())) {
-        users.set(i, item);
-        return;
+    try (StripedLock.Held held = locks.lock(item.getId())) {
+      if (!exists(item.getId())) {
+        throw new IllegalStateException("User with ID '" + item.getId() + "' not found");
       }
+
+      index(item);
+      users.put(item.getId(), item);
+      fireUpdated(item);
     }
   }
 
@@ -70,14 +107,20 @@ public class UserRepository extends BaseRepository<User> {
    * @throws IllegalStateException    if user with given id does not exist
    */
   @Override
+  @SuppressWarnings("try")
   public void delete(String id) {
     validateNotEmpty(id, "User ID");
 
-    if (!exists(id)) {
-      throw new IllegalStateException("User with ID '" + id + "' not found");
-    }
+    try (StripedLock.Held held = locks.lock(id)) {
+      if (!exists(id)) {
+        throw new IllegalStateException("User with ID '" + id + "' not found");
+      }
 
-    users.removeIf(user -> user.getId().equals(id));
+      users.remove(id);
+      idsByEmail.remove(emailKeysById.remove(id), id);
+      idsByUsername.remove(usernameKeysById.remove(id), id);
+      fireDeleted(id);
+    }
   }
 
   /**
@@ -91,10 +134,7 @@ public class UserRepository extends BaseRepository<User> {
   public User getById(String id) {
     validateNotEmpty(id, "User ID");
 
-    return users.stream()
-        .filter(user -> user.getId().equals(id))
-        .findFirst()
-        .orElse(null);
+    return users.get(id);
   }
 
   /**
@@ -104,7 +144,7 @@ public class UserRepository extends BaseRepository<User> {
    */
   @Override
   public List<User> getAll() {
-    return new ArrayList<>(users);
+    return users.values();
   }
 
   /**
@@ -132,12 +172,11 @@ public class UserRepository extends BaseRepository<User> {
       return false;
     }
 
-    return users.stream()
-        .anyMatch(user -> user.getId().equals(id));
+    return users.containsKey(id);
   }
 
   /**
-   * Finds a user by username.
+   * Finds a user by username (trimmed, case-insensitive).
    * Supports all User types including Administrator and Member subclasses.
    * 
    * @param username the username to search for. Must not be null or empty.
@@ -147,14 +186,12 @@ public class UserRepository extends BaseRepository<User> {
   public User findByUsername(String username) {
     validateNotEmpty(username, "Username");
 
-    return users.stream()
-        .filter(user -> user.getUsername().equals(username))
-        .findFirst()
-        .orElse(null);
+    String id = idsByUsername.get(normalize(username));
+    return id == null ? null : users.get(id);
   }
 
   /**
-   * Finds a user by email.
+   * Finds a user by email (trimmed, case-insensitive).
    * Supports all User types including Administrator and Member subclasses.
    * 
    * @param email the email to search for. Must not be null or empty.
@@ -164,10 +201,8 @@ public class UserRepository extends BaseRepository<User> {
   public User findByEmail(String email) {
     validateNotEmpty(email, "Email");
 
-    return users.stream()
-        .filter(user -> user.getEmail().equals(email))
-        .findFirst()
-        .orElse(null);
+    String id = idsByEmail.get(normalize(email));
+    return id == null ? null : users.get(id);
   }
 
   /**
@@ -189,8 +224,7 @@ public class UserRepository extends BaseRepository<User> {
   public boolean usernameExists(String username) {
     validateNotEmpty(username, "Username");
 
-    return users.stream()
-        .anyMatch(user -> user.getUsername().equals(username));
+    return idsByUsername.containsKey(normalize(username));
   }
 
   /**
@@ -203,7 +237,100 @@ public class UserRepository extends BaseRepository<User> {
   public boolean emailExists(String email) {
     validateNotEmpty(email, "Email");
 
-    return users.stream()
-        .anyMatch(user -> user.getEmail().equals(email));
+    return idsByEmail.containsKey(normalize(email));
+  }
+
+  /**
+   * Inserts many users in one pass, typically when loading a snapshot at
+   * startup. IDs, emails and usernames are checked for uniqueness within the
+   * batch and against existing users before anything is stored, so a failed
+   * load leaves the repository unchanged.
+   *
+   * @param items the users to insert. Must not be null.
+   * @throws IllegalArgumentException if any user is invalid or duplicated
+   */
+  @SuppressWarnings("try")
+  public void bulkLoad(Collection<User> items) {
+    validateNotNull(items, "Users");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      Set<String> ids = new HashSet<>();
+      Set<String> emailKeys = new HashSet<>();
+      Set<String> usernameKeys = new HashSet<>();
+      for (User item : items) {
+        validateUser(item);
+        if (users.containsKey(item.getId()) || !ids.add(item.getId())) {
+          throw new IllegalArgumentException("User with ID '" + item.getId() + "' already exists");
+        }
+        String emailKey = normalize(item.getEmail());
+        if (idsByEmail.containsKey(emailKey) || !emailKeys.add(emailKey)) {
+          throw new IllegalArgumentException("Email '" + item.getEmail() + "' is already registered");
+        }
+        String usernameKey = normalize(item.getUsername());
+        if (idsByUsername.containsKey(usernameKey) || !usernameKeys.add(usernameKey)) {
+          throw new IllegalArgumentException("Username '" + item.getUsername() + "' is already taken");
+        }
+      }
+
+      for (User item : items) {
+        index(item);
+        users.put(item.getId(), item);
+      }
+      markModified();
+    }
+  }
+
+  /**
+   * Runs {@code action} with every stripe held, so no write to the users
+   * is in progress or starts until it returns. Reads are not blocked.
+   */
+  @SuppressWarnings("try")
+  public <R> R whileWritesBlocked(Supplier<R> action) {
+    validateNotNull(action, "Action");
+
+    try (StripedLock.Held held = locks.lockAll()) {
+      return action.get();
+    }
+  }
+
+  private void validateUser(User item) {
+    validateNotNull(item, "User");
+    validateNotNull(item.getId(), "User ID");
+    validateNotEmpty(item.getId(), "User ID");
+    validateNotEmpty(item.getUsername(), "Username");
+    validateNotEmpty(item.getEmail(), "Email");
+  }
+
+  /**
+   * Points both indexes at the user's current email and username, dropping
+   * the keys the user was previously indexed under. Nothing is changed if
+   * either key belongs to another user. Called with the user's stripe held.
+   */
+  private void index(User user) {
+    String id = user.getId();
+    String emailKey = normalize(user.getEmail());
+    String usernameKey = normalize(user.getUsername());
+
+    String emailOwner = idsByEmail.putIfAbsent(emailKey, id);
+    if (emailOwner != null && !emailOwner.equals(id)) {
+      throw new IllegalArgumentException("Email '" + user.getEmail() + "' is already registered");
+    }
+    String usernameOwner = idsByUsername.putIfAbsent(usernameKey, id);
+    if (usernameOwner != null && !usernameOwner.equals(id)) {
+      if (emailOwner == null) {
+        // Give back the email claimed above
+        idsByEmail.remove(emailKey, id);
+      }
+      throw new IllegalArgumentException("Username '" + user.getUsername() + "' is already taken");
+    }
+
+    String previousEmail = emailKeysById.put(id, emailKey);
+    if (previousEmail != null && !previousEmail.equals(emailKey)) {
+      idsByEmail.remove(previousEmail, id);
+    }
+    String previousUsername = usernameKeysById.put(id, usernameKey);
+    if (previousUsername != null && !previousUsername.equals(usernameKey)) {
+      idsByUsername.remove(previousUsername, id);
+    }
   }
 }
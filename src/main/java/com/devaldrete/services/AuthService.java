@@ -53,7 +53,7 @@ public class AuthService {
   // --- Authentication ---
 
   /**
-   * Authenticates by username (case-sensitive) and plain-text password.
+   * Authenticates by email (trimmed, case-insensitive) and plain-text password.
    * Returns false (does NOT throw) when credentials are wrong, so callers
    * can show a user-friendly message without catching exceptions.
    */
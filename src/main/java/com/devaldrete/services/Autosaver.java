@@ -0,0 +1,138 @@
+package com.devaldrete.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Decides when {@link PersistenceService} takes a background checkpoint, on a
+ * virtual thread of its own, coalescing bursts of changes into one
+ * checkpoint (see {@link JournalSettings}).
+ */
+final class Autosaver implements AutoCloseable {
+
+  private static final long RETRY_DELAY_NANOS = 1_000_000_000L;
+
+  private final long quietNanos;
+  private final long maxDelayNanos;
+  private final long maxJournalBytes;
+  private final LongSupplier journalSize;
+  private final Supplier<CompletableFuture<Void>> checkpoint;
+  private final Thread thread;
+
+  // Times of the first and latest change not yet covered by a checkpoint; 0 if none
+  private long firstChange;
+  private long lastChange;
+  // After a failed checkpoint, no retry before this time
+  private long notBefore;
+  private boolean closed;
+
+  /**
+   * @param settings    supplies the quiet period, the maximum delay
+   *                    ({@link JournalSettings#checkpointAge()}) and the size
+   *                    limit; zero disables each of them
+   * @param journalSize returns the current journal size in bytes
+   * @param checkpoint  starts a checkpoint and returns its completion
+   */
+  Autosaver(JournalSettings settings, LongSupplier journalSize, Supplier<CompletableFuture<Void>> checkpoint) {
+    this.quietNanos = settings.checkpointQuietPeriod().toNanos();
+    this.maxDelayNanos = settings.checkpointAge().toNanos();
+    this.maxJournalBytes = settings.checkpointBytes();
+    this.journalSize = journalSize;
+    this.checkpoint = checkpoint;
+    this.thread = Thread.ofVirtual().name("autosave").start(this::run);
+  }
+
+  /**
+   * Notes a change that is in the journal but not yet in a snapshot.
+   */
+  synchronized void changed() {
+    long now = System.nanoTime();
+    lastChange = now;
+    if (firstChange == 0) {
+      firstChange = now;
+      notifyAll();
+    } else if (maxJournalBytes > 0 && journalSize.getAsLong() >= maxJournalBytes) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stops the thread, waiting for a checkpoint it started. Changes not yet
+   * checkpointed stay in the journal.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (awaitDue()) {
+      try {
+        checkpoint.get().join();
+      } catch (CompletionException | IllegalStateException e) {
+        // The journal was closed, or the write failed: keep the changes pending
+        synchronized (this) {
+          long now = System.nanoTime();
+          notBefore = now + RETRY_DELAY_NANOS;
+          if (firstChange == 0) {
+            firstChange = now;
+            lastChange = now;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until a checkpoint is due and marks the pending changes as taken.
+   *
+   * @return false once closed
+   */
+  private synchronized boolean awaitDue() {
+    try {
+      while (!closed) {
+        if (firstChange == 0) {
+          wait();
+          continue;
+        }
+        long wait = nanosUntilDue();
+        if (wait <= 0) {
+          firstChange = 0;
+          return true;
+        }
+        wait(Math.max(1, wait / 1_000_000));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private long nanosUntilDue() {
+    long now = System.nanoTime();
+    if (now - notBefore < 0) {
+      return notBefore - now;
+    }
+    if (maxJournalBytes > 0 && journalSize.getAsLong() >= maxJournalBytes) {
+      return 0;
+    }
+    long wait = Long.MAX_VALUE;
+    if (quietNanos > 0) {
+      wait = lastChange + quietNanos - now;
+    }
+    if (maxDelayNanos > 0) {
+      wait = Math.min(wait, firstChange + maxDelayNanos - now);
+    }
+    return wait;
+  }
+}
@@ -0,0 +1,553 @@
+package com.devaldrete.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.devaldrete.domain.Administrator;
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Role;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+
+/**
+ * Encoder and decoder for the {@link SnapshotFormat#BINARY} snapshot files.
+ *
+ * <p>Every file has the same layout:
+ * <pre>
+ *   int    magic "SHLF"
+ *   short  format version
+ *   byte   file kind ('U' users, 'B' books, 'L' loans, 'H' holds)
+ *   string table: varint count, then that many strings
+ *   one or more sections: varint record count, then the records
+ *   int    CRC32 of everything above
+ * </pre>
+ * Each record is prefixed with its length as a varint, so a reader can skip
+ * fields added by a later minor version.
+ */
+final class BinarySnapshot {
+
+  static final int MAGIC = 0x53484C46; // "SHLF"
+  static final short VERSION = 1;
+
+  private static final byte USERS = 'U';
+  private static final byte BOOKS = 'B';
+  private static final byte LOANS = 'L';
+  private static final byte HOLDS = 'H';
+
+  private static final byte ID_UUID = 0;
+  private static final byte ID_STRING = 1;
+
+  /** The two sections of a books file. */
+  record Books(List<BookDefinition> definitions, List<BookItem> items) {
+  }
+
+  private BinarySnapshot() {
+  }
+
+  // -------------------------------------------------------------------------
+  // Writing
+  // -------------------------------------------------------------------------
+
+  static void writeUsers(OutputStream out, List<User> users) throws IOException {
+    Encoder enc = new Encoder(out, USERS, List.of());
+    enc.section(users.size());
+    for (User u : users) {
+      enc.id(u.getId());
+      enc.string(u.getUsername());
+      enc.string(u.getEmail());
+      enc.string(u.getPassword());
+      enc.enumByte(u.getRole());
+      enc.endRecord();
+    }
+    enc.finish();
+  }
+
+  static void writeBooks(OutputStream out, List<BookDefinition> definitions, List<BookItem> items)
+      throws IOException {
+    List<String> shared = new ArrayList<>();
+    for (BookDefinition d : definitions) {
+      shared.add(d.getAuthor());
+      shared.add(d.getPublisher());
+    }
+
+    Encoder enc = new Encoder(out, BOOKS, shared);
+    enc.section(definitions.size());
+    for (BookDefinition d : definitions) {
+      enc.id(d.getId());
+      enc.string(d.getTitle());
+      enc.shared(d.getAuthor());
+      enc.string(d.getIsbn());
+      enc.shared(d.getPublisher());
+      enc.endRecord();
+    }
+    enc.section(items.size());
+    for (BookItem item : items) {
+      enc.id(item.getId());
+      enc.string(item.getBarcode());
+      enc.id(item.getBookDefId());
+      enc.enumByte(item.getStatus());
+      enc.instant(item.getAcquisitionDate());
+      enc.endRecord();
+    }
+    enc.finish();
+  }
+
+  static void writeLoans(OutputStream out, List<Loan> loans) throws IOException {
+    Encoder enc = new Encoder(out, LOANS, List.of());
+    enc.section(loans.size());
+    for (Loan l : loans) {
+      enc.id(l.getId());
+      enc.id(l.getUserId());
+      enc.id(l.getBookId());
+      enc.instant(l.getCreatedAt());
+      enc.instant(l.getDueDate());
+      enc.endRecord();
+    }
+    enc.finish();
+  }
+
+  static void writeHolds(OutputStream out, List<Hold> holds) throws IOException {
+    Encoder enc = new Encoder(out, HOLDS, List.of());
+    enc.section(holds.size());
+    for (Hold h : holds) {
+      enc.id(h.getId());
+      enc.id(h.getUserId());
+      enc.id(h.getBookDefId());
+      enc.instant(h.getPlacedAt());
+      enc.id(h.getBookItemId());
+      enc.optionalInstant(h.getExpiresAt());
+      enc.endRecord();
+    }
+    enc.finish();
+  }
+
+  // -------------------------------------------------------------------------
+  // Reading
+  // -------------------------------------------------------------------------
+
+  static List<User> readUsers(ByteSource in) throws IOException {
+    Decoder dec = new Decoder(in, USERS);
+    int count = dec.section();
+    List<User> users = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      dec.nextRecord();
+      String id = dec.id();
+      String username = dec.string();
+      String email = dec.string();
+      String password = dec.string();
+      Role role = dec.enumByte(Role.values());
+      users.add(role == Role.ADMINISTRATOR
+          ? new Administrator(id, username, email, password)
+          : new Member(id, username, email, password));
+    }
+    dec.finish();
+    return users;
+  }
+
+  static Books readBooks(ByteSource in) throws IOException {
+    Decoder dec = new Decoder(in, BOOKS);
+    int definitionCount = dec.section();
+    List<BookDefinition> definitions = new ArrayList<>(definitionCount);
+    for (int i = 0; i < definitionCount; i++) {
+      dec.nextRecord();
+      definitions.add(new BookDefinition(dec.id(), dec.string(), dec.shared(), dec.string(), dec.shared()));
+    }
+    int itemCount = dec.section();
+    List<BookItem> items = new ArrayList<>(itemCount);
+    for (int i = 0; i < itemCount; i++) {
+      dec.nextRecord();
+      items.add(new BookItem(dec.id(), dec.string(), dec.id(), dec.enumByte(Status.values()), dec.instant()));
+    }
+    dec.finish();
+    return new Books(definitions, items);
+  }
+
+  static List<Loan> readLoans(ByteSource in) throws IOException {
+    Decoder dec = new Decoder(in, LOANS);
+    int count = dec.section();
+    List<Loan> loans = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      dec.nextRecord();
+      loans.add(new Loan(dec.id(), dec.id(), dec.id(), dec.instant(), dec.instant()));
+    }
+    dec.finish();
+    return loans;
+  }
+
+  static List<Hold> readHolds(ByteSource in) throws IOException {
+    Decoder dec = new Decoder(in, HOLDS);
+    int count = dec.section();
+    List<Hold> holds = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      dec.nextRecord();
+      holds.add(new Hold(dec.id(), dec.id(), dec.id(), dec.instant(), dec.id(), dec.optionalInstant()));
+    }
+    dec.finish();
+    return holds;
+  }
+
+  // -------------------------------------------------------------------------
+  // Encoder
+  // -------------------------------------------------------------------------
+
+  private static final class Encoder {
+
+    private final OutputStream target;
+    private final CheckedOutputStream out;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final byte[] prefix = new byte[5];
+    private final Map<String, Integer> table = new LinkedHashMap<>();
+
+    Encoder(OutputStream target, byte kind, List<String> shared) throws IOException {
+      this.target = target;
+      this.out = new CheckedOutputStream(target, new CRC32());
+      for (String value : shared) {
+        if (value != null) {
+          table.putIfAbsent(value, table.size());
+        }
+      }
+
+      writeInt(MAGIC);
+      record.write(VERSION >>> 8);
+      record.write(VERSION);
+      record.write(kind);
+      varint(table.size());
+      for (String value : table.keySet()) {
+        string(value);
+      }
+      flushRaw();
+    }
+
+    void section(int count) throws IOException {
+      varint(count);
+      flushRaw();
+    }
+
+    void id(String id) {
+      UUID uuid = parseCanonicalUuid(id);
+      if (uuid != null) {
+        record.write(ID_UUID);
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+      } else {
+        record.write(ID_STRING);
+        string(id);
+      }
+    }
+
+    void string(String value) {
+      if (value == null) {
+        varint(0);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      varint(bytes.length + 1);
+      record.write(bytes, 0, bytes.length);
+    }
+
+    void shared(String value) {
+      varint(value == null ? 0 : table.get(value) + 1);
+    }
+
+    void enumByte(Enum<?> value) {
+      record.write(value.ordinal());
+    }
+
+    void instant(Instant value) {
+      writeLong(value.toEpochMilli());
+      varint(value.getNano() % 1_000_000);
+    }
+
+    void optionalInstant(Instant value) {
+      record.write(value == null ? 0 : 1);
+      if (value != null) {
+        instant(value);
+      }
+    }
+
+    /** Writes the buffered record behind its length prefix. */
+    void endRecord() throws IOException {
+      int length = record.size();
+      int n = 0;
+      while ((length & ~0x7F) != 0) {
+        prefix[n++] = (byte) ((length & 0x7F) | 0x80);
+        length >>>= 7;
+      }
+      prefix[n++] = (byte) length;
+      out.write(prefix, 0, n);
+      flushRaw();
+    }
+
+    /** Writes the CRC32 trailer, which is not itself checksummed. */
+    void finish() throws IOException {
+      int crc = (int) out.getChecksum().getValue();
+      target.write(crc >>> 24);
+      target.write(crc >>> 16);
+      target.write(crc >>> 8);
+      target.write(crc);
+    }
+
+    private void flushRaw() throws IOException {
+      record.writeTo(out);
+      record.reset();
+    }
+
+    private void varint(int value) {
+      while ((value & ~0x7F) != 0) {
+        record.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      record.write(value);
+    }
+
+    private void writeInt(int value) {
+      record.write(value >>> 24);
+      record.write(value >>> 16);
+      record.write(value >>> 8);
+      record.write(value);
+    }
+
+    private void writeLong(long value) {
+      writeInt((int) (value >>> 32));
+      writeInt((int) value);
+    }
+  }
+
+  /**
+   * @return the UUID if {@code id} is in canonical lower-case form (so that it
+   *         round-trips exactly), otherwise null
+   */
+  private static UUID parseCanonicalUuid(String id) {
+    if (id == null || id.length() != 36) {
+      return null;
+    }
+    try {
+      UUID uuid = UUID.fromString(id);
+      return uuid.toString().equals(id) ? uuid : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // Decoder
+  // -------------------------------------------------------------------------
+
+  private static final class Decoder {
+
+    private final ByteSource source;
+    private final CRC32 crc = new CRC32();
+    private final String[] table;
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private int unchecked; // start of the bytes in window not yet added to the CRC
+    private boolean checking = true;
+    private ByteBuffer record;
+    private byte[] spill = new byte[256];
+    private byte[] chars = new byte[256];
+
+    Decoder(ByteSource source, byte kind) throws IOException {
+      this.source = source;
+
+      ByteBuffer header = take(7);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a binary snapshot file");
+      }
+      short version = header.getShort();
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported snapshot version " + version);
+      }
+      byte actualKind = header.get();
+      if (actualKind != kind) {
+        throw new IOException("Expected a '" + (char) kind + "' snapshot but found '" + (char) actualKind + "'");
+      }
+
+      table = new String[streamVarint()];
+      for (int i = 0; i < table.length; i++) {
+        int length = streamVarint() - 1;
+        if (length >= 0) {
+          record = take(length);
+          table[i] = string(length);
+        }
+      }
+    }
+
+    int section() throws IOException {
+      return streamVarint();
+    }
+
+    /** Makes the next length-prefixed record the current one. */
+    void nextRecord() throws IOException {
+      record = take(streamVarint());
+    }
+
+    String id() throws IOException {
+      byte tag = record.get();
+      return switch (tag) {
+        case ID_UUID -> new UUID(record.getLong(), record.getLong()).toString();
+        case ID_STRING -> string();
+        default -> throw new IOException("Unknown ID tag " + tag);
+      };
+    }
+
+    String string() {
+      return string(varint() - 1);
+    }
+
+    String shared() throws IOException {
+      int ref = varint();
+      if (ref > table.length) {
+        throw new IOException("String table reference " + ref + " out of range");
+      }
+      return ref == 0 ? null : table[ref - 1];
+    }
+
+    <E extends Enum<E>> E enumByte(E[] constants) throws IOException {
+      int ordinal = record.get() & 0xFF;
+      if (ordinal >= constants.length) {
+        throw new IOException("Unknown " + constants.getClass().getComponentType().getSimpleName()
+            + " code " + ordinal);
+      }
+      return constants[ordinal];
+    }
+
+    Instant instant() {
+      long millis = record.getLong();
+      return Instant.ofEpochMilli(millis).plusNanos(varint());
+    }
+
+    Instant optionalInstant() {
+      return record.get() == 0 ? null : instant();
+    }
+
+    /** Checks that the data is complete and matches its CRC32 trailer. */
+    void finish() throws IOException {
+      checksumThrough(window.position());
+      checking = false;
+      int expected = (int) crc.getValue();
+      if (take(4).getInt() != expected) {
+        throw new IOException("Snapshot checksum mismatch");
+      }
+      if (window.hasRemaining() || advance()) {
+        throw new IOException("Unexpected data after snapshot trailer");
+      }
+    }
+
+    /**
+     * Decodes a UTF-8 string of the given length from the current record;
+     * negative means null. Bytes are decoded in place when the record is on the
+     * heap and copied out of the mapping otherwise.
+     */
+    private String string(int length) {
+      if (length < 0) {
+        return null;
+      }
+      String value;
+      if (record.hasArray()) {
+        value = new String(record.array(), record.arrayOffset() + record.position(), length,
+            StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+      } else {
+        if (chars.length < length) {
+          chars = new byte[Math.max(length, chars.length * 2)];
+        }
+        record.get(chars, 0, length);
+        value = new String(chars, 0, length, StandardCharsets.UTF_8);
+      }
+      return value;
+    }
+
+    private int varint() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = record.get();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalStateException("Malformed varint");
+    }
+
+    private int streamVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        if (!window.hasRemaining() && !advance()) {
+          throw new EOFException("Truncated snapshot");
+        }
+        byte b = window.get();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Returns the next {@code length} bytes as a buffer of their own: a slice of
+     * the current window when they lie inside it, otherwise a copy gathered
+     * from consecutive windows.
+     */
+    private ByteBuffer take(int length) throws IOException {
+      if (length < 0) {
+        throw new IOException("Negative length " + length);
+      }
+      if (window.remaining() >= length) {
+        ByteBuffer slice = window.slice(window.position(), length);
+        window.position(window.position() + length);
+        return slice;
+      }
+      if (spill.length < length) {
+        spill = new byte[Math.max(length, spill.length * 2)];
+      }
+      int filled = 0;
+      while (filled < length) {
+        if (!window.hasRemaining() && !advance()) {
+          throw new EOFException("Truncated snapshot");
+        }
+        int n = Math.min(window.remaining(), length - filled);
+        window.get(spill, filled, n);
+        filled += n;
+      }
+      return ByteBuffer.wrap(spill, 0, length).slice();
+    }
+
+    /** Moves on to the next non-empty window, checksumming the rest of this one. */
+    private boolean advance() throws IOException {
+      checksumThrough(window.limit());
+      ByteBuffer next;
+      do {
+        next = source.next();
+        if (next == null) {
+          return false;
+        }
+      } while (!next.hasRemaining());
+      window = next;
+      unchecked = window.position();
+      return true;
+    }
+
+    private void checksumThrough(int end) {
+      if (checking && end > unchecked) {
+        crc.update(window.slice(unchecked, end - unchecked));
+        unchecked = end;
+      }
+    }
+  }
+}
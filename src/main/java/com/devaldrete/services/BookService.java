@@ -1,13 +1,17 @@
 package com.devaldrete.services;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 import com.devaldrete.domain.BookDefinition;
 import com.devaldrete.domain.BookItem;
 import com.devaldrete.domain.Status;
 import com.devaldrete.repositories.BookRepository;
+import com.devaldrete.repositories.RepositoryListener;
 import com.devaldrete.utils.BarcodeGenerator;
 
 public class BookService {
@@ -42,6 +46,10 @@ public class BookService {
     return item;
   }
 
+  /**
+   * Deletes a book item without looking at loans; use
+   * {@link LoanService#removeBookItem} to keep loans consistent.
+   */
   public boolean removeBookItem(String barcode) {
     BookItem item = bookRepository.findByBarcode(barcode);
     if (item == null) {
@@ -51,13 +59,36 @@ public class BookService {
     return true;
   }
 
+  /**
+   * Deletes a book definition that has no copies left. To delete its copies
+   * (and their loans) along with it, use {@link LoanService#removeBookDefinition}.
+   *
+   * @return false if no definition has the given ID
+   * @throws IllegalArgumentException if the definition still has copies
+   */
+  public boolean removeBookDefinition(String id) {
+    if (bookRepository.getBookDefinitionById(id) == null) {
+      return false;
+    }
+    int copies = bookRepository.countByBookDefinitionId(id);
+    if (copies > 0) {
+      throw new IllegalArgumentException("Book definition " + id + " still has " + copies + " copies.");
+    }
+    return bookRepository.deleteBookDefinition(id);
+  }
+
   public List<BookDefinition> getAllDefinitions() {
     return bookRepository.getAllBookDefinitions();
   }
 
+  /**
+   * Lists the available copies of a title. The per-title status counts are
+   * consulted first, so titles without an available copy are answered without
+   * visiting their copies.
+   */
   public List<BookItem> getAvailableCopies(String isbn) {
     BookDefinition def = bookRepository.findByISBN(isbn);
-    if (def == null) {
+    if (def == null || bookRepository.countByStatus(def.getId(), Status.AVAILABLE) == 0) {
       return List.of();
     }
     return bookRepository.getByBookDefinitionId(def.getId()).stream()
@@ -65,6 +96,32 @@ public class BookService {
         .toList();
   }
 
+  // --- Availability, from counts kept per title on every status change ---
+
+  /**
+   * @return the number of copies of the title that can be lent now, in
+   *         constant time
+   */
+  public int countAvailableCopies(String bookDefId) {
+    return bookRepository.countByStatus(bookDefId, Status.AVAILABLE);
+  }
+
+  /**
+   * @return the number of copies of the title in each status, zeros included,
+   *         in constant time
+   */
+  public Map<Status, Integer> getStatusCounts(String bookDefId) {
+    return bookRepository.getStatusCounts(bookDefId);
+  }
+
+  /**
+   * @return the titles with at least one available copy, in the order they
+   *         were added; the cost is proportional to their number
+   */
+  public List<BookDefinition> getAvailableTitles() {
+    return bookRepository.getAvailableBookDefinitions();
+  }
+
   public BookDefinition findByISBN(String isbn) {
     return bookRepository.findByISBN(isbn);
   }
@@ -109,33 +166,110 @@ public class BookService {
     bookRepository.update(item);
   }
 
+  /**
+   * Atomically moves a copy from {@code expected} to {@code next}; see
+   * {@link BookRepository#compareAndSetStatus}.
+   *
+   * @return false if the copy does not exist or is not in {@code expected}
+   */
+  public boolean compareAndSetStatus(String itemId, Status expected, Status next) {
+    return bookRepository.compareAndSetStatus(itemId, expected, next);
+  }
+
   public int countItems() {
-    return bookRepository.getAll().size();
+    return bookRepository.count();
   }
 
   public int countDefinitions() {
-    return bookRepository.getAllBookDefinitions().size();
+    return bookRepository.countBookDefinitions();
   }
 
   // --- Persistence helpers ---
 
+  /**
+   * Returns the modification count of the definition and item store (used by
+   * PersistenceService to skip rewriting an unchanged file).
+   */
+  public long getModCount() {
+    return bookRepository.getModCount();
+  }
+
+  /**
+   * Runs {@code action} while writes to the books wait (used by
+   * PersistenceService to copy a consistent snapshot).
+   */
+  <R> R whileWritesBlocked(Supplier<R> action) {
+    return bookRepository.whileWritesBlocked(action);
+  }
+
   public List<BookItem> getAllItems() {
     return bookRepository.getAll();
   }
 
   /**
-   * Persists a fully-constructed BookDefinition directly (used by
+   * Loads fully-constructed definitions and items in a single pass (used by
    * PersistenceService when loading from disk).
+   *
+   * @throws IllegalArgumentException if the data is inconsistent; nothing is
+   *                                  loaded in that case
    */
-  public void saveDefinition(BookDefinition def) {
-    bookRepository.saveBookDefinition(def);
+  public void bulkLoad(Collection<BookDefinition> definitions, Collection<BookItem> items) {
+    bookRepository.bulkLoad(definitions, items);
   }
 
   /**
-   * Persists a fully-constructed BookItem directly (used by
-   * PersistenceService when loading from disk).
+   * Applies a journaled definition record during replay: the definition is
+   * inserted or replaced as-is. A different definition still holding the same
+   * ISBN is dropped first; that only happens when the snapshot is newer than
+   * the record, and a later record in the journal restores it.
    */
-  public void saveItem(BookItem item) {
-    bookRepository.save(item);
+  public void restoreDefinition(BookDefinition definition) {
+    String isbn = definition.getIsbn();
+    BookDefinition owner = isbn == null || isbn.isBlank() ? null : bookRepository.findByISBN(isbn);
+    if (owner != null && !owner.getId().equals(definition.getId())) {
+      bookRepository.deleteBookDefinition(owner.getId());
+    }
+    bookRepository.updateBookDefinition(definition);
+  }
+
+  /**
+   * Applies a journaled book item record during replay, the same way as
+   * {@link #restoreDefinition(BookDefinition)} does for barcodes. Records for
+   * items whose definition no longer exists are skipped: the snapshot can only
+   * lack the definition if it was deleted later, after the item.
+   */
+  public void restoreItem(BookItem item) {
+    if (bookRepository.getBookDefinitionById(item.getBookDefId()) == null) {
+      return;
+    }
+    BookItem owner = bookRepository.findByBarcode(item.getBarcode());
+    if (owner != null && !owner.getId().equals(item.getId())) {
+      bookRepository.delete(owner.getId());
+    }
+    bookRepository.update(item);
+  }
+
+  /**
+   * Removes a definition during journal replay. Unknown IDs are ignored.
+   */
+  public void purgeDefinition(String id) {
+    bookRepository.deleteBookDefinition(id);
+  }
+
+  /**
+   * Removes a book item during journal replay. Unknown IDs are ignored.
+   */
+  public void purgeItem(String id) {
+    bookRepository.delete(id);
+  }
+
+  /**
+   * Registers listeners for every subsequent definition and book item
+   * mutation (used by PersistenceService to journal changes).
+   */
+  public void addListeners(RepositoryListener<BookDefinition> definitionListener,
+      RepositoryListener<BookItem> itemListener) {
+    bookRepository.addDefinitionListener(definitionListener);
+    bookRepository.addListener(itemListener);
   }
 }
@@ -0,0 +1,63 @@
+package com.devaldrete.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Supplies the bytes of a file (or stream) as a sequence of buffers, which the
+ * snapshot decoders consume in order. A buffer handed out stays valid until the
+ * next call to {@link #next()}.
+ */
+interface ByteSource extends Closeable {
+
+  /**
+   * @return the next buffer, positioned at its first byte, or null at the end
+   */
+  ByteBuffer next() throws IOException;
+
+  /**
+   * Reads a channel through one reused heap buffer of the given size.
+   */
+  static ByteSource of(ReadableByteChannel channel, int bufferSize) {
+    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    return new ByteSource() {
+      @Override
+      public ByteBuffer next() throws IOException {
+        buffer.clear();
+        int n = 0;
+        while (n == 0) {
+          n = channel.read(buffer);
+        }
+        buffer.flip();
+        return n < 0 ? null : buffer;
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * Serves the given buffers one after another.
+   */
+  static ByteSource of(List<ByteBuffer> buffers) {
+    ArrayDeque<ByteBuffer> remaining = new ArrayDeque<>(buffers);
+    return new ByteSource() {
+      @Override
+      public ByteBuffer next() {
+        return remaining.poll();
+      }
+
+      @Override
+      public void close() {
+        remaining.clear();
+      }
+    };
+  }
+}
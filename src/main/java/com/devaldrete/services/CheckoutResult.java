@@ -0,0 +1,20 @@
+package com.devaldrete.services;
+
+import com.devaldrete.domain.Loan;
+
+/**
+ * Outcome of lending one scanned copy in {@link LoanService#loanBooks}.
+ *
+ * @param barcode the barcode as scanned
+ * @param loan    the new loan, or null if the copy was not lent
+ * @param error   why the copy was not lent, or null if it was
+ */
+public record CheckoutResult(String barcode, Loan loan, String error) {
+
+  /**
+   * @return true if the copy was lent
+   */
+  public boolean lent() {
+    return loan != null;
+  }
+}
@@ -0,0 +1,333 @@
+package com.devaldrete.services;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs callbacks when their deadlines pass (loan due dates, hold pickup
+ * windows), using a hierarchical timing wheel so scheduling and cancelling
+ * are O(1).
+ *
+ * <p>Callbacks run outside the scheduler's lock, at most one tick late, and
+ * should recheck the state they act on.
+ */
+public final class DeadlineScheduler implements AutoCloseable {
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+  // Deadlines already due when scheduled, or when a cascade reached them
+  private static final int DUE = LEVELS * SLOTS;
+  private static final int DETACHED = -1;
+
+  /**
+   * A pending callback, returned by {@link #schedule} to cancel it with.
+   */
+  public static final class Deadline {
+
+    private final Instant at;
+    private final long tick;
+    private final Runnable action;
+    // Guarded by the scheduler's lock
+    private int slot = DETACHED;
+    private Deadline previous;
+    private Deadline next;
+
+    private Deadline(Instant at, long tick, Runnable action) {
+      this.at = at;
+      this.tick = tick;
+      this.action = action;
+    }
+
+    public Instant getAt() {
+      return at;
+    }
+  }
+
+  private final Clock clock;
+  private final long tickMillis;
+  private final Object lock = new Object();
+  private final Deadline[] slots = new Deadline[LEVELS * SLOTS + 1];
+  private final int[] levelCounts = new int[LEVELS];
+  // Every deadline at or before this tick has been taken out to fire
+  private long currentTick;
+  private int pending;
+  private Thread thread;
+  private boolean closed;
+
+  public DeadlineScheduler(Clock clock) {
+    this(clock, Duration.ofSeconds(1));
+  }
+
+  /**
+   * @param clock source of "now"; tests pass a controllable clock and call
+   *              {@link #runDue()} instead of starting the thread
+   * @param tick  the resolution of the wheel, at least a millisecond
+   */
+  public DeadlineScheduler(Clock clock, Duration tick) {
+    if (tick.toMillis() < 1) {
+      throw new IllegalArgumentException("tick must be at least 1 ms: " + tick);
+    }
+    this.clock = clock;
+    this.tickMillis = tick.toMillis();
+    this.currentTick = Math.floorDiv(clock.millis(), tickMillis);
+  }
+
+  /**
+   * Arranges for {@code action} to run once {@code at} has passed. A deadline
+   * already past runs on the next tick.
+   *
+   * @return a handle for {@link #cancel}
+   */
+  public Deadline schedule(Instant at, Runnable action) {
+    Deadline deadline = new Deadline(at, tickOf(at), action);
+    synchronized (lock) {
+      file(deadline);
+      pending++;
+    }
+    return deadline;
+  }
+
+  /**
+   * Cancels a deadline that has not fired yet.
+   *
+   * @return false if it already fired (or is firing), or was cancelled
+   */
+  public boolean cancel(Deadline deadline) {
+    synchronized (lock) {
+      if (deadline.slot == DETACHED) {
+        return false;
+      }
+      unlink(deadline);
+      pending--;
+      return true;
+    }
+  }
+
+  /**
+   * @return the number of deadlines scheduled and not yet fired or cancelled
+   */
+  public int pending() {
+    synchronized (lock) {
+      return pending;
+    }
+  }
+
+  /**
+   * Runs the callbacks of every deadline that has passed by the clock's now.
+   *
+   * @return the number of callbacks run
+   */
+  public int runDue() {
+    return runDueAsOf(clock.instant());
+  }
+
+  /**
+   * Runs the callbacks of every deadline at or before {@code asOf}, tick by
+   * tick. A callback that throws does not stop the others; its exception goes
+   * to the thread's uncaught exception handler.
+   *
+   * @return the number of callbacks run
+   */
+  public int runDueAsOf(Instant asOf) {
+    List<Deadline> due = new ArrayList<>();
+    synchronized (lock) {
+      advanceTo(Math.floorDiv(asOf.toEpochMilli(), tickMillis), due);
+      pending -= due.size();
+    }
+    Thread current = Thread.currentThread();
+    for (Deadline deadline : due) {
+      try {
+        deadline.action.run();
+      } catch (RuntimeException e) {
+        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+      }
+    }
+    return due.size();
+  }
+
+  /**
+   * Starts firing callbacks on a virtual thread, waking once a tick.
+   *
+   * @throws IllegalStateException if already started or closed
+   */
+  public void start() {
+    synchronized (lock) {
+      if (thread != null || closed) {
+        throw new IllegalStateException("Scheduler already started");
+      }
+      thread = Thread.ofVirtual().name("deadline-scheduler").start(this::run);
+    }
+  }
+
+  /**
+   * Stops the thread, waiting for callbacks it is running. Pending deadlines
+   * stay scheduled and can still be run with {@link #runDue()}.
+   */
+  @Override
+  public void close() {
+    Thread running;
+    synchronized (lock) {
+      closed = true;
+      running = thread;
+      lock.notifyAll();
+    }
+    if (running == null || running == Thread.currentThread()) {
+      return;
+    }
+    try {
+      running.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (awaitNextTick()) {
+      runDue();
+    }
+  }
+
+  /**
+   * Sleeps until the clock reaches the next tick.
+   *
+   * @return false once closed
+   */
+  private boolean awaitNextTick() {
+    synchronized (lock) {
+      try {
+        long wait = tickMillis - Math.floorMod(clock.millis(), tickMillis);
+        if (!closed) {
+          lock.wait(wait);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      return !closed;
+    }
+  }
+
+  /**
+   * @return the first tick not before {@code at}
+   */
+  private long tickOf(Instant at) {
+    long millis = at.toEpochMilli();
+    if (at.getNano() % 1_000_000 != 0) {
+      millis++;
+    }
+    return Math.ceilDiv(millis, tickMillis);
+  }
+
+  // --- The wheel; every method below runs under the lock ---
+
+  /**
+   * Moves the wheel forward to {@code target}, collecting the deadlines that
+   * fall due.
+   */
+  private void advanceTo(long target, List<Deadline> due) {
+    drain(DUE, due);
+    while (currentTick < target) {
+      long next = currentTick + 1;
+      if (levelCounts[0] == 0) {
+        // Nothing can fire before the lowest occupied level next cascades
+        int level = 1;
+        while (level < LEVELS && levelCounts[level] == 0) {
+          level++;
+        }
+        if (level == LEVELS) {
+          currentTick = target;
+          return;
+        }
+        next = (currentTick | ((1L << (level * SLOT_BITS)) - 1)) + 1;
+        if (next > target) {
+          currentTick = target;
+          return;
+        }
+      }
+      currentTick = next;
+
+      // Each level whose slot boundary this tick is spills that slot down,
+      // from the highest, so a deadline can fall through several levels
+      int top = 0;
+      while (top + 1 < LEVELS && (next & ((1L << ((top + 1) * SLOT_BITS)) - 1)) == 0) {
+        top++;
+      }
+      for (int level = top; level >= 1; level--) {
+        cascade(level * SLOTS + ((int) (next >>> (level * SLOT_BITS)) & SLOT_MASK));
+      }
+      drain((int) next & SLOT_MASK, due);
+      drain(DUE, due);
+    }
+  }
+
+  /**
+   * Files a deadline on the lowest level whose slots can tell its tick apart
+   * from the current one, or with the due deadlines if it is not later.
+   */
+  private void file(Deadline deadline) {
+    long tick = deadline.tick;
+    if (tick <= currentTick) {
+      link(deadline, DUE);
+      return;
+    }
+    int level = (63 - Long.numberOfLeadingZeros(tick ^ currentTick)) / SLOT_BITS;
+    link(deadline, level * SLOTS + ((int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK));
+  }
+
+  private void cascade(int slot) {
+    Deadline deadline = slots[slot];
+    while (deadline != null) {
+      Deadline next = deadline.next;
+      unlink(deadline);
+      file(deadline);
+      deadline = next;
+    }
+  }
+
+  private void drain(int slot, List<Deadline> due) {
+    Deadline deadline = slots[slot];
+    while (deadline != null) {
+      Deadline next = deadline.next;
+      unlink(deadline);
+      due.add(deadline);
+      deadline = next;
+    }
+  }
+
+  private void link(Deadline deadline, int slot) {
+    Deadline head = slots[slot];
+    deadline.slot = slot;
+    deadline.previous = null;
+    deadline.next = head;
+    if (head != null) {
+      head.previous = deadline;
+    }
+    slots[slot] = deadline;
+    if (slot != DUE) {
+      levelCounts[slot / SLOTS]++;
+    }
+  }
+
+  private void unlink(Deadline deadline) {
+    int slot = deadline.slot;
+    if (deadline.previous == null) {
+      slots[slot] = deadline.next;
+    } else {
+      deadline.previous.next = deadline.next;
+    }
+    if (deadline.next != null) {
+      deadline.next.previous = deadline.previous;
+    }
+    if (slot != DUE) {
+      levelCounts[slot / SLOTS]--;
+    }
+    deadline.slot = DETACHED;
+    deadline.previous = null;
+    deadline.next = null;
+  }
+}
@@ -0,0 +1,17 @@
+package com.devaldrete.services;
+
+/**
+ * What a delete does with the records that reference the one being deleted:
+ * a user's loans, a book item's loan, a book definition's items.
+ */
+public enum DeletePolicy {
+
+  /** Refuse the delete while any referencing record exists. */
+  RESTRICT,
+
+  /**
+   * Delete the referencing records first. Loans are closed as if returned, so
+   * copies that stay in the catalog become available again.
+   */
+  CASCADE
+}
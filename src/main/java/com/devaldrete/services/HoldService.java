@@ -0,0 +1,505 @@
+package com.devaldrete.services;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Status;
+import com.devaldrete.repositories.HoldRepository;
+import com.devaldrete.repositories.RepositoryListener;
+
+/**
+ * Holds on titles that have no copy available. Members join a first-come,
+ * first-served queue per title; a returned copy is set aside as
+ * {@link Status#RESERVED} for the first hold in line for
+ * {@value #PICKUP_DAYS} days, then goes to the next hold or back on the shelf.
+ */
+public class HoldService {
+
+  static final int PICKUP_DAYS = 7;
+
+  private final HoldRepository holdRepository;
+  private final UserService userService;
+  private final BookService bookService;
+  private final Clock clock;
+  private final DeadlineScheduler scheduler;
+  private final Map<String, DeadlineScheduler.Deadline> expiries = new ConcurrentHashMap<>();
+
+  public HoldService(UserService userService, BookService bookService) {
+    this(userService, bookService, Clock.systemUTC());
+  }
+
+  /**
+   * @param clock source of "now" for hold dates and pickup windows
+   */
+  public HoldService(UserService userService, BookService bookService, Clock clock) {
+    this(userService, bookService, clock, new DeadlineScheduler(clock));
+  }
+
+  /**
+   * @param scheduler runs the expiry of each ready hold; it must read the same
+   *                  clock
+   */
+  public HoldService(UserService userService, BookService bookService, Clock clock, DeadlineScheduler scheduler) {
+    this.holdRepository = new HoldRepository();
+    this.userService = userService;
+    this.bookService = bookService;
+    this.clock = clock;
+    this.scheduler = scheduler;
+    // Runs under the title's lock, so the changes of one hold arrive in order
+    holdRepository.addListener(new RepositoryListener<>() {
+      @Override
+      public void saved(Hold hold) {
+        scheduleExpiry(hold);
+      }
+
+      @Override
+      public void updated(Hold hold) {
+        scheduleExpiry(hold);
+      }
+
+      @Override
+      public void deleted(String id) {
+        cancelExpiry(id);
+      }
+    });
+  }
+
+  /**
+   * Puts the user in line for a title. If a copy came back while the hold
+   * was being placed, it is set aside for the queue straight away.
+   *
+   * @throws IllegalArgumentException if the user or title does not exist, a
+   *                                  copy is available to borrow now, or the
+   *                                  user already holds the title
+   */
+  public Hold placeHold(String userId, String bookDefId) {
+    if (userService.getById(userId) == null) {
+      throw new IllegalArgumentException("User with ID " + userId + " not found.");
+    }
+    BookDefinition definition = bookService.findDefinitionById(bookDefId);
+    if (definition == null) {
+      throw new IllegalArgumentException("Book with ID " + bookDefId + " not found.");
+    }
+    if (bookService.countAvailableCopies(bookDefId) > 0) {
+      throw new IllegalArgumentException(
+          "A copy of \"" + definition.getTitle() + "\" is available; borrow it instead.");
+    }
+
+    Hold hold = new Hold(UUID.randomUUID().toString(), userId, bookDefId, clock.instant(), null, null);
+    holdRepository.save(hold);
+    // A return that found the queue empty may have shelved a copy meanwhile
+    offerAvailableCopies(bookDefId);
+    return hold;
+  }
+
+  /**
+   * Cancels a hold. A waiting hold leaves the queue; the copy of a ready hold
+   * goes to the next hold in line, or back on the shelf.
+   *
+   * @return false if the hold does not exist (or already ended)
+   */
+  public boolean cancelHold(String holdId) {
+    Hold hold = holdRepository.deleteIfExists(holdId);
+    if (hold == null) {
+      return false;
+    }
+    if (hold.isReady()) {
+      passOn(hold.getBookItemId(), Status.RESERVED);
+    }
+    return true;
+  }
+
+  /**
+   * Ends the ready holds whose pickup window has closed, passing each copy
+   * on.
+   *
+   * @return the number of holds that expired
+   */
+  public int expireHolds() {
+    return expireHoldsAsOf(clock.instant());
+  }
+
+  /**
+   * Ends the ready holds whose pickup window closed before {@code asOf}.
+   * Only those holds are visited.
+   *
+   * @return the number of holds that expired
+   */
+  public int expireHoldsAsOf(Instant asOf) {
+    int expired = 0;
+    for (Hold hold : holdRepository.findExpiredAsOf(asOf)) {
+      // A pickup or cancellation may have ended the hold since it was found
+      if (holdRepository.deleteIfExists(hold.getId()) != null) {
+        passOn(hold.getBookItemId(), Status.RESERVED);
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Sets available copies of a title aside for its waiting holds, for copies
+   * that reach the shelf while holds are waiting (a copy added to the
+   * catalogue, say).
+   *
+   * @return the number of copies set aside
+   */
+  public int offerAvailableCopies(String bookDefId) {
+    int reserved = 0;
+    if (holdRepository.countWaiting(bookDefId) == 0 || bookService.countAvailableCopies(bookDefId) == 0) {
+      return reserved;
+    }
+    for (BookItem copy : bookService.getAllItemsForDefinition(bookDefId)) {
+      if (holdRepository.countWaiting(bookDefId) == 0) {
+        break;
+      }
+      // A copy lent meanwhile fails the hand-off; try the next one
+      if (copy.getStatus() == Status.AVAILABLE && handOff(copy, Status.AVAILABLE)) {
+        reserved++;
+      }
+    }
+    return reserved;
+  }
+
+  /**
+   * Passes on copies marked RESERVED that no hold has set aside, as left by
+   * data saved before holds were persisted or by a hold lost to a repair.
+   * Visits every copy; meant for startup, after the holds are loaded.
+   *
+   * @return the number of copies passed on
+   */
+  public int releaseUnclaimedReservations() {
+    int released = 0;
+    for (BookItem copy : bookService.getAllItems()) {
+      if (copy.getStatus() == Status.RESERVED && holdRepository.findReadyByBookItemId(copy.getId()) == null) {
+        passOn(copy.getId(), Status.RESERVED);
+        released++;
+      }
+    }
+    return released;
+  }
+
+  private void scheduleExpiry(Hold hold) {
+    if (!hold.isReady()) {
+      cancelExpiry(hold.getId());
+      return;
+    }
+    String holdId = hold.getId();
+    DeadlineScheduler.Deadline previous = expiries.put(holdId,
+        scheduler.schedule(hold.getExpiresAt(), () -> expireHold(holdId)));
+    if (previous != null) {
+      scheduler.cancel(previous);
+    }
+  }
+
+  private void cancelExpiry(String holdId) {
+    DeadlineScheduler.Deadline deadline = expiries.remove(holdId);
+    if (deadline != null) {
+      scheduler.cancel(deadline);
+    }
+  }
+
+  /**
+   * Ends a hold whose pickup window the scheduler reports closed, unless it
+   * was picked up, cancelled or given a new window meanwhile.
+   */
+  private void expireHold(String holdId) {
+    Hold hold = holdRepository.getById(holdId);
+    if (hold == null || !hold.isReady() || hold.getExpiresAt().isAfter(clock.instant())) {
+      return;
+    }
+    if (holdRepository.deleteIfExists(holdId) != null) {
+      passOn(hold.getBookItemId(), Status.RESERVED);
+    }
+  }
+
+  // --- Hand-offs used by LoanService ---
+
+  /**
+   * Sets a copy aside for the first hold on its title, if any. The copy's
+   * status moves from {@code current} to RESERVED first, so it cannot be lent
+   * to anyone else meanwhile; if the queue turns out to be empty it is moved
+   * back.
+   *
+   * @return true if a hold took the copy
+   */
+  boolean handOff(BookItem copy, Status current) {
+    if (holdRepository.countWaiting(copy.getBookDefId()) == 0) {
+      return false;
+    }
+    if (current != Status.RESERVED && !bookService.compareAndSetStatus(copy.getId(), current, Status.RESERVED)) {
+      return false;
+    }
+    Instant expiresAt = clock.instant().plus(PICKUP_DAYS, ChronoUnit.DAYS);
+    if (holdRepository.assignNext(copy.getBookDefId(), copy.getId(), expiresAt) != null) {
+      return true;
+    }
+    if (current != Status.RESERVED) {
+      bookService.compareAndSetStatus(copy.getId(), Status.RESERVED, current);
+    }
+    return false;
+  }
+
+  /**
+   * Ends the user's ready hold on a copy so the user can borrow it.
+   *
+   * @return the ended hold, to be given back through {@link #reinstate(Hold)}
+   *         if the loan cannot be made
+   * @throws IllegalArgumentException if the copy is not set aside for the user
+   */
+  Hold claim(String userId, BookItem copy) {
+    Hold hold = holdRepository.findReadyByBookItemId(copy.getId());
+    if (hold == null || !hold.getUserId().equals(userId)) {
+      throw new IllegalArgumentException(
+          "Book item with barcode " + copy.getBarcode() + " is reserved for another member.");
+    }
+    if (!hold.getExpiresAt().isAfter(clock.instant())) {
+      throw new IllegalArgumentException(
+          "The hold on book item with barcode " + copy.getBarcode() + " expired on " + hold.getExpiresAt() + ".");
+    }
+    if (holdRepository.deleteIfExists(hold.getId()) == null) {
+      throw new IllegalArgumentException(
+          "Book item with barcode " + copy.getBarcode() + " is no longer reserved for you.");
+    }
+    return hold;
+  }
+
+  /**
+   * Gives back a hold ended by {@link #claim} when the loan failed. The copy
+   * must be RESERVED again. If the hold cannot come back (the user placed a
+   * new hold on the title meanwhile), the copy is passed on instead.
+   */
+  void reinstate(Hold hold) {
+    try {
+      holdRepository.save(hold);
+    } catch (IllegalArgumentException e) {
+      passOn(hold.getBookItemId(), Status.RESERVED);
+    }
+  }
+
+  /**
+   * Moves a copy whose hold ended to the next hold in line, or makes it
+   * available. If a hold is placed while the copy is being shelved, the hold
+   * gets it.
+   */
+  void passOn(String bookItemId, Status current) {
+    BookItem copy = bookService.findById(bookItemId);
+    if (copy == null || handOff(copy, current)) {
+      return;
+    }
+    if (bookService.compareAndSetStatus(bookItemId, current, Status.AVAILABLE)) {
+      offerAvailableCopies(copy.getBookDefId());
+    }
+  }
+
+  /**
+   * Cancels every hold of a user, for when the user is removed.
+   */
+  void cancelHoldsOf(String userId) {
+    for (Hold hold : holdRepository.findByUserId(userId)) {
+      cancelHold(hold.getId());
+    }
+  }
+
+  /**
+   * Handles the removal of a copy: a hold it was set aside for goes back to
+   * the front of the queue and takes another copy if one is available.
+   */
+  void copyRemoved(BookItem copy) {
+    Hold hold = holdRepository.findReadyByBookItemId(copy.getId());
+    if (hold == null) {
+      return;
+    }
+    hold.setBookItemId(null);
+    hold.setExpiresAt(null);
+    holdRepository.update(hold);
+    offerAvailableCopies(copy.getBookDefId());
+  }
+
+  /**
+   * Drops every hold on a title, for when the title is removed.
+   */
+  void titleRemoved(String bookDefId) {
+    for (Hold hold : holdRepository.findWaiting(bookDefId)) {
+      holdRepository.deleteIfExists(hold.getId());
+    }
+  }
+
+  /**
+   * The scheduler shared with {@link LoanService} for loan due dates.
+   */
+  DeadlineScheduler scheduler() {
+    return scheduler;
+  }
+
+  // --- Queries ---
+
+  public Hold getById(String holdId) {
+    return holdRepository.getById(holdId);
+  }
+
+  public List<Hold> getAll() {
+    return holdRepository.getAll();
+  }
+
+  public List<Hold> getByUserId(String userId) {
+    return holdRepository.findByUserId(userId);
+  }
+
+  /**
+   * @return the waiting holds on a title, first in line first
+   */
+  public List<Hold> getQueue(String bookDefId) {
+    return holdRepository.findWaiting(bookDefId);
+  }
+
+  public int countWaiting(String bookDefId) {
+    return holdRepository.countWaiting(bookDefId);
+  }
+
+  /**
+   * @return the ready hold a copy is set aside for, or null
+   */
+  public Hold getReadyHold(String bookItemId) {
+    return holdRepository.findReadyByBookItemId(bookItemId);
+  }
+
+  public int count() {
+    return holdRepository.count();
+  }
+
+  /**
+   * Returns the modification count of the hold store (used by
+   * PersistenceService to skip rewriting an unchanged file).
+   */
+  public long getModCount() {
+    return holdRepository.getModCount();
+  }
+
+  /**
+   * Runs {@code action} while writes to the holds wait (used by
+   * PersistenceService to copy a consistent snapshot).
+   */
+  <R> R whileWritesBlocked(Supplier<R> action) {
+    return holdRepository.whileWritesBlocked(action);
+  }
+
+  /**
+   * Loads fully-constructed holds in a single pass (used by PersistenceService
+   * when loading from disk). Waiting holds are queued in the order given, and
+   * the pickup window of each ready hold is scheduled; one that ended while
+   * the application was down expires on the scheduler's first tick.
+   *
+   * Users and books must already be loaded.
+   *
+   * @throws IllegalArgumentException if a hold references a missing user,
+   *                                  title or book item, or the holds
+   *                                  conflict; nothing is loaded in that case
+   */
+  public void bulkLoad(Collection<Hold> holds) {
+    bulkLoad(holds, true);
+  }
+
+  /**
+   * Bulk-loads holds; without {@code checkReferences}, references to users,
+   * titles and book items are left for {@link #verifyReferences()}, so a
+   * journal replayed afterwards can still supply what they point to.
+   */
+  void bulkLoad(Collection<Hold> holds, boolean checkReferences) {
+    if (checkReferences) {
+      for (Hold hold : holds) {
+        String missing = missingReference(hold);
+        if (missing != null) {
+          throw new IllegalArgumentException(missing);
+        }
+      }
+    }
+    holdRepository.bulkLoad(holds);
+    // Bulk loads are not reported to listeners
+    for (Hold hold : holds) {
+      if (hold.isReady()) {
+        scheduleExpiry(hold);
+      }
+    }
+  }
+
+  /**
+   * Checks that every hold references an existing user and title, and a ready
+   * hold an existing book item.
+   *
+   * @throws IllegalStateException naming the first hold that does not
+   */
+  void verifyReferences() {
+    for (Hold hold : holdRepository.getAll()) {
+      String missing = missingReference(hold);
+      if (missing != null) {
+        throw new IllegalStateException(missing);
+      }
+    }
+  }
+
+  private String missingReference(Hold hold) {
+    if (userService.getById(hold.getUserId()) == null) {
+      return "Hold " + hold.getId() + " references missing user " + hold.getUserId();
+    }
+    if (bookService.findDefinitionById(hold.getBookDefId()) == null) {
+      return "Hold " + hold.getId() + " references missing book " + hold.getBookDefId();
+    }
+    if (hold.isReady() && bookService.findById(hold.getBookItemId()) == null) {
+      return "Hold " + hold.getId() + " references missing book item " + hold.getBookItemId();
+    }
+    return null;
+  }
+
+  /**
+   * Applies a journaled hold record during replay: the hold is inserted or
+   * replaced as-is. A hold that still has the same copy set aside, or the
+   * user's other hold on the same title, is dropped first; that only happens
+   * when the snapshot is newer than the record, and a later record in the
+   * journal restores it.
+   */
+  public void restore(Hold hold) {
+    if (hold.isReady()) {
+      Hold holder = holdRepository.findReadyByBookItemId(hold.getBookItemId());
+      if (holder != null && !holder.getId().equals(hold.getId())) {
+        holdRepository.deleteIfExists(holder.getId());
+      }
+    }
+    if (holdRepository.getById(hold.getId()) != null) {
+      holdRepository.update(hold);
+      return;
+    }
+    for (Hold other : holdRepository.findByUserId(hold.getUserId())) {
+      if (other.getBookDefId().equals(hold.getBookDefId())) {
+        holdRepository.deleteIfExists(other.getId());
+      }
+    }
+    holdRepository.save(hold);
+  }
+
+  /**
+   * Removes a hold during journal replay, without passing its copy on (the
+   * copy's own records do that). Unknown IDs are ignored.
+   */
+  public void purge(String id) {
+    holdRepository.deleteIfExists(id);
+  }
+
+  /**
+   * Registers a listener for every subsequent hold change (used by
+   * PersistenceService to journal changes).
+   */
+  public void addListener(RepositoryListener<Hold> listener) {
+    holdRepository.addListener(listener);
+  }
+}
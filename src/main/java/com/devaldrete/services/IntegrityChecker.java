@@ -0,0 +1,374 @@
+package com.devaldrete.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+import com.devaldrete.utils.BarcodeGenerator;
+import com.devaldrete.utils.ISBNGenerator;
+
+/**
+ * Verifies and repairs the referential integrity of a snapshot, fsck-style.
+ * Every check is a parallel hash join, so the work is linear in the number of
+ * records.
+ */
+public final class IntegrityChecker {
+
+  /** The kinds of inconsistency found by {@link #check}. */
+  public enum Kind {
+    DUPLICATE_USER_ID,
+    DUPLICATE_DEFINITION_ID,
+    DUPLICATE_ISBN,
+    DUPLICATE_ITEM_ID,
+    DUPLICATE_BARCODE,
+    ITEM_WITHOUT_DEFINITION,
+    DUPLICATE_LOAN_ID,
+    LOAN_WITHOUT_USER,
+    LOAN_WITHOUT_ITEM,
+    ITEM_LOANED_TWICE,
+    BORROWED_WITHOUT_LOAN,
+    LOANED_BUT_NOT_BORROWED,
+    DUPLICATE_HOLD_ID,
+    HOLD_WITHOUT_USER,
+    HOLD_WITHOUT_DEFINITION,
+    HOLD_WITHOUT_ITEM,
+    TITLE_HELD_TWICE,
+    ITEM_HELD_TWICE
+  }
+
+  /**
+   * One inconsistency.
+   *
+   * @param kind   what is wrong
+   * @param id     ID of the offending record
+   * @param detail human-readable description
+   */
+  public record Problem(Kind kind, String id, String detail) {
+
+    @Override
+    public String toString() {
+      return kind + " " + id + ": " + detail;
+    }
+  }
+
+  private IntegrityChecker() {
+  }
+
+  // -------------------------------------------------------------------------
+  // Check
+  // -------------------------------------------------------------------------
+
+  /**
+   * @return every inconsistency in the snapshot, grouped by record type
+   *         (users, definitions, items, loans, holds) and in file order
+   *         within each
+   */
+  public static List<Problem> check(SnapshotContents contents) {
+    Indexes indexes = new Indexes(contents);
+    return Stream.of(
+        scan(contents.users(), i -> userProblems(i, contents.users().get(i), indexes)),
+        scan(contents.definitions(), i -> definitionProblems(i, contents.definitions().get(i), indexes)),
+        scan(contents.items(), i -> itemProblems(i, contents.items().get(i), indexes)),
+        scan(contents.loans(), i -> loanProblems(i, contents.loans().get(i), indexes)),
+        scan(contents.holds(), i -> holdProblems(i, contents.holds().get(i), indexes)))
+        .flatMap(List::stream)
+        .toList();
+  }
+
+  /** Hash indexes over every key the checks join on. */
+  private static final class Indexes {
+
+    final Map<String, Integer> users;
+    final Map<String, Integer> definitions;
+    final Map<String, Integer> isbns;
+    final Map<String, Integer> items;
+    final Map<String, Integer> barcodes;
+    final Map<String, Integer> loans;
+    final Map<String, Integer> loansByItem;
+    final Map<String, Integer> holds;
+    final Map<String, Integer> holdsByUserAndTitle;
+    final Map<String, Integer> holdsByItem;
+
+    Indexes(SnapshotContents contents) {
+      users = firstPositions(contents.users(), User::getId);
+      definitions = firstPositions(contents.definitions(), BookDefinition::getId);
+      isbns = firstPositions(contents.definitions(), d -> isbnKey(d.getIsbn()));
+      items = firstPositions(contents.items(), BookItem::getId);
+      barcodes = firstPositions(contents.items(), item -> BarcodeGenerator.canonicalize(item.getBarcode()));
+      loans = firstPositions(contents.loans(), Loan::getId);
+      loansByItem = firstPositions(contents.loans(), Loan::getBookId);
+      holds = firstPositions(contents.holds(), Hold::getId);
+      holdsByUserAndTitle = firstPositions(contents.holds(), IntegrityChecker::userAndTitleKey);
+      holdsByItem = firstPositions(contents.holds(), Hold::getBookItemId);
+    }
+  }
+
+  /**
+   * Maps each non-null key to the lowest position holding it. Built in
+   * parallel; taking the minimum on collision makes the result independent of
+   * scheduling.
+   */
+  private static <T> Map<String, Integer> firstPositions(List<T> records, Function<T, String> key) {
+    return IntStream.range(0, records.size()).parallel()
+        .filter(i -> key.apply(records.get(i)) != null)
+        .boxed()
+        .collect(Collectors.toConcurrentMap(i -> key.apply(records.get(i)), i -> i, Math::min));
+  }
+
+  /** Runs the per-record check over every position in parallel, keeping file order. */
+  private static List<Problem> scan(List<?> records, IntFunction<List<Problem>> problemsAt) {
+    return IntStream.range(0, records.size()).parallel()
+        .mapToObj(problemsAt)
+        .flatMap(List::stream)
+        .toList();
+  }
+
+  private static List<Problem> userProblems(int position, User user, Indexes indexes) {
+    if (!isFirst(indexes.users, user.getId(), position)) {
+      return List.of(new Problem(Kind.DUPLICATE_USER_ID, user.getId(),
+          "user '" + user.getUsername() + "' reuses the ID of an earlier user"));
+    }
+    return List.of();
+  }
+
+  private static List<Problem> definitionProblems(int position, BookDefinition definition, Indexes indexes) {
+    List<Problem> problems = new ArrayList<>(0);
+    if (!isFirst(indexes.definitions, definition.getId(), position)) {
+      problems.add(new Problem(Kind.DUPLICATE_DEFINITION_ID, definition.getId(),
+          "'" + definition.getTitle() + "' reuses the ID of an earlier definition"));
+    }
+    String isbn = isbnKey(definition.getIsbn());
+    if (!isFirst(indexes.isbns, isbn, position)) {
+      problems.add(new Problem(Kind.DUPLICATE_ISBN, definition.getId(),
+          "ISBN " + definition.getIsbn() + " is already used by an earlier definition"));
+    }
+    return problems;
+  }
+
+  private static List<Problem> itemProblems(int position, BookItem item, Indexes indexes) {
+    List<Problem> problems = new ArrayList<>(0);
+    if (!isFirst(indexes.items, item.getId(), position)) {
+      problems.add(new Problem(Kind.DUPLICATE_ITEM_ID, item.getId(),
+          "book item " + item.getBarcode() + " reuses the ID of an earlier item"));
+    }
+    if (!contains(indexes.definitions, item.getBookDefId())) {
+      problems.add(new Problem(Kind.ITEM_WITHOUT_DEFINITION, item.getId(),
+          "references missing definition " + item.getBookDefId()));
+    }
+    String barcode = BarcodeGenerator.canonicalize(item.getBarcode());
+    if (!isFirst(indexes.barcodes, barcode, position)) {
+      problems.add(new Problem(Kind.DUPLICATE_BARCODE, item.getId(),
+          "barcode " + item.getBarcode() + " is already used by an earlier item"));
+    }
+    boolean loaned = contains(indexes.loansByItem, item.getId());
+    if (item.getStatus() == Status.BORROWED && !loaned) {
+      problems.add(new Problem(Kind.BORROWED_WITHOUT_LOAN, item.getId(),
+          "book item " + item.getBarcode() + " is BORROWED but no loan holds it"));
+    } else if (loaned && !mayBeOnLoan(item.getStatus())) {
+      problems.add(new Problem(Kind.LOANED_BUT_NOT_BORROWED, item.getId(),
+          "book item " + item.getBarcode() + " is on loan but " + item.getStatus()));
+    }
+    return problems;
+  }
+
+  private static List<Problem> loanProblems(int position, Loan loan, Indexes indexes) {
+    List<Problem> problems = new ArrayList<>(0);
+    if (!isFirst(indexes.loans, loan.getId(), position)) {
+      problems.add(new Problem(Kind.DUPLICATE_LOAN_ID, loan.getId(), "reuses the ID of an earlier loan"));
+    }
+    if (!contains(indexes.users, loan.getUserId())) {
+      problems.add(new Problem(Kind.LOAN_WITHOUT_USER, loan.getId(),
+          "references missing user " + loan.getUserId()));
+    }
+    if (!contains(indexes.items, loan.getBookId())) {
+      problems.add(new Problem(Kind.LOAN_WITHOUT_ITEM, loan.getId(),
+          "references missing book item " + loan.getBookId()));
+    } else if (!isFirst(indexes.loansByItem, loan.getBookId(), position)) {
+      problems.add(new Problem(Kind.ITEM_LOANED_TWICE, loan.getId(),
+          "book item " + loan.getBookId() + " is already held by an earlier loan"));
+    }
+    return problems;
+  }
+
+  private static List<Problem> holdProblems(int position, Hold hold, Indexes indexes) {
+    List<Problem> problems = new ArrayList<>(0);
+    if (!isFirst(indexes.holds, hold.getId(), position)) {
+      problems.add(new Problem(Kind.DUPLICATE_HOLD_ID, hold.getId(), "reuses the ID of an earlier hold"));
+    }
+    if (!contains(indexes.users, hold.getUserId())) {
+      problems.add(new Problem(Kind.HOLD_WITHOUT_USER, hold.getId(),
+          "references missing user " + hold.getUserId()));
+    }
+    if (!contains(indexes.definitions, hold.getBookDefId())) {
+      problems.add(new Problem(Kind.HOLD_WITHOUT_DEFINITION, hold.getId(),
+          "references missing definition " + hold.getBookDefId()));
+    } else if (!isFirst(indexes.holdsByUserAndTitle, userAndTitleKey(hold), position)) {
+      problems.add(new Problem(Kind.TITLE_HELD_TWICE, hold.getId(),
+          "user " + hold.getUserId() + " already holds definition " + hold.getBookDefId()));
+    }
+    if (hold.getBookItemId() != null) {
+      if (!contains(indexes.items, hold.getBookItemId())) {
+        problems.add(new Problem(Kind.HOLD_WITHOUT_ITEM, hold.getId(),
+            "references missing book item " + hold.getBookItemId()));
+      } else if (!isFirst(indexes.holdsByItem, hold.getBookItemId(), position)) {
+        problems.add(new Problem(Kind.ITEM_HELD_TWICE, hold.getId(),
+            "book item " + hold.getBookItemId() + " is already set aside for an earlier hold"));
+      }
+    }
+    return problems;
+  }
+
+  // -------------------------------------------------------------------------
+  // Repair
+  // -------------------------------------------------------------------------
+
+  /**
+   * Returns a copy of the snapshot with every problem {@link #check} reports
+   * resolved, which the services therefore accept on load. The input is not
+   * modified. Where a key is duplicated the first record keeps it:
+   * <ul>
+   *   <li>later records with a duplicate ID are dropped
+   *   <li>a definition whose ISBN an earlier one already uses is merged into
+   *       it: its items move to the earlier definition
+   *   <li>book items whose definition is missing are dropped
+   *   <li>a book item whose barcode an earlier item already uses gets a newly
+   *       generated barcode, so the copy must be relabelled
+   *   <li>loans without their user or book item, and every loan on a book item
+   *       after the first, are dropped
+   *   <li>a book item's status is set to {@link Status#BORROWED} if a loan
+   *       holds it and is not {@code BORROWED} or {@code LOST}, and to
+   *       {@link Status#AVAILABLE} if it is {@code BORROWED} without a loan
+   *   <li>holds without their user, definition or set-aside book item, and
+   *       every hold of a user on a title or on a book item after the first,
+   *       are dropped; holds on a merged definition move with its items
+   * </ul>
+   */
+  public static SnapshotContents repair(SnapshotContents contents) {
+    Map<String, User> users = new LinkedHashMap<>();
+    for (User user : contents.users()) {
+      users.putIfAbsent(user.getId(), user);
+    }
+
+    Map<String, BookDefinition> definitions = new LinkedHashMap<>();
+    for (BookDefinition definition : contents.definitions()) {
+      definitions.putIfAbsent(definition.getId(), definition);
+    }
+    Map<String, String> definitionIdsByIsbn = new HashMap<>();
+    Map<String, String> mergedInto = new HashMap<>();
+    for (Iterator<BookDefinition> it = definitions.values().iterator(); it.hasNext();) {
+      BookDefinition definition = it.next();
+      String isbn = isbnKey(definition.getIsbn());
+      String keeper = isbn == null ? null : definitionIdsByIsbn.putIfAbsent(isbn, definition.getId());
+      if (keeper != null) {
+        mergedInto.put(definition.getId(), keeper);
+        it.remove();
+      }
+    }
+
+    Map<String, BookItem> items = new LinkedHashMap<>();
+    Set<String> barcodes = new HashSet<>();
+    for (BookItem item : contents.items()) {
+      String definitionId = mergedInto.getOrDefault(item.getBookDefId(), item.getBookDefId());
+      if (items.containsKey(item.getId()) || !definitions.containsKey(definitionId)) {
+        continue;
+      }
+      String barcode = item.getBarcode();
+      while (!barcodes.add(BarcodeGenerator.canonicalize(barcode))) {
+        barcode = BarcodeGenerator.generateBarcode();
+      }
+      items.put(item.getId(),
+          new BookItem(item.getId(), barcode, definitionId, item.getStatus(), item.getAcquisitionDate()));
+    }
+
+    Map<String, Loan> loans = new LinkedHashMap<>();
+    Set<String> loanedItems = new HashSet<>();
+    for (Loan loan : contents.loans()) {
+      if (!loans.containsKey(loan.getId()) && users.containsKey(loan.getUserId())
+          && items.containsKey(loan.getBookId()) && loanedItems.add(loan.getBookId())) {
+        loans.put(loan.getId(), loan);
+      }
+    }
+
+    for (BookItem item : items.values()) {
+      boolean loaned = loanedItems.contains(item.getId());
+      if (item.getStatus() == Status.BORROWED && !loaned) {
+        item.setStatus(Status.AVAILABLE);
+      } else if (loaned && !mayBeOnLoan(item.getStatus())) {
+        item.setStatus(Status.BORROWED);
+      }
+    }
+
+    Map<String, Hold> holds = new LinkedHashMap<>();
+    Set<String> heldTitles = new HashSet<>();
+    Set<String> heldItems = new HashSet<>();
+    for (Hold hold : contents.holds()) {
+      String definitionId = mergedInto.getOrDefault(hold.getBookDefId(), hold.getBookDefId());
+      Hold moved = new Hold(hold.getId(), hold.getUserId(), definitionId, hold.getPlacedAt(),
+          hold.getBookItemId(), hold.getExpiresAt());
+      if (holds.containsKey(hold.getId()) || !users.containsKey(hold.getUserId())
+          || !definitions.containsKey(definitionId) || heldTitles.contains(userAndTitleKey(moved))) {
+        continue;
+      }
+      if (moved.isReady() && (!items.containsKey(moved.getBookItemId()) || heldItems.contains(moved.getBookItemId()))) {
+        continue;
+      }
+      heldTitles.add(userAndTitleKey(moved));
+      if (moved.isReady()) {
+        heldItems.add(moved.getBookItemId());
+      }
+      holds.put(hold.getId(), moved);
+    }
+
+    return new SnapshotContents(new ArrayList<>(users.values()), new ArrayList<>(definitions.values()),
+        new ArrayList<>(items.values()), new ArrayList<>(loans.values()), new ArrayList<>(holds.values()));
+  }
+
+  // -------------------------------------------------------------------------
+  // Helpers
+  // -------------------------------------------------------------------------
+
+  /**
+   * @return true if {@code key} is null (it takes part in no join) or
+   *         {@code position} is its first occurrence
+   */
+  private static boolean isFirst(Map<String, Integer> index, String key, int position) {
+    return key == null || index.get(key) == position;
+  }
+
+  private static boolean contains(Map<String, Integer> index, String key) {
+    return key != null && index.containsKey(key);
+  }
+
+  private static String userAndTitleKey(Hold hold) {
+    return hold.getUserId() + '\u0000' + hold.getBookDefId();
+  }
+
+  /** A copy on loan is borrowed, or lost by the borrower. */
+  private static boolean mayBeOnLoan(Status status) {
+    return status == Status.BORROWED || status == Status.LOST;
+  }
+
+  /**
+   * @return the canonical ISBN, or null for a blank one, which need not be
+   *         unique
+   */
+  private static String isbnKey(String isbn) {
+    return isbn == null || isbn.isBlank() ? null : ISBNGenerator.canonicalize(isbn);
+  }
+}
@@ -0,0 +1,300 @@
+package com.devaldrete.services;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Append-only log of repository mutations, written by
+ * {@link PersistenceService} as they happen: one compact JSON object per line.
+ *
+ * <p>Records are forced to disk in groups by a background thread (see
+ * {@link JournalSettings}). {@link #rotate(Path)} seals the records written so
+ * far into a segment file when a checkpoint starts.
+ */
+final class Journal implements Closeable {
+
+  private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+  private final Path file;
+  private FileChannel channel;
+  private Writer writer;
+  private final int groupCommitRecords;
+  private final long groupCommitNanos;
+  private final Thread syncer;
+
+  private int buffered;
+  private int unsynced;
+  private long oldestUnsynced;
+  private long forceCount;
+  private boolean forcing;
+  private IOException failure;
+  private boolean closed;
+
+  /**
+   * Opens (or creates) the journal file for appending.
+   *
+   * @param file                the journal file
+   * @param validLength         bytes of the existing file holding complete
+   *                            records; anything after it (a record torn by a
+   *                            crash) is cut off
+   * @param groupCommitRecords  force to disk once this many records are
+   *                            pending; 1 forces every record as it is appended
+   * @param groupCommitInterval force to disk when the oldest unsynced record is
+   *                            this old; zero disables time-based forcing
+   */
+  Journal(Path file, long validLength, int groupCommitRecords, Duration groupCommitInterval) throws IOException {
+    if (groupCommitRecords < 1) {
+      throw new IllegalArgumentException("groupCommitRecords must be at least 1");
+    }
+    if (groupCommitInterval.isNegative()) {
+      throw new IllegalArgumentException("groupCommitInterval must not be negative");
+    }
+    this.file = file;
+    this.groupCommitRecords = groupCommitRecords;
+    this.groupCommitNanos = groupCommitInterval.toNanos();
+    openFile(validLength);
+    this.syncer = groupCommitRecords == 1 && groupCommitNanos == 0
+        ? null
+        : Thread.ofVirtual().name("journal-sync").start(this::syncLoop);
+  }
+
+  Path file() {
+    return file;
+  }
+
+  /**
+   * Appends one record, followed by a newline.
+   */
+  synchronized void append(JsonWriter.Document record) throws IOException {
+    buffer(record);
+    flush();
+  }
+
+  /**
+   * Adds one record, followed by a newline, to the write buffer without
+   * handing it to the operating system; see {@link #flush()}.
+   */
+  synchronized void buffer(JsonWriter.Document record) throws IOException {
+    ensureUsable();
+    record.writeTo(new JsonWriter(writer, false));
+    writer.write('\n');
+    buffered++;
+  }
+
+  /**
+   * Hands every buffered record to the operating system in one write, and
+   * makes them pending for the group commit (or forces them, with
+   * {@code groupCommitRecords} of 1).
+   */
+  synchronized void flush() throws IOException {
+    ensureUsable();
+    if (buffered == 0) {
+      return;
+    }
+    writer.flush();
+    if (unsynced == 0) {
+      oldestUnsynced = System.nanoTime();
+      notifyAll();
+    }
+    unsynced += buffered;
+    buffered = 0;
+    if (groupCommitRecords == 1) {
+      force();
+    } else if (unsynced >= groupCommitRecords) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Forces every appended record, buffered ones included, to the storage
+   * device.
+   */
+  synchronized void sync() throws IOException {
+    flush();
+    if (unsynced > 0) {
+      force();
+    }
+  }
+
+  /**
+   * Forces every record to disk, renames the journal file to {@code segment}
+   * and continues with a new, empty journal file.
+   *
+   * @throws IOException if the rename fails; the journal then keeps appending
+   *                     to the current file
+   */
+  synchronized void rotate(Path segment) throws IOException {
+    ensureUsable();
+    awaitBackgroundForce();
+    writer.flush();
+    buffered = 0;
+    force();
+    channel.close();
+    try {
+      Files.move(file, segment, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      openFile(Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * @return the current size of the journal file in bytes
+   */
+  synchronized long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Forces outstanding records to disk, stops the background sync and closes
+   * the file.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      awaitBackgroundForce();
+      closed = true;
+      notifyAll();
+      try {
+        writer.flush();
+        if (unsynced + buffered > 0) {
+          force();
+        }
+        buffered = 0;
+      } finally {
+        channel.close();
+      }
+    }
+    if (syncer != null) {
+      try {
+        syncer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void openFile(long validLength) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      if (channel.size() > validLength) {
+        channel.truncate(validLength);
+        channel.force(true);
+      }
+      channel.position(channel.size());
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+  }
+
+  private void force() throws IOException {
+    channel.force(false);
+    unsynced = 0;
+    forceCount++;
+  }
+
+  /** Lets a force started by the background thread finish before the channel is closed. */
+  private void awaitBackgroundForce() {
+    boolean interrupted = false;
+    while (forcing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void ensureUsable() throws IOException {
+    if (closed) {
+      throw new IOException("Journal " + file + " is closed");
+    }
+    if (failure != null) {
+      throw new IOException("Journal " + file + " could not be synced: " + failure.getMessage(), failure);
+    }
+  }
+
+  /**
+   * Background group commit: sleeps until records are pending, then until
+   * enough of them are pending or the oldest reaches the interval, and forces
+   * them out. The force itself runs without holding the lock, so appends go
+   * on meanwhile; records appended during it stay pending for the next round.
+   */
+  private void syncLoop() {
+    try {
+      while (true) {
+        FileChannel target;
+        int covered;
+        long startCount;
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          if (unsynced == 0) {
+            wait();
+            continue;
+          }
+          if (unsynced < groupCommitRecords) {
+            if (groupCommitNanos == 0) {
+              wait();
+              continue;
+            }
+            long remaining = groupCommitNanos - (System.nanoTime() - oldestUnsynced);
+            if (remaining > 0) {
+              wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+              continue;
+            }
+          }
+          target = channel;
+          covered = unsynced;
+          startCount = forceCount;
+          forcing = true;
+        }
+
+        IOException error = null;
+        try {
+          target.force(false);
+        } catch (IOException e) {
+          error = e;
+        }
+
+        synchronized (this) {
+          forcing = false;
+          notifyAll();
+          if (forceCount != startCount) {
+            // sync() forced everything meanwhile; what is pending now is newer
+            continue;
+          }
+          if (error != null) {
+            failure = error;
+            return;
+          }
+          unsynced -= covered;
+          forceCount++;
+          if (unsynced > 0) {
+            oldestUnsynced = System.nanoTime();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
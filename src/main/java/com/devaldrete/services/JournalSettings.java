@@ -0,0 +1,81 @@
+package com.devaldrete.services;
+
+import java.time.Duration;
+
+/**
+ * Tuning knobs for the mutation journal kept by {@link PersistenceService}.
+ *
+ * @param groupCommitRecords    force the journal to disk once this many
+ *                              records are pending; 1 makes every change
+ *                              durable before the operation returns
+ * @param groupCommitInterval   also force it once the oldest unforced record
+ *                              is this old; zero disables time-based forcing
+ * @param checkpointBytes       start a background checkpoint once the journal
+ *                              reaches this many bytes; zero disables the
+ *                              trigger
+ * @param checkpointAge         start a background checkpoint at the latest
+ *                              this long after the first change it will
+ *                              cover, even while changes keep arriving; zero
+ *                              disables the trigger
+ * @param checkpointQuietPeriod start a background checkpoint once no change
+ *                              has been made for this long, so a burst of
+ *                              changes is saved once; zero disables the
+ *                              trigger
+ */
+public record JournalSettings(int groupCommitRecords, Duration groupCommitInterval,
+    long checkpointBytes, Duration checkpointAge, Duration checkpointQuietPeriod) {
+
+  /**
+   * Forces every 32 records or 200 ms, and checkpoints after 5 seconds without
+   * changes, at 4 MiB of journal, or 10 minutes after the first unsaved change.
+   */
+  public static final JournalSettings DEFAULTS = new JournalSettings(
+      32, Duration.ofMillis(200), 4L * 1024 * 1024, Duration.ofMinutes(10), Duration.ofSeconds(5));
+
+  public JournalSettings {
+    if (groupCommitRecords < 1) {
+      throw new IllegalArgumentException("groupCommitRecords must be at least 1");
+    }
+    if (groupCommitInterval == null || groupCommitInterval.isNegative()) {
+      throw new IllegalArgumentException("groupCommitInterval must not be null or negative");
+    }
+    if (checkpointBytes < 0) {
+      throw new IllegalArgumentException("checkpointBytes must not be negative");
+    }
+    if (checkpointAge == null || checkpointAge.isNegative()) {
+      throw new IllegalArgumentException("checkpointAge must not be null or negative");
+    }
+    if (checkpointQuietPeriod == null || checkpointQuietPeriod.isNegative()) {
+      throw new IllegalArgumentException("checkpointQuietPeriod must not be null or negative");
+    }
+  }
+
+  /**
+   * @return a copy with the given group commit settings
+   */
+  public JournalSettings withGroupCommit(int records, Duration interval) {
+    return new JournalSettings(records, interval, checkpointBytes, checkpointAge, checkpointQuietPeriod);
+  }
+
+  /**
+   * @return a copy with the given checkpoint triggers
+   */
+  public JournalSettings withCheckpointTriggers(long bytes, Duration age) {
+    return new JournalSettings(groupCommitRecords, groupCommitInterval, bytes, age, checkpointQuietPeriod);
+  }
+
+  /**
+   * @return a copy with the given quiet period
+   */
+  public JournalSettings withQuietPeriod(Duration quietPeriod) {
+    return new JournalSettings(groupCommitRecords, groupCommitInterval, checkpointBytes, checkpointAge,
+        quietPeriod);
+  }
+
+  /**
+   * @return true if any checkpoint trigger is enabled
+   */
+  boolean autosaves() {
+    return checkpointBytes > 0 || !checkpointAge.isZero() || !checkpointQuietPeriod.isZero();
+  }
+}
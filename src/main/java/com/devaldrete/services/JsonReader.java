@@ -0,0 +1,348 @@
+package com.devaldrete.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal single-pass pull parser for the JSON files written by
+ * {@link PersistenceService}. Bytes are read buffer by buffer from a
+ * {@link ByteSource}, so the whole file is never held in memory, and several
+ * top-level values may follow each other, as in journal files.
+ */
+final class JsonReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_DEPTH = 64;
+
+  private final ByteSource source;
+  private ByteBuffer buffer = ByteBuffer.allocate(0);
+  private long consumed;
+
+  // Per nesting level: a value has been read and a comma must precede the next
+  private final boolean[] needsComma = new boolean[MAX_DEPTH + 1];
+  private int depth;
+
+  private byte[] scratch = new byte[256];
+  private int scratchLength;
+
+  /**
+   * Reads from a channel through an internal buffer. The channel is closed by
+   * {@link #close()}.
+   */
+  JsonReader(ReadableByteChannel channel) {
+    this(ByteSource.of(channel, BUFFER_SIZE));
+  }
+
+  /**
+   * Reads the buffers of a source in order. The source is closed by
+   * {@link #close()}.
+   */
+  JsonReader(ByteSource source) {
+    this.source = source;
+  }
+
+  void beginObject() throws IOException {
+    openBracket('{');
+  }
+
+  void endObject() throws IOException {
+    closeBracket('}');
+  }
+
+  void beginArray() throws IOException {
+    openBracket('[');
+  }
+
+  void endArray() throws IOException {
+    closeBracket(']');
+  }
+
+  /**
+   * Returns true if the current object or array has another member, consuming
+   * the separating comma if there is one. May be called repeatedly. Calling it
+   * is optional: the other read methods consume a pending comma themselves.
+   */
+  boolean hasNext() throws IOException {
+    int c = peekNonWhitespace();
+    if (c == '}' || c == ']' || c == -1) {
+      return false;
+    }
+    separator();
+    return true;
+  }
+
+  /**
+   * Reads an object member name and the colon that follows it.
+   */
+  String nextName() throws IOException {
+    separator();
+    if (peekNonWhitespace() != '"') {
+      throw syntaxError("Expected a member name");
+    }
+    read();
+    String name = readStringBody();
+    if (peekNonWhitespace() != ':') {
+      throw syntaxError("Expected ':' after member name");
+    }
+    read();
+    return name;
+  }
+
+  /**
+   * Reads a scalar value: strings are unescaped, {@code null} yields null and
+   * numbers/booleans are returned as their literal text.
+   */
+  String nextString() throws IOException {
+    separator();
+    int c = peekNonWhitespace();
+    String value;
+    if (c == '"') {
+      read();
+      value = readStringBody();
+    } else if (c == '{' || c == '[') {
+      throw syntaxError("Expected a scalar value but found " + describe(c));
+    } else {
+      String literal = readLiteral();
+      value = "null".equals(literal) ? null : literal;
+    }
+    needsComma[depth] = true;
+    return value;
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays.
+   */
+  void skipValue() throws IOException {
+    int c = peekNonWhitespace();
+    if (c == '{') {
+      beginObject();
+      while (hasNext()) {
+        nextName();
+        skipValue();
+      }
+      endObject();
+    } else if (c == '[') {
+      beginArray();
+      while (hasNext()) {
+        skipValue();
+      }
+      endArray();
+    } else {
+      nextString();
+    }
+  }
+
+  /**
+   * Returns the number of bytes consumed so far, i.e. the offset just past the
+   * last token read.
+   */
+  long position() {
+    return consumed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // -------------------------------------------------------------------------
+  // Internals
+  // -------------------------------------------------------------------------
+
+  /**
+   * Consumes the comma that must separate a member from the previous one.
+   */
+  private void separator() throws IOException {
+    // Top-level values (journal records) follow each other without commas
+    if (!needsComma[depth] || depth == 0) {
+      return;
+    }
+    int c = peekNonWhitespace();
+    if (c != ',') {
+      throw syntaxError("Expected ',' but found " + describe(c));
+    }
+    read();
+    needsComma[depth] = false;
+    c = peekNonWhitespace();
+    if (c == '}' || c == ']') {
+      throw syntaxError("Trailing comma");
+    }
+  }
+
+  private void openBracket(char bracket) throws IOException {
+    separator();
+    int c = peekNonWhitespace();
+    if (c != bracket) {
+      throw syntaxError("Expected '" + bracket + "' but found " + describe(c));
+    }
+    read();
+    if (depth == MAX_DEPTH) {
+      throw syntaxError("Nesting too deep");
+    }
+    depth++;
+    needsComma[depth] = false;
+  }
+
+  private void closeBracket(char bracket) throws IOException {
+    int c = peekNonWhitespace();
+    if (c != bracket || depth == 0) {
+      throw syntaxError("Expected '" + bracket + "' but found " + describe(c));
+    }
+    read();
+    depth--;
+    needsComma[depth] = true;
+  }
+
+  private String readStringBody() throws IOException {
+    scratchLength = 0;
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw syntaxError("Unterminated string");
+      }
+      if (c == '"') {
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+      }
+      if (c == '\\') {
+        readEscape();
+      } else if (c < 0x20) {
+        throw syntaxError("Unescaped control character in string");
+      } else {
+        append(c);
+      }
+    }
+  }
+
+  private void readEscape() throws IOException {
+    int c = read();
+    switch (c) {
+      case '"', '\\', '/' -> append(c);
+      case 'b' -> append('\b');
+      case 'f' -> append('\f');
+      case 'n' -> append('\n');
+      case 'r' -> append('\r');
+      case 't' -> append('\t');
+      case 'u' -> {
+        int codePoint = readHex4();
+        if (Character.isHighSurrogate((char) codePoint)) {
+          if (read() != '\\' || read() != 'u') {
+            throw syntaxError("Unpaired surrogate in \\u escape");
+          }
+          int low = readHex4();
+          if (!Character.isLowSurrogate((char) low)) {
+            throw syntaxError("Unpaired surrogate in \\u escape");
+          }
+          codePoint = Character.toCodePoint((char) codePoint, (char) low);
+        } else if (Character.isLowSurrogate((char) codePoint)) {
+          throw syntaxError("Unpaired surrogate in \\u escape");
+        }
+        appendCodePoint(codePoint);
+      }
+      default -> throw syntaxError("Invalid escape sequence \\" + describe(c));
+    }
+  }
+
+  private int readHex4() throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(read(), 16);
+      if (digit < 0) {
+        throw syntaxError("Invalid \\u escape");
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private String readLiteral() throws IOException {
+    scratchLength = 0;
+    while (true) {
+      int c = peek();
+      if (c == -1 || c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+        break;
+      }
+      append(read());
+    }
+    if (scratchLength == 0) {
+      throw syntaxError("Expected a value");
+    }
+    return new String(scratch, 0, scratchLength, StandardCharsets.US_ASCII);
+  }
+
+  private void appendCodePoint(int codePoint) {
+    if (codePoint < 0x80) {
+      append(codePoint);
+    } else if (codePoint < 0x800) {
+      append(0xC0 | (codePoint >> 6));
+      append(0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      append(0xE0 | (codePoint >> 12));
+      append(0x80 | ((codePoint >> 6) & 0x3F));
+      append(0x80 | (codePoint & 0x3F));
+    } else {
+      append(0xF0 | (codePoint >> 18));
+      append(0x80 | ((codePoint >> 12) & 0x3F));
+      append(0x80 | ((codePoint >> 6) & 0x3F));
+      append(0x80 | (codePoint & 0x3F));
+    }
+  }
+
+  private void append(int b) {
+    if (scratchLength == scratch.length) {
+      scratch = Arrays.copyOf(scratch, scratch.length * 2);
+    }
+    scratch[scratchLength++] = (byte) b;
+  }
+
+  private int peekNonWhitespace() throws IOException {
+    int c = peek();
+    while (isWhitespace(c)) {
+      read();
+      c = peek();
+    }
+    return c;
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private int peek() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    return buffer.get(buffer.position()) & 0xFF;
+  }
+
+  private int read() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    consumed++;
+    return buffer.get() & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    ByteBuffer next;
+    do {
+      next = source.next();
+      if (next == null) {
+        return false;
+      }
+    } while (!next.hasRemaining());
+    buffer = next;
+    return true;
+  }
+
+  private static String describe(int c) {
+    return c == -1 ? "end of input" : "'" + (char) c + "'";
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException(message + " at byte " + consumed);
+  }
+}
@@ -0,0 +1,186 @@
+package com.devaldrete.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer used by {@link PersistenceService}.
+ *
+ * <p>Tokens are written straight to the underlying {@link Writer} as they are
+ * produced, so serializing a data set never builds the whole document in
+ * memory. By default output is pretty-printed with two-space indentation,
+ * matching the layout of the files in {@code data/}; empty arrays and objects
+ * are written as {@code []} and {@code {}}. The compact form writes everything
+ * on one line, as used for journal records.
+ */
+final class JsonWriter implements Closeable {
+
+  /**
+   * Writes one JSON value (usually a whole document or record) to a writer.
+   */
+  @FunctionalInterface
+  interface Document {
+    void writeTo(JsonWriter json) throws IOException;
+  }
+
+  private static final int MAX_DEPTH = 64;
+
+  private final Writer out;
+  private final boolean pretty;
+
+  // Per nesting level: at least one member has been written
+  private final boolean[] nonEmpty = new boolean[MAX_DEPTH + 1];
+  private int depth;
+  private boolean afterName;
+
+  JsonWriter(Writer out) {
+    this(out, true);
+  }
+
+  /**
+   * @param pretty true for indented multi-line output, false for compact
+   *               single-line output
+   */
+  JsonWriter(Writer out, boolean pretty) {
+    this.out = out;
+    this.pretty = pretty;
+  }
+
+  JsonWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  JsonWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  JsonWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  JsonWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  /**
+   * Writes an object member name; the next call must write its value.
+   */
+  JsonWriter name(String name) throws IOException {
+    separator();
+    string(name);
+    out.write(pretty ? ": " : ":");
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Writes a string value, or {@code null} for a null reference.
+   */
+  JsonWriter value(String value) throws IOException {
+    separator();
+    if (value == null) {
+      out.write("null");
+    } else {
+      string(value);
+    }
+    return this;
+  }
+
+  /**
+   * Convenience for {@code name(name).value(value)}.
+   */
+  JsonWriter field(String name, String value) throws IOException {
+    return name(name).value(value);
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private JsonWriter open(char bracket) throws IOException {
+    separator();
+    if (depth == MAX_DEPTH) {
+      throw new IllegalStateException("Nesting too deep");
+    }
+    out.write(bracket);
+    depth++;
+    nonEmpty[depth] = false;
+    return this;
+  }
+
+  private JsonWriter close(char bracket) throws IOException {
+    if (depth == 0) {
+      throw new IllegalStateException("Nothing to close");
+    }
+    if (nonEmpty[depth]) {
+      newline(depth - 1);
+    }
+    depth--;
+    out.write(bracket);
+    return this;
+  }
+
+  /**
+   * Emits whatever must precede the next token: nothing after a member name,
+   * otherwise a comma (if needed) followed by a newline and indentation.
+   */
+  private void separator() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (depth == 0) {
+      return;
+    }
+    if (nonEmpty[depth]) {
+      out.write(',');
+    }
+    nonEmpty[depth] = true;
+    newline(depth);
+  }
+
+  private void newline(int indent) throws IOException {
+    if (!pretty) {
+      return;
+    }
+    out.write('\n');
+    for (int i = 0; i < indent; i++) {
+      out.write("  ");
+    }
+  }
+
+  /**
+   * Writes a quoted string, escaping double-quote, backslash and control
+   * characters.
+   */
+  private void string(String value) throws IOException {
+    out.write('"');
+    int start = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String escape = switch (c) {
+        case '"' -> "\\\"";
+        case '\\' -> "\\\\";
+        case '\n' -> "\\n";
+        case '\r' -> "\\r";
+        case '\t' -> "\\t";
+        case '\b' -> "\\b";
+        case '\f' -> "\\f";
+        default -> c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+      };
+      if (escape != null) {
+        out.write(value, start, i - start);
+        out.write(escape);
+        start = i + 1;
+      }
+    }
+    out.write(value, start, value.length() - start);
+    out.write('"');
+  }
+}
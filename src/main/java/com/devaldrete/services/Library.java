@@ -1,15 +1,24 @@
 package com.devaldrete.services;
 
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
 
 import com.devaldrete.domain.Administrator;
 import com.devaldrete.domain.BookDefinition;
 import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
 import com.devaldrete.domain.Loan;
 import com.devaldrete.domain.Member;
 import com.devaldrete.domain.Role;
+import com.devaldrete.domain.Status;
 import com.devaldrete.domain.User;
 
 public class Library {
@@ -21,6 +30,10 @@ public class Library {
   private final BookService bookService;
   private final UserService userService;
   private final LoanService loanService;
+  private final HoldService holdService;
+  private final DeadlineScheduler scheduler;
+  // Loans the scheduler reported overdue that no administrator has seen yet
+  private final ConcurrentLinkedQueue<Loan> overdueNotices = new ConcurrentLinkedQueue<>();
 
   /**
    * Creates the library and wires the shared service instances so that all
@@ -33,7 +46,11 @@ public class Library {
     this.bookService = new BookService();
     this.userService = new UserService();
     // Inject shared services into LoanService so it sees the same users/books
-    this.loanService = new LoanService(userService, bookService);
+    Clock clock = Clock.systemUTC();
+    this.scheduler = new DeadlineScheduler(clock);
+    this.holdService = new HoldService(userService, bookService, clock, scheduler);
+    this.loanService = new LoanService(userService, bookService, holdService, clock);
+    loanService.addOverdueListener(overdueNotices::add);
   }
 
   // --- Getters / Setters ---
@@ -72,6 +89,18 @@ public class Library {
     return loanService;
   }
 
+  public HoldService getHoldService() {
+    return holdService;
+  }
+
+  /**
+   * Returns the scheduler behind loan due dates and hold expiries; it fires
+   * nothing until started.
+   */
+  public DeadlineScheduler getScheduler() {
+    return scheduler;
+  }
+
   // --- RBAC helpers ---
 
   public boolean canManageBooks(User user) {
@@ -105,10 +134,26 @@ public class Library {
     return loanService.loanBook(userId, barcode);
   }
 
+  public List<CheckoutResult> loanBooks(String userId, List<String> barcodes) {
+    return loanService.loanBooks(userId, barcodes);
+  }
+
   public boolean returnBook(String loanId) {
     return loanService.returnBook(loanId);
   }
 
+  public List<ReturnResult> returnBooks(List<String> barcodes) {
+    return loanService.returnBooks(barcodes);
+  }
+
+  public Hold placeHold(String userId, String bookDefId) {
+    return holdService.placeHold(userId, bookDefId);
+  }
+
+  public boolean cancelHold(String holdId) {
+    return holdService.cancelHold(holdId);
+  }
+
   public List<Loan> findAllLoans() {
     return loanService.getAll();
   }
@@ -131,7 +176,7 @@ public class Library {
       return loanService.getAll();
     }
     if (user instanceof Member) {
-      return ((Member) user).getAccessibleLoans(loanService.getAll());
+      return loanService.getByUserId(user.getId());
     }
     return List.of();
   }
@@ -147,7 +192,8 @@ public class Library {
     overview.put("Book items", bookService.countItems());
     overview.put("Users", userService.count());
     overview.put("Active loans", loanService.count());
-    overview.put("Overdue loans", loanService.getOverdue().size());
+    overview.put("Overdue loans", loanService.countOverdue());
+    overview.put("Holds", holdService.count());
     return overview;
   }
 
@@ -172,6 +218,9 @@ public class Library {
           IO.println("Book with ISBN " + isbn + " already exists. Adding a new copy.");
           bookService.addBookItem(existing.getId());
           IO.println("Copy added successfully.");
+          if (holdService.offerAvailableCopies(existing.getId()) > 0) {
+            IO.println("The copy was set aside for the first hold in line.");
+          }
         } else {
           String title = IO.readln("Enter book title: ");
           String author = IO.readln("Enter book author: ");
@@ -184,11 +233,11 @@ public class Library {
       case "2":
         IO.println("\n=== Remove Book Item ===\n");
         String barcode = IO.readln("Enter barcode of the book item to remove: ");
-        boolean removed = bookService.removeBookItem(barcode);
-        if (removed) {
-          IO.println("Book item removed successfully.");
-        } else {
+        if (bookService.findByBarcode(barcode) == null) {
           IO.println("Book item with barcode " + barcode + " not found.");
+        } else if (removeWithConfirmation(
+            policy -> loanService.removeBookItem(barcode, policy), "Delete its loan and remove it anyway?")) {
+          IO.println("Book item removed successfully.");
         }
         break;
 
@@ -309,8 +358,12 @@ public class Library {
         String newUsername = IO.readln("New username (current: " + toUpdate.getUsername() + "): ");
         String newEmail = IO.readln("New email (current: " + toUpdate.getEmail() + "): ");
         String newPassword = IO.readln("New password: ");
-        userService.update(updateId, newUsername, newEmail, newPassword);
-        IO.println("User updated successfully.");
+        try {
+          userService.update(updateId, newUsername, newEmail, newPassword);
+          IO.println("User updated successfully.");
+        } catch (IllegalArgumentException e) {
+          IO.println("Failed to update user: " + e.getMessage());
+        }
         break;
 
       case "4":
@@ -327,11 +380,11 @@ public class Library {
       case "5":
         IO.println("\n=== Remove User ===\n");
         String removeId = IO.readln("Enter User ID to remove: ");
-        boolean removed = userService.remove(removeId);
-        if (removed) {
-          IO.println("User removed successfully.");
-        } else {
+        if (userService.getById(removeId) == null) {
           IO.println("User with ID " + removeId + " not found.");
+        } else if (removeWithConfirmation(
+            policy -> loanService.removeUser(removeId, policy), "Return their loans and remove the user anyway?")) {
+          IO.println("User removed successfully.");
         }
         break;
 
@@ -351,6 +404,9 @@ public class Library {
     boolean isAdmin = currentUser instanceof Administrator;
 
     IO.println("\n=== Manage Loans ===\n");
+    if (isAdmin) {
+      printOverdueNotices();
+    }
     IO.println("1. Loan a Book");
     IO.println("2. Return a Book");
 
@@ -375,10 +431,18 @@ public class Library {
         if (!isAdmin) {
           IO.println("Loaning for: " + currentUser.getUsername());
         }
-        String barcode = IO.readln("Enter Book Item Barcode: ");
+        List<String> barcodes = List.of(
+            IO.readln("Enter Book Item Barcode(s), separated by spaces or commas: ").trim().split("[\\s,]+"));
         try {
-          Loan loan = loanService.loanBook(userId, barcode);
-          IO.println("Book loaned successfully. Loan ID: " + loan.getId());
+          if (barcodes.size() == 1) {
+            Loan loan = loanService.loanBook(userId, barcodes.get(0));
+            IO.println("Book loaned successfully. Loan ID: " + loan.getId());
+          } else {
+            for (CheckoutResult result : loanService.loanBooks(userId, barcodes)) {
+              IO.println(result.barcode() + ": "
+                  + (result.lent() ? "loaned, Loan ID " + result.loan().getId() : result.error()));
+            }
+          }
         } catch (IllegalArgumentException e) {
           IO.println(e.getMessage());
         }
@@ -386,12 +450,13 @@ public class Library {
 
       case "2":
         IO.println("\n=== Return a Book ===\n");
-        String loanId = IO.readln("Enter Loan ID: ");
-        boolean returned = loanService.returnBook(loanId);
-        if (returned) {
+        String scanned = IO.readln("Enter Loan ID or Book Item Barcode(s), separated by spaces or commas: ").trim();
+        if (loanService.returnBook(scanned)) {
           IO.println("Book returned successfully.");
-        } else {
-          IO.println("Loan with ID " + loanId + " not found.");
+          break;
+        }
+        for (ReturnResult result : loanService.returnBooks(List.of(scanned.split("[\\s,]+")))) {
+          IO.println(result.barcode() + ": " + (result.returned() ? "returned" : result.error()));
         }
         break;
 
@@ -438,6 +503,129 @@ public class Library {
     }
   }
 
+  // --- Hold menu ---
+
+  public void manageHolds(User currentUser) {
+    boolean isAdmin = currentUser instanceof Administrator;
+    holdService.expireHolds();
+
+    IO.println("\n=== Manage Holds ===\n");
+    IO.println("1. Place a Hold");
+    IO.println("2. Cancel a Hold");
+
+    if (isAdmin) {
+      IO.println("3. List Holds by User");
+      IO.println("4. List Hold Queue for a Title");
+      IO.println("5. Back to Main Menu");
+    } else {
+      IO.println("3. My Holds");
+      IO.println("4. Back to Main Menu");
+    }
+
+    String option = IO.readln("Choose an option: ");
+
+    switch (option) {
+      case "1":
+        IO.println("\n=== Place a Hold ===\n");
+        String userId = isAdmin
+            ? IO.readln("Enter User ID: ")
+            : currentUser.getId();
+        String isbn = IO.readln("Enter ISBN of the book: ");
+        BookDefinition def = bookService.findByISBN(isbn);
+        if (def == null) {
+          IO.println("No book found with ISBN " + isbn + ".");
+          break;
+        }
+        try {
+          Hold hold = holdService.placeHold(userId, def.getId());
+          IO.println("Hold placed. Hold ID: " + hold.getId() + " | Status: "
+              + describeHold(hold));
+        } catch (IllegalArgumentException e) {
+          IO.println(e.getMessage());
+        }
+        break;
+
+      case "2":
+        IO.println("\n=== Cancel a Hold ===\n");
+        String holdId = IO.readln("Enter Hold ID: ");
+        Hold toCancel = holdService.getById(holdId);
+        if (toCancel == null || (!isAdmin && !toCancel.getUserId().equals(currentUser.getId()))) {
+          IO.println("Hold with ID " + holdId + " not found.");
+        } else if (holdService.cancelHold(holdId)) {
+          IO.println("Hold cancelled.");
+        } else {
+          IO.println("The hold already ended.");
+        }
+        break;
+
+      case "3":
+        if (isAdmin) {
+          IO.println("\n=== Holds by User ===\n");
+          printHolds(holdService.getByUserId(IO.readln("Enter User ID: ")));
+        } else {
+          IO.println("\n=== My Holds ===\n");
+          printHolds(holdService.getByUserId(currentUser.getId()));
+        }
+        break;
+
+      case "4":
+        if (isAdmin) {
+          IO.println("\n=== Hold Queue for a Title ===\n");
+          String queueIsbn = IO.readln("Enter ISBN of the book: ");
+          BookDefinition queued = bookService.findByISBN(queueIsbn);
+          if (queued == null) {
+            IO.println("No book found with ISBN " + queueIsbn + ".");
+            break;
+          }
+          printHolds(holdService.getQueue(queued.getId()));
+        } else {
+          IO.println("\nReturning to Main Menu.");
+        }
+        break;
+
+      case "5":
+        if (isAdmin) {
+          IO.println("\nReturning to Main Menu.");
+        } else {
+          IO.println("\nInvalid option.");
+        }
+        break;
+
+      default:
+        IO.println("\nInvalid option.");
+        break;
+    }
+  }
+
+  /**
+   * Prints holds with their title and where each stands: its place in line,
+   * or the copy set aside and the pickup deadline.
+   */
+  private void printHolds(List<Hold> holds) {
+    if (holds.isEmpty()) {
+      IO.println("No holds found.");
+      return;
+    }
+    for (Hold hold : holds) {
+      BookDefinition def = bookService.findDefinitionById(hold.getBookDefId());
+      IO.println("Hold ID : " + hold.getId());
+      IO.println("User ID : " + hold.getUserId());
+      IO.println("Title   : " + (def != null ? def.getTitle() : "(unknown)"));
+      IO.println("Status  : " + describeHold(hold));
+      IO.println("-----------------------");
+    }
+  }
+
+  private String describeHold(Hold hold) {
+    if (hold.isReady()) {
+      BookItem item = bookService.findById(hold.getBookItemId());
+      return "ready for pickup, copy " + (item != null ? item.getBarcode() : "(unknown)") + " until "
+          + hold.getExpiresAt();
+    }
+    int position = holdService.getQueue(hold.getBookDefId()).indexOf(hold) + 1;
+    return position > 0 ? "waiting, #" + position + " in line" : "waiting";
+  }
+
   // --- Permissions / Roles menus (stubs for future expansion) ---
 
   public void managePermissions() {
@@ -454,8 +642,9 @@ public class Library {
 
   /**
    * Interactive book-browsing menu available to all authenticated users.
-   * Allows searching by title, author, or ISBN and viewing all copies with
-   * their barcodes and availability status.
+   * Allows searching by title, author, or ISBN and listing the titles with an
+   * available copy. Listings show each title's availability from its status
+   * counts; an ISBN search also lists every copy with its barcode and status.
    */
   public void browseBooks() {
     IO.println("\n=== Browse Books ===\n");
@@ -463,7 +652,8 @@ public class Library {
     IO.println("2. Search by Author");
     IO.println("3. Search by ISBN");
     IO.println("4. List All Books");
-    IO.println("5. Back to Main Menu");
+    IO.println("5. List Available Books");
+    IO.println("6. Back to Main Menu");
     String option = IO.readln("Choose an option: ");
 
     switch (option) {
@@ -475,7 +665,7 @@ public class Library {
         } else {
           IO.println("\nFound " + results.size() + " result(s):\n");
           for (BookDefinition def : results) {
-            printBookWithCopies(def);
+            printBookSummary(def);
           }
         }
         break;
@@ -489,7 +679,7 @@ public class Library {
         } else {
           IO.println("\nFound " + results.size() + " result(s):\n");
           for (BookDefinition def : results) {
-            printBookWithCopies(def);
+            printBookSummary(def);
           }
         }
         break;
@@ -513,45 +703,116 @@ public class Library {
         } else {
           IO.println("\n" + allDefs.size() + " book title(s) in the library:\n");
           for (BookDefinition def : allDefs) {
-            printBookWithCopies(def);
+            printBookSummary(def);
           }
         }
         break;
       }
 
-      case "5":
+      case "5": {
+        List<BookDefinition> availableDefs = bookService.getAvailableTitles();
+        if (availableDefs.isEmpty()) {
+          IO.println("No books are available right now.");
+        } else {
+          IO.println("\n" + availableDefs.size() + " book title(s) with available copies:\n");
+          for (BookDefinition def : availableDefs) {
+            printBookSummary(def);
+          }
+        }
+        break;
+      }
+
+      case "6":
         IO.println("\nReturning to Main Menu.");
         break;
 
       default:
-        IO.println("\nInvalid option. Please select a valid option (1-5).");
+        IO.println("\nInvalid option. Please select a valid option (1-6).");
         break;
     }
   }
 
   // --- Helpers ---
 
+  /**
+   * Runs a delete under {@link DeletePolicy#RESTRICT}; if loans or copies
+   * block it, shows why and repeats it under {@link DeletePolicy#CASCADE} once
+   * the admin confirms.
+   *
+   * @return true if the record was removed
+   */
+  private boolean removeWithConfirmation(Predicate<DeletePolicy> delete, String question) {
+    try {
+      return delete.test(DeletePolicy.RESTRICT);
+    } catch (IllegalArgumentException blocked) {
+      IO.println(blocked.getMessage());
+      if (!IO.readln(question + " (y/n): ").trim().equalsIgnoreCase("y")) {
+        IO.println("Nothing was removed.");
+        return false;
+      }
+      return delete.test(DeletePolicy.CASCADE);
+    }
+  }
+
+  /**
+   * Prints a book definition and how many of its copies are in each status.
+   * The counts are kept per title, so this does not visit the copies.
+   */
+  private void printBookSummary(BookDefinition def) {
+    printBookDetails(def);
+    IO.println("-----------------------");
+  }
+
   /**
    * Prints a book definition together with all its physical copies, their
    * barcodes and current availability status.
    */
   private void printBookWithCopies(BookDefinition def) {
+    printBookDetails(def);
+    for (BookItem item : bookService.getAllItemsForDefinition(def.getId())) {
+      IO.println("  Barcode: " + item.getBarcode() + "  |  Status: " + item.getStatus());
+    }
+    IO.println("-----------------------");
+  }
+
+  private void printBookDetails(BookDefinition def) {
     IO.println("Title     : " + def.getTitle());
     IO.println("Author    : " + def.getAuthor());
     IO.println("ISBN      : " + def.getIsbn());
     IO.println("Publisher : " + def.getPublisher());
     IO.println("ID        : " + def.getId());
 
-    List<BookItem> copies = bookService.getAllItemsForDefinition(def.getId());
-    if (copies.isEmpty()) {
-      IO.println("Copies    : none");
-    } else {
-      IO.println("Copies (" + copies.size() + "):");
-      for (BookItem item : copies) {
-        IO.println("  Barcode: " + item.getBarcode() + "  |  Status: " + item.getStatus());
+    // e.g. "Copies    : 3 (2 available, 1 borrowed)"
+    int total = 0;
+    StringJoiner byStatus = new StringJoiner(", ", " (", ")");
+    for (Map.Entry<Status, Integer> count : bookService.getStatusCounts(def.getId()).entrySet()) {
+      if (count.getValue() > 0) {
+        total += count.getValue();
+        byStatus.add(count.getValue() + " " + count.getKey().name().toLowerCase(Locale.ROOT));
       }
     }
-    IO.println("-----------------------");
+    IO.println("Copies    : " + (total == 0 ? "none" : total + byStatus.toString()));
+  }
+
+  /**
+   * Prints the loans that fell overdue since the last call and are still out.
+   */
+  private void printOverdueNotices() {
+    List<Loan> fresh = new ArrayList<>();
+    for (Loan loan = overdueNotices.poll(); loan != null; loan = overdueNotices.poll()) {
+      Loan active = loanService.getByBookItemId(loan.getBookId());
+      if (active != null && active.getId().equals(loan.getId())) {
+        fresh.add(loan);
+      }
+    }
+    if (fresh.isEmpty()) {
+      return;
+    }
+    IO.println(fresh.size() + " loan(s) fell overdue since the last check:");
+    for (Loan loan : fresh) {
+      IO.println("  Loan " + loan.getId() + " (user " + loan.getUserId() + ") was due " + loan.getDueDate());
+    }
+    IO.println("");
   }
 
   private void printLoans(List<Loan> loans) {
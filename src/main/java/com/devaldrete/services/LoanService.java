@@ -1,15 +1,30 @@
 package com.devaldrete.services;
 
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
 import com.devaldrete.domain.Loan;
 import com.devaldrete.domain.Status;
 import com.devaldrete.domain.User;
 import com.devaldrete.repositories.LoanRepository;
+import com.devaldrete.repositories.RepositoryListener;
 
 public class LoanService {
 
@@ -19,60 +34,431 @@ public class LoanService {
   private final LoanRepository loanRepository;
   private final UserService userService;
   private final BookService bookService;
+  private final HoldService holdService;
+  private final Clock clock;
+  private final DeadlineScheduler scheduler;
+  private final Map<String, DeadlineScheduler.Deadline> dueDates = new ConcurrentHashMap<>();
+  private final List<Consumer<Loan>> overdueListeners = new CopyOnWriteArrayList<>();
+  private volatile WriteBatcher writeBatcher = WriteBatcher.NONE;
 
   public LoanService(UserService userService, BookService bookService) {
-    this.loanRepository = new LoanRepository();
+    this(userService, bookService, Clock.systemUTC());
+  }
+
+  /**
+   * @param clock source of "now" for loan dates and overdue checks; tests pass
+   *              a controllable clock to move time deterministically
+   */
+  public LoanService(UserService userService, BookService bookService, Clock clock) {
+    this(userService, bookService, new HoldService(userService, bookService, clock), clock);
+  }
+
+  /**
+   * @param holdService the holds that returned copies are handed to and that
+   *                    reserved copies are borrowed against; its scheduler also
+   *                    tracks loan due dates
+   */
+  public LoanService(UserService userService, BookService bookService, HoldService holdService, Clock clock) {
+    this.clock = clock;
+    this.loanRepository = new LoanRepository(clock);
     this.userService = userService;
     this.bookService = bookService;
+    this.holdService = holdService;
+    this.scheduler = holdService.scheduler();
+    // Runs under the loan's lock, so the changes of one loan arrive in order
+    loanRepository.addListener(new RepositoryListener<>() {
+      @Override
+      public void saved(Loan loan) {
+        scheduleDueDate(loan);
+      }
+
+      @Override
+      public void updated(Loan loan) {
+        scheduleDueDate(loan);
+      }
+
+      @Override
+      public void deleted(String id) {
+        DeadlineScheduler.Deadline deadline = dueDates.remove(id);
+        if (deadline != null) {
+          scheduler.cancel(deadline);
+        }
+      }
+    });
   }
 
+  /**
+   * Lends a copy to a user. Checkout is linearizable without a global lock:
+   * the copy is taken by atomically moving it from {@link Status#AVAILABLE} to
+   * {@link Status#BORROWED}, so of two concurrent checkouts of one copy only
+   * one proceeds, and the loan is then saved only if the user is still below
+   * {@link #MAX_LOANS_PER_USER}, checked and recorded in one atomic step per
+   * user. If that fails the copy is given back. Checkouts of different copies
+   * by different users do not contend.
+   *
+   * A copy {@link Status#RESERVED} for the user by a hold is taken the same
+   * way from RESERVED, and the hold ends.
+   *
+   * @throws IllegalArgumentException if the user or copy does not exist, the
+   *                                  copy is not available (or is reserved for
+   *                                  someone else), or the user has reached the
+   *                                  loan limit
+   */
   public Loan loanBook(String userId, String barcode) {
     User user = userService.getById(userId);
     if (user == null) {
       throw new IllegalArgumentException("User with ID " + userId + " not found.");
     }
 
-    List<Loan> active = loanRepository.findByUserId(userId);
-    if (active.size() >= MAX_LOANS_PER_USER) {
-      throw new IllegalArgumentException(
-          "User " + userId + " has reached the maximum of " + MAX_LOANS_PER_USER + " active loans.");
+    // Cheap early rejection; the authoritative check is made when saving
+    if (loanRepository.countByUserId(userId) >= MAX_LOANS_PER_USER) {
+      throw loanLimitReached(userId);
     }
 
     BookItem bookItem = bookService.findByBarcode(barcode);
     if (bookItem == null) {
       throw new IllegalArgumentException("Book item with barcode " + barcode + " not found.");
     }
+    return lend(userId, bookItem, barcode);
+  }
+
+  /**
+   * Lends several copies to one user in one call, as a self-service kiosk
+   * does with a stack of scanned books.
+   *
+   * The user is resolved once and every barcode is resolved through the
+   * barcode index before anything is lent. Barcodes that match no copy,
+   * repeat an earlier scan or name a copy that is not available are reported
+   * and skipped. The rest are validated
+   * together against the loan limit: if the user's active loans plus the batch
+   * would exceed {@link #MAX_LOANS_PER_USER}, nothing is lent. Otherwise each
+   * copy is lent as by {@link #loanBook}, so one that turns out to be
+   * unavailable is reported without affecting the others. The journal records
+   * of the whole batch are written to disk together.
+   *
+   * @return one result per scanned barcode, in scan order
+   * @throws IllegalArgumentException if the user does not exist or the batch
+   *                                  exceeds the loan limit
+   */
+  public List<CheckoutResult> loanBooks(String userId, List<String> barcodes) {
+    if (userService.getById(userId) == null) {
+      throw new IllegalArgumentException("User with ID " + userId + " not found.");
+    }
+
+    BookItem[] items = new BookItem[barcodes.size()];
+    String[] errors = new String[barcodes.size()];
+    Set<String> scanned = new HashSet<>();
+    int requested = 0;
+    for (int i = 0; i < items.length; i++) {
+      String barcode = barcodes.get(i);
+      BookItem item = barcode == null || barcode.isBlank() ? null : bookService.findByBarcode(barcode);
+      if (item == null) {
+        errors[i] = "Book item with barcode " + barcode + " not found.";
+      } else if (!scanned.add(item.getId())) {
+        errors[i] = "Book item with barcode " + barcode + " was already scanned.";
+      } else if (item.getStatus() != Status.AVAILABLE && !isReservedFor(userId, item)) {
+        errors[i] = "Book item with barcode " + barcode + " is not available (status: " + item.getStatus() + ").";
+      } else {
+        items[i] = item;
+        requested++;
+      }
+    }
 
-    if (bookItem.getStatus() != Status.AVAILABLE) {
+    int active = loanRepository.countByUserId(userId);
+    if (active + requested > MAX_LOANS_PER_USER) {
+      throw new IllegalArgumentException("User " + userId + " has " + active + " active loan(s); borrowing "
+          + requested + " more would exceed the maximum of " + MAX_LOANS_PER_USER + ".");
+    }
+
+    return writeBatcher.batch(() -> {
+      List<CheckoutResult> results = new ArrayList<>(items.length);
+      for (int i = 0; i < items.length; i++) {
+        String barcode = barcodes.get(i);
+        if (items[i] == null) {
+          results.add(new CheckoutResult(barcode, null, errors[i]));
+          continue;
+        }
+        try {
+          results.add(new CheckoutResult(barcode, lend(userId, items[i], barcode), null));
+        } catch (IllegalArgumentException e) {
+          results.add(new CheckoutResult(barcode, null, e.getMessage()));
+        }
+      }
+      return results;
+    });
+  }
+
+  /**
+   * Takes the copy and records the loan, giving the copy back if the loan
+   * cannot be saved; see {@link #loanBook}.
+   */
+  private Loan lend(String userId, BookItem bookItem, String barcode) {
+    Status from = Status.AVAILABLE;
+    Hold hold = null;
+    if (bookItem.getStatus() == Status.RESERVED) {
+      hold = holdService.claim(userId, bookItem);
+      from = Status.RESERVED;
+    }
+    if (!bookService.compareAndSetStatus(bookItem.getId(), from, Status.BORROWED)) {
+      if (hold != null) {
+        holdService.reinstate(hold);
+      }
       throw new IllegalArgumentException(
           "Book item with barcode " + barcode + " is not available (status: " + bookItem.getStatus() + ").");
     }
 
-    Instant now = Instant.now();
+    Instant now = clock.instant();
     Loan loan = new Loan(UUID.randomUUID().toString(), userId, bookItem.getId(), now,
         now.plus(LOAN_PERIOD_DAYS, ChronoUnit.DAYS));
 
-    bookItem.setStatus(Status.BORROWED);
-    bookService.updateBookItem(bookItem);
-    loanRepository.save(loan);
-
+    boolean saved;
+    try {
+      saved = loanRepository.saveIfBelowLimit(loan, MAX_LOANS_PER_USER);
+    } catch (RuntimeException e) {
+      giveBack(bookItem, from, hold);
+      throw e;
+    }
+    if (!saved) {
+      giveBack(bookItem, from, hold);
+      throw loanLimitReached(userId);
+    }
     return loan;
   }
 
+  /**
+   * Undoes taking a copy for a loan that could not be saved.
+   */
+  private void giveBack(BookItem bookItem, Status from, Hold hold) {
+    bookService.compareAndSetStatus(bookItem.getId(), Status.BORROWED, from);
+    if (hold != null) {
+      holdService.reinstate(hold);
+    }
+  }
+
+  private boolean isReservedFor(String userId, BookItem bookItem) {
+    Hold hold = bookItem.getStatus() == Status.RESERVED ? holdService.getReadyHold(bookItem.getId()) : null;
+    return hold != null && hold.getUserId().equals(userId);
+  }
+
+  /**
+   * Ends a loan and makes the copy available again, or sets it aside for the
+   * first hold on its title. The loan is removed first, atomically, so of two
+   * concurrent returns of one loan exactly one succeeds, and the copy is not
+   * offered for checkout while a loan still holds it.
+   *
+   * @return false if the loan does not exist (or was already returned)
+   */
   public boolean returnBook(String loanId) {
-    Loan loan = loanRepository.getById(loanId);
+    Loan loan = loanRepository.deleteIfExists(loanId);
     if (loan == null) {
       return false;
     }
+    release(loan);
+    return true;
+  }
+
+  /**
+   * Returns the copy with the given barcode, finding its loan through the
+   * book item index.
+   *
+   * @return the loan that was ended
+   * @throws IllegalArgumentException if no copy has the barcode or the copy is
+   *                                  not on loan
+   */
+  public Loan returnByBarcode(String barcode) {
+    ReturnResult result = returnScanned(barcode);
+    if (!result.returned()) {
+      throw new IllegalArgumentException(result.error());
+    }
+    return result.loan();
+  }
 
-    // Restore the book item's status to AVAILABLE
+  /**
+   * Returns a batch of scanned copies, as from a book drop, with the journal
+   * records of the whole batch written to disk together. Each barcode is
+   * handled as by {@link #returnByBarcode}; one that matches no copy, or a
+   * copy not on loan (including a repeated scan), is reported without
+   * affecting the others.
+   *
+   * @return one result per scanned barcode, in scan order
+   */
+  public List<ReturnResult> returnBooks(List<String> barcodes) {
+    return writeBatcher.batch(() -> {
+      List<ReturnResult> results = new ArrayList<>(barcodes.size());
+      for (String barcode : barcodes) {
+        results.add(returnScanned(barcode));
+      }
+      return results;
+    });
+  }
+
+  /**
+   * Returns copies from a stream of scans of any length, in batches of
+   * {@code batchSize} as by {@link #returnBooks(List)}, so each batch costs
+   * one journal write. Results are passed on in scan order as each batch
+   * completes.
+   *
+   * @return how many scans ended a loan
+   * @throws IllegalArgumentException if {@code batchSize} is less than 1
+   */
+  public int returnBooks(Stream<String> barcodes, int batchSize, Consumer<ReturnResult> results) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1");
+    }
+    int returned = 0;
+    List<String> batch = new ArrayList<>(batchSize);
+    Iterator<String> scans = barcodes.iterator();
+    while (scans.hasNext()) {
+      batch.add(scans.next());
+      if (batch.size() == batchSize || !scans.hasNext()) {
+        for (ReturnResult result : returnBooks(batch)) {
+          if (result.returned()) {
+            returned++;
+          }
+          results.accept(result);
+        }
+        batch.clear();
+      }
+    }
+    return returned;
+  }
+
+  private ReturnResult returnScanned(String barcode) {
+    BookItem bookItem = barcode == null ? null : bookService.findByBarcode(barcode);
+    if (bookItem == null) {
+      return new ReturnResult(barcode, null, "Book item with barcode " + barcode + " not found.");
+    }
+    Loan held = loanRepository.findByBookItemId(bookItem.getId());
+    // A concurrent return may end the loan between the lookup and the delete
+    Loan loan = held == null ? null : loanRepository.deleteIfExists(held.getId());
+    if (loan == null) {
+      return new ReturnResult(barcode, null, "Book item with barcode " + barcode + " is not on loan.");
+    }
+    release(loan);
+    return new ReturnResult(barcode, loan, null);
+  }
+
+  /**
+   * Hands the copy of an ended loan to the next hold on its title, or makes
+   * it available again.
+   */
+  private void release(Loan loan) {
     BookItem bookItem = bookService.findById(loan.getBookId());
     if (bookItem != null) {
-      bookItem.setStatus(Status.AVAILABLE);
-      bookService.updateBookItem(bookItem);
+      holdService.passOn(bookItem.getId(), bookItem.getStatus());
+    }
+  }
+
+  private void scheduleDueDate(Loan loan) {
+    String loanId = loan.getId();
+    DeadlineScheduler.Deadline previous = dueDates.put(loanId,
+        scheduler.schedule(loan.getDueDate(), () -> fallOverdue(loanId)));
+    if (previous != null) {
+      scheduler.cancel(previous);
+    }
+  }
+
+  /**
+   * Tells the overdue listeners about a loan whose due date the scheduler
+   * reports passed, unless it was returned or extended meanwhile.
+   */
+  private void fallOverdue(String loanId) {
+    Loan loan = loanRepository.getById(loanId);
+    if (loan == null || loan.getDueDate().isAfter(clock.instant())) {
+      return;
+    }
+    for (Consumer<Loan> listener : overdueListeners) {
+      listener.accept(loan);
+    }
+  }
+
+  private static IllegalArgumentException loanLimitReached(String userId) {
+    return new IllegalArgumentException(
+        "User " + userId + " has reached the maximum of " + MAX_LOANS_PER_USER + " active loans.");
+  }
+
+  // --- Deletes that keep loans consistent ---
+
+  /**
+   * Removes a user. The user's loans are found through the loan repository's
+   * user index, so the cost is proportional to them, not to all loans. The
+   * user's holds are cancelled.
+   *
+   * @param policy {@link DeletePolicy#CASCADE} returns the user's loans first
+   * @return false if no user has the given ID
+   * @throws IllegalArgumentException under {@link DeletePolicy#RESTRICT} if the
+   *                                  user has active loans
+   */
+  public boolean removeUser(String userId, DeletePolicy policy) {
+    if (userService.getById(userId) == null) {
+      return false;
+    }
+    List<Loan> loans = loanRepository.findByUserId(userId);
+    if (!loans.isEmpty()) {
+      if (policy == DeletePolicy.RESTRICT) {
+        throw new IllegalArgumentException("User " + userId + " has " + loans.size() + " active loan(s).");
+      }
+      for (Loan loan : loans) {
+        returnBook(loan.getId());
+      }
     }
+    holdService.cancelHoldsOf(userId);
+    return userService.remove(userId);
+  }
 
-    loanRepository.delete(loanId);
+  /**
+   * Removes a book item, looking up its loan through the book item index.
+   *
+   * @param policy {@link DeletePolicy#CASCADE} deletes the loan holding the
+   *               copy first
+   * @return false if no book item has the given barcode
+   * @throws IllegalArgumentException under {@link DeletePolicy#RESTRICT} if the
+   *                                  copy is on loan
+   */
+  public boolean removeBookItem(String barcode, DeletePolicy policy) {
+    BookItem item = bookService.findByBarcode(barcode);
+    if (item == null) {
+      return false;
+    }
+    Loan loan = loanRepository.findByBookItemId(item.getId());
+    if (loan != null) {
+      if (policy == DeletePolicy.RESTRICT) {
+        throw new IllegalArgumentException(
+            "Book item with barcode " + barcode + " is on loan (loan " + loan.getId() + ").");
+      }
+      loanRepository.deleteIfExists(loan.getId());
+    }
+    if (!bookService.removeBookItem(barcode)) {
+      return false;
+    }
+    holdService.copyRemoved(item);
+    return true;
+  }
+
+  /**
+   * Removes a book definition. Its copies are found through the book
+   * repository's definition index, and their loans through the book item
+   * index, so the cost is proportional to the copies.
+   *
+   * @param policy {@link DeletePolicy#CASCADE} deletes the copies and their
+   *               loans first
+   * @return false if no definition has the given ID
+   * @throws IllegalArgumentException under {@link DeletePolicy#RESTRICT} if the
+   *                                  definition has copies
+   */
+  public boolean removeBookDefinition(String definitionId, DeletePolicy policy) {
+    if (bookService.findDefinitionById(definitionId) == null) {
+      return false;
+    }
+    if (policy == DeletePolicy.CASCADE) {
+      for (BookItem item : bookService.getAllItemsForDefinition(definitionId)) {
+        removeBookItem(item.getBarcode(), DeletePolicy.CASCADE);
+      }
+    }
+    if (!bookService.removeBookDefinition(definitionId)) {
+      return false;
+    }
+    holdService.titleRemoved(definitionId);
     return true;
   }
 
@@ -80,23 +466,176 @@ public class LoanService {
     return loanRepository.getAll();
   }
 
+  /**
+   * The holds that reserved copies are lent against; persisted along with the
+   * loans.
+   */
+  HoldService holdService() {
+    return holdService;
+  }
+
   public List<Loan> getByUserId(String userId) {
     return loanRepository.findByUserId(userId);
   }
 
+  /**
+   * Returns the loan currently holding the given book item, or null if the
+   * copy is not on loan.
+   */
+  public Loan getByBookItemId(String bookItemId) {
+    return loanRepository.findByBookItemId(bookItemId);
+  }
+
   public List<Loan> getOverdue() {
     return loanRepository.findOverdue();
   }
 
+  public List<Loan> getOverdueAsOf(Instant asOf) {
+    return loanRepository.findOverdueAsOf(asOf);
+  }
+
+  /**
+   * Returns the loans that fall due within the next {@code days} days.
+   */
+  public List<Loan> getDueWithinDays(int days) {
+    return loanRepository.findDueWithin(Duration.ofDays(days));
+  }
+
+  public int countOverdue() {
+    return loanRepository.countOverdue();
+  }
+
   public int count() {
     return loanRepository.count();
   }
 
   /**
-   * Persists a fully-constructed Loan directly (used by PersistenceService
-   * when loading from disk; bypasses all business-logic guards).
+   * Returns the modification count of the loan store (used by
+   * PersistenceService to skip rewriting an unchanged file).
+   */
+  public long getModCount() {
+    return loanRepository.getModCount();
+  }
+
+  /**
+   * Runs {@code action} while writes to the loans wait (used by
+   * PersistenceService to copy a consistent snapshot).
+   */
+  <R> R whileWritesBlocked(Supplier<R> action) {
+    return loanRepository.whileWritesBlocked(action);
+  }
+
+  /**
+   * Loads fully-constructed loans in a single pass (used by PersistenceService
+   * when loading from disk; bypasses the loan limit and availability checks).
+   *
+   * Users and book items must already be loaded: every loan's user and book
+   * item references are probed against their hash indexes, so validation is
+   * linear in the number of loans.
+   *
+   * @throws IllegalArgumentException if a loan references a missing user or
+   *                                  book item, or the loans conflict; nothing
+   *                                  is loaded in that case
+   */
+  public void bulkLoad(Collection<Loan> loans) {
+    bulkLoad(loans, true);
+  }
+
+  /**
+   * Bulk-loads loans; without {@code checkReferences}, references to users and
+   * book items are left for {@link #verifyReferences()}, so a journal replayed
+   * afterwards can still supply what they point to.
+   */
+  void bulkLoad(Collection<Loan> loans, boolean checkReferences) {
+    if (checkReferences) {
+      for (Loan loan : loans) {
+        String missing = missingReference(loan);
+        if (missing != null) {
+          throw new IllegalArgumentException(missing);
+        }
+      }
+    }
+    loanRepository.bulkLoad(loans);
+    // Bulk loads are not reported to listeners
+    for (Loan loan : loans) {
+      scheduleDueDate(loan);
+    }
+  }
+
+  /**
+   * Checks that every loan references an existing user and book item.
+   *
+   * @throws IllegalStateException naming the first loan that does not
+   */
+  void verifyReferences() {
+    for (Loan loan : loanRepository.getAll()) {
+      String missing = missingReference(loan);
+      if (missing != null) {
+        throw new IllegalStateException(missing);
+      }
+    }
+  }
+
+  private String missingReference(Loan loan) {
+    if (userService.getById(loan.getUserId()) == null) {
+      return "Loan " + loan.getId() + " references missing user " + loan.getUserId();
+    }
+    if (bookService.findById(loan.getBookId()) == null) {
+      return "Loan " + loan.getId() + " references missing book item " + loan.getBookId();
+    }
+    return null;
+  }
+
+  /**
+   * Applies a journaled loan record during replay: the loan is inserted or
+   * replaced as-is, bypassing the loan limit and availability checks. Another
+   * loan still holding the same book item is dropped first; that only happens
+   * when the snapshot is newer than the record, and a later record in the
+   * journal restores it.
+   */
+  public void restore(Loan loan) {
+    Loan holder = loanRepository.findByBookItemId(loan.getBookId());
+    if (holder != null && !holder.getId().equals(loan.getId())) {
+      loanRepository.delete(holder.getId());
+    }
+    if (loanRepository.getById(loan.getId()) != null) {
+      loanRepository.update(loan);
+    } else {
+      loanRepository.save(loan);
+    }
+  }
+
+  /**
+   * Removes a loan during journal replay. Unknown IDs are ignored.
+   */
+  public void purge(String id) {
+    if (loanRepository.getById(id) != null) {
+      loanRepository.delete(id);
+    }
+  }
+
+  /**
+   * Registers a listener for every subsequent loan mutation (used by
+   * PersistenceService to journal changes).
+   */
+  public void addListener(RepositoryListener<Loan> listener) {
+    loanRepository.addListener(listener);
+  }
+
+  /**
+   * Registers a callback for each active loan that passes its due date. It
+   * runs on the scheduler's thread once per loan, or on the first tick for
+   * loans that were loaded already overdue.
+   */
+  public void addOverdueListener(Consumer<Loan> listener) {
+    overdueListeners.add(listener);
+  }
+
+  /**
+   * Sets how batch operations group their changes for persistence (used by
+   * PersistenceService, so that a batch is journaled with one write).
    */
-  public void saveLoan(Loan loan) {
-    loanRepository.save(loan);
+  public void setWriteBatcher(WriteBatcher writeBatcher) {
+    this.writeBatcher = writeBatcher == null ? WriteBatcher.NONE : writeBatcher;
   }
 }
@@ -0,0 +1,130 @@
+package com.devaldrete.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves a file as a sequence of read-only memory-mapped windows, so snapshot
+ * records are decoded straight from the page cache. A single mapping is
+ * limited to 2 GiB, hence the windows.
+ */
+final class MappedFile implements ByteSource {
+
+  static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long size;
+  private final long windowSize;
+  private long offset;
+
+  MappedFile(FileChannel channel, long windowSize) throws IOException {
+    if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Window size must be between 1 and " + Integer.MAX_VALUE);
+    }
+    this.channel = channel;
+    this.size = channel.size();
+    this.windowSize = windowSize;
+  }
+
+  static MappedFile open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new MappedFile(channel, DEFAULT_WINDOW_SIZE);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  long size() {
+    return size;
+  }
+
+  @Override
+  public ByteBuffer next() throws IOException {
+    if (offset >= size) {
+      return null;
+    }
+    ByteBuffer window = map(offset, size);
+    offset += window.remaining();
+    return window;
+  }
+
+  /**
+   * Splits the file into at most {@code count} consecutive ranges of roughly
+   * equal size, each ending just after a newline or at the end of the file,
+   * and returns a source for each. The sources can be read concurrently and
+   * stay valid until this file is closed.
+   */
+  List<ByteSource> splitAtLines(int count) throws IOException {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1");
+    }
+    List<ByteSource> ranges = new ArrayList<>(count);
+    long start = 0;
+    for (int i = 1; i <= count && start < size; i++) {
+      long end = i == count ? size : lineStartAtOrAfter(Math.max(start, size / count * i));
+      if (end > start) {
+        ranges.add(range(start, end));
+        start = end;
+      }
+    }
+    return ranges;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private ByteSource range(long from, long to) {
+    return new ByteSource() {
+      private long position = from;
+
+      @Override
+      public ByteBuffer next() throws IOException {
+        if (position >= to) {
+          return null;
+        }
+        ByteBuffer window = map(position, to);
+        position += window.remaining();
+        return window;
+      }
+
+      @Override
+      public void close() {
+        // The channel belongs to the file
+      }
+    };
+  }
+
+  /** Maps one window starting at {@code from}, ending at {@code to} at the latest. */
+  private ByteBuffer map(long from, long to) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(windowSize, to - from));
+  }
+
+  /** @return the offset just past the first newline at or after {@code from}, or the file size */
+  private long lineStartAtOrAfter(long from) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    long position = from;
+    while (position < size) {
+      buffer.clear();
+      int n = channel.read(buffer, position);
+      if (n < 0) {
+        break;
+      }
+      for (int i = 0; i < n; i++) {
+        if (buffer.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += n;
+    }
+    return size;
+  }
+}
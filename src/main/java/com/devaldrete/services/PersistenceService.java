@@ -1,130 +1,585 @@
 package com.devaldrete.services;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.devaldrete.domain.Administrator;
 import com.devaldrete.domain.BookDefinition;
 import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
 import com.devaldrete.domain.Loan;
 import com.devaldrete.domain.Member;
 import com.devaldrete.domain.Status;
 import com.devaldrete.domain.User;
+import com.devaldrete.repositories.RepositoryListener;
 
 /**
- * Handles persistence of library data to JSON files stored in the {@code data/}
+ * Handles persistence of library data to files stored in the {@code data/}
  * directory (relative to the working directory).
  *
- * <p>Three files are maintained:
+ * <p>Four files are maintained, with the extension of the configured
+ * {@link SnapshotFormat} ({@code .json}, {@code .ndjson} or {@code .bin}):
  * <ul>
  *   <li>{@code data/users.json}         — users (administrators and members)
  *   <li>{@code data/books.json}         — book definitions and book items
  *   <li>{@code data/loans.json}         — active loans
+ *   <li>{@code data/holds.json}         — holds, waiting and ready
  * </ul>
  *
- * <p>No external libraries are used; JSON is produced and consumed with simple
- * string manipulation so that {@code pom.xml} stays unchanged.
+ * <p>Together they form a snapshot. Changes made after it are appended to
+ * {@code data/journal.log} (see {@link #openJournal}) and re-applied on
+ * startup by {@link #replayJournal}; checkpoints replace the journal with a new
+ * snapshot in the background.
+ *
+ * <p>No external libraries are used so that {@code pom.xml} stays unchanged.
  */
-public class PersistenceService {
+public class PersistenceService implements AutoCloseable {
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+  // NDJSON files are not split into chunks smaller than this
+  private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+
+  // The first two bytes of every gzip member (RFC 1952)
+  private static final int GZIP_MAGIC = 0x1F8B;
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+  private final Path dataDir;
+  private final SnapshotFormat format;
+  private final int compressionLevel;
+  private final Path journalFile;
+
+  private Journal journal;
+  private Autosaver autosaver;
+  private UserService journaledUsers;
+  private BookService journaledBooks;
+  private LoanService journaledLoans;
+  // Bytes of the journal holding complete records, as found by the last replay
+  private long journalValidLength = Long.MAX_VALUE;
+
+  /** How many {@link #batch} calls the current thread is inside. */
+  private final ThreadLocal<int[]> batchDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+  // Sequence number the next sealed journal segment gets
+  private long nextSegment = 1;
+  private CompletableFuture<Void> checkpointInFlight = CompletableFuture.completedFuture(null);
+
+  // The state each snapshot file holds, as last written or loaded; null if unknown
+  private volatile Version usersOnDisk;
+  private volatile Version booksOnDisk;
+  private volatile Version loansOnDisk;
+  private volatile Version holdsOnDisk;
+  private volatile long segmentsDeletedThrough;
+
+  /** Serializes one entity as a JSON object. */
+  @FunctionalInterface
+  private interface RecordWriter<T> {
+    void write(JsonWriter json, T entity) throws IOException;
+  }
+
+  /** Deserializes one entity from a JSON object. */
+  @FunctionalInterface
+  private interface RecordReader<T> {
+    T read(JsonReader reader) throws IOException;
+  }
+
+  /** A journal record as read back: {@code data} is null for deletes. */
+  private record JournalRecord(String op, String type, String id, Object data) {
+  }
+
+  /** Streams the contents of one data file. */
+  @FunctionalInterface
+  private interface FileBody {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * The entities that go into one snapshot. A null list means the file already
+   * holds that state and is not rewritten; each version is recorded as on disk
+   * once its file is written. The journal segments through
+   * {@code coveredSegment} are dropped once the snapshot is written.
+   */
+  private record Snapshot(List<User> users, List<BookDefinition> definitions, List<BookItem> items,
+      List<Loan> loans, List<Hold> holds, Version usersVersion, Version booksVersion, Version loansVersion,
+      Version holdsVersion, long coveredSegment) {
+  }
+
+  /** A state of one service: the service and its modification count. */
+  private record Version(Object service, long modCount) {
+  }
+
+  /**
+   * Uses the {@code data/} directory relative to the working directory.
+   */
+  public PersistenceService() {
+    this(Paths.get("data"));
+  }
+
+  /**
+   * Writes JSON snapshots.
+   *
+   * @param dataDir directory holding the data files (created on first save)
+   */
+  public PersistenceService(Path dataDir) {
+    this(dataDir, SnapshotFormat.JSON);
+  }
+
+  /**
+   * @param dataDir directory holding the data files (created on first save)
+   * @param format  encoding of the snapshot files written by saves
+   */
+  public PersistenceService(Path dataDir, SnapshotFormat format) {
+    this(dataDir, format, 0);
+  }
 
-  private static final Path DATA_DIR = Paths.get("data");
-  private static final Path USERS_FILE = DATA_DIR.resolve("users.json");
-  private static final Path BOOKS_FILE = DATA_DIR.resolve("books.json");
-  private static final Path LOANS_FILE = DATA_DIR.resolve("loans.json");
+  /**
+   * Higher levels trade save time for smaller files; level 1 already removes
+   * most of the redundancy of JSON, which pays off when the data directory is
+   * on a slow or network-attached volume.
+   *
+   * @param dataDir          directory holding the data files (created on first
+   *                         save)
+   * @param format           encoding of the snapshot files written by saves
+   * @param compressionLevel 0 to write plain files, or 1 (fastest) to 9
+   *                         (smallest) to gzip them at that deflate level
+   */
+  public PersistenceService(Path dataDir, SnapshotFormat format, int compressionLevel) {
+    if (compressionLevel < 0 || compressionLevel > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+    }
+    this.dataDir = dataDir;
+    this.format = format;
+    this.compressionLevel = compressionLevel;
+    this.journalFile = dataDir.resolve("journal.log");
+  }
+
+  /**
+   * Writes the current state as JSON snapshot files into {@code directory},
+   * independently of this service's own data files and journal.
+   */
+  public static void exportJson(Path directory, UserService userService, BookService bookService,
+      LoanService loanService) {
+    new PersistenceService(directory, SnapshotFormat.JSON).saveAll(userService, bookService, loanService);
+  }
+
+  /**
+   * Loads JSON snapshot files from {@code directory} into the given services,
+   * as {@link #loadAll} does, and checks the references between them.
+   *
+   * @throws IllegalStateException if a loan or hold references a missing user
+   *                               or book
+   */
+  public static void importJson(Path directory, UserService userService, BookService bookService,
+      LoanService loanService) {
+    new PersistenceService(directory, SnapshotFormat.JSON).loadAll(userService, bookService, loanService);
+    verifyReferences(loanService);
+  }
+
+  /**
+   * @return true if a snapshot exists in the data directory, in either format
+   */
+  public boolean hasSnapshot() {
+    for (SnapshotFormat candidate : SnapshotFormat.values()) {
+      if (snapshotExists(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
   // -------------------------------------------------------------------------
   // Save
   // -------------------------------------------------------------------------
 
   /**
-   * Persists the full state of all three service data stores to disk.
+   * Persists the full state of the service data stores to disk, writing the
+   * files concurrently. This is a synchronous checkpoint: it waits
+   * for any background checkpoint, and the journal records written so far are
+   * dropped once the snapshot is written.
+   *
+   * <p>A file is only rewritten if its service changed since this instance
+   * last wrote or loaded it (tracked through the services' modification
+   * counts), so saving after a read-only session does no disk I/O.
    */
-  public void saveAll(UserService userService, BookService bookService, LoanService loanService) {
-    ensureDataDir();
-    saveUsers(userService.getAll());
-    saveBooks(bookService.getAllDefinitions(), bookService.getAllItems());
-    saveLoans(loanService.getAll());
+  public synchronized void saveAll(UserService userService, BookService bookService, LoanService loanService) {
+    awaitCheckpoint();
+    writeSnapshot(snapshotOf(userService, bookService, loanService, false));
+  }
+
+  /**
+   * Starts a checkpoint of the journaled services in the background. Returns
+   * the checkpoint already running, if any.
+   *
+   * <p>The calling thread only seals the current journal segment and copies the
+   * entities of the changed services (an in-memory pass). Writing and forcing
+   * the snapshot files, and then deleting the segments they cover, happen on a
+   * virtual thread while further changes go to the new journal segment.
+   * Writes wait while the entities are copied, so the snapshot is exactly the
+   * state the sealed segments end with. If the checkpoint fails, the segments
+   * stay in place and the next checkpoint covers them too.
+   *
+   * @return completes when the snapshot is on disk
+   * @throws IllegalStateException if no journal is open
+   */
+  public synchronized CompletableFuture<Void> checkpoint() {
+    if (journal == null) {
+      throw new IllegalStateException("Journal is not open");
+    }
+    if (!checkpointInFlight.isDone()) {
+      return checkpointInFlight;
+    }
+
+    Snapshot snapshot = snapshotOf(journaledUsers, journaledBooks, journaledLoans, true);
+
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    checkpointInFlight = done;
+    Thread.ofVirtual().name("checkpoint").start(() -> {
+      try {
+        writeSnapshot(snapshot);
+        done.complete(null);
+      } catch (RuntimeException e) {
+        done.completeExceptionally(e);
+      }
+    });
+    return done;
+  }
+
+  /**
+   * Waits for the background checkpoint, if one is running.
+   *
+   * @throws RuntimeException if that checkpoint failed
+   */
+  public void awaitCheckpoint() {
+    CompletableFuture<Void> inFlight;
+    synchronized (this) {
+      inFlight = checkpointInFlight;
+    }
+    try {
+      inFlight.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    }
+  }
+
+  /**
+   * Writes the changed files concurrently, then drops the journal segments the
+   * snapshot covers. If any file fails, the segments are kept.
+   */
+  private void writeSnapshot(Snapshot snapshot) {
+    List<Runnable> writes = new ArrayList<>();
+    if (snapshot.users() != null) {
+      writes.add(() -> {
+        saveUsers(snapshot.users());
+        usersOnDisk = snapshot.usersVersion();
+      });
+    }
+    if (snapshot.definitions() != null) {
+      writes.add(() -> {
+        saveBooks(snapshot.definitions(), snapshot.items());
+        booksOnDisk = snapshot.booksVersion();
+      });
+    }
+    if (snapshot.loans() != null) {
+      writes.add(() -> {
+        saveLoans(snapshot.loans());
+        loansOnDisk = snapshot.loansVersion();
+      });
+    }
+    if (snapshot.holds() != null) {
+      writes.add(() -> {
+        saveHolds(snapshot.holds());
+        holdsOnDisk = snapshot.holdsVersion();
+      });
+    }
+
+    if (!writes.isEmpty()) {
+      ensureDataDir();
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        List<Future<?>> running = new ArrayList<>();
+        for (Runnable write : writes) {
+          running.add(executor.submit(write));
+        }
+        for (Future<?> write : running) {
+          await(write, executor);
+        }
+      }
+    }
+    if (snapshot.coveredSegment() > segmentsDeletedThrough) {
+      deleteSegmentsThrough(snapshot.coveredSegment());
+      segmentsDeletedThrough = snapshot.coveredSegment();
+    }
+  }
+
+  /**
+   * Waits for one of the tasks running on {@code executor}. If it failed, the
+   * remaining tasks are interrupted and its exception is rethrown.
+   */
+  private static <T> T await(Future<T> task, ExecutorService executor) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException runtime) {
+        throw runtime;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new RuntimeException(cause);
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for data files", e);
+    }
+  }
+
+  /**
+   * Seals the journal and collects the state of the services that changed
+   * since their files were last written. With {@code copy}, every entity is
+   * copied so the snapshot can be written while the live ones keep changing.
+   *
+   * <p>Writes to all four repositories wait meanwhile, so the snapshot is a
+   * consistent cut: a change is stored, counted and journaled under its
+   * repository's lock, so the sealed segment, the versions and the entities
+   * all describe the same state, and no file refers to an entity another file
+   * is missing. The locks are always taken in the same order, and writers
+   * never hold two repositories' locks at once.
+   */
+  private Snapshot snapshotOf(UserService userService, BookService bookService, LoanService loanService,
+      boolean copy) {
+    HoldService holdService = loanService.holdService();
+    return userService.whileWritesBlocked(() -> bookService.whileWritesBlocked(
+        () -> loanService.whileWritesBlocked(() -> holdService.whileWritesBlocked(
+            () -> collect(userService, bookService, loanService, holdService, copy)))));
+  }
+
+  private Snapshot collect(UserService userService, BookService bookService, LoanService loanService,
+      HoldService holdService, boolean copy) {
+    long covered = sealJournal();
+    Version usersVersion = new Version(userService, userService.getModCount());
+    Version booksVersion = new Version(bookService, bookService.getModCount());
+    Version loansVersion = new Version(loanService, loanService.getModCount());
+    Version holdsVersion = new Version(holdService, holdService.getModCount());
+
+    List<User> users = null;
+    if (!usersVersion.equals(usersOnDisk)) {
+      users = userService.getAll();
+      if (copy) {
+        users.replaceAll(u -> u instanceof Administrator
+            ? new Administrator(u.getId(), u.getUsername(), u.getEmail(), u.getPassword())
+            : new Member(u.getId(), u.getUsername(), u.getEmail(), u.getPassword()));
+      }
+    }
+    List<BookDefinition> definitions = null;
+    List<BookItem> items = null;
+    if (!booksVersion.equals(booksOnDisk)) {
+      definitions = bookService.getAllDefinitions();
+      items = bookService.getAllItems();
+      if (copy) {
+        definitions.replaceAll(d -> new BookDefinition(d.getId(), d.getTitle(), d.getAuthor(), d.getIsbn(),
+            d.getPublisher()));
+        items.replaceAll(i -> new BookItem(i.getId(), i.getBarcode(), i.getBookDefId(), i.getStatus(),
+            i.getAcquisitionDate()));
+      }
+    }
+    List<Loan> loans = null;
+    if (!loansVersion.equals(loansOnDisk)) {
+      loans = loanService.getAll();
+      if (copy) {
+        loans.replaceAll(l -> new Loan(l.getId(), l.getUserId(), l.getBookId(), l.getCreatedAt(), l.getDueDate()));
+      }
+    }
+    List<Hold> holds = null;
+    if (!holdsVersion.equals(holdsOnDisk)) {
+      holds = holdService.getAll();
+      if (copy) {
+        holds.replaceAll(h -> new Hold(h.getId(), h.getUserId(), h.getBookDefId(), h.getPlacedAt(),
+            h.getBookItemId(), h.getExpiresAt()));
+      }
+    }
+    return new Snapshot(users, definitions, items, loans, holds, usersVersion, booksVersion, loansVersion,
+        holdsVersion, covered);
   }
 
   private void saveUsers(List<User> users) {
-    StringBuilder sb = new StringBuilder("[\n");
-    for (int i = 0; i < users.size(); i++) {
-      User u = users.get(i);
-      sb.append("  {\n");
-      sb.append("    \"id\": ").append(jsonStr(u.getId())).append(",\n");
-      sb.append("    \"username\": ").append(jsonStr(u.getUsername())).append(",\n");
-      sb.append("    \"email\": ").append(jsonStr(u.getEmail())).append(",\n");
-      sb.append("    \"password\": ").append(jsonStr(u.getPassword())).append(",\n");
-      sb.append("    \"role\": ").append(jsonStr(u.getRole().name())).append("\n");
-      sb.append("  }");
-      if (i < users.size() - 1) sb.append(",");
-      sb.append("\n");
-    }
-    sb.append("]");
-    write(USERS_FILE, sb.toString());
+    Path target = snapshotFile("users", format);
+    if (format == SnapshotFormat.BINARY) {
+      writeAtomically(target, out -> BinarySnapshot.writeUsers(out, users));
+      return;
+    }
+    if (format == SnapshotFormat.NDJSON) {
+      writeLines(target, users.stream().map(user -> json -> writeUser(json, user)));
+      return;
+    }
+    writeJson(target, json -> {
+      json.beginArray();
+      for (User user : users) {
+        writeUser(json, user);
+      }
+      json.endArray();
+    });
   }
 
   private void saveBooks(List<BookDefinition> defs, List<BookItem> items) {
-    StringBuilder sb = new StringBuilder("{\n");
-
-    // definitions
-    sb.append("  \"definitions\": [\n");
-    for (int i = 0; i < defs.size(); i++) {
-      BookDefinition d = defs.get(i);
-      sb.append("    {\n");
-      sb.append("      \"id\": ").append(jsonStr(d.getId())).append(",\n");
-      sb.append("      \"title\": ").append(jsonStr(d.getTitle())).append(",\n");
-      sb.append("      \"author\": ").append(jsonStr(d.getAuthor())).append(",\n");
-      sb.append("      \"isbn\": ").append(jsonStr(d.getIsbn())).append(",\n");
-      sb.append("      \"publisher\": ").append(jsonStr(d.getPublisher())).append("\n");
-      sb.append("    }");
-      if (i < defs.size() - 1) sb.append(",");
-      sb.append("\n");
-    }
-    sb.append("  ],\n");
-
-    // items
-    sb.append("  \"items\": [\n");
-    for (int i = 0; i < items.size(); i++) {
-      BookItem item = items.get(i);
-      sb.append("    {\n");
-      sb.append("      \"id\": ").append(jsonStr(item.getId())).append(",\n");
-      sb.append("      \"barcode\": ").append(jsonStr(item.getBarcode())).append(",\n");
-      sb.append("      \"bookDefId\": ").append(jsonStr(item.getBookDefId())).append(",\n");
-      sb.append("      \"status\": ").append(jsonStr(item.getStatus().name())).append(",\n");
-      sb.append("      \"acquisitionDate\": ").append(jsonStr(item.getAcquisitionDate().toString())).append("\n");
-      sb.append("    }");
-      if (i < items.size() - 1) sb.append(",");
-      sb.append("\n");
-    }
-    sb.append("  ]\n");
-
-    sb.append("}");
-    write(BOOKS_FILE, sb.toString());
+    Path target = snapshotFile("books", format);
+    if (format == SnapshotFormat.BINARY) {
+      writeAtomically(target, out -> BinarySnapshot.writeBooks(out, defs, items));
+      return;
+    }
+    if (format == SnapshotFormat.NDJSON) {
+      writeLines(target, Stream.concat(
+          defs.stream().map(def -> json -> {
+            writeDefinition(json.beginObject().name("definition"), def);
+            json.endObject();
+          }),
+          items.stream().map(item -> json -> {
+            writeItem(json.beginObject().name("item"), item);
+            json.endObject();
+          })));
+      return;
+    }
+    writeJson(target, json -> {
+      json.beginObject();
+      json.name("definitions").beginArray();
+      for (BookDefinition def : defs) {
+        writeDefinition(json, def);
+      }
+      json.endArray();
+      json.name("items").beginArray();
+      for (BookItem item : items) {
+        writeItem(json, item);
+      }
+      json.endArray();
+      json.endObject();
+    });
   }
 
   private void saveLoans(List<Loan> loans) {
-    StringBuilder sb = new StringBuilder("[\n");
-    for (int i = 0; i < loans.size(); i++) {
-      Loan l = loans.get(i);
-      sb.append("  {\n");
-      sb.append("    \"id\": ").append(jsonStr(l.getId())).append(",\n");
-      sb.append("    \"userId\": ").append(jsonStr(l.getUserId())).append(",\n");
-      sb.append("    \"bookId\": ").append(jsonStr(l.getBookId())).append(",\n");
-      sb.append("    \"createdAt\": ").append(jsonStr(l.getCreatedAt().toString())).append(",\n");
-      sb.append("    \"dueDate\": ").append(jsonStr(l.getDueDate().toString())).append("\n");
-      sb.append("  }");
-      if (i < loans.size() - 1) sb.append(",");
-      sb.append("\n");
-    }
-    sb.append("]");
-    write(LOANS_FILE, sb.toString());
+    Path target = snapshotFile("loans", format);
+    if (format == SnapshotFormat.BINARY) {
+      writeAtomically(target, out -> BinarySnapshot.writeLoans(out, loans));
+      return;
+    }
+    if (format == SnapshotFormat.NDJSON) {
+      writeLines(target, loans.stream().map(loan -> json -> writeLoan(json, loan)));
+      return;
+    }
+    writeJson(target, json -> {
+      json.beginArray();
+      for (Loan loan : loans) {
+        writeLoan(json, loan);
+      }
+      json.endArray();
+    });
+  }
+
+  private void saveHolds(List<Hold> holds) {
+    Path target = snapshotFile("holds", format);
+    if (format == SnapshotFormat.BINARY) {
+      writeAtomically(target, out -> BinarySnapshot.writeHolds(out, holds));
+      return;
+    }
+    if (format == SnapshotFormat.NDJSON) {
+      writeLines(target, holds.stream().map(hold -> json -> writeHold(json, hold)));
+      return;
+    }
+    writeJson(target, json -> {
+      json.beginArray();
+      for (Hold hold : holds) {
+        writeHold(json, hold);
+      }
+      json.endArray();
+    });
+  }
+
+  // -------------------------------------------------------------------------
+  // Record serialization
+  // -------------------------------------------------------------------------
+
+  private void writeUser(JsonWriter json, User u) throws IOException {
+    json.beginObject()
+        .field("id", u.getId())
+        .field("username", u.getUsername())
+        .field("email", u.getEmail())
+        .field("password", u.getPassword())
+        .field("role", u.getRole().name())
+        .endObject();
+  }
+
+  private void writeDefinition(JsonWriter json, BookDefinition d) throws IOException {
+    json.beginObject()
+        .field("id", d.getId())
+        .field("title", d.getTitle())
+        .field("author", d.getAuthor())
+        .field("isbn", d.getIsbn())
+        .field("publisher", d.getPublisher())
+        .endObject();
+  }
+
+  private void writeItem(JsonWriter json, BookItem item) throws IOException {
+    json.beginObject()
+        .field("id", item.getId())
+        .field("barcode", item.getBarcode())
+        .field("bookDefId", item.getBookDefId())
+        .field("status", item.getStatus().name())
+        .field("acquisitionDate", item.getAcquisitionDate().toString())
+        .endObject();
+  }
+
+  private void writeLoan(JsonWriter json, Loan l) throws IOException {
+    json.beginObject()
+        .field("id", l.getId())
+        .field("userId", l.getUserId())
+        .field("bookId", l.getBookId())
+        .field("createdAt", l.getCreatedAt().toString())
+        .field("dueDate", l.getDueDate().toString())
+        .endObject();
+  }
+
+  private void writeHold(JsonWriter json, Hold h) throws IOException {
+    json.beginObject()
+        .field("id", h.getId())
+        .field("userId", h.getUserId())
+        .field("bookDefId", h.getBookDefId())
+        .field("placedAt", h.getPlacedAt().toString())
+        .field("bookItemId", h.getBookItemId())
+        .field("expiresAt", h.getExpiresAt() == null ? null : h.getExpiresAt().toString())
+        .endObject();
   }
 
   // -------------------------------------------------------------------------
@@ -134,213 +589,909 @@ public class PersistenceService {
   /**
    * Loads persisted data into the given services.
    * If any file is missing the corresponding store is left as-is (empty).
+   * Files in the configured format are read if there are any, otherwise those
+   * in the other format.
+   *
+   * <p>Each file is parsed into a list first and then handed to the service's
+   * bulk-load method, which validates it and builds storage and indexes in a
+   * single pass. The files are decoded concurrently on virtual threads, and
+   * users and books are installed as soon as they are decoded. Loans and holds
+   * are installed last. Their references to users and books are checked by
+   * {@link #replayJournal}, since the journal may still restore what they
+   * point to. If any file fails, the other tasks are interrupted and that
+   * failure is thrown.
+   *
+   * <p>The services are expected to be empty: after the load, files in the
+   * configured format count as holding their state, so {@link #saveAll} skips
+   * them until the services change.
    */
   public void loadAll(UserService userService, BookService bookService, LoanService loanService) {
-    if (Files.exists(USERS_FILE)) {
-      loadUsers(userService);
+    SnapshotFormat source = sourceFormat();
+    Path usersFile = snapshotFile("users", source);
+    Path booksFile = snapshotFile("books", source);
+    Path loansFile = snapshotFile("loans", source);
+    Path holdsFile = snapshotFile("holds", source);
+    HoldService holdService = loanService.holdService();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> installs = new ArrayList<>();
+      if (Files.exists(usersFile)) {
+        installs.add(executor.submit(() -> userService.bulkLoad(readUsers(usersFile, source))));
+      }
+      if (Files.exists(booksFile)) {
+        installs.add(executor.submit(() -> {
+          BinarySnapshot.Books books = readBooks(booksFile, source);
+          // Items are joined to their definitions inside the bulk load
+          bookService.bulkLoad(books.definitions(), books.items());
+        }));
+      }
+      Future<List<Loan>> loans = Files.exists(loansFile)
+          ? executor.submit(() -> readLoans(loansFile, source))
+          : null;
+      Future<List<Hold>> holds = Files.exists(holdsFile)
+          ? executor.submit(() -> readHolds(holdsFile, source))
+          : null;
+
+      for (Future<?> install : installs) {
+        await(install, executor);
+      }
+      if (loans != null) {
+        loanService.bulkLoad(await(loans, executor), false);
+      }
+      if (holds != null) {
+        holdService.bulkLoad(await(holds, executor), false);
+      }
+    }
+
+    // Files in the configured format now match the services they were loaded into
+    if (source == format) {
+      if (Files.exists(usersFile)) {
+        usersOnDisk = new Version(userService, userService.getModCount());
+      }
+      if (Files.exists(booksFile)) {
+        booksOnDisk = new Version(bookService, bookService.getModCount());
+      }
+      if (Files.exists(loansFile)) {
+        loansOnDisk = new Version(loanService, loanService.getModCount());
+      }
+      if (Files.exists(holdsFile)) {
+        holdsOnDisk = new Version(holdService, holdService.getModCount());
+      }
+    }
+  }
+
+  /**
+   * Decodes the snapshot files as they are, without loading them into services
+   * and so without the validation that comes with it: the result may hold
+   * broken references or duplicate keys, for {@link IntegrityChecker} to find.
+   * The files are chosen as by {@link #loadAll}, and decoded concurrently; a
+   * missing file yields empty lists. Journaled changes are not included.
+   */
+  public SnapshotContents readContents() {
+    SnapshotFormat source = sourceFormat();
+    Path usersFile = snapshotFile("users", source);
+    Path booksFile = snapshotFile("books", source);
+    Path loansFile = snapshotFile("loans", source);
+    Path holdsFile = snapshotFile("holds", source);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<List<User>> users = executor.submit(
+          () -> Files.exists(usersFile) ? readUsers(usersFile, source) : new ArrayList<>());
+      Future<BinarySnapshot.Books> books = executor.submit(() -> Files.exists(booksFile)
+          ? readBooks(booksFile, source)
+          : new BinarySnapshot.Books(new ArrayList<>(), new ArrayList<>()));
+      Future<List<Loan>> loans = executor.submit(
+          () -> Files.exists(loansFile) ? readLoans(loansFile, source) : new ArrayList<>());
+      Future<List<Hold>> holds = executor.submit(
+          () -> Files.exists(holdsFile) ? readHolds(holdsFile, source) : new ArrayList<>());
+      BinarySnapshot.Books decoded = await(books, executor);
+      return new SnapshotContents(await(users, executor), decoded.definitions(), decoded.items(),
+          await(loans, executor), await(holds, executor));
     }
-    if (Files.exists(BOOKS_FILE)) {
-      loadBooks(bookService);
+  }
+
+  /**
+   * @return the format of the files to load: the configured one if it has any,
+   *         otherwise the first format that does
+   */
+  private SnapshotFormat sourceFormat() {
+    SnapshotFormat source = format;
+    for (SnapshotFormat candidate : SnapshotFormat.values()) {
+      if (!snapshotExists(source) && snapshotExists(candidate)) {
+        source = candidate;
+      }
+    }
+    return source;
+  }
+
+  private List<User> readUsers(Path usersFile, SnapshotFormat source) {
+    List<User> users = new ArrayList<>();
+    try {
+      if (source == SnapshotFormat.BINARY) {
+        try (ByteSource in = openSnapshot(usersFile)) {
+          users = BinarySnapshot.readUsers(in);
+        }
+      } else if (source == SnapshotFormat.NDJSON) {
+        users = readLines(usersFile, this::readUser);
+      } else {
+        try (JsonReader reader = new JsonReader(openSnapshot(usersFile))) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            users.add(readUser(reader));
+          }
+          reader.endArray();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      throw readFailure(usersFile, e);
+    }
+    return users;
+  }
+
+  private BinarySnapshot.Books readBooks(Path booksFile, SnapshotFormat source) {
+    if (source == SnapshotFormat.BINARY) {
+      try (ByteSource in = openSnapshot(booksFile)) {
+        return BinarySnapshot.readBooks(in);
+      } catch (IOException | RuntimeException e) {
+        throw readFailure(booksFile, e);
+      }
+    }
+
+    List<BookDefinition> definitions = new ArrayList<>();
+    List<BookItem> items = new ArrayList<>();
+    if (source == SnapshotFormat.NDJSON) {
+      try {
+        for (Object record : readLines(booksFile, this::readBookLine)) {
+          if (record instanceof BookDefinition definition) {
+            definitions.add(definition);
+          } else {
+            items.add((BookItem) record);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        throw readFailure(booksFile, e);
+      }
+      return new BinarySnapshot.Books(definitions, items);
     }
-    if (Files.exists(LOANS_FILE)) {
-      loadLoans(loanService);
+
+    try (JsonReader reader = new JsonReader(openSnapshot(booksFile))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "definitions" -> {
+            reader.beginArray();
+            while (reader.hasNext()) {
+              definitions.add(readDefinition(reader));
+            }
+            reader.endArray();
+          }
+          case "items" -> {
+            reader.beginArray();
+            while (reader.hasNext()) {
+              items.add(readItem(reader));
+            }
+            reader.endArray();
+          }
+          default -> reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException | RuntimeException e) {
+      throw readFailure(booksFile, e);
     }
+    return new BinarySnapshot.Books(definitions, items);
   }
 
-  private void loadUsers(UserService userService) {
-    String json = read(USERS_FILE);
-    List<String> objects = parseJsonArray(json);
-    for (String obj : objects) {
-      String id = field(obj, "id");
-      String username = field(obj, "username");
-      String email = field(obj, "email");
-      String password = field(obj, "password");
-      String role = field(obj, "role");
+  private List<Loan> readLoans(Path loansFile, SnapshotFormat source) {
+    List<Loan> loans = new ArrayList<>();
+    try {
+      if (source == SnapshotFormat.BINARY) {
+        try (ByteSource in = openSnapshot(loansFile)) {
+          loans = BinarySnapshot.readLoans(in);
+        }
+      } else if (source == SnapshotFormat.NDJSON) {
+        loans = readLines(loansFile, this::readLoan);
+      } else {
+        try (JsonReader reader = new JsonReader(openSnapshot(loansFile))) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            loans.add(readLoan(reader));
+          }
+          reader.endArray();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      throw readFailure(loansFile, e);
+    }
+    return loans;
+  }
 
-      User user;
-      if ("ADMINISTRATOR".equals(role)) {
-        user = new Administrator(id, username, email, password);
+  private List<Hold> readHolds(Path holdsFile, SnapshotFormat source) {
+    List<Hold> holds = new ArrayList<>();
+    try {
+      if (source == SnapshotFormat.BINARY) {
+        try (ByteSource in = openSnapshot(holdsFile)) {
+          holds = BinarySnapshot.readHolds(in);
+        }
+      } else if (source == SnapshotFormat.NDJSON) {
+        holds = readLines(holdsFile, this::readHold);
       } else {
-        user = new Member(id, username, email, password);
+        try (JsonReader reader = new JsonReader(openSnapshot(holdsFile))) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            holds.add(readHold(reader));
+          }
+          reader.endArray();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      throw readFailure(holdsFile, e);
+    }
+    return holds;
+  }
+
+  /**
+   * Reads an NDJSON file, one record per line. A plain file is split into
+   * chunks at line boundaries, the chunks are parsed in parallel on the common
+   * fork/join pool, and the records are returned in file order. A compressed
+   * file is parsed sequentially as it is inflated.
+   */
+  private <T> List<T> readLines(Path path, RecordReader<T> recordReader) throws IOException {
+    ByteSource source = openSnapshot(path);
+    if (!(source instanceof MappedFile)) {
+      try {
+        return readChunk(source, recordReader);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+    try (MappedFile file = (MappedFile) source) {
+      long chunks = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4L, file.size() / MIN_CHUNK_BYTES + 1);
+      try {
+        return file.splitAtLines((int) chunks).parallelStream()
+            .map(chunk -> readChunk(chunk, recordReader))
+            .flatMap(List::stream)
+            .toList();
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static <T> List<T> readChunk(ByteSource chunk, RecordReader<T> recordReader) {
+    List<T> records = new ArrayList<>();
+    try (JsonReader reader = new JsonReader(chunk)) {
+      while (reader.hasNext()) {
+        records.add(recordReader.read(reader));
       }
-      userService.save(user);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    return records;
+  }
+
+  /** Reads one line of an NDJSON books file: {@code {"definition": {...}}} or {@code {"item": {...}}}. */
+  private Object readBookLine(JsonReader reader) throws IOException {
+    reader.beginObject();
+    Object record = switch (reader.nextName()) {
+      case "definition" -> readDefinition(reader);
+      case "item" -> readItem(reader);
+      default -> throw new IOException("Unknown books record at byte " + reader.position());
+    };
+    reader.endObject();
+    return record;
   }
 
-  private void loadBooks(BookService bookService) {
-    String json = read(BOOKS_FILE);
+  // -------------------------------------------------------------------------
+  // Record mapping (fields are mapped straight from the token stream)
+  // -------------------------------------------------------------------------
+
+  private User readUser(JsonReader reader) throws IOException {
+    String id = null;
+    String username = null;
+    String email = null;
+    String password = null;
+    String role = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id" -> id = reader.nextString();
+        case "username" -> username = reader.nextString();
+        case "email" -> email = reader.nextString();
+        case "password" -> password = reader.nextString();
+        case "role" -> role = reader.nextString();
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if ("ADMINISTRATOR".equals(role)) {
+      return new Administrator(id, username, email, password);
+    }
+    return new Member(id, username, email, password);
+  }
 
-    // Split the top-level object into "definitions" and "items" arrays
-    String defsSection = extractArraySection(json, "definitions");
-    String itemsSection = extractArraySection(json, "items");
+  private BookDefinition readDefinition(JsonReader reader) throws IOException {
+    String id = null;
+    String title = null;
+    String author = null;
+    String isbn = null;
+    String publisher = null;
 
-    // Load definitions first (items reference them)
-    for (String obj : parseJsonArray(defsSection)) {
-      String id = field(obj, "id");
-      String title = field(obj, "title");
-      String author = field(obj, "author");
-      String isbn = field(obj, "isbn");
-      String publisher = field(obj, "publisher");
-      bookService.saveDefinition(new BookDefinition(id, title, author, isbn, publisher));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id" -> id = reader.nextString();
+        case "title" -> title = reader.nextString();
+        case "author" -> author = reader.nextString();
+        case "isbn" -> isbn = reader.nextString();
+        case "publisher" -> publisher = reader.nextString();
+        default -> reader.skipValue();
+      }
     }
+    reader.endObject();
 
-    // Load items
-    for (String obj : parseJsonArray(itemsSection)) {
-      String id = field(obj, "id");
-      String barcode = field(obj, "barcode");
-      String bookDefId = field(obj, "bookDefId");
-      String statusStr = field(obj, "status");
-      String acquisitionDateStr = field(obj, "acquisitionDate");
+    return new BookDefinition(id, title, author, isbn, publisher);
+  }
 
-      Status status = Status.valueOf(statusStr);
-      Instant acquisitionDate = Instant.parse(acquisitionDateStr);
+  private BookItem readItem(JsonReader reader) throws IOException {
+    String id = null;
+    String barcode = null;
+    String bookDefId = null;
+    Status status = null;
+    Instant acquisitionDate = null;
 
-      bookService.saveItem(new BookItem(id, barcode, bookDefId, status, acquisitionDate));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id" -> id = reader.nextString();
+        case "barcode" -> barcode = reader.nextString();
+        case "bookDefId" -> bookDefId = reader.nextString();
+        case "status" -> status = Status.valueOf(reader.nextString());
+        case "acquisitionDate" -> acquisitionDate = Instant.parse(reader.nextString());
+        default -> reader.skipValue();
+      }
     }
+    reader.endObject();
+
+    return new BookItem(id, barcode, bookDefId, status, acquisitionDate);
   }
 
-  private void loadLoans(LoanService loanService) {
-    String json = read(LOANS_FILE);
-    for (String obj : parseJsonArray(json)) {
-      String id = field(obj, "id");
-      String userId = field(obj, "userId");
-      String bookId = field(obj, "bookId");
-      Instant createdAt = Instant.parse(field(obj, "createdAt"));
-      Instant dueDate = Instant.parse(field(obj, "dueDate"));
-      loanService.saveLoan(new Loan(id, userId, bookId, createdAt, dueDate));
+  private Loan readLoan(JsonReader reader) throws IOException {
+    String id = null;
+    String userId = null;
+    String bookId = null;
+    Instant createdAt = null;
+    Instant dueDate = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id" -> id = reader.nextString();
+        case "userId" -> userId = reader.nextString();
+        case "bookId" -> bookId = reader.nextString();
+        case "createdAt" -> createdAt = Instant.parse(reader.nextString());
+        case "dueDate" -> dueDate = Instant.parse(reader.nextString());
+        default -> reader.skipValue();
+      }
     }
+    reader.endObject();
+
+    return new Loan(id, userId, bookId, createdAt, dueDate);
+  }
+
+  private Hold readHold(JsonReader reader) throws IOException {
+    String id = null;
+    String userId = null;
+    String bookDefId = null;
+    Instant placedAt = null;
+    String bookItemId = null;
+    Instant expiresAt = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id" -> id = reader.nextString();
+        case "userId" -> userId = reader.nextString();
+        case "bookDefId" -> bookDefId = reader.nextString();
+        case "placedAt" -> placedAt = Instant.parse(reader.nextString());
+        case "bookItemId" -> bookItemId = reader.nextString();
+        case "expiresAt" -> {
+          String value = reader.nextString();
+          expiresAt = value == null ? null : Instant.parse(value);
+        }
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return new Hold(id, userId, bookDefId, placedAt, bookItemId, expiresAt);
   }
 
   // -------------------------------------------------------------------------
-  // Minimal JSON helpers  (no external library)
+  // Journal
   // -------------------------------------------------------------------------
 
-  /** Wraps a value in JSON double-quotes, escaping backslash and double-quote. */
-  private String jsonStr(String value) {
-    if (value == null) return "null";
-    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  /**
+   * Re-applies the journal on top of the loaded snapshot. Call after
+   * {@link #loadAll} and before {@link #openJournal}.
+   *
+   * <p>Every record carries the entity's full state, and is applied as an
+   * upsert (or a delete that ignores unknown IDs), so replaying records the
+   * snapshot already reflects is harmless. Replay stops at the first record
+   * that cannot be parsed, normally one torn by a crash mid-append; the journal
+   * is cut back to the last complete record when it is reopened.
+   *
+   * <p>Once the journal is applied, every loan and hold must reference an
+   * existing user and book; data that does not is left for
+   * {@link IntegrityChecker} to repair.
+   *
+   * @return the number of records applied
+   * @throws IllegalStateException if a loan or hold references a missing user
+   *                               or book
+   */
+  public int replayJournal(UserService userService, BookService bookService, LoanService loanService) {
+    int applied = 0;
+    TreeMap<Long, Path> segments = sealedSegments();
+    for (Path segment : segments.values()) {
+      applied += replay(segment, userService, bookService, loanService);
+    }
+    if (!segments.isEmpty()) {
+      nextSegment = segments.lastKey() + 1;
+    }
+
+    journalValidLength = 0;
+    if (Files.exists(journalFile)) {
+      applied += replay(journalFile, userService, bookService, loanService);
+    }
+    verifyReferences(loanService);
+    return applied;
+  }
+
+  private static void verifyReferences(LoanService loanService) {
+    loanService.verifyReferences();
+    loanService.holdService().verifyReferences();
   }
 
   /**
-   * Splits a JSON array string {@code [ {...}, {...} ]} into individual object
-   * strings.  Only handles flat objects (no nested arrays/objects inside values).
+   * Replays one journal file, recording in {@code journalValidLength} where its
+   * complete records end.
    */
-  private List<String> parseJsonArray(String json) {
-    List<String> results = new ArrayList<>();
-    if (json == null || json.isBlank()) return results;
-
-    int depth = 0;
-    int start = -1;
-    for (int i = 0; i < json.length(); i++) {
-      char c = json.charAt(i);
-      if (c == '{') {
-        if (depth == 0) start = i;
-        depth++;
-      } else if (c == '}') {
-        depth--;
-        if (depth == 0 && start >= 0) {
-          results.add(json.substring(start, i + 1));
-          start = -1;
+  private int replay(Path file, UserService userService, BookService bookService, LoanService loanService) {
+    int applied = 0;
+    try (JsonReader reader = openJournalReader(file)) {
+      while (true) {
+        JournalRecord record;
+        try {
+          if (!reader.hasNext()) {
+            journalValidLength = reader.position();
+            break;
+          }
+          journalValidLength = reader.position();
+          record = readJournalRecord(reader);
+        } catch (IOException torn) {
+          break;
         }
+        apply(record, userService, bookService, loanService);
+        applied++;
       }
+    } catch (IOException | RuntimeException e) {
+      throw readFailure(file, e);
     }
-    return results;
+    return applied;
   }
 
   /**
-   * Extracts the JSON array assigned to {@code key} from a top-level JSON
-   * object string.  For example, given {@code "items"} it returns the raw
-   * {@code [ ... ]} substring for that key.
+   * Starts journaling every change made through the given services, using
+   * {@link JournalSettings#DEFAULTS}.
    */
-  private String extractArraySection(String json, String key) {
-    String marker = "\"" + key + "\"";
-    int keyIdx = json.indexOf(marker);
-    if (keyIdx < 0) return "[]";
+  public void openJournal(UserService userService, BookService bookService, LoanService loanService) {
+    openJournal(userService, bookService, loanService, JournalSettings.DEFAULTS);
+  }
 
-    int bracketStart = json.indexOf('[', keyIdx + marker.length());
-    if (bracketStart < 0) return "[]";
+  /**
+   * Starts journaling every change made through the given services. These are
+   * also the services that background checkpoints snapshot.
+   *
+   * @throws IllegalStateException if a journal is already open
+   */
+  public synchronized void openJournal(UserService userService, BookService bookService, LoanService loanService,
+      JournalSettings settings) {
+    if (journal != null) {
+      throw new IllegalStateException("Journal is already open");
+    }
+    ensureDataDir();
+    try {
+      journal = new Journal(journalFile, journalValidLength, settings.groupCommitRecords(),
+          settings.groupCommitInterval());
+    } catch (IOException e) {
+      throw new RuntimeException("Could not open journal " + journalFile + ": " + e.getMessage(), e);
+    }
+    this.journaledUsers = userService;
+    this.journaledBooks = bookService;
+    this.journaledLoans = loanService;
+
+    userService.addListener(journaling("user", this::writeUser));
+    bookService.addListeners(journaling("definition", this::writeDefinition), journaling("item", this::writeItem));
+    loanService.addListener(journaling("loan", this::writeLoan));
+    loanService.holdService().addListener(journaling("hold", this::writeHold));
+    loanService.setWriteBatcher(this::batch);
+
+    if (settings.autosaves()) {
+      Journal open = journal;
+      autosaver = new Autosaver(settings, () -> {
+        try {
+          return open.size();
+        } catch (IOException e) {
+          return 0;
+        }
+      }, this::checkpoint);
+    }
+  }
 
-    int depth = 0;
-    for (int i = bracketStart; i < json.length(); i++) {
-      char c = json.charAt(i);
-      if (c == '[') depth++;
-      else if (c == ']') {
-        depth--;
-        if (depth == 0) return json.substring(bracketStart, i + 1);
+  /**
+   * Stops the autosave thread, waits for a running checkpoint, forces every
+   * journaled change to disk and closes the journal. Changes made afterwards
+   * through the journaled services fail.
+   */
+  @Override
+  public void close() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      if (autosaver != null) {
+        autosaver.close();
       }
+      awaitCheckpoint();
+    } finally {
+      closeJournal();
+    }
+  }
+
+  private void closeJournal() {
+    try {
+      journal.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not close journal " + journalFile + ": " + e.getMessage(), e);
+    }
+  }
+
+  private <T> RepositoryListener<T> journaling(String type, RecordWriter<T> writer) {
+    return new RepositoryListener<>() {
+      @Override
+      public void saved(T item) {
+        append("save", json -> writer.write(json, item));
+      }
+
+      @Override
+      public void updated(T item) {
+        append("update", json -> writer.write(json, item));
+      }
+
+      @Override
+      public void deleted(String id) {
+        append("delete", json -> json.value(id));
+      }
+
+      private void append(String op, JsonWriter.Document data) {
+        JsonWriter.Document record = json -> {
+          json.beginObject().field("op", op).field("type", type);
+          data.writeTo(json.name("delete".equals(op) ? "id" : "data"));
+          json.endObject();
+        };
+        try {
+          if (batchDepth.get()[0] > 0) {
+            journal.buffer(record);
+          } else {
+            journal.append(record);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Could not append to journal " + journalFile + ": " + e.getMessage(), e);
+        }
+        if (autosaver != null) {
+          autosaver.changed();
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs changes made through the journaled services as one batch: their
+   * journal records are buffered and written together when the outermost
+   * batch on this thread ends, instead of one write per record. Records are
+   * still written in the order the changes were made. Without an open journal
+   * the changes simply run.
+   *
+   * @return the result of {@code changes}
+   */
+  public <T> T batch(Supplier<T> changes) {
+    int[] depth = batchDepth.get();
+    depth[0]++;
+    try {
+      return changes.get();
+    } finally {
+      if (--depth[0] == 0) {
+        flushJournal();
+      }
+    }
+  }
+
+  private void flushJournal() {
+    Journal open = journal;
+    if (open == null) {
+      return;
+    }
+    try {
+      open.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not append to journal " + journalFile + ": " + e.getMessage(), e);
     }
-    return "[]";
   }
 
   /**
-   * Extracts the string value for {@code key} from a flat JSON object string.
-   * Only handles string values (surrounded by double-quotes).
+   * Moves the journal written so far into the next numbered segment.
+   *
+   * @return the highest segment number a snapshot taken now covers
    */
-  private String field(String obj, String key) {
-    String marker = "\"" + key + "\"";
-    int keyIdx = obj.indexOf(marker);
-    if (keyIdx < 0) return "";
-
-    int colon = obj.indexOf(':', keyIdx + marker.length());
-    if (colon < 0) return "";
-
-    // Skip whitespace after colon
-    int valStart = colon + 1;
-    while (valStart < obj.length() && Character.isWhitespace(obj.charAt(valStart))) {
-      valStart++;
-    }
-    if (valStart >= obj.length()) return "";
-
-    if (obj.charAt(valStart) == '"') {
-      // Quoted string — find the closing quote (skip escaped quotes)
-      int i = valStart + 1;
-      StringBuilder sb = new StringBuilder();
-      while (i < obj.length()) {
-        char c = obj.charAt(i);
-        if (c == '\\' && i + 1 < obj.length()) {
-          char next = obj.charAt(i + 1);
-          if (next == '"') { sb.append('"'); i += 2; continue; }
-          if (next == '\\') { sb.append('\\'); i += 2; continue; }
+  private synchronized long sealJournal() {
+    if (journal == null) {
+      return nextSegment - 1;
+    }
+    try {
+      if (journal.size() == 0) {
+        return nextSegment - 1;
+      }
+      journal.rotate(dataDir.resolve("journal-" + nextSegment + ".log"));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not seal journal " + journalFile + ": " + e.getMessage(), e);
+    }
+    return nextSegment++;
+  }
+
+  /**
+   * @return the sealed journal segments in the data directory, by number
+   */
+  private TreeMap<Long, Path> sealedSegments() {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    if (!Files.isDirectory(dataDir)) {
+      return segments;
+    }
+    try (Stream<Path> paths = Files.list(dataDir)) {
+      paths.forEach(path -> {
+        Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+        if (m.matches()) {
+          segments.put(Long.parseLong(m.group(1)), path);
         }
-        if (c == '"') break;
-        sb.append(c);
-        i++;
+      });
+    } catch (IOException e) {
+      throw new RuntimeException("Could not list data directory " + dataDir + ": " + e.getMessage(), e);
+    }
+    return segments;
+  }
+
+  private void deleteSegmentsThrough(long last) {
+    for (Path segment : sealedSegments().headMap(last, true).values()) {
+      try {
+        Files.deleteIfExists(segment);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not delete journal segment " + segment + ": " + e.getMessage(), e);
       }
-      return sb.toString();
     }
-    // Unquoted value (number, boolean, null) — read until comma or }
-    int end = valStart;
-    while (end < obj.length() && obj.charAt(end) != ',' && obj.charAt(end) != '}') {
-      end++;
+  }
+
+  private JournalRecord readJournalRecord(JsonReader reader) throws IOException {
+    String op = null;
+    String type = null;
+    String id = null;
+    Object data = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "op" -> op = reader.nextString();
+        case "type" -> type = reader.nextString();
+        case "id" -> id = reader.nextString();
+        case "data" -> {
+          if (type == null) {
+            throw new IOException("Record type must precede its data");
+          }
+          data = switch (type) {
+            case "user" -> readUser(reader);
+            case "definition" -> readDefinition(reader);
+            case "item" -> readItem(reader);
+            case "loan" -> readLoan(reader);
+            case "hold" -> readHold(reader);
+            default -> {
+              reader.skipValue();
+              yield null;
+            }
+          };
+        }
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return new JournalRecord(op, type, id, data);
+  }
+
+  private void apply(JournalRecord record, UserService userService, BookService bookService,
+      LoanService loanService) {
+    boolean delete = "delete".equals(record.op());
+    if (!delete && !"save".equals(record.op()) && !"update".equals(record.op())) {
+      throw new IllegalArgumentException("Unknown journal operation " + record.op());
+    }
+    if (record.type() == null || (delete ? record.id() == null : record.data() == null)) {
+      throw new IllegalArgumentException("Incomplete journal record for " + record.type());
+    }
+
+    switch (record.type()) {
+      case "user" -> {
+        if (delete) {
+          userService.remove(record.id());
+        } else {
+          userService.restore((User) record.data());
+        }
+      }
+      case "definition" -> {
+        if (delete) {
+          bookService.purgeDefinition(record.id());
+        } else {
+          bookService.restoreDefinition((BookDefinition) record.data());
+        }
+      }
+      case "item" -> {
+        if (delete) {
+          bookService.purgeItem(record.id());
+        } else {
+          bookService.restoreItem((BookItem) record.data());
+        }
+      }
+      case "loan" -> {
+        if (delete) {
+          loanService.purge(record.id());
+        } else {
+          loanService.restore((Loan) record.data());
+        }
+      }
+      case "hold" -> {
+        if (delete) {
+          loanService.holdService().purge(record.id());
+        } else {
+          loanService.holdService().restore((Hold) record.data());
+        }
+      }
+      default -> throw new IllegalArgumentException("Unknown journal record type " + record.type());
     }
-    return obj.substring(valStart, end).trim();
   }
 
   // -------------------------------------------------------------------------
   // File I/O helpers
   // -------------------------------------------------------------------------
 
+  private Path snapshotFile(String name, SnapshotFormat fileFormat) {
+    return dataDir.resolve(name + "." + fileFormat.extension());
+  }
+
+  private boolean snapshotExists(SnapshotFormat fileFormat) {
+    return Files.exists(snapshotFile("users", fileFormat))
+        || Files.exists(snapshotFile("books", fileFormat))
+        || Files.exists(snapshotFile("loans", fileFormat))
+        || Files.exists(snapshotFile("holds", fileFormat));
+  }
+
   private void ensureDataDir() {
     try {
-      Files.createDirectories(DATA_DIR);
+      Files.createDirectories(dataDir);
     } catch (IOException e) {
       throw new RuntimeException("Could not create data directory: " + e.getMessage(), e);
     }
   }
 
-  private void write(Path path, String content) {
+  /**
+   * Opens a snapshot file for reading: through a {@link MappedFile} if it is
+   * plain, or inflated as a stream if its header marks it as gzip.
+   */
+  private ByteSource openSnapshot(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
     try {
-      Files.writeString(path, content, StandardCharsets.UTF_8);
-    } catch (IOException e) {
-      throw new RuntimeException("Could not write file " + path + ": " + e.getMessage(), e);
+      ByteBuffer header = ByteBuffer.allocate(2);
+      if (channel.read(header, 0) < 2 || (header.getShort(0) & 0xFFFF) != GZIP_MAGIC) {
+        return new MappedFile(channel, MappedFile.DEFAULT_WINDOW_SIZE);
+      }
+      InputStream in = new GZIPInputStream(Channels.newInputStream(channel), IO_BUFFER_SIZE);
+      return ByteSource.of(Channels.newChannel(in), IO_BUFFER_SIZE);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
     }
   }
 
-  private String read(Path path) {
+  /**
+   * Streams a data file to {@code <name>.tmp} next to the target through a
+   * fixed-size buffer, gzip-compressing it if so configured, forces it to disk
+   * and then atomically renames it over the target. A crash mid-save leaves the
+   * previous file intact; at worst a stale temp file remains, which the next
+   * save overwrites.
+   */
+  private void writeAtomically(Path target, FileBody body) {
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
     try {
-      return Files.readString(path, StandardCharsets.UTF_8);
-    } catch (IOException e) {
-      throw new RuntimeException("Could not read file " + path + ": " + e.getMessage(), e);
+      try (FileChannel channel = FileChannel.open(temp,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), IO_BUFFER_SIZE);
+        if (compressionLevel == 0) {
+          body.writeTo(out);
+          out.flush();
+        } else {
+          GZIPOutputStream gzip = new GZIPOutputStream(out, IO_BUFFER_SIZE) {
+            {
+              def.setLevel(compressionLevel);
+            }
+          };
+          body.writeTo(gzip);
+          gzip.finish();
+          out.flush();
+        }
+        channel.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      syncDirectory(target.toAbsolutePath().getParent());
+    } catch (IOException | RuntimeException e) {
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw new RuntimeException("Could not write file " + target + ": " + e.getMessage(), e);
     }
   }
+
+  private void writeJson(Path target, JsonWriter.Document document) {
+    writeAtomically(target, out -> {
+      JsonWriter json = new JsonWriter(
+          new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), IO_BUFFER_SIZE));
+      document.writeTo(json);
+      json.flush();
+    });
+  }
+
+  /**
+   * Writes one compact JSON value per line.
+   */
+  private void writeLines(Path target, Stream<JsonWriter.Document> lines) {
+    writeAtomically(target, out -> {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+      for (Iterator<JsonWriter.Document> it = lines.iterator(); it.hasNext();) {
+        it.next().writeTo(new JsonWriter(writer, false));
+        writer.write('\n');
+      }
+      writer.flush();
+    });
+  }
+
+  /**
+   * Makes a completed rename durable by syncing the directory entry. Not every
+   * platform allows opening a directory, so failures are ignored.
+   */
+  private void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException | UnsupportedOperationException e) {
+      // Best effort only
+    }
+  }
+
+  /**
+   * Opens a journal file through an ordinary buffered channel: it is truncated
+   * and appended to after replay, which a live mapping would not survive on
+   * every platform.
+   */
+  private JsonReader openJournalReader(Path path) throws IOException {
+    return new JsonReader(FileChannel.open(path, StandardOpenOption.READ));
+  }
+
+  private RuntimeException readFailure(Path path, Exception e) {
+    return new RuntimeException("Could not read file " + path + ": " + e.getMessage(), e);
+  }
 }
@@ -0,0 +1,20 @@
+package com.devaldrete.services;
+
+import com.devaldrete.domain.Loan;
+
+/**
+ * Outcome of returning one scanned copy in {@link LoanService#returnBooks}.
+ *
+ * @param barcode the barcode as scanned
+ * @param loan    the loan that was ended, or null if nothing was returned
+ * @param error   why nothing was returned, or null if the copy was
+ */
+public record ReturnResult(String barcode, Loan loan, String error) {
+
+  /**
+   * @return true if the scan ended a loan
+   */
+  public boolean returned() {
+    return loan != null;
+  }
+}
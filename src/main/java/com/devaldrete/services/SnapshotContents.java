@@ -0,0 +1,27 @@
+package com.devaldrete.services;
+
+import java.util.List;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.User;
+
+/**
+ * The records of a snapshot as they are stored, before the services validate
+ * them on load (see {@link PersistenceService#readContents()}). They may hold
+ * broken references or duplicate keys; {@link IntegrityChecker} finds and
+ * repairs those.
+ */
+public record SnapshotContents(List<User> users, List<BookDefinition> definitions, List<BookItem> items,
+    List<Loan> loans, List<Hold> holds) {
+
+  /**
+   * A snapshot without holds.
+   */
+  public SnapshotContents(List<User> users, List<BookDefinition> definitions, List<BookItem> items,
+      List<Loan> loans) {
+    this(users, definitions, items, loans, List.of());
+  }
+}
@@ -0,0 +1,36 @@
+package com.devaldrete.services;
+
+/**
+ * On-disk encoding of the snapshot files written by {@link PersistenceService}.
+ */
+public enum SnapshotFormat {
+
+  /** Pretty-printed JSON: human-readable, and the export/import format. */
+  JSON("json"),
+
+  /**
+   * Newline-delimited JSON, one compact record per line. Files are split at
+   * line boundaries and the chunks parsed in parallel, so loading scales with
+   * the number of cores.
+   */
+  NDJSON("ndjson"),
+
+  /**
+   * Compact binary records with a string table, a version header and a CRC32
+   * trailer; several times smaller and faster to load than JSON.
+   */
+  BINARY("bin");
+
+  private final String extension;
+
+  SnapshotFormat(String extension) {
+    this.extension = extension;
+  }
+
+  /**
+   * @return the file name extension, without the dot
+   */
+  public String extension() {
+    return extension;
+  }
+}
@@ -1,11 +1,14 @@
 package com.devaldrete.services;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.devaldrete.domain.Administrator;
 import com.devaldrete.domain.Member;
 import com.devaldrete.domain.Role;
 import com.devaldrete.domain.User;
+import com.devaldrete.repositories.RepositoryListener;
 import com.devaldrete.repositories.UserRepository;
 
 public class UserService {
@@ -37,6 +40,63 @@ public class UserService {
     userRepository.save(user);
   }
 
+  /**
+   * Loads many pre-constructed users in a single pass (used by
+   * PersistenceService when loading from disk).
+   *
+   * @throws IllegalArgumentException if the data is inconsistent; nothing is
+   *                                  loaded in that case
+   */
+  public void bulkLoad(Collection<User> users) {
+    userRepository.bulkLoad(users);
+  }
+
+  /**
+   * Applies a journaled user record during replay: the user is inserted or
+   * replaced as-is. Any other user still holding the same email or username is
+   * dropped first; that only happens when the snapshot is newer than the
+   * record, and a later record in the journal restores that user.
+   */
+  public void restore(User user) {
+    evictOtherOwner(userRepository.findByEmail(user.getEmail()), user.getId());
+    evictOtherOwner(userRepository.findByUsername(user.getUsername()), user.getId());
+    if (userRepository.getById(user.getId()) == null) {
+      userRepository.save(user);
+    } else {
+      userRepository.update(user);
+    }
+  }
+
+  private void evictOtherOwner(User owner, String id) {
+    if (owner != null && !owner.getId().equals(id)) {
+      userRepository.delete(owner.getId());
+    }
+  }
+
+  /**
+   * Registers a listener for every subsequent user mutation (used by
+   * PersistenceService to journal changes).
+   */
+  public void addListener(RepositoryListener<User> listener) {
+    userRepository.addListener(listener);
+  }
+
+  /**
+   * Returns the modification count of the user store (used by
+   * PersistenceService to skip rewriting an unchanged file).
+   */
+  public long getModCount() {
+    return userRepository.getModCount();
+  }
+
+  /**
+   * Runs {@code action} while writes to the users wait (used by
+   * PersistenceService to copy a consistent snapshot).
+   */
+  <R> R whileWritesBlocked(Supplier<R> action) {
+    return userRepository.whileWritesBlocked(action);
+  }
+
   public List<User> getAll() {
     return userRepository.getAll();
   }
@@ -45,11 +105,29 @@ public class UserService {
     return userRepository.getById(id);
   }
 
+  /**
+   * Updates a user's credentials.
+   *
+   * @return false if no user has the given ID
+   * @throws IllegalArgumentException if the new email or username belongs to
+   *                                  another user (the user is left unchanged)
+   */
   public boolean update(String id, String username, String email, String password) {
     User user = userRepository.getById(id);
     if (user == null) {
       return false;
     }
+
+    // Check before mutating: the entity is shared with the repository indexes
+    User emailOwner = userRepository.findByEmail(email);
+    if (emailOwner != null && !emailOwner.getId().equals(id)) {
+      throw new IllegalArgumentException("Email '" + email + "' is already registered");
+    }
+    User usernameOwner = userRepository.findByUsername(username);
+    if (usernameOwner != null && !usernameOwner.getId().equals(id)) {
+      throw new IllegalArgumentException("Username '" + username + "' is already taken");
+    }
+
     user.setUsername(username);
     user.setEmail(email);
     user.setPassword(password);
@@ -73,6 +151,10 @@ public class UserService {
     return userRepository.findByEmail(email);
   }
 
+  /**
+   * Deletes a user without looking at their loans; use
+   * {@link LoanService#removeUser} to keep loans consistent.
+   */
   public boolean remove(String id) {
     User user = userRepository.getById(id);
     if (user == null) {
@@ -83,6 +165,6 @@ public class UserService {
   }
 
   public int count() {
-    return userRepository.getAll().size();
+    return userRepository.count();
   }
 }
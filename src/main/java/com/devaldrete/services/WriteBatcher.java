@@ -0,0 +1,21 @@
+package com.devaldrete.services;
+
+import java.util.function.Supplier;
+
+/**
+ * Runs a group of changes so that whatever records them on disk does so with
+ * one write once they are all made, rather than one write per change.
+ * {@link PersistenceService} installs one in the services whose changes it
+ * journals; until then changes simply run.
+ */
+@FunctionalInterface
+public interface WriteBatcher {
+
+  /** Runs the changes with no grouping. */
+  WriteBatcher NONE = Supplier::get;
+
+  /**
+   * Runs the changes and returns their result.
+   */
+  <T> T batch(Supplier<T> changes);
+}
@@ -1,7 +1,21 @@
 package com.devaldrete.utils;
 
+import java.util.Locale;
+
 public class BarcodeGenerator {
   public static String generateBarcode() {
     return "BC-" + java.util.UUID.randomUUID().toString().substring(0, 8).toUpperCase();
   }
+
+  /**
+   * Returns the canonical form of a barcode used for lookups: surrounding
+   * whitespace removed and upper-cased, so "bc-0a1b2c3d " and "BC-0A1B2C3D"
+   * are the same barcode.
+   */
+  public static String canonicalize(String barcode) {
+    if (barcode == null) {
+      return null;
+    }
+    return barcode.trim().toUpperCase(Locale.ROOT);
+  }
 }
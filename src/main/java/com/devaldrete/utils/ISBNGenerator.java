@@ -53,6 +53,28 @@ public class ISBNGenerator {
         isbn.substring(12);
   }
 
+  /**
+   * Returns the canonical form of an ISBN used for lookups: hyphens and
+   * whitespace removed, and a trailing ISBN-10 check character 'x' upper-cased.
+   * "978-1-23456-789-0", "978 1234567890" and "9781234567890" all map to the
+   * same key.
+   */
+  public static String canonicalize(String isbn) {
+    if (isbn == null) {
+      return null;
+    }
+
+    StringBuilder canonical = new StringBuilder(isbn.length());
+    for (int i = 0; i < isbn.length(); i++) {
+      char c = isbn.charAt(i);
+      if (c == '-' || Character.isWhitespace(c)) {
+        continue;
+      }
+      canonical.append(c == 'x' ? 'X' : c);
+    }
+    return canonical.toString();
+  }
+
   /**
    * Validates an ISBN-13 number
    */
@@ -0,0 +1,97 @@
+package com.devaldrete.bench;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.devaldrete.MutableClock;
+import com.devaldrete.services.DeadlineScheduler;
+
+/**
+ * Measures DeadlineScheduler with millions of pending deadlines spread over
+ * sixty days, as loan due dates and hold expiries would be: the cost of
+ * scheduling each one, of cancelling half of them (returns and pickups), and
+ * of firing the rest while the clock sweeps the whole period a second at a
+ * time. For comparison, the same schedule and cancel are run against a
+ * {@link ConcurrentSkipListMap} ordered by deadline, which costs O(log n) per
+ * operation where the wheel costs O(1).
+ *
+ * <p>Not a unit test; run it by hand with the test classpath, e.g.
+ * {@code java -Xmx2g -cp target/classes:target/test-classes
+ * com.devaldrete.bench.DeadlineBenchmark [deadlines]}.
+ */
+public final class DeadlineBenchmark {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+  private static final long SPREAD_MILLIS = Duration.ofDays(60).toMillis();
+  private static final int ROUNDS = 3;
+
+  private DeadlineBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 4_000_000;
+    Instant[] deadlines = new Instant[count];
+    Random random = new Random(42);
+    for (int i = 0; i < count; i++) {
+      deadlines[i] = T0.plusMillis(1 + (long) (random.nextDouble() * SPREAD_MILLIS));
+    }
+
+    System.out.printf("%,d deadlines over 60 days%n", count);
+    System.out.printf("%14s %14s %14s %16s%n", "", "schedule ns/op", "cancel ns/op", "fire callbacks/s");
+    for (int round = 0; round < ROUNDS; round++) {
+      runWheel(deadlines);
+      runSkipList(deadlines);
+    }
+  }
+
+  private static void runWheel(Instant[] deadlines) {
+    MutableClock clock = new MutableClock(T0);
+    DeadlineScheduler scheduler = new DeadlineScheduler(clock);
+    DeadlineScheduler.Deadline[] handles = new DeadlineScheduler.Deadline[deadlines.length];
+    long[] fired = new long[1];
+    Runnable count = () -> fired[0]++;
+
+    long begin = System.nanoTime();
+    for (int i = 0; i < deadlines.length; i++) {
+      handles[i] = scheduler.schedule(deadlines[i], count);
+    }
+    long scheduled = System.nanoTime();
+    for (int i = 0; i < deadlines.length; i += 2) {
+      scheduler.cancel(handles[i]);
+    }
+    long cancelled = System.nanoTime();
+    handles = null;
+    Instant end = T0.plusMillis(SPREAD_MILLIS + 1_000);
+    for (Instant now = T0; now.isBefore(end); now = now.plusSeconds(1)) {
+      scheduler.runDueAsOf(now);
+    }
+    long swept = System.nanoTime();
+
+    if (fired[0] != deadlines.length / 2 || scheduler.pending() != 0) {
+      throw new IllegalStateException("fired " + fired[0] + ", " + scheduler.pending() + " left");
+    }
+    System.out.printf("%14s %,14d %,14d %,16d%n", "timing wheel", (scheduled - begin) / deadlines.length,
+        (cancelled - scheduled) / ((deadlines.length + 1) / 2), fired[0] * 1_000_000_000L / (swept - cancelled));
+  }
+
+  private static void runSkipList(Instant[] deadlines) {
+    ConcurrentSkipListMap<Long, Runnable> queue = new ConcurrentSkipListMap<>();
+    Runnable count = () -> {
+    };
+
+    long begin = System.nanoTime();
+    for (int i = 0; i < deadlines.length; i++) {
+      // The index breaks ties between equal deadlines
+      queue.put((deadlines[i].toEpochMilli() - T0.toEpochMilli()) * deadlines.length + i, count);
+    }
+    long scheduled = System.nanoTime();
+    for (int i = 0; i < deadlines.length; i += 2) {
+      queue.remove((deadlines[i].toEpochMilli() - T0.toEpochMilli()) * deadlines.length + i);
+    }
+    long cancelled = System.nanoTime();
+    System.out.printf("%14s %,14d %,14d %16s%n", "skip list", (scheduled - begin) / deadlines.length,
+        (cancelled - scheduled) / ((deadlines.length + 1) / 2), "-");
+  }
+}
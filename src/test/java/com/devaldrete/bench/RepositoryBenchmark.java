@@ -0,0 +1,106 @@
+package com.devaldrete.bench;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Status;
+import com.devaldrete.repositories.BookRepository;
+
+/**
+ * Measures how BookRepository throughput scales with the number of threads
+ * sharing it, for a read-mostly mix (barcode lookups and availability counts,
+ * one write in ten) and a write-heavy one (every other operation a status
+ * change). Writes to different copies take different lock stripes and reads
+ * take no lock, so throughput should grow with threads up to the core count.
+ *
+ * <p>Not a unit test; run it by hand with the test classpath, e.g.
+ * {@code java -cp target/classes:target/test-classes
+ * com.devaldrete.bench.RepositoryBenchmark [items] [ops per thread]}.
+ */
+public final class RepositoryBenchmark {
+
+  private static final int ROUNDS = 3;
+
+  private RepositoryBenchmark() {
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int opsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    int cores = Runtime.getRuntime().availableProcessors();
+    BookRepository repository = generate(itemCount);
+
+    System.out.printf("%,d items, %,d ops per thread, %d cores%n", itemCount, opsPerThread, cores);
+    System.out.printf("%7s %16s %16s%n", "threads", "10% writes op/s", "50% writes op/s");
+    for (int threads = 1; threads <= Math.max(8, cores * 2); threads *= 2) {
+      System.out.printf("%7d %,16d %,16d%n", threads, run(repository, threads, opsPerThread, 10),
+          run(repository, threads, opsPerThread, 50));
+    }
+  }
+
+  /**
+   * @return the best operations per second over a few rounds
+   */
+  private static long run(BookRepository repository, int threads, int opsPerThread, int writePercent)
+      throws InterruptedException {
+    List<BookItem> items = repository.getAll();
+    long best = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Thread> workers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        workers.add(Thread.ofPlatform().start(() -> {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int op = 0; op < opsPerThread; op++) {
+            BookItem item = items.get(random.nextInt(items.size()));
+            if (random.nextInt(100) < writePercent) {
+              repository.update(new BookItem(item.getId(), item.getBarcode(), item.getBookDefId(),
+                  random.nextBoolean() ? Status.AVAILABLE : Status.BORROWED, item.getAcquisitionDate()));
+            } else if ((op & 1) == 0) {
+              repository.findByBarcode(item.getBarcode());
+            } else {
+              repository.countByStatus(item.getBookDefId(), Status.AVAILABLE);
+            }
+          }
+        }));
+      }
+      long begin = System.nanoTime();
+      start.countDown();
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      long elapsed = System.nanoTime() - begin;
+      best = Math.max(best, (long) threads * opsPerThread * 1_000_000_000L / elapsed);
+    }
+    return best;
+  }
+
+  /** Ten copies per title, all available. */
+  private static BookRepository generate(int itemCount) {
+    int definitionCount = Math.max(1, itemCount / 10);
+    List<BookDefinition> definitions = new ArrayList<>(definitionCount);
+    for (int i = 0; i < definitionCount; i++) {
+      definitions.add(new BookDefinition("d" + i, "Title number " + i, "Author " + i % 1000,
+          String.format("978%010d", i), null));
+    }
+    List<BookItem> items = new ArrayList<>(itemCount);
+    Instant now = Instant.now();
+    for (int i = 0; i < itemCount; i++) {
+      items.add(new BookItem("i" + i, String.format("BC-%08X", i), "d" + i % definitionCount, Status.AVAILABLE,
+          now));
+    }
+    BookRepository repository = new BookRepository();
+    repository.bulkLoad(definitions, items);
+    return repository;
+  }
+}
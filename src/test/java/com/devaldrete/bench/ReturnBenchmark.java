@@ -0,0 +1,116 @@
+package com.devaldrete.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+import com.devaldrete.services.JournalSettings;
+import com.devaldrete.services.Library;
+import com.devaldrete.services.PersistenceService;
+
+/**
+ * Measures book-drop returns per second through a journaled library, with
+ * every return forced to disk before the next scan (the strictest setting)
+ * and with the default group commit, for several batch sizes. One scan in
+ * twenty is a barcode that is not on loan.
+ *
+ * <p>Not a unit test; run it by hand with the test classpath, e.g.
+ * {@code java -cp target/classes:target/test-classes
+ * com.devaldrete.bench.ReturnBenchmark [loans]}.
+ */
+public final class ReturnBenchmark {
+
+  private static final int[] BATCH_SIZES = { 1, 16, 256 };
+
+  private ReturnBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    int loanCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+
+    System.out.printf("%,d loans%n", loanCount);
+    System.out.printf("%6s %16s %16s%n", "batch", "forced scans/s", "grouped scans/s");
+    for (int batchSize : BATCH_SIZES) {
+      System.out.printf("%6d %,16d %,16d%n", batchSize,
+          run(loanCount, batchSize, JournalSettings.DEFAULTS.withGroupCommit(1, Duration.ZERO)),
+          run(loanCount, batchSize, JournalSettings.DEFAULTS));
+    }
+  }
+
+  private static long run(int loanCount, int batchSize, JournalSettings settings) throws IOException {
+    Path dataDir = Files.createTempDirectory("shelfs-bench");
+    try {
+      Library library = generate(loanCount);
+      List<String> scans = new ArrayList<>(loanCount + loanCount / 20);
+      for (int i = 0; i < loanCount; i++) {
+        scans.add(barcode(i));
+      }
+      for (int i = 0; i < loanCount / 20; i++) {
+        scans.add("BC-NOPE" + i);
+      }
+      Collections.shuffle(scans, new Random(42));
+
+      try (PersistenceService persistence = new PersistenceService(dataDir)) {
+        persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService(),
+            settings.withCheckpointTriggers(0, Duration.ZERO));
+        long begin = System.nanoTime();
+        int returned = library.getLoanService().returnBooks(scans.stream(), batchSize, result -> {
+        });
+        long elapsed = System.nanoTime() - begin;
+        if (returned != loanCount) {
+          throw new IllegalStateException("returned " + returned + " of " + loanCount);
+        }
+        return scans.size() * 1_000_000_000L / elapsed;
+      }
+    } finally {
+      try (Stream<Path> paths = Files.walk(dataDir)) {
+        for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+          Files.delete(path);
+        }
+      }
+    }
+  }
+
+  private static String barcode(int i) {
+    return String.format("BC-%08X", i);
+  }
+
+  /** One member per hundred loans, one title per ten copies, every copy lent. */
+  private static Library generate(int loanCount) {
+    Library library = new Library("Bench", "Nowhere");
+    for (int i = 0; i < Math.max(1, loanCount / 100); i++) {
+      library.addUser(new Member("u" + i, "member" + i, "member" + i + "@example.com", "x"));
+    }
+    int definitionCount = Math.max(1, loanCount / 10);
+    List<BookDefinition> definitions = new ArrayList<>(definitionCount);
+    for (int i = 0; i < definitionCount; i++) {
+      definitions.add(new BookDefinition("d" + i, "Title number " + i, "Author", String.format("978%010d", i),
+          null));
+    }
+    Instant now = Instant.now();
+    List<BookItem> items = new ArrayList<>(loanCount);
+    List<Loan> loans = new ArrayList<>(loanCount);
+    for (int i = 0; i < loanCount; i++) {
+      items.add(new BookItem("i" + i, barcode(i), "d" + i % definitionCount, Status.BORROWED, now));
+      loans.add(new Loan("l" + i, "u" + i % Math.max(1, loanCount / 100), "i" + i, now,
+          now.plus(14, ChronoUnit.DAYS)));
+    }
+    library.getBookService().bulkLoad(definitions, items);
+    library.getLoanService().bulkLoad(loans);
+    return library;
+  }
+}
@@ -0,0 +1,151 @@
+package com.devaldrete.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+import com.devaldrete.services.Library;
+import com.devaldrete.services.PersistenceService;
+import com.devaldrete.services.SnapshotFormat;
+
+/**
+ * Compares snapshot size and save/load time of each format, plain and at
+ * several gzip levels, on a generated catalog (1M book items by default).
+ *
+ * <p>Save and load times are measured against the local page cache, so they
+ * are mostly CPU. The last column adds the time to move the files over a link
+ * of the given throughput (100 MB/s by default, about a gigabit network
+ * volume): compression pays off where save plus transfer time drops.
+ *
+ * <p>Not a unit test; run it by hand with the test classpath, e.g.
+ * {@code java -cp target/classes:target/test-classes
+ * com.devaldrete.bench.SnapshotBenchmark [items] [MB/s]}. Give the JVM enough
+ * heap for the catalog ({@code -Xmx4g} for the default size).
+ */
+public final class SnapshotBenchmark {
+
+  private static final int ROUNDS = 3;
+  private static final int[] LEVELS = {0, 1, 6, 9};
+
+  private SnapshotBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    double megabytesPerSecond = args.length > 1 ? Double.parseDouble(args[1]) : 100;
+    Library library = generate(itemCount);
+    System.out.printf("Catalog: %,d users, %,d definitions, %,d items, %,d loans%n",
+        library.getUserService().count(), library.getBookService().countDefinitions(),
+        library.getBookService().countItems(), library.getLoanService().count());
+    System.out.printf("%-8s %5s %12s %10s %10s %12s%n", "format", "level", "bytes", "save ms", "load ms",
+        String.format("xfer@%.0fMB/s", megabytesPerSecond));
+
+    for (SnapshotFormat format : SnapshotFormat.values()) {
+      for (int level : LEVELS) {
+        run(library, format, level, megabytesPerSecond);
+      }
+    }
+  }
+
+  private static void run(Library library, SnapshotFormat format, int level, double megabytesPerSecond)
+      throws IOException {
+    Path dir = Files.createTempDirectory("shelfs-bench");
+    try {
+      PersistenceService persistence = new PersistenceService(dir, format, level);
+      long save = Long.MAX_VALUE;
+      long load = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.nanoTime();
+        persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+        save = Math.min(save, System.nanoTime() - start);
+
+        Library target = new Library("Bench", "Nowhere");
+        start = System.nanoTime();
+        persistence.loadAll(target.getUserService(), target.getBookService(), target.getLoanService());
+        load = Math.min(load, System.nanoTime() - start);
+      }
+      long bytes = directorySize(dir);
+      System.out.printf("%-8s %5d %,12d %,10d %,10d %,12d%n", format, level, bytes, save / 1_000_000,
+          load / 1_000_000, Math.round(bytes / (megabytesPerSecond * 1_000_000) * 1000));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * Builds a catalog with realistic repetition: ten copies per title, authors
+   * and publishers shared across many titles, and a loan for one copy in
+   * twenty.
+   */
+  private static Library generate(int itemCount) {
+    Random random = new Random(7);
+    Instant now = Instant.now();
+    int definitionCount = Math.max(1, itemCount / 10);
+    int userCount = Math.max(1, itemCount / 100);
+
+    List<User> users = new ArrayList<>(userCount);
+    for (int i = 0; i < userCount; i++) {
+      users.add(new Member(UUID.randomUUID().toString(), "user" + i, "user" + i + "@example.com", "password" + i));
+    }
+
+    List<BookDefinition> definitions = new ArrayList<>(definitionCount);
+    for (int i = 0; i < definitionCount; i++) {
+      definitions.add(new BookDefinition(UUID.randomUUID().toString(), "Title number " + i,
+          "Author " + random.nextInt(Math.max(1, definitionCount / 5)), String.format("978%010d", i),
+          "Publisher " + random.nextInt(500)));
+    }
+
+    List<BookItem> items = new ArrayList<>(itemCount);
+    List<Loan> loans = new ArrayList<>();
+    for (int i = 0; i < itemCount; i++) {
+      boolean onLoan = i % 20 == 0;
+      BookItem item = new BookItem(UUID.randomUUID().toString(), String.format("BC-%08X", i),
+          definitions.get(i % definitionCount).getId(), onLoan ? Status.BORROWED : Status.AVAILABLE,
+          now.minus(random.nextInt(3650), ChronoUnit.DAYS));
+      items.add(item);
+      if (onLoan) {
+        Instant created = now.minus(random.nextInt(14), ChronoUnit.DAYS);
+        loans.add(new Loan(UUID.randomUUID().toString(), users.get(random.nextInt(userCount)).getId(),
+            item.getId(), created, created.plus(14, ChronoUnit.DAYS)));
+      }
+    }
+
+    Library library = new Library("Bench", "Nowhere");
+    library.getUserService().bulkLoad(users);
+    library.getBookService().bulkLoad(definitions, items);
+    library.getLoanService().bulkLoad(loans);
+    return library;
+  }
+
+  private static long directorySize(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.list(dir)) {
+      long total = 0;
+      for (Path path : paths.toList()) {
+        total += Files.size(path);
+      }
+      return total;
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package com.devaldrete.repositories;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Status;
+
+import junit.framework.TestCase;
+
+public class BookRepositoryTest extends TestCase {
+
+  private BookRepository repository;
+
+  @Override
+  protected void setUp() {
+    repository = new BookRepository();
+    repository.saveBookDefinition(new BookDefinition("d1", "Dune", "Frank Herbert", "978-0-44101-359-3", "Ace"));
+  }
+
+  public void testLookupsByIdBarcodeAndIsbn() {
+    BookItem item = new BookItem("i1", "BC-0000AAAA", "d1", Status.AVAILABLE, Instant.now());
+    repository.save(item);
+
+    assertSame(item, repository.getById("i1"));
+    assertSame(item, repository.findByBarcode("bc-0000aaaa"));
+    assertEquals("d1", repository.findByISBN("9780441013593").getId());
+    assertEquals("d1", repository.findByISBN("978 0441013593").getId());
+    assertNull(repository.findByBarcode("BC-FFFFFFFF"));
+    assertNull(repository.getById("missing"));
+  }
+
+  public void testBarcodeChangedInPlaceIsReindexedOnUpdate() {
+    BookItem item = new BookItem("i1", "BC-OLD00000", "d1", Status.AVAILABLE, Instant.now());
+    repository.save(item);
+
+    item.setBarcode("BC-NEW00000");
+    repository.update(item);
+
+    assertNull(repository.findByBarcode("BC-OLD00000"));
+    assertSame(item, repository.findByBarcode("BC-NEW00000"));
+  }
+
+  public void testIsbnChangedInPlaceIsReindexedOnUpdate() {
+    BookDefinition def = repository.getBookDefinitionById("d1");
+    def.setIsbn("979-1-00000-000-1");
+    repository.updateBookDefinition(def);
+
+    assertNull(repository.findByISBN("978-0-44101-359-3"));
+    assertSame(def, repository.findByISBN("9791000000001"));
+  }
+
+  public void testDuplicateBarcodeIsRejected() {
+    repository.save(new BookItem("i1", "BC-0000AAAA", "d1", Status.AVAILABLE, Instant.now()));
+
+    try {
+      repository.save(new BookItem("i2", "bc-0000aaaa", "d1", Status.AVAILABLE, Instant.now()));
+      fail("Expected duplicate barcode to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertNull(repository.getById("i2"));
+    assertEquals("i1", repository.findByBarcode("BC-0000AAAA").getId());
+  }
+
+  public void testDuplicateIsbnIsRejected() {
+    try {
+      repository.saveBookDefinition(new BookDefinition("d2", "Other", "Someone", "9780441013593", "Ace"));
+      fail("Expected duplicate ISBN to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertNull(repository.getBookDefinitionById("d2"));
+  }
+
+  public void testDeleteDefinitionDropsIsbnEntry() {
+    assertTrue(repository.deleteBookDefinition("d1"));
+
+    assertNull(repository.findByISBN("9780441013593"));
+    assertFalse(repository.deleteBookDefinition("d1"));
+    repository.saveBookDefinition(new BookDefinition("d2", "Dune", "Frank Herbert", "9780441013593", "Ace"));
+    assertEquals("d2", repository.findByISBN("978-0-44101-359-3").getId());
+  }
+
+  public void testTitleAndAuthorSearchFollowDefinitionUpdates() {
+    repository.saveBookDefinition(new BookDefinition("d2", "Les Misérables", "Victor Hugo", "9782070409228", "Gallimard"));
+
+    assertEquals("d2", repository.findByTitle("MISERABLES").get(0).getId());
+    assertEquals("d1", repository.findByAuthor("herbert").get(0).getId());
+
+    BookDefinition def = repository.getBookDefinitionById("d1");
+    def.setTitle("Children of Dune");
+    repository.updateBookDefinition(def);
+
+    assertEquals(1, repository.findByTitle("children").size());
+    assertEquals(1, repository.findByTitle("dune").size());
+
+    repository.deleteBookDefinition("d2");
+    assertTrue(repository.findByTitle("miserables").isEmpty());
+    assertTrue(repository.findByAuthor("hugo").isEmpty());
+  }
+
+  public void testBulkLoadJoinsItemsToDefinitionsAndIndexesEverything() {
+    List<BookDefinition> definitions = List.of(
+        new BookDefinition("d2", "Emma", "Jane Austen", "9780141439587", "Penguin"));
+    List<BookItem> items = List.of(
+        new BookItem("i1", "BC-00000001", "d1", Status.AVAILABLE, Instant.now()),
+        new BookItem("i2", "BC-00000002", "d2", Status.BORROWED, Instant.now()));
+
+    repository.bulkLoad(definitions, items);
+
+    assertEquals(2, repository.countBookDefinitions());
+    assertEquals(2, repository.count());
+    assertEquals("i2", repository.findByBarcode("bc-00000002").getId());
+    assertEquals("d2", repository.findByISBN("978-0-14143-958-7").getId());
+    assertEquals("d2", repository.findByAuthor("austen").get(0).getId());
+  }
+
+  public void testFailedBulkLoadLeavesRepositoryUnchanged() {
+    List<BookDefinition> definitions = List.of(
+        new BookDefinition("d2", "Emma", "Jane Austen", "9780141439587", "Penguin"));
+    List<BookItem> items = List.of(
+        new BookItem("i1", "BC-00000001", "d2", Status.AVAILABLE, Instant.now()),
+        new BookItem("i2", "BC-00000002", "missing", Status.AVAILABLE, Instant.now()));
+
+    try {
+      repository.bulkLoad(definitions, items);
+      fail("Expected the dangling definition reference to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(1, repository.countBookDefinitions());
+    assertEquals(0, repository.count());
+    assertNull(repository.findByISBN("9780141439587"));
+    assertTrue(repository.findByTitle("emma").isEmpty());
+  }
+
+  public void testStatusCountsFollowStatusChanges() {
+    repository.saveBookDefinition(new BookDefinition("d2", "Emma", "Jane Austen", "", null));
+    BookItem first = new BookItem("i1", "BC-1", "d1", Status.AVAILABLE, Instant.now());
+    BookItem second = new BookItem("i2", "BC-2", "d1", Status.AVAILABLE, Instant.now());
+    repository.save(first);
+    repository.save(second);
+    repository.save(new BookItem("i3", "BC-3", "d2", Status.LOST, Instant.now()));
+
+    assertEquals(2, repository.countByStatus("d1", Status.AVAILABLE));
+    assertEquals(List.of("d1"), repository.getAvailableBookDefinitions().stream().map(BookDefinition::getId).toList());
+
+    first.setStatus(Status.BORROWED);
+    repository.update(first);
+    second.setStatus(Status.BORROWED);
+    repository.update(second);
+
+    assertEquals(0, repository.countByStatus("d1", Status.AVAILABLE));
+    assertEquals(Integer.valueOf(2), repository.getStatusCounts("d1").get(Status.BORROWED));
+    assertEquals(Integer.valueOf(1), repository.getStatusCounts("d2").get(Status.LOST));
+    assertTrue(repository.getAvailableBookDefinitions().isEmpty());
+
+    repository.delete("i1");
+    second.setStatus(Status.AVAILABLE);
+    repository.update(second);
+
+    assertEquals(0, repository.countByStatus("d1", Status.BORROWED));
+    assertEquals(1, repository.countByStatus("d1", Status.AVAILABLE));
+    assertEquals("d1", repository.getAvailableBookDefinitions().get(0).getId());
+  }
+
+  /**
+   * Applies a long random sequence of saves, in-place updates and deletes and
+   * checks after every step that each index agrees with the backing data.
+   */
+  public void testIndexesNeverDriftFromBackingData() {
+    repository.saveBookDefinition(new BookDefinition("d2", "Emma", "Jane Austen", "", null));
+    Random random = new Random(42);
+    Map<String, BookItem> model = new HashMap<>();
+    Set<String> retiredBarcodes = new HashSet<>();
+    int nextId = 0;
+
+    for (int step = 0; step < 2_000; step++) {
+      List<String> ids = new ArrayList<>(model.keySet());
+      int op = ids.isEmpty() ? 0 : random.nextInt(3);
+
+      if (op == 0) {
+        String id = "i" + nextId++;
+        BookItem item = new BookItem(id, "BC-" + id, "d1", Status.AVAILABLE, Instant.now());
+        repository.save(item);
+        model.put(id, item);
+        retiredBarcodes.remove(item.getBarcode());
+      } else if (op == 1) {
+        BookItem item = model.get(ids.get(random.nextInt(ids.size())));
+        retiredBarcodes.add(item.getBarcode());
+        item.setBarcode("BC-" + item.getId() + "-" + step);
+        item.setBookDefId(random.nextBoolean() ? "d1" : "d2");
+        item.setStatus(Status.values()[random.nextInt(Status.values().length)]);
+        repository.update(item);
+      } else {
+        String id = ids.get(random.nextInt(ids.size()));
+        retiredBarcodes.add(model.remove(id).getBarcode());
+        repository.delete(id);
+      }
+
+      assertConsistent(model, retiredBarcodes);
+    }
+  }
+
+  private void assertConsistent(Map<String, BookItem> model, Set<String> retiredBarcodes) {
+    assertEquals(model.size(), repository.getAll().size());
+    for (BookItem item : model.values()) {
+      assertSame(item, repository.getById(item.getId()));
+      assertSame(item, repository.findByBarcode(item.getBarcode()));
+      assertSame(item, repository.findByBarcode(item.getBarcode().toLowerCase()));
+    }
+    for (String barcode : retiredBarcodes) {
+      assertNull(repository.findByBarcode(barcode));
+    }
+    Set<BookDefinition> available = new HashSet<>();
+    for (String definitionId : List.of("d1", "d2")) {
+      Set<BookItem> copies = new HashSet<>(repository.getByBookDefinitionId(definitionId));
+      assertEquals(repository.countByBookDefinitionId(definitionId), copies.size());
+      for (BookItem item : model.values()) {
+        assertEquals(item.getBookDefId().equals(definitionId), copies.contains(item));
+      }
+      for (Status status : Status.values()) {
+        long expected = copies.stream().filter(item -> item.getStatus() == status).count();
+        assertEquals(expected, repository.countByStatus(definitionId, status));
+      }
+      if (repository.countByStatus(definitionId, Status.AVAILABLE) > 0) {
+        available.add(repository.getBookDefinitionById(definitionId));
+      }
+    }
+    assertEquals(available, new HashSet<>(repository.getAvailableBookDefinitions()));
+  }
+}
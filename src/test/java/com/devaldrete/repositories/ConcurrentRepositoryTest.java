@@ -0,0 +1,226 @@
+package com.devaldrete.repositories;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+
+import junit.framework.TestCase;
+
+/**
+ * Hammers the repositories from several threads at once, with unique keys
+ * drawn from small shared pools so writers collide, and checks afterwards
+ * that every index agrees with the stored entities. Readers run alongside the
+ * writers and must never fail.
+ */
+public class ConcurrentRepositoryTest extends TestCase {
+
+  private static final int THREADS = 8;
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  public void testConcurrentItemWritesKeepIndexesConsistent() throws Exception {
+    BookRepository repository = new BookRepository();
+    for (String id : List.of("d1", "d2", "d3")) {
+      repository.saveBookDefinition(new BookDefinition(id, "Title " + id, "Author", "", null));
+    }
+
+    runConcurrently(() -> {
+      repository.getAll();
+      repository.findByTitle("title");
+      repository.getAvailableBookDefinitions();
+      repository.countByStatus("d1", Status.AVAILABLE);
+    }, thread -> {
+      Random random = new Random(thread);
+      for (int step = 0; step < 5_000; step++) {
+        // Each thread owns its item IDs; barcodes come from a shared pool
+        String id = "t" + thread + "-" + random.nextInt(50);
+        String barcode = "BC-" + random.nextInt(300);
+        String definitionId = "d" + (1 + random.nextInt(3));
+        Status status = Status.values()[random.nextInt(Status.values().length)];
+        try {
+          if (random.nextInt(4) == 0) {
+            repository.delete(id);
+          } else {
+            repository.update(new BookItem(id, barcode, definitionId, status, T0));
+          }
+        } catch (IllegalArgumentException barcodeTaken) {
+          // expected: another item holds the barcode
+        }
+      }
+    });
+
+    List<BookItem> items = repository.getAll();
+    assertEquals(repository.count(), items.size());
+    Set<String> barcodes = new HashSet<>();
+    for (BookItem item : items) {
+      assertTrue(barcodes.add(item.getBarcode()));
+      assertSame(item, repository.findByBarcode(item.getBarcode()));
+    }
+    for (int n = 0; n < 300; n++) {
+      BookItem holder = repository.findByBarcode("BC-" + n);
+      assertTrue(holder == null || items.contains(holder));
+    }
+    Set<String> available = new HashSet<>();
+    for (String definitionId : List.of("d1", "d2", "d3")) {
+      List<BookItem> copies = repository.getByBookDefinitionId(definitionId);
+      assertEquals(items.stream().filter(i -> i.getBookDefId().equals(definitionId)).count(), copies.size());
+      for (Status status : Status.values()) {
+        assertEquals(copies.stream().filter(i -> i.getStatus() == status).count(),
+            repository.countByStatus(definitionId, status));
+      }
+      if (repository.countByStatus(definitionId, Status.AVAILABLE) > 0) {
+        available.add(definitionId);
+      }
+    }
+    Set<String> reported = new HashSet<>();
+    repository.getAvailableBookDefinitions().forEach(d -> reported.add(d.getId()));
+    assertEquals(available, reported);
+  }
+
+  public void testRacingRegistrationsClaimEachEmailAndUsernameOnce() throws Exception {
+    UserRepository repository = new UserRepository();
+    AtomicInteger saved = new AtomicInteger();
+
+    runConcurrently(() -> {
+      repository.findByEmail("user7@example.com");
+      repository.getAll();
+    }, thread -> {
+      for (int n = 0; n < 1_000; n++) {
+        // Emails and usernames collide across threads, and with each other
+        // in different combinations, so a claim sometimes has to be undone
+        String email = "user" + (n % 400) + "@example.com";
+        String username = "name" + ((n * 7 + thread) % 400);
+        try {
+          repository.save(new Member(thread + "-" + n, username, email, "x"));
+          saved.incrementAndGet();
+        } catch (IllegalArgumentException taken) {
+          // expected
+        }
+      }
+    });
+
+    List<User> users = repository.getAll();
+    assertEquals(saved.get(), users.size());
+    Set<String> emails = new HashSet<>();
+    Set<String> usernames = new HashSet<>();
+    for (User user : users) {
+      assertTrue(emails.add(user.getEmail()));
+      assertTrue(usernames.add(user.getUsername()));
+      assertSame(user, repository.findByEmail(user.getEmail()));
+      assertSame(user, repository.findByUsername(user.getUsername()));
+    }
+    for (int n = 0; n < 400; n++) {
+      assertEquals(emails.contains("user" + n + "@example.com"), repository.emailExists("user" + n + "@example.com"));
+      assertEquals(usernames.contains("name" + n), repository.usernameExists("name" + n));
+    }
+  }
+
+  public void testNoCopyIsEverHeldByTwoLoans() throws Exception {
+    LoanRepository repository = new LoanRepository();
+    ConcurrentLinkedQueue<String> doubleLent = new ConcurrentLinkedQueue<>();
+
+    runConcurrently(() -> {
+      repository.findOverdueAsOf(T0.plus(5, ChronoUnit.DAYS));
+      repository.findByUserId("u1");
+    }, thread -> {
+      Random random = new Random(thread);
+      List<String> held = new ArrayList<>();
+      for (int step = 0; step < 5_000; step++) {
+        if (!held.isEmpty() && random.nextInt(3) == 0) {
+          repository.delete(held.remove(random.nextInt(held.size())));
+          continue;
+        }
+        String loanId = thread + "-" + step;
+        String bookId = "b" + random.nextInt(100);
+        Instant due = T0.plus(random.nextInt(10), ChronoUnit.DAYS);
+        try {
+          repository.save(new Loan(loanId, "u" + thread, bookId, T0, due));
+          held.add(loanId);
+          Loan holder = repository.findByBookItemId(bookId);
+          if (holder == null || !holder.getId().equals(loanId)) {
+            doubleLent.add(bookId);
+          }
+        } catch (IllegalArgumentException onLoan) {
+          // expected: another loan holds the copy
+        }
+      }
+    });
+
+    assertTrue("copies lent twice: " + doubleLent, doubleLent.isEmpty());
+    List<Loan> loans = repository.getAll();
+    Set<String> bookIds = new HashSet<>();
+    int byUser = 0;
+    for (Loan loan : loans) {
+      assertTrue(bookIds.add(loan.getBookId()));
+      assertSame(loan, repository.findByBookItemId(loan.getBookId()));
+    }
+    for (int thread = 0; thread < THREADS; thread++) {
+      byUser += repository.countByUserId("u" + thread);
+    }
+    assertEquals(loans.size(), byUser);
+    Instant asOf = T0.plus(5, ChronoUnit.DAYS);
+    assertEquals(repository.findOverdueAsOf(asOf).size(), repository.countOverdueAsOf(asOf));
+    assertEquals(loans.stream().filter(l -> l.getDueDate().isBefore(asOf)).count(),
+        repository.countOverdueAsOf(asOf));
+  }
+
+  /**
+   * Starts the writers together and runs the reader in a loop until they are
+   * done, failing if any of them threw.
+   */
+  private static void runConcurrently(Runnable reader, IntConsumer writer) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean done = new AtomicBoolean();
+    ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+    List<Thread> writers = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      int thread = i;
+      writers.add(Thread.ofPlatform().start(() -> {
+        try {
+          start.await();
+          writer.accept(thread);
+        } catch (Throwable e) {
+          failures.add(e);
+        }
+      }));
+    }
+    Thread readerThread = Thread.ofPlatform().start(() -> {
+      try {
+        start.await();
+        while (!done.get()) {
+          reader.run();
+        }
+      } catch (Throwable e) {
+        failures.add(e);
+      }
+    });
+
+    start.countDown();
+    for (Thread thread : writers) {
+      thread.join();
+    }
+    done.set(true);
+    readerThread.join();
+    if (!failures.isEmpty()) {
+      AssertionError error = new AssertionError("a thread failed: " + failures.peek());
+      error.initCause(failures.peek());
+      throw error;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.devaldrete.repositories;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import com.devaldrete.domain.Hold;
+
+import junit.framework.TestCase;
+
+public class HoldRepositoryTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private HoldRepository repository;
+
+  @Override
+  protected void setUp() {
+    repository = new HoldRepository();
+  }
+
+  private static Hold waiting(String id, String userId, String bookDefId) {
+    return new Hold(id, userId, bookDefId, T0, null, null);
+  }
+
+  private List<String> queue(String bookDefId) {
+    return repository.findWaiting(bookDefId).stream().map(Hold::getId).toList();
+  }
+
+  public void testQueueIsFirstComeFirstServedAndCancelsFromAnywhere() {
+    for (int i = 1; i <= 4; i++) {
+      repository.save(waiting("h" + i, "u" + i, "d1"));
+    }
+    repository.save(waiting("other", "u1", "d2"));
+
+    repository.delete("h2");
+    assertEquals(List.of("h1", "h3", "h4"), queue("d1"));
+    assertEquals(3, repository.countWaiting("d1"));
+
+    Hold next = repository.assignNext("d1", "b1", T0.plus(7, ChronoUnit.DAYS));
+    assertEquals("h1", next.getId());
+    assertSame(next, repository.findReadyByBookItemId("b1"));
+    assertEquals(List.of("h3", "h4"), queue("d1"));
+    assertEquals(List.of("other"), queue("d2"));
+  }
+
+  public void testOneHoldPerUserAndTitleAndOneHoldPerCopy() {
+    repository.save(waiting("h1", "u1", "d1"));
+    try {
+      repository.save(waiting("h2", "u1", "d1"));
+      fail("Expected the second hold on the title to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    repository.save(new Hold("h3", "u2", "d1", T0, "b1", T0.plus(7, ChronoUnit.DAYS)));
+    try {
+      repository.save(new Hold("h4", "u3", "d1", T0, "b1", T0.plus(7, ChronoUnit.DAYS)));
+      fail("Expected the copy to be set aside once");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+
+    repository.delete("h1");
+    repository.save(waiting("h5", "u1", "d1"));
+    assertEquals(List.of("h5"), queue("d1"));
+    assertNull(repository.getById("h4"));
+  }
+
+  public void testHoldThatLosesItsCopyReturnsToTheFront() {
+    repository.save(waiting("h1", "u1", "d1"));
+    repository.save(waiting("h2", "u2", "d1"));
+    Hold ready = repository.assignNext("d1", "b1", T0.plus(7, ChronoUnit.DAYS));
+
+    ready.setBookItemId(null);
+    ready.setExpiresAt(null);
+    repository.update(ready);
+
+    assertEquals(List.of("h1", "h2"), queue("d1"));
+    assertNull(repository.findReadyByBookItemId("b1"));
+    assertTrue(repository.findExpiredAsOf(T0.plus(30, ChronoUnit.DAYS)).isEmpty());
+  }
+
+  public void testExpiredHoldsAreFoundByDeadline() {
+    for (int i = 1; i <= 3; i++) {
+      repository.save(waiting("h" + i, "u" + i, "d1"));
+      repository.assignNext("d1", "b" + i, T0.plus(i, ChronoUnit.DAYS));
+    }
+
+    assertEquals(List.of("h1", "h2"),
+        repository.findExpiredAsOf(T0.plus(2, ChronoUnit.DAYS).plusSeconds(1)).stream().map(Hold::getId).toList());
+    repository.delete("h1");
+    assertEquals(List.of("h2"),
+        repository.findExpiredAsOf(T0.plus(2, ChronoUnit.DAYS).plusSeconds(1)).stream().map(Hold::getId).toList());
+    assertEquals(2, repository.findByUserId("u2").size() + repository.findByUserId("u3").size());
+  }
+
+  /**
+   * Cancelling from the middle and serving the head of a long queue touch
+   * only the holds involved, so draining 50,000 holds is quick.
+   */
+  public void testLongQueuesStayConstantTimePerOperation() {
+    int holds = 50_000;
+    for (int i = 0; i < holds; i++) {
+      repository.save(waiting("h" + i, "u" + i, "popular"));
+    }
+    for (int i = 1; i < holds; i += 2) {
+      assertNotNull(repository.deleteIfExists("h" + i));
+    }
+    for (int i = 0; i < holds; i += 2) {
+      Hold next = repository.assignNext("popular", "b" + i, T0.plus(7, ChronoUnit.DAYS));
+      assertEquals("h" + i, next.getId());
+      repository.delete(next.getId());
+    }
+    assertEquals(0, repository.countWaiting("popular"));
+    assertEquals(0, repository.count());
+    assertNull(repository.assignNext("popular", "b0", T0));
+  }
+}
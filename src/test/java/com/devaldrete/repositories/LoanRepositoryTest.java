@@ -0,0 +1,183 @@
+package com.devaldrete.repositories;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.devaldrete.MutableClock;
+import com.devaldrete.domain.Loan;
+
+import junit.framework.TestCase;
+
+public class LoanRepositoryTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private MutableClock clock;
+  private LoanRepository repository;
+
+  @Override
+  protected void setUp() {
+    clock = new MutableClock(T0);
+    repository = new LoanRepository(clock);
+  }
+
+  private static Loan loan(String id, String userId, String bookId, int dueInDays) {
+    return new Loan(id, userId, bookId, T0, T0.plus(dueInDays, ChronoUnit.DAYS));
+  }
+
+  public void testLookupsByUserAndBookItem() {
+    Loan a = loan("l1", "u1", "b1", 14);
+    Loan b = loan("l2", "u1", "b2", 14);
+    Loan c = loan("l3", "u2", "b3", 14);
+    repository.save(a);
+    repository.save(b);
+    repository.save(c);
+
+    assertEquals(List.of(a, b), repository.findByUserId("u1"));
+    assertEquals(2, repository.countByUserId("u1"));
+    assertEquals(0, repository.countByUserId("nobody"));
+    assertTrue(repository.findByUserId("nobody").isEmpty());
+    assertSame(c, repository.findByBookItemId("b3"));
+    assertNull(repository.findByBookItemId("b4"));
+    assertSame(b, repository.getById("l2"));
+  }
+
+  public void testSecondLoanOnSameCopyIsRejected() {
+    repository.save(loan("l1", "u1", "b1", 14));
+
+    try {
+      repository.save(loan("l2", "u2", "b1", 14));
+      fail("Expected the copy to be reported as already on loan");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(1, repository.count());
+  }
+
+  public void testDueDateRangeQueries() {
+    Loan early = loan("l1", "u1", "b1", 1);
+    Loan mid = loan("l2", "u1", "b2", 5);
+    Loan late = loan("l3", "u2", "b3", 10);
+    repository.save(late);
+    repository.save(early);
+    repository.save(mid);
+
+    assertEquals(List.of(early, mid),
+        repository.findDueBetween(T0, T0.plus(10, ChronoUnit.DAYS)));
+    assertEquals(List.of(mid, late),
+        repository.findDueBetween(T0.plus(5, ChronoUnit.DAYS), T0.plus(11, ChronoUnit.DAYS)));
+    assertTrue(repository.findDueBetween(T0.plus(3, ChronoUnit.DAYS), T0.plus(2, ChronoUnit.DAYS)).isEmpty());
+  }
+
+  public void testInPlaceChangesAreReindexedOnUpdate() {
+    Loan loan = loan("l1", "u1", "b1", 1);
+    repository.save(loan);
+
+    loan.setUserId("u2");
+    loan.setBookId("b2");
+    loan.setDueDate(T0.plus(20, ChronoUnit.DAYS));
+    repository.update(loan);
+
+    assertEquals(0, repository.countByUserId("u1"));
+    assertEquals(List.of(loan), repository.findByUserId("u2"));
+    assertNull(repository.findByBookItemId("b1"));
+    assertSame(loan, repository.findByBookItemId("b2"));
+    assertTrue(repository.findDueBetween(T0, T0.plus(2, ChronoUnit.DAYS)).isEmpty());
+    assertEquals(List.of(loan), repository.findDueBetween(T0, T0.plus(21, ChronoUnit.DAYS)));
+  }
+
+  public void testDeleteRemovesFromEveryIndex() {
+    repository.save(loan("l1", "u1", "b1", 1));
+    repository.delete("l1");
+
+    assertNull(repository.getById("l1"));
+    assertEquals(0, repository.countByUserId("u1"));
+    assertNull(repository.findByBookItemId("b1"));
+    assertTrue(repository.findDueBetween(T0, T0.plus(30, ChronoUnit.DAYS)).isEmpty());
+    try {
+      repository.delete("l1");
+      fail("Expected missing loan to be reported");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  public void testLoansSharingADueDateAreRemovedOneByOne() {
+    List<Loan> loans = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) {
+      loans.add(loan("l" + i, "u" + i % 10, "b" + i, 3));
+    }
+    repository.bulkLoad(loans);
+    repository.save(loan("extra", "u0", "extra-copy", 3));
+    assertEquals(1_001, repository.countOverdueAsOf(T0.plus(4, ChronoUnit.DAYS)));
+
+    for (int i = 0; i < 1_000; i += 2) {
+      repository.delete("l" + i);
+    }
+    assertEquals(501, repository.findOverdueAsOf(T0.plus(4, ChronoUnit.DAYS)).size());
+    assertEquals(501, repository.countOverdueAsOf(T0.plus(4, ChronoUnit.DAYS)));
+    for (int i = 1; i < 1_000; i += 2) {
+      repository.delete("l" + i);
+    }
+    repository.delete("extra");
+    assertTrue(repository.findDueBetween(T0, T0.plus(30, ChronoUnit.DAYS)).isEmpty());
+    assertEquals(0, repository.countOverdueAsOf(T0.plus(4, ChronoUnit.DAYS)));
+  }
+
+  public void testOverdueFollowsTheClock() {
+    Loan a = loan("l1", "u1", "b1", 1);
+    Loan b = loan("l2", "u1", "b2", 3);
+    Loan c = loan("l3", "u2", "b3", 7);
+    repository.save(a);
+    repository.save(b);
+    repository.save(c);
+
+    assertEquals(0, repository.countOverdue());
+    assertTrue(repository.findOverdue().isEmpty());
+
+    clock.advance(Duration.ofDays(4));
+    assertEquals(2, repository.countOverdue());
+    assertEquals(List.of(a, b), repository.findOverdue());
+    assertEquals(List.of(c), repository.findDueWithin(Duration.ofDays(4)));
+    assertTrue(repository.findDueWithin(Duration.ofDays(3)).isEmpty());
+
+    clock.advance(Duration.ofDays(10));
+    assertEquals(3, repository.countOverdue());
+    assertEquals(List.of(a), repository.findOverdueAsOf(T0.plus(2, ChronoUnit.DAYS)));
+  }
+
+  public void testOverdueCountTracksMutationsBehindTheWatermark() {
+    clock.advance(Duration.ofDays(5));
+    assertEquals(0, repository.countOverdue());
+
+    Loan late = loan("l1", "u1", "b1", 1);
+    repository.save(late);
+    repository.save(loan("l2", "u1", "b2", 9));
+    assertEquals(1, repository.countOverdue());
+
+    // Extending a late loan past "now" takes it out of the count
+    late.setDueDate(T0.plus(20, ChronoUnit.DAYS));
+    repository.update(late);
+    assertEquals(0, repository.countOverdue());
+
+    repository.save(loan("l3", "u2", "b3", 2));
+    assertEquals(1, repository.countOverdue());
+    repository.delete("l3");
+    assertEquals(0, repository.countOverdue());
+  }
+
+  public void testOverdueCountWhenClockMovesBackwards() {
+    repository.save(loan("l1", "u1", "b1", 1));
+    repository.save(loan("l2", "u1", "b2", 3));
+
+    clock.advance(Duration.ofDays(10));
+    assertEquals(2, repository.countOverdue());
+
+    clock.setInstant(T0.plus(2, ChronoUnit.DAYS));
+    assertEquals(1, repository.countOverdue());
+    assertEquals(2, repository.countOverdueAsOf(T0.plus(3, ChronoUnit.DAYS).plusMillis(1)));
+  }
+}
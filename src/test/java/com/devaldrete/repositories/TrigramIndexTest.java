@@ -0,0 +1,57 @@
+package com.devaldrete.repositories;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TrigramIndexTest extends TestCase {
+
+  private TrigramIndex index;
+
+  @Override
+  protected void setUp() {
+    index = new TrigramIndex();
+    index.put("1", "Cien años de soledad");
+    index.put("2", "El amor en los tiempos del cólera");
+    index.put("3", "Crónica de una muerte anunciada");
+  }
+
+  public void testNormalizeFoldsCaseAndAccents() {
+    assertEquals("gabriel garcia marquez", TrigramIndex.normalize("Gabriel García MÁRQUEZ"));
+    assertEquals("", TrigramIndex.normalize(null));
+  }
+
+  public void testSubstringSearchIgnoresCaseAndAccents() {
+    assertEquals(List.of("1"), index.search("ANOS"));
+    assertEquals(List.of("2"), index.search("colera"));
+    assertEquals(List.of("3"), index.search("Crónica"));
+    assertTrue(index.search("nadie").isEmpty());
+  }
+
+  public void testAllGramsPresentButNotContiguousIsNotAMatch() {
+    index.put("4", "abc bcd");
+
+    // Both grams of "abcd" occur in doc 4, but not next to each other
+    assertTrue(index.search("abcd").isEmpty());
+    assertEquals(List.of("4"), index.search("c bc"));
+  }
+
+  public void testShortQueriesFallBackToScan() {
+    List<String> matches = index.search("de");
+    assertEquals(3, matches.size());
+    assertTrue(index.search("zz").isEmpty());
+  }
+
+  public void testReindexAndRemoveAreIncremental() {
+    index.put("1", "Memoria de mis putas tristes");
+
+    assertTrue(index.search("soledad").isEmpty());
+    assertEquals(List.of("1"), index.search("tristes"));
+
+    index.remove("1");
+    index.remove("2");
+    index.remove("3");
+    assertTrue(index.search("tristes").isEmpty());
+    assertEquals(0, index.gramCount());
+  }
+}
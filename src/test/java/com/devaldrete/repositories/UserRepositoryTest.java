@@ -0,0 +1,112 @@
+package com.devaldrete.repositories;
+
+import java.util.List;
+
+import com.devaldrete.domain.Administrator;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.User;
+import com.devaldrete.services.UserService;
+
+import junit.framework.TestCase;
+
+public class UserRepositoryTest extends TestCase {
+
+  private UserRepository repository;
+
+  @Override
+  protected void setUp() {
+    repository = new UserRepository();
+    repository.save(new Member("1", "john", "john@example.com", "password123"));
+  }
+
+  public void testEmailAndUsernameLookupsAreNormalized() {
+    assertEquals("1", repository.findByEmail("  John@Example.COM ").getId());
+    assertEquals("1", repository.findByUsername("JOHN").getId());
+    assertTrue(repository.emailExists("JOHN@example.com"));
+    assertTrue(repository.usernameExists(" john "));
+    assertFalse(repository.emailExists("anna@example.com"));
+    assertNull(repository.findByEmail("anna@example.com"));
+  }
+
+  public void testModCountAdvancesOnlyOnChanges() {
+    long start = repository.getModCount();
+    repository.getAll();
+    repository.findByEmail("john@example.com");
+    try {
+      repository.save(new Member("2", "john", "other@example.com", "x"));
+    } catch (IllegalArgumentException expected) {
+      // rejected saves are not changes
+    }
+    assertEquals(start, repository.getModCount());
+
+    repository.update(new Member("1", "johnny", "john@example.com", "x"));
+    repository.bulkLoad(List.of(new Member("2", "anna", "anna@example.com", "x")));
+    repository.delete("2");
+    assertEquals(start + 3, repository.getModCount());
+  }
+
+  public void testDuplicateEmailOrUsernameIsRejected() {
+    try {
+      repository.save(new Member("2", "johnny", "JOHN@example.com", "x"));
+      fail("Expected duplicate email to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      repository.save(new Member("3", "John", "other@example.com", "x"));
+      fail("Expected duplicate username to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(1, repository.count());
+    assertFalse(repository.emailExists("other@example.com"));
+  }
+
+  public void testInPlaceChangesAreReindexedOnUpdate() {
+    User user = repository.getById("1");
+    user.setEmail("j.smith@example.com");
+    user.setUsername("jsmith");
+    repository.update(user);
+
+    assertNull(repository.findByEmail("john@example.com"));
+    assertNull(repository.findByUsername("john"));
+    assertSame(user, repository.findByEmail("J.Smith@example.com"));
+    assertSame(user, repository.findByUsername("jsmith"));
+
+    // The old keys are free again
+    repository.save(new Member("2", "john", "john@example.com", "x"));
+    assertEquals("2", repository.findByEmail("john@example.com").getId());
+  }
+
+  public void testDeleteFreesEmailAndUsername() {
+    repository.delete("1");
+
+    assertFalse(repository.emailExists("john@example.com"));
+    assertFalse(repository.usernameExists("john"));
+    assertNull(repository.findByEmail("john@example.com"));
+  }
+
+  public void testUpgradeToAdministratorKeepsIndexesOnNewInstance() {
+    UserService service = new UserService(repository);
+
+    assertTrue(service.upgradeToAdministrator("1"));
+
+    assertTrue(repository.findByEmail("john@example.com") instanceof Administrator);
+    assertTrue(repository.findByUsername("john") instanceof Administrator);
+    assertSame(repository.getById("1"), repository.findByEmail("john@example.com"));
+  }
+
+  public void testServiceUpdateLeavesUserUntouchedOnConflict() {
+    UserService service = new UserService(repository);
+    repository.save(new Member("2", "anna", "anna@example.com", "password123"));
+
+    try {
+      service.update("2", "anna", "john@example.com", "secret");
+      fail("Expected the email conflict to be reported");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals("anna@example.com", repository.getById("2").getEmail());
+    assertEquals("1", repository.findByEmail("john@example.com").getId());
+  }
+}
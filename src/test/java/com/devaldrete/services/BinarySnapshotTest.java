@@ -0,0 +1,150 @@
+package com.devaldrete.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.devaldrete.domain.Administrator;
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+
+import junit.framework.TestCase;
+
+public class BinarySnapshotTest extends TestCase {
+
+  private static final String UUID_ID = "123e4567-e89b-12d3-a456-426614174000";
+  private static final Instant PRECISE = Instant.parse("2026-03-04T05:06:07.123456789Z");
+
+  private static byte[] books(List<BookDefinition> definitions, List<BookItem> items) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinarySnapshot.writeBooks(out, definitions, items);
+    return out.toByteArray();
+  }
+
+  private static ByteSource source(byte[] bytes) {
+    return ByteSource.of(List.of(ByteBuffer.wrap(bytes)));
+  }
+
+  /** Serves the bytes as direct buffers of {@code size} bytes each, like small mapped windows. */
+  private static ByteSource windows(byte[] bytes, int size) {
+    List<ByteBuffer> windows = new ArrayList<>();
+    for (int offset = 0; offset < bytes.length; offset += size) {
+      int length = Math.min(size, bytes.length - offset);
+      windows.add(ByteBuffer.allocateDirect(length).put(bytes, offset, length).flip());
+    }
+    return ByteSource.of(windows);
+  }
+
+  public void testUsersRoundTripWithRoles() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinarySnapshot.writeUsers(out, List.of(
+        new Administrator("0", "admin", "admin@example.com", "pa\"ss"),
+        new Member(UUID_ID, "josé", "jose@example.com", null)));
+
+    List<User> users = BinarySnapshot.readUsers(source(out.toByteArray()));
+
+    assertEquals(2, users.size());
+    assertTrue(users.get(0) instanceof Administrator);
+    assertEquals("pa\"ss", users.get(0).getPassword());
+    assertTrue(users.get(1) instanceof Member);
+    assertEquals(UUID_ID, users.get(1).getId());
+    assertEquals("josé", users.get(1).getUsername());
+    assertNull(users.get(1).getPassword());
+  }
+
+  public void testBooksAndLoansRoundTripExactly() throws IOException {
+    byte[] bytes = books(
+        List.of(new BookDefinition(UUID_ID, "Cien años", "García Márquez", "9780060883287", null),
+            new BookDefinition("d2", "El otoño", "García Márquez", "", "Harper 📚")),
+        List.of(new BookItem("i1", "BC-00000001", UUID_ID, Status.LOST, PRECISE)));
+    BinarySnapshot.Books books = BinarySnapshot.readBooks(source(bytes));
+
+    BookDefinition first = books.definitions().get(0);
+    assertEquals(UUID_ID, first.getId());
+    assertEquals("García Márquez", first.getAuthor());
+    assertNull(first.getPublisher());
+    assertEquals("", books.definitions().get(1).getIsbn());
+    assertEquals("Harper 📚", books.definitions().get(1).getPublisher());
+    BookItem item = books.items().get(0);
+    assertEquals(UUID_ID, item.getBookDefId());
+    assertEquals(Status.LOST, item.getStatus());
+    assertEquals(PRECISE, item.getAcquisitionDate());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinarySnapshot.writeLoans(out, List.of(new Loan("l1", "0", "i1", Instant.EPOCH.minusNanos(1), PRECISE)));
+    Loan loan = BinarySnapshot.readLoans(source(out.toByteArray())).get(0);
+    assertEquals(Instant.EPOCH.minusNanos(1), loan.getCreatedAt());
+    assertEquals(PRECISE, loan.getDueDate());
+  }
+
+  public void testRecordsStraddlingWindowsAreDecoded() throws IOException {
+    List<BookDefinition> definitions = new ArrayList<>();
+    List<BookItem> items = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      definitions.add(new BookDefinition("d" + i, "Título " + i, "Author " + (i % 3), "978" + i, null));
+      items.add(new BookItem(UUID_ID.substring(0, 34) + (10 + i), "BC-" + i, "d" + i, Status.AVAILABLE, PRECISE));
+    }
+    byte[] bytes = books(definitions, items);
+
+    for (int size : new int[] {1, 3, 7, 64}) {
+      BinarySnapshot.Books books = BinarySnapshot.readBooks(windows(bytes, size));
+      assertEquals(50, books.items().size());
+      assertEquals("Título 49", books.definitions().get(49).getTitle());
+      assertEquals("Author 1", books.definitions().get(49).getAuthor());
+      assertEquals(UUID_ID.substring(0, 34) + "59", books.items().get(49).getId());
+      assertEquals(PRECISE, books.items().get(49).getAcquisitionDate());
+    }
+  }
+
+  public void testRepeatedAuthorsAreStoredOnce() throws IOException {
+    String author = "An Author With A Fairly Long Name";
+    List<BookDefinition> one = List.of(new BookDefinition("d0", "T", author, "", "P"));
+    List<BookDefinition> many = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      many.add(new BookDefinition("d" + i, "T", author, "", "P"));
+    }
+
+    int perDefinition = (books(many, List.of()).length - books(one, List.of()).length) / 99;
+    assertTrue("bytes per definition: " + perDefinition, perDefinition < author.length());
+  }
+
+  public void testCorruptionIsDetectedByTheChecksum() throws IOException {
+    byte[] bytes = books(List.of(new BookDefinition("d1", "Dune", "Frank Herbert", "9780441013593", "Ace")),
+        List.of());
+    int title = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("Dune");
+    bytes[title] = 'T';
+
+    try {
+      BinarySnapshot.readBooks(source(bytes));
+      fail("Expected the checksum to catch the flipped byte");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().contains("checksum"));
+    }
+  }
+
+  public void testWrongKindAndTruncatedFilesAreRejected() throws IOException {
+    byte[] bytes = books(List.of(), List.of());
+
+    try {
+      BinarySnapshot.readLoans(source(bytes));
+      fail("Expected a books file to be rejected as loans");
+    } catch (IOException expected) {
+      // expected
+    }
+    try {
+      BinarySnapshot.readBooks(source(Arrays.copyOf(bytes, bytes.length - 2)));
+      fail("Expected a truncated file to be rejected");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.devaldrete.services;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.devaldrete.MutableClock;
+
+import junit.framework.TestCase;
+
+public class DeadlineSchedulerTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private MutableClock clock;
+  private DeadlineScheduler scheduler;
+
+  @Override
+  protected void setUp() {
+    clock = new MutableClock(T0);
+    scheduler = new DeadlineScheduler(clock);
+  }
+
+  public void testCallbacksRunOnceTheirDeadlinePasses() {
+    List<String> fired = new ArrayList<>();
+    scheduler.schedule(T0.plusSeconds(90), () -> fired.add("90s"));
+    scheduler.schedule(T0.plusMillis(90_500), () -> fired.add("90.5s"));
+    scheduler.schedule(T0.plus(Duration.ofDays(14)), () -> fired.add("14d"));
+
+    assertEquals(0, scheduler.runDueAsOf(T0.plusMillis(89_999)));
+    assertEquals(1, scheduler.runDueAsOf(T0.plusSeconds(90)));
+    assertEquals(List.of("90s"), fired);
+    // A deadline inside a tick waits for the end of the tick
+    assertEquals(0, scheduler.runDueAsOf(T0.plusMillis(90_500)));
+    assertEquals(1, scheduler.runDueAsOf(T0.plusSeconds(91)));
+
+    clock.advance(Duration.ofDays(14).minusSeconds(1));
+    assertEquals(0, scheduler.runDue());
+    clock.advance(Duration.ofSeconds(1));
+    assertEquals(1, scheduler.runDue());
+    assertEquals(List.of("90s", "90.5s", "14d"), fired);
+    assertEquals(0, scheduler.pending());
+  }
+
+  public void testCancelledDeadlinesNeverRun() {
+    List<String> fired = new ArrayList<>();
+    DeadlineScheduler.Deadline kept = scheduler.schedule(T0.plusSeconds(10), () -> fired.add("kept"));
+    DeadlineScheduler.Deadline dropped = scheduler.schedule(T0.plusSeconds(10), () -> fired.add("dropped"));
+
+    assertTrue(scheduler.cancel(dropped));
+    assertFalse(scheduler.cancel(dropped));
+    assertEquals(1, scheduler.pending());
+    assertEquals(1, scheduler.runDueAsOf(T0.plusSeconds(10)));
+    assertFalse(scheduler.cancel(kept));
+    assertEquals(List.of("kept"), fired);
+  }
+
+  public void testPastDeadlinesRunOnTheNextTickAndAFailureSparesTheRest() {
+    List<String> fired = new ArrayList<>();
+    List<Throwable> failures = new ArrayList<>();
+    Thread current = Thread.currentThread();
+    Thread.UncaughtExceptionHandler handler = current.getUncaughtExceptionHandler();
+    current.setUncaughtExceptionHandler((thread, e) -> failures.add(e));
+    try {
+      scheduler.schedule(T0.minusSeconds(5), () -> {
+        throw new IllegalStateException("boom");
+      });
+      scheduler.schedule(T0.minus(Duration.ofDays(3)), () -> fired.add("late"));
+
+      assertEquals(2, scheduler.runDue());
+    } finally {
+      current.setUncaughtExceptionHandler(handler);
+    }
+    assertEquals(List.of("late"), fired);
+    assertEquals(1, failures.size());
+  }
+
+  /**
+   * Deadlines spread over several years land on every level of the wheel and
+   * cross its slot boundaries; each must fire in the first run at or after it
+   * and never before.
+   */
+  public void testEveryDeadlineFiresInTheRunThatReachesIt() {
+    Random random = new Random(7);
+    Map<Integer, Instant> expected = new HashMap<>();
+    Map<Integer, Instant> firedAt = new HashMap<>();
+    Instant[] now = { T0 };
+    List<DeadlineScheduler.Deadline> handles = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      int id = i;
+      long seconds = switch (i % 4) {
+        case 0 -> random.nextInt(120);
+        case 1 -> random.nextInt(86_400);
+        case 2 -> random.nextInt(86_400 * 60);
+        default -> (long) random.nextInt(86_400 * 365) * 5;
+      };
+      Instant at = T0.plusSeconds(1 + seconds);
+      expected.put(id, at);
+      handles.add(scheduler.schedule(at, () -> firedAt.put(id, now[0])));
+    }
+    for (int i = 0; i < handles.size(); i += 3) {
+      assertTrue(scheduler.cancel(handles.get(i)));
+      expected.remove(i);
+    }
+
+    Instant previous = T0;
+    Instant end = T0.plus(Duration.ofDays(365 * 5 + 1));
+    while (previous.isBefore(end)) {
+      now[0] = previous.plusSeconds(1 + random.nextInt(random.nextBoolean() ? 100 : 400_000));
+      scheduler.runDueAsOf(now[0]);
+      for (Map.Entry<Integer, Instant> entry : firedAt.entrySet()) {
+        Instant at = expected.get(entry.getKey());
+        assertNotNull("cancelled deadline fired: " + entry.getKey(), at);
+        assertTrue("fired early: " + entry.getKey(), !at.isAfter(now[0]));
+        assertTrue("fired late: " + entry.getKey(), at.isAfter(previous));
+        expected.remove(entry.getKey());
+      }
+      firedAt.clear();
+      previous = now[0];
+    }
+    assertTrue(expected.isEmpty());
+    assertEquals(0, scheduler.pending());
+  }
+
+  public void testStartedSchedulerFiresOnItsOwnThread() throws InterruptedException {
+    try (DeadlineScheduler running = new DeadlineScheduler(Clock.systemUTC(), Duration.ofMillis(5))) {
+      CountDownLatch fired = new CountDownLatch(1);
+      Thread[] firedOn = new Thread[1];
+      running.schedule(Instant.now().plusMillis(20), () -> {
+        firedOn[0] = Thread.currentThread();
+        fired.countDown();
+      });
+      running.start();
+
+      assertTrue(fired.await(5, TimeUnit.SECONDS));
+      assertTrue(firedOn[0].isVirtual());
+      try {
+        running.start();
+        fail("Expected a second start to be refused");
+      } catch (IllegalStateException expected) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.devaldrete.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import com.devaldrete.MutableClock;
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+
+import junit.framework.TestCase;
+
+public class HoldServiceTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private MutableClock clock;
+  private BookService bookService;
+  private DeadlineScheduler scheduler;
+  private HoldService holdService;
+  private LoanService loanService;
+
+  @Override
+  protected void setUp() {
+    clock = new MutableClock(T0);
+    UserService userService = new UserService();
+    bookService = new BookService();
+    scheduler = new DeadlineScheduler(clock);
+    holdService = new HoldService(userService, bookService, clock, scheduler);
+    loanService = new LoanService(userService, bookService, holdService, clock);
+
+    for (int i = 1; i <= 4; i++) {
+      userService.save(new Member("u" + i, "member" + i, "member" + i + "@example.com", "x"));
+    }
+    bookService.bulkLoad(
+        List.of(new BookDefinition("d1", "Dune", "Frank Herbert", "9780441013593", "Ace")),
+        List.of(new BookItem("b1", "BC-00000001", "d1", Status.AVAILABLE, T0)));
+  }
+
+  private Status status(String itemId) {
+    return bookService.findById(itemId).getStatus();
+  }
+
+  public void testHoldsAreOnlyPlacedWhenNoCopyIsAvailable() {
+    try {
+      holdService.placeHold("u2", "d1");
+      fail("Expected the available copy to be pointed out");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    loanService.loanBook("u1", "BC-00000001");
+    holdService.placeHold("u2", "d1");
+    try {
+      holdService.placeHold("u2", "d1");
+      fail("Expected the second hold to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(1, holdService.countWaiting("d1"));
+  }
+
+  public void testReturnedCopyGoesToTheFirstHoldOnly() {
+    Loan loan = loanService.loanBook("u1", "BC-00000001");
+    Hold first = holdService.placeHold("u2", "d1");
+    Hold second = holdService.placeHold("u3", "d1");
+
+    loanService.returnBook(loan.getId());
+
+    assertEquals(Status.RESERVED, status("b1"));
+    assertTrue(holdService.getById(first.getId()).isReady());
+    assertEquals(T0.plus(Duration.ofDays(HoldService.PICKUP_DAYS)), first.getExpiresAt());
+    assertEquals(List.of(second), holdService.getQueue("d1"));
+    try {
+      loanService.loanBook("u3", "BC-00000001");
+      fail("Expected the copy to be reserved for the first hold");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("reserved"));
+    }
+
+    loanService.loanBook("u2", "BC-00000001");
+    assertEquals(Status.BORROWED, status("b1"));
+    assertNull(holdService.getById(first.getId()));
+    assertEquals(1, holdService.count());
+  }
+
+  public void testPickupOverTheLoanLimitKeepsTheHold() {
+    bookService.bulkLoad(List.of(), List.of(new BookItem("b2", "BC-00000002", "d1", Status.AVAILABLE, T0),
+        new BookItem("b3", "BC-00000003", "d1", Status.AVAILABLE, T0)));
+    Loan loan = loanService.loanBook("u1", "BC-00000001");
+    loanService.loanBook("u2", "BC-00000002");
+    loanService.loanBook("u2", "BC-00000003");
+    Hold hold = holdService.placeHold("u2", "d1");
+    loanService.returnBook(loan.getId());
+
+    try {
+      loanService.loanBook("u2", "BC-00000001");
+      fail("Expected the loan limit to apply");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(Status.RESERVED, status("b1"));
+    assertSame(hold, holdService.getReadyHold("b1"));
+  }
+
+  public void testExpiredAndCancelledHoldsPassTheCopyOn() {
+    Loan loan = loanService.loanBook("u1", "BC-00000001");
+    Hold first = holdService.placeHold("u2", "d1");
+    Hold second = holdService.placeHold("u3", "d1");
+    Hold third = holdService.placeHold("u4", "d1");
+    loanService.returnBook(loan.getId());
+
+    assertEquals(0, holdService.expireHolds());
+    clock.advance(Duration.ofDays(HoldService.PICKUP_DAYS).plusSeconds(1));
+    try {
+      loanService.loanBook("u2", "BC-00000001");
+      fail("Expected the expired hold to be refused");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("expired"));
+    }
+    assertEquals(1, holdService.expireHolds());
+    assertNull(holdService.getById(first.getId()));
+    assertSame(second, holdService.getReadyHold("b1"));
+
+    holdService.cancelHold(second.getId());
+    assertSame(third, holdService.getReadyHold("b1"));
+    holdService.cancelHold(third.getId());
+    assertEquals(Status.AVAILABLE, status("b1"));
+    assertEquals(0, holdService.count());
+  }
+
+  public void testSchedulerExpiresTheHoldWhenItsWindowCloses() {
+    Loan loan = loanService.loanBook("u1", "BC-00000001");
+    Hold first = holdService.placeHold("u2", "d1");
+    Hold second = holdService.placeHold("u3", "d1");
+    loanService.returnBook(loan.getId());
+
+    clock.advance(Duration.ofDays(HoldService.PICKUP_DAYS).minusSeconds(1));
+    scheduler.runDue();
+    assertSame(first, holdService.getReadyHold("b1"));
+    clock.advance(Duration.ofSeconds(1));
+    scheduler.runDue();
+    assertNull(holdService.getById(first.getId()));
+    assertSame(second, holdService.getReadyHold("b1"));
+
+    // Picking the copy up cancels the expiry of the new window
+    loanService.loanBook("u3", "BC-00000001");
+    assertEquals(1, scheduler.pending());
+  }
+
+  public void testRemovingAReservedCopyPutsItsHoldBackInFront() {
+    Loan loan = loanService.loanBook("u1", "BC-00000001");
+    Hold first = holdService.placeHold("u2", "d1");
+    holdService.placeHold("u3", "d1");
+    loanService.returnBook(loan.getId());
+
+    loanService.removeBookItem("BC-00000001", DeletePolicy.RESTRICT);
+    assertEquals(first.getId(), holdService.getQueue("d1").get(0).getId());
+
+    BookItem added = bookService.addBookItem("d1");
+    assertEquals(1, holdService.offerAvailableCopies("d1"));
+    assertEquals(Status.RESERVED, status(added.getId()));
+    assertEquals(first.getId(), holdService.getReadyHold(added.getId()).getId());
+
+    loanService.removeBookDefinition("d1", DeletePolicy.CASCADE);
+    assertEquals(0, holdService.count());
+  }
+
+  public void testReservationsLeftFromAnotherRunAreReleased() {
+    bookService.bulkLoad(List.of(), List.of(new BookItem("b2", "BC-00000002", "d1", Status.RESERVED, T0)));
+
+    assertEquals(1, holdService.releaseUnclaimedReservations());
+    assertEquals(Status.AVAILABLE, status("b2"));
+  }
+}
@@ -0,0 +1,158 @@
+package com.devaldrete.services;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+
+import junit.framework.TestCase;
+
+public class IntegrityCheckerTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private static BookItem item(String id, String barcode, String definitionId, Status status) {
+    return new BookItem(id, barcode, definitionId, status, T0);
+  }
+
+  private static Loan loan(String id, String userId, String itemId) {
+    return new Loan(id, userId, itemId, T0, T0.plus(14, ChronoUnit.DAYS));
+  }
+
+  private static SnapshotContents consistent() {
+    return new SnapshotContents(
+        new ArrayList<>(List.of(new Member("u1", "ana", "ana@example.com", "pw"))),
+        new ArrayList<>(List.of(new BookDefinition("d1", "Dune", "Frank Herbert", "978-0-441-01359-3", "Ace"))),
+        new ArrayList<>(List.of(item("i1", "BC-00000001", "d1", Status.BORROWED),
+            item("i2", "BC-00000002", "d1", Status.AVAILABLE))),
+        new ArrayList<>(List.of(loan("l1", "u1", "i1"))));
+  }
+
+  private static List<IntegrityChecker.Kind> kinds(SnapshotContents contents) {
+    return IntegrityChecker.check(contents).stream().map(IntegrityChecker.Problem::kind).toList();
+  }
+
+  public void testConsistentSnapshotHasNoProblems() {
+    assertTrue(IntegrityChecker.check(consistent()).isEmpty());
+  }
+
+  public void testOrphansAndDuplicatesAreReportedInFileOrder() {
+    SnapshotContents contents = consistent();
+    contents.definitions().add(new BookDefinition("d2", "Dune (again)", "Frank Herbert", "9780441013593", null));
+    contents.items().add(item("i3", "bc-00000001 ", "d1", Status.AVAILABLE));
+    contents.items().add(item("i4", "BC-00000004", "gone", Status.AVAILABLE));
+    contents.loans().add(loan("l2", "removed-user", "i2"));
+    contents.loans().add(loan("l3", "u1", "i1"));
+    contents.loans().add(loan("l4", "u1", "no-such-item"));
+
+    List<IntegrityChecker.Problem> problems = IntegrityChecker.check(contents);
+
+    assertEquals(List.of(
+        IntegrityChecker.Kind.DUPLICATE_ISBN,
+        IntegrityChecker.Kind.LOANED_BUT_NOT_BORROWED,
+        IntegrityChecker.Kind.DUPLICATE_BARCODE,
+        IntegrityChecker.Kind.ITEM_WITHOUT_DEFINITION,
+        IntegrityChecker.Kind.LOAN_WITHOUT_USER,
+        IntegrityChecker.Kind.ITEM_LOANED_TWICE,
+        IntegrityChecker.Kind.LOAN_WITHOUT_ITEM), kinds(contents));
+    assertEquals("d2", problems.get(0).id());
+    assertEquals("i2", problems.get(1).id());
+    assertEquals("l3", problems.get(5).id());
+  }
+
+  public void testBorrowedCopyWithoutLoanIsReported() {
+    SnapshotContents contents = consistent();
+    contents.loans().clear();
+
+    assertEquals(List.of(IntegrityChecker.Kind.BORROWED_WITHOUT_LOAN), kinds(contents));
+  }
+
+  public void testRepairResolvesEveryProblemAndTheResultLoads() {
+    SnapshotContents contents = consistent();
+    contents.users().add(new Member("u1", "ana-copy", "copy@example.com", "pw"));
+    contents.definitions().add(new BookDefinition("d2", "Dune (again)", "Frank Herbert", "9780441013593", null));
+    contents.items().add(item("i3", "BC-00000001", "d2", Status.BORROWED));
+    contents.items().add(item("i4", "BC-00000004", "gone", Status.AVAILABLE));
+    contents.loans().add(loan("l2", "removed-user", "i2"));
+    contents.loans().add(loan("l3", "u1", "i1"));
+
+    SnapshotContents repaired = IntegrityChecker.repair(contents);
+
+    assertTrue(IntegrityChecker.check(repaired).toString(), IntegrityChecker.check(repaired).isEmpty());
+    assertEquals(1, repaired.users().size());
+    assertEquals(1, repaired.definitions().size());
+    assertEquals(List.of("i1", "i2", "i3"), repaired.items().stream().map(BookItem::getId).toList());
+    // Merged into the definition that owns the ISBN, relabelled, and released
+    BookItem merged = repaired.items().get(2);
+    assertEquals("d1", merged.getBookDefId());
+    assertFalse("BC-00000001".equals(merged.getBarcode()));
+    assertEquals(Status.AVAILABLE, merged.getStatus());
+    assertEquals(List.of("l1"), repaired.loans().stream().map(Loan::getId).toList());
+    // The input is left untouched
+    assertEquals(Status.BORROWED, contents.items().get(2).getStatus());
+
+    Library library = new Library("Test", "Nowhere");
+    library.getUserService().bulkLoad(repaired.users());
+    library.getBookService().bulkLoad(repaired.definitions(), repaired.items());
+    library.getLoanService().bulkLoad(repaired.loans());
+    assertEquals(3, library.getBookService().countItems());
+  }
+
+  public void testBrokenHoldsAreReportedAndDropped() {
+    SnapshotContents base = consistent();
+    List<Hold> holds = new ArrayList<>(List.of(
+        new Hold("h1", "u1", "d1", T0, null, null),
+        new Hold("h2", "removed-user", "d1", T0, null, null),
+        new Hold("h3", "u1", "d1", T0, null, null),
+        new Hold("h4", "u1", "gone", T0, null, null)));
+    SnapshotContents contents = new SnapshotContents(base.users(), base.definitions(), base.items(),
+        base.loans(), holds);
+
+    assertEquals(List.of(
+        IntegrityChecker.Kind.HOLD_WITHOUT_USER,
+        IntegrityChecker.Kind.TITLE_HELD_TWICE,
+        IntegrityChecker.Kind.HOLD_WITHOUT_DEFINITION), kinds(contents));
+
+    SnapshotContents repaired = IntegrityChecker.repair(contents);
+    assertTrue(IntegrityChecker.check(repaired).isEmpty());
+    assertEquals(List.of("h1"), repaired.holds().stream().map(Hold::getId).toList());
+  }
+
+  public void testLargeSnapshotIsCheckedInLinearTime() {
+    int count = 200_000;
+    List<User> users = new ArrayList<>();
+    List<BookDefinition> definitions = new ArrayList<>();
+    List<BookItem> items = new ArrayList<>();
+    List<Loan> loans = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      if (i % 100 == 0) {
+        users.add(new Member("u" + i, "user" + i, "user" + i + "@example.com", "pw"));
+      }
+      if (i % 10 == 0) {
+        definitions.add(new BookDefinition("d" + i, "Title " + i, "Author", "978" + i, null));
+      }
+      boolean loaned = i % 20 == 0;
+      items.add(item("i" + i, "BC-" + i, "d" + (i / 10 * 10), loaned ? Status.BORROWED : Status.AVAILABLE));
+      if (loaned) {
+        loans.add(loan("l" + i, "u" + (i / 100 * 100), "i" + i));
+      }
+    }
+    loans.add(loan("orphan", "nobody", "i1"));
+
+    long start = System.nanoTime();
+    List<IntegrityChecker.Problem> problems =
+        IntegrityChecker.check(new SnapshotContents(users, definitions, items, loans));
+    long millis = (System.nanoTime() - start) / 1_000_000;
+
+    assertEquals(2, problems.size());
+    assertTrue("took " + millis + " ms", millis < 10_000);
+  }
+}
@@ -0,0 +1,125 @@
+package com.devaldrete.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.TestCase;
+
+public class JsonReaderTest extends TestCase {
+
+  private static JsonReader reader(String json) {
+    return new JsonReader(Channels.newChannel(
+        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+  }
+
+  public void testReadsFlatObjectsInAnArray() throws IOException {
+    JsonReader reader = reader("[ {\"a\": \"1\", \"b\": \"x\"}, {\"a\": \"2\"} ]");
+
+    reader.beginArray();
+    assertTrue(reader.hasNext());
+    reader.beginObject();
+    assertEquals("a", reader.nextName());
+    assertEquals("1", reader.nextString());
+    assertTrue(reader.hasNext());
+    assertEquals("b", reader.nextName());
+    assertEquals("x", reader.nextString());
+    assertFalse(reader.hasNext());
+    reader.endObject();
+    assertTrue(reader.hasNext());
+    reader.beginObject();
+    assertEquals("a", reader.nextName());
+    assertEquals("2", reader.nextString());
+    reader.endObject();
+    assertFalse(reader.hasNext());
+    reader.endArray();
+  }
+
+  public void testReadsAcrossSmallMappedWindows() throws IOException {
+    Path file = Files.createTempFile("shelfs-json", ".json");
+    try {
+      Files.writeString(file, "[{\"title\": \"Garc\u00eda \ud83d\udcda\"}, {\"title\": \"x\\ty\"}]");
+      try (JsonReader reader = new JsonReader(
+          new MappedFile(FileChannel.open(file, StandardOpenOption.READ), 3))) {
+        reader.beginArray();
+        reader.beginObject();
+        assertEquals("title", reader.nextName());
+        assertEquals("Garc\u00eda \ud83d\udcda", reader.nextString());
+        reader.endObject();
+        reader.beginObject();
+        assertEquals("title", reader.nextName());
+        assertEquals("x\ty", reader.nextString());
+        reader.endObject();
+        reader.endArray();
+        assertEquals(Files.size(file), reader.position());
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  public void testDecodesAllEscapesAndMultibyteText() throws IOException {
+    JsonReader reader = reader(
+        "[\"q\\\"b\\\\s\\/n\\nr\\rt\\tb\\bf\\f\", \"\\u00e9t\\u00E9\", \"\\ud83d\\udcda\", \"Garc\u00eda \ud83d\udcda\"]");
+
+    reader.beginArray();
+    assertEquals("q\"b\\s/n\nr\rt\tb\bf\f", reader.nextString());
+    assertEquals("\u00e9t\u00e9", reader.nextString());
+    assertEquals("\ud83d\udcda", reader.nextString());
+    assertEquals("Garc\u00eda \ud83d\udcda", reader.nextString());
+    reader.endArray();
+  }
+
+  public void testLiteralsAndSkippedValues() throws IOException {
+    JsonReader reader = reader(
+        "{\"n\": 42, \"t\": true, \"z\": null, \"skip\": {\"x\": [1, {\"y\": \"}\"}], \"w\": []}, \"k\": \"v\"}");
+
+    reader.beginObject();
+    assertEquals("n", reader.nextName());
+    assertEquals("42", reader.nextString());
+    assertEquals("t", reader.nextName());
+    assertEquals("true", reader.nextString());
+    assertEquals("z", reader.nextName());
+    assertNull(reader.nextString());
+    assertEquals("skip", reader.nextName());
+    reader.skipValue();
+    assertTrue(reader.hasNext());
+    assertEquals("k", reader.nextName());
+    assertEquals("v", reader.nextString());
+    reader.endObject();
+  }
+
+  public void testStringsSpanningBufferRefills() throws IOException {
+    String longValue = "\u00e9".repeat(100_000);
+    JsonReader reader = reader("[\"" + longValue + "\"]");
+
+    reader.beginArray();
+    assertEquals(longValue, reader.nextString());
+    reader.endArray();
+  }
+
+  public void testSyntaxErrorsAreReported() {
+    String[] malformed = { "[\"a\" \"b\"]", "[\"a\",]", "{\"a\" \"b\"}", "[\"\\x\"]", "[\"open" };
+    for (String json : malformed) {
+      try {
+        JsonReader reader = reader(json);
+        reader.beginArray();
+        while (reader.hasNext()) {
+          if (json.startsWith("{")) {
+            reader.nextName();
+          }
+          reader.nextString();
+        }
+        reader.endArray();
+        fail("Expected a syntax error for " + json);
+      } catch (IOException expected) {
+        // expected
+      }
+    }
+  }
+}
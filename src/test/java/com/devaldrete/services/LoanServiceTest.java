@@ -0,0 +1,333 @@
+package com.devaldrete.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+import com.devaldrete.MutableClock;
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Status;
+
+import junit.framework.TestCase;
+
+public class LoanServiceTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  private MutableClock clock;
+  private UserService userService;
+  private BookService bookService;
+  private LoanService loanService;
+
+  @Override
+  protected void setUp() {
+    clock = new MutableClock(T0);
+    userService = new UserService();
+    bookService = new BookService();
+    loanService = new LoanService(userService, bookService, clock);
+
+    userService.save(new Member("u1", "john", "john@example.com", "password123"));
+    bookService.bulkLoad(
+        List.of(new BookDefinition("d1", "Dune", "Frank Herbert", "9780441013593", "Ace")),
+        List.of(new BookItem("b1", "BC-00000001", "d1", Status.BORROWED, T0),
+            new BookItem("b2", "BC-00000002", "d1", Status.AVAILABLE, T0)));
+  }
+
+  private static Loan loan(String id, String userId, String bookId) {
+    return new Loan(id, userId, bookId, T0, T0.plus(14, ChronoUnit.DAYS));
+  }
+
+  public void testBulkLoadResolvesUsersAndItems() {
+    loanService.bulkLoad(List.of(loan("l1", "u1", "b1")));
+
+    assertEquals(1, loanService.count());
+    assertEquals("l1", loanService.getByBookItemId("b1").getId());
+  }
+
+  public void testLoansAreReportedOverdueWhenTheirDueDatePasses() {
+    DeadlineScheduler scheduler = new DeadlineScheduler(clock);
+    LoanService service = new LoanService(userService, bookService,
+        new HoldService(userService, bookService, clock, scheduler), clock);
+    List<Loan> overdue = new ArrayList<>();
+    service.addOverdueListener(overdue::add);
+    service.bulkLoad(List.of(new Loan("l1", "u1", "b1", T0.minus(20, ChronoUnit.DAYS), T0.minusSeconds(60))));
+    Loan kept = service.loanBook("u1", "BC-00000002");
+
+    assertEquals(1, scheduler.runDue());
+    assertEquals(List.of("l1"), overdue.stream().map(Loan::getId).toList());
+    service.returnBook("l1");
+    assertEquals(1, scheduler.pending());
+
+    clock.advance(Duration.ofDays(14));
+    assertEquals(1, scheduler.runDue());
+    assertEquals(kept, overdue.get(1));
+    service.returnBook(kept.getId());
+    assertEquals(0, scheduler.pending());
+  }
+
+  public void testBulkLoadRejectsOrphansWithoutLoadingAnything() {
+    try {
+      loanService.bulkLoad(List.of(loan("l1", "u1", "b1"), loan("l2", "ghost", "b2")));
+      fail("Expected the missing user to be reported");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      loanService.bulkLoad(List.of(loan("l3", "u1", "missing")));
+      fail("Expected the missing book item to be reported");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(0, loanService.count());
+  }
+
+  public void testLoanUsesInjectedClock() {
+    Loan loan = loanService.loanBook("u1", "BC-00000002");
+
+    assertEquals(T0, loan.getCreatedAt());
+    assertEquals(Status.BORROWED, bookService.findById("b2").getStatus());
+    assertEquals(0, loanService.countOverdue());
+
+    clock.advance(Duration.ofDays(15));
+    assertEquals(1, loanService.countOverdue());
+  }
+
+  public void testRestrictKeepsUsersAndCopiesThatAreOnLoan() {
+    loanService.bulkLoad(List.of(loan("l1", "u1", "b1")));
+
+    try {
+      loanService.removeUser("u1", DeletePolicy.RESTRICT);
+      fail("Expected the active loan to block the delete");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      loanService.removeBookItem("BC-00000001", DeletePolicy.RESTRICT);
+      fail("Expected the active loan to block the delete");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      loanService.removeBookDefinition("d1", DeletePolicy.RESTRICT);
+      fail("Expected the copies to block the delete");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+
+    assertNotNull(userService.getById("u1"));
+    assertEquals(2, bookService.countItems());
+    assertEquals(1, loanService.count());
+    assertTrue(loanService.removeBookItem("BC-00000002", DeletePolicy.RESTRICT));
+    assertFalse(loanService.removeUser("ghost", DeletePolicy.RESTRICT));
+  }
+
+  public void testCascadingUserRemovalReturnsTheirLoans() {
+    loanService.bulkLoad(List.of(loan("l1", "u1", "b1")));
+
+    assertTrue(loanService.removeUser("u1", DeletePolicy.CASCADE));
+
+    assertNull(userService.getById("u1"));
+    assertEquals(0, loanService.count());
+    assertEquals(Status.AVAILABLE, bookService.findById("b1").getStatus());
+  }
+
+  public void testCascadingDefinitionRemovalDeletesCopiesAndLoans() {
+    loanService.bulkLoad(List.of(loan("l1", "u1", "b1")));
+
+    assertTrue(loanService.removeBookDefinition("d1", DeletePolicy.CASCADE));
+
+    assertNull(bookService.findDefinitionById("d1"));
+    assertEquals(0, bookService.countItems());
+    assertEquals(0, loanService.count());
+    assertTrue(IntegrityChecker.check(new SnapshotContents(userService.getAll(),
+        bookService.getAllDefinitions(), bookService.getAllItems(), loanService.getAll())).isEmpty());
+  }
+
+  public void testBatchCheckoutReportsEachScan() {
+    bookService.bulkLoad(List.of(), List.of(new BookItem("b3", "BC-00000003", "d1", Status.AVAILABLE, T0)));
+
+    List<CheckoutResult> results = loanService.loanBooks("u1",
+        List.of("BC-00000002", "BC-00000001", "nope", "BC-00000002", "BC-00000003"));
+
+    assertEquals(List.of("BC-00000002", "BC-00000001", "nope", "BC-00000002", "BC-00000003"),
+        results.stream().map(CheckoutResult::barcode).toList());
+    assertEquals(List.of(true, false, false, false, true), results.stream().map(CheckoutResult::lent).toList());
+    assertTrue(results.get(1).error().contains("not available"));
+    assertTrue(results.get(2).error().contains("not found"));
+    assertTrue(results.get(3).error().contains("already scanned"));
+    assertEquals("b3", results.get(4).loan().getBookId());
+    assertEquals(2, loanService.getByUserId("u1").size());
+    assertEquals(Status.BORROWED, bookService.findById("b2").getStatus());
+  }
+
+  public void testBatchOverTheLoanLimitLendsNothing() {
+    bookService.bulkLoad(List.of(), List.of(new BookItem("b3", "BC-00000003", "d1", Status.AVAILABLE, T0),
+        new BookItem("b4", "BC-00000004", "d1", Status.AVAILABLE, T0)));
+    loanService.loanBook("u1", "BC-00000004");
+
+    try {
+      loanService.loanBooks("u1", List.of("BC-00000002", "BC-00000003"));
+      fail("Expected the batch to exceed the loan limit");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertEquals(1, loanService.count());
+    assertEquals(2, bookService.countAvailableCopies("d1"));
+  }
+
+  public void testReturnByBarcodeEndsTheLoanHoldingTheCopy() {
+    Loan loan = loanService.loanBook("u1", "BC-00000002");
+
+    assertEquals(loan.getId(), loanService.returnByBarcode("BC-00000002").getId());
+    assertEquals(0, loanService.count());
+    assertEquals(Status.AVAILABLE, bookService.findById("b2").getStatus());
+    try {
+      loanService.returnByBarcode("BC-00000002");
+      fail("Expected the copy to be reported as not on loan");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("not on loan"));
+    }
+  }
+
+  public void testStreamedReturnsRunInBatchesAndReportEachScan() {
+    List<BookItem> copies = new ArrayList<>();
+    List<Loan> loans = new ArrayList<>();
+    List<String> scans = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      userService.save(new Member("m" + i, "member" + i, "member" + i + "@example.com", "x"));
+      copies.add(new BookItem("c" + i, "BC-1000" + i, "d1", Status.BORROWED, T0));
+      loans.add(loan("l" + i, "m" + i, "c" + i));
+      scans.add("BC-1000" + i);
+    }
+    bookService.bulkLoad(List.of(), copies);
+    loanService.bulkLoad(loans);
+    scans.add(3, "nope");
+    scans.add(7, "BC-10002");
+    scans.add("BC-00000002");
+    AtomicInteger batches = new AtomicInteger();
+    loanService.setWriteBatcher(new WriteBatcher() {
+      @Override
+      public <T> T batch(Supplier<T> changes) {
+        batches.incrementAndGet();
+        return changes.get();
+      }
+    });
+    List<ReturnResult> results = new ArrayList<>();
+
+    assertEquals(10, loanService.returnBooks(scans.stream(), 5, results::add));
+
+    assertEquals(3, batches.get());
+    assertEquals(scans, results.stream().map(ReturnResult::barcode).toList());
+    assertTrue(results.get(3).error().contains("not found"));
+    assertTrue(results.get(7).error().contains("not on loan"));
+    assertTrue(results.get(12).error().contains("not on loan"));
+    assertEquals(0, loanService.count());
+    assertEquals(11, bookService.countAvailableCopies("d1"));
+  }
+
+  public void testConcurrentCheckoutsOfOneCopyLendItOnce() throws InterruptedException {
+    for (int i = 0; i < 8; i++) {
+      userService.save(new Member("m" + i, "member" + i, "member" + i + "@example.com", "x"));
+    }
+    AtomicInteger lent = new AtomicInteger();
+
+    runConcurrently(8, thread -> {
+      try {
+        loanService.loanBook("m" + thread, "BC-00000002");
+        lent.incrementAndGet();
+      } catch (IllegalArgumentException notAvailable) {
+        // expected for all but one
+      }
+    });
+
+    assertEquals(1, lent.get());
+    assertEquals(1, loanService.count());
+    assertEquals(Status.BORROWED, bookService.findById("b2").getStatus());
+  }
+
+  /**
+   * Several desks lend and return at random against a small pool of copies and
+   * users; afterwards no copy may be held by two loans, no user may exceed the
+   * loan limit, and a copy must be borrowed exactly when a loan holds it.
+   */
+  public void testConcurrentCheckoutsNeverDoubleLendOrExceedTheLimit() throws InterruptedException {
+    List<BookItem> copies = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      copies.add(new BookItem("c" + i, "BC-1000" + i, "d1", Status.AVAILABLE, T0));
+    }
+    bookService.bulkLoad(List.of(), copies);
+    for (int i = 0; i < 6; i++) {
+      userService.save(new Member("m" + i, "member" + i, "member" + i + "@example.com", "x"));
+    }
+    ConcurrentLinkedQueue<String> overLimit = new ConcurrentLinkedQueue<>();
+
+    runConcurrently(8, thread -> {
+      Random random = new Random(thread);
+      for (int step = 0; step < 3_000; step++) {
+        String userId = "m" + random.nextInt(6);
+        List<Loan> held = loanService.getByUserId(userId);
+        if (held.size() > 2) {
+          overLimit.add(userId);
+        }
+        if (!held.isEmpty() && random.nextBoolean()) {
+          loanService.returnBook(held.get(random.nextInt(held.size())).getId());
+          continue;
+        }
+        try {
+          loanService.loanBook(userId, "BC-1000" + random.nextInt(20));
+        } catch (IllegalArgumentException unavailableOrAtLimit) {
+          // expected
+        }
+      }
+    });
+
+    assertTrue("users over the limit: " + overLimit, overLimit.isEmpty());
+    Set<String> lentCopies = new HashSet<>();
+    for (Loan loan : loanService.getAll()) {
+      assertTrue("copy lent twice: " + loan.getBookId(), lentCopies.add(loan.getBookId()));
+    }
+    for (int i = 0; i < 6; i++) {
+      assertTrue(loanService.getByUserId("m" + i).size() <= 2);
+    }
+    for (BookItem copy : copies) {
+      assertEquals(copy.getId(), lentCopies.contains(copy.getId()), copy.getStatus() == Status.BORROWED);
+    }
+    // b2 from setUp is the one other available copy of d1
+    assertEquals(20 - lentCopies.size() + 1, bookService.countAvailableCopies("d1"));
+  }
+
+  private static void runConcurrently(int threads, IntConsumer body) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      int thread = i;
+      workers.add(Thread.ofPlatform().start(() -> {
+        try {
+          start.await();
+          body.accept(thread);
+        } catch (Throwable e) {
+          failures.add(e);
+        }
+      }));
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertTrue("a thread failed: " + failures, failures.isEmpty());
+  }
+}
@@ -0,0 +1,72 @@
+package com.devaldrete.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MappedFileTest extends TestCase {
+
+  private Path file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = Files.createTempFile("shelfs-mapped", ".ndjson");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.delete(file);
+  }
+
+  private MappedFile open(long windowSize) throws IOException {
+    return new MappedFile(FileChannel.open(file, StandardOpenOption.READ), windowSize);
+  }
+
+  private static String drain(ByteSource source) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (ByteBuffer window = source.next(); window != null; window = source.next()) {
+      byte[] bytes = new byte[window.remaining()];
+      window.get(bytes);
+      out.write(bytes);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  public void testWindowsCoverTheWholeFile() throws IOException {
+    Files.writeString(file, "0123456789abcdef!");
+
+    try (MappedFile mapped = open(5)) {
+      assertEquals("0123456789abcdef!", drain(mapped));
+    }
+  }
+
+  public void testSplitAtLinesYieldsWholeLinesInOrder() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      text.append("{\"n\":").append(i).append("}\n");
+    }
+    Files.writeString(file, text);
+
+    for (int count : new int[] {1, 3, 7, 1000}) {
+      try (MappedFile mapped = open(16)) {
+        List<ByteSource> chunks = mapped.splitAtLines(count);
+        assertTrue(chunks.size() <= count);
+        StringBuilder joined = new StringBuilder();
+        for (ByteSource chunk : chunks) {
+          String part = drain(chunk);
+          assertTrue("chunk ends mid-line: " + part, part.endsWith("\n"));
+          joined.append(part);
+        }
+        assertEquals(text.toString(), joined.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,663 @@
+package com.devaldrete.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import com.devaldrete.domain.Administrator;
+import com.devaldrete.domain.BookDefinition;
+import com.devaldrete.domain.BookItem;
+import com.devaldrete.domain.Hold;
+import com.devaldrete.domain.Loan;
+import com.devaldrete.domain.Member;
+import com.devaldrete.domain.Role;
+import com.devaldrete.domain.Status;
+import com.devaldrete.domain.User;
+
+import junit.framework.TestCase;
+
+public class PersistenceServiceTest extends TestCase {
+
+  private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+  // No automatic checkpoints, so journal contents are deterministic
+  private static final JournalSettings MANUAL =
+      JournalSettings.DEFAULTS.withCheckpointTriggers(0, Duration.ZERO).withQuietPeriod(Duration.ZERO);
+
+  private Path dataDir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dataDir = Files.createTempDirectory("shelfs-test");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dataDir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private static Library populatedLibrary() {
+    Library library = new Library("Test", "Nowhere");
+    library.addUser(new Administrator("0", "admin", "admin@example.com", "pa\"ss\\word"));
+    library.addUser(new Member("1", "jos\u00e9", "jose@example.com", "line\nbreak\ttab"));
+    library.getBookService().bulkLoad(
+        List.of(new BookDefinition("d1", "Cien a\u00f1os de soledad", "Garc\u00eda M\u00e1rquez", "9780060883287",
+            "Harper \ud83d\udcda")),
+        List.of(new BookItem("i1", "BC-00000001", "d1", Status.BORROWED, T0),
+            new BookItem("i2", "BC-00000002", "d1", Status.AVAILABLE, T0)));
+    library.getLoanService().bulkLoad(
+        List.of(new Loan("l1", "1", "i1", T0, T0.plus(14, ChronoUnit.DAYS))));
+    return library;
+  }
+
+  public void testSaveThenLoadRoundTripsEveryRecord() {
+    Library original = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(original.getUserService(), original.getBookService(), original.getLoanService());
+
+    Library restored = new Library("Test", "Nowhere");
+    persistence.loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+
+    assertEquals(2, restored.getUserService().count());
+    assertTrue(restored.getUserService().getById("0") instanceof Administrator);
+    assertEquals("pa\"ss\\word", restored.getUserService().getById("0").getPassword());
+    assertEquals("line\nbreak\ttab", restored.getUserService().getById("1").getPassword());
+    assertEquals("jos\u00e9", restored.getUserService().findByEmail("jose@example.com").getUsername());
+
+    BookDefinition def = restored.getBookService().findByISBN("9780060883287");
+    assertEquals("Cien a\u00f1os de soledad", def.getTitle());
+    assertEquals("Harper \ud83d\udcda", def.getPublisher());
+    assertEquals(Status.BORROWED, restored.getBookService().findByBarcode("BC-00000001").getStatus());
+    assertEquals(T0, restored.getBookService().findById("i2").getAcquisitionDate());
+
+    Loan loan = restored.getLoanService().getByBookItemId("i1");
+    assertEquals("l1", loan.getId());
+    assertEquals(T0.plus(14, ChronoUnit.DAYS), loan.getDueDate());
+  }
+
+  public void testFilesKeepThePrettyPrintedLayout() throws IOException {
+    Library library = new Library("Test", "Nowhere");
+    library.addUser(new Member("1", "john", "john@example.com", "password123"));
+    new PersistenceService(dataDir).saveAll(
+        library.getUserService(), library.getBookService(), library.getLoanService());
+
+    assertEquals("[\n"
+        + "  {\n"
+        + "    \"id\": \"1\",\n"
+        + "    \"username\": \"john\",\n"
+        + "    \"email\": \"john@example.com\",\n"
+        + "    \"password\": \"password123\",\n"
+        + "    \"role\": \"MEMBER\"\n"
+        + "  }\n"
+        + "]", Files.readString(dataDir.resolve("users.json")));
+    assertEquals("{\n  \"definitions\": [],\n  \"items\": []\n}", Files.readString(dataDir.resolve("books.json")));
+  }
+
+  public void testFailedSaveKeepsPreviousFileAndLeavesNoTempFile() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    String before = Files.readString(dataDir.resolve("books.json"));
+
+    // A record that cannot be serialized aborts the save half-way through
+    BookItem broken = library.getBookService().findById("i2");
+    broken.setAcquisitionDate(null);
+    library.getBookService().updateBookItem(broken);
+    try {
+      persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+      fail("Expected the save to fail");
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getMessage().contains("books.json"));
+    }
+
+    assertEquals(before, Files.readString(dataDir.resolve("books.json")));
+    assertFalse(Files.exists(dataDir.resolve("books.json.tmp")));
+  }
+
+  public void testMalformedFileIsReportedWithItsPath() throws IOException {
+    Files.writeString(dataDir.resolve("users.json"), "[ {\"id\": \"1\" \"username\": \"x\"} ]");
+    Library library = new Library("Test", "Nowhere");
+
+    try {
+      new PersistenceService(dataDir).loadAll(
+          library.getUserService(), library.getBookService(), library.getLoanService());
+      fail("Expected the syntax error to surface");
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getMessage().contains("users.json"));
+    }
+  }
+
+  public void testLoadFailsCleanlyWhenOneOfTheConcurrentFilesIsBad() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    Files.writeString(dataDir.resolve("books.json"), "{\"definitions\": [ {\"id\": }");
+
+    Library target = new Library("Test", "Nowhere");
+    try {
+      persistence.loadAll(target.getUserService(), target.getBookService(), target.getLoanService());
+      fail("Expected the books file to fail the load");
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getMessage().contains("books.json"));
+    }
+    // Loans are only installed once users and books are in
+    assertEquals(0, target.getLoanService().count());
+  }
+
+  public void testUnchangedFilesAreNotRewritten() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+
+    // A read-only session: nothing is written, so deleted files stay deleted
+    Library loaded = new Library("Test", "Nowhere");
+    PersistenceService session = new PersistenceService(dataDir);
+    session.loadAll(loaded.getUserService(), loaded.getBookService(), loaded.getLoanService());
+    Files.delete(dataDir.resolve("users.json"));
+    Files.delete(dataDir.resolve("books.json"));
+    Files.delete(dataDir.resolve("loans.json"));
+    session.saveAll(loaded.getUserService(), loaded.getBookService(), loaded.getLoanService());
+    assertFalse(Files.exists(dataDir.resolve("users.json")));
+    assertFalse(Files.exists(dataDir.resolve("books.json")));
+
+    // Only the stores that changed are written again
+    loaded.getLoanService().returnBook(loaded.getLoanService().getAll().get(0).getId());
+    session.saveAll(loaded.getUserService(), loaded.getBookService(), loaded.getLoanService());
+    assertFalse(Files.exists(dataDir.resolve("users.json")));
+    assertTrue(Files.exists(dataDir.resolve("books.json")));
+    assertTrue(Files.exists(dataDir.resolve("loans.json")));
+  }
+
+  private static Library reload(PersistenceService persistence) {
+    Library library = new Library("Test", "Nowhere");
+    persistence.loadAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    persistence.replayJournal(library.getUserService(), library.getBookService(), library.getLoanService());
+    return library;
+  }
+
+  private static void openJournal(PersistenceService persistence, Library library) {
+    persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService(), MANUAL);
+  }
+
+  public void testJournaledChangesSurviveWithoutAFinalSave() {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    openJournal(persistence, library);
+
+    library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+    library.getUserService().update("1", "jose", "jose@example.org", "changed");
+    library.getLoanService().returnBook("l1");
+    Loan loan = library.getLoanService().loanBook("1", "BC-00000002");
+    library.getBookService().removeBookItem("BC-00000001");
+    persistence.close();
+
+    Library restored = reload(new PersistenceService(dataDir));
+
+    assertEquals(3, restored.getUserService().count());
+    assertEquals("jose", restored.getUserService().findByEmail("jose@example.org").getUsername());
+    assertNull(restored.getUserService().findByEmail("jose@example.com"));
+    assertNull(restored.getBookService().findById("i1"));
+    assertEquals(Status.BORROWED, restored.getBookService().findById("i2").getStatus());
+    assertEquals(List.of(loan.getId()), restored.getLoanService().getAll().stream().map(Loan::getId).toList());
+  }
+
+  /**
+   * Lends the last copy of d1 and queues two holds on it, then returns a copy
+   * so that the first hold is ready and the second still waits.
+   */
+  private static Hold[] placeHolds(Library library) {
+    library.addUser(new Member("2", "kim", "kim@example.com", "secret"));
+    library.getLoanService().loanBook("0", "BC-00000002");
+    Hold ready = library.getHoldService().placeHold("1", "d1");
+    Hold waiting = library.getHoldService().placeHold("2", "d1");
+    library.getLoanService().returnBook("l1");
+    return new Hold[] {ready, waiting};
+  }
+
+  private static void assertHoldsRestored(String message, Library restored, Hold[] holds) {
+    HoldService holdService = restored.getHoldService();
+    Hold ready = holdService.getReadyHold("i1");
+    assertEquals(message, holds[0].getId(), ready.getId());
+    assertEquals(message, holds[0].getExpiresAt(), ready.getExpiresAt());
+    assertEquals(message, Status.RESERVED, restored.getBookService().findById("i1").getStatus());
+    assertEquals(message, List.of(holds[1].getId()),
+        holdService.getQueue("d1").stream().map(Hold::getId).toList());
+    assertEquals(message, 0, holdService.releaseUnclaimedReservations());
+  }
+
+  public void testHoldsRoundTripInEveryFormat() {
+    Library original = populatedLibrary();
+    Hold[] holds = placeHolds(original);
+    for (SnapshotFormat format : SnapshotFormat.values()) {
+      new PersistenceService(dataDir, format)
+          .saveAll(original.getUserService(), original.getBookService(), original.getLoanService());
+
+      Library restored = new Library("Test", "Nowhere");
+      new PersistenceService(dataDir, format)
+          .loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+      assertHoldsRestored(format.name(), restored, holds);
+    }
+  }
+
+  public void testJournaledHoldsSurviveWithoutAFinalSave() {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    openJournal(persistence, library);
+
+    Hold[] holds = placeHolds(library);
+    Hold cancelled = library.getHoldService().placeHold("0", "d1");
+    library.getHoldService().cancelHold(cancelled.getId());
+    persistence.close();
+
+    Library restored = reload(new PersistenceService(dataDir));
+    assertEquals(2, restored.getHoldService().count());
+    assertHoldsRestored("journal", restored, holds);
+  }
+
+  public void testBatchIsJournaledInOneWriteWhenItEnds() throws IOException {
+    Library library = populatedLibrary();
+    library.getBookService().bulkLoad(List.of(), List.of(new BookItem("i3", "BC-00000003", "d1", Status.AVAILABLE, T0)));
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    openJournal(persistence, library);
+    Path journal = dataDir.resolve("journal.log");
+
+    long sizeInside = persistence.batch(() -> {
+      library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+      library.getLoanService().returnBook("l1");
+      try {
+        return Files.size(journal);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    assertEquals(0, sizeInside);
+    assertTrue(Files.size(journal) > 0);
+
+    List<CheckoutResult> results = library.loanBooks("1", List.of("BC-00000002", "BC-00000003", "BC-404"));
+    assertEquals(List.of(true, true, false), results.stream().map(CheckoutResult::lent).toList());
+    persistence.close();
+
+    Library restored = reload(new PersistenceService(dataDir));
+    assertEquals(3, restored.getUserService().count());
+    assertEquals(List.of("i2", "i3"),
+        restored.getLoanService().getAll().stream().map(Loan::getBookId).sorted().toList());
+    assertEquals(Status.AVAILABLE, restored.getBookService().findById("i1").getStatus());
+    assertEquals(Status.BORROWED, restored.getBookService().findById("i3").getStatus());
+  }
+
+  public void testSaveAllEmptiesTheJournal() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    openJournal(persistence, library);
+
+    library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+    assertTrue(Files.size(dataDir.resolve("journal.log")) > 0);
+
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    assertEquals(0, Files.size(dataDir.resolve("journal.log")));
+    persistence.close();
+
+    assertEquals(3, reload(new PersistenceService(dataDir)).getUserService().count());
+  }
+
+  public void testTornRecordIsDroppedAndCutOffBeforeAppending() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    openJournal(persistence, library);
+    library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+    persistence.close();
+
+    // Simulate a crash in the middle of the next append
+    Files.writeString(dataDir.resolve("journal.log"), "{\"op\":\"save\",\"type\":\"us",
+        java.nio.file.StandardOpenOption.APPEND);
+
+    PersistenceService recovered = new PersistenceService(dataDir);
+    Library restored = new Library("Test", "Nowhere");
+    recovered.loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    assertEquals(1, recovered.replayJournal(
+        restored.getUserService(), restored.getBookService(), restored.getLoanService()));
+    openJournal(recovered, restored);
+    restored.getUserService().register("lee", "lee@example.com", "secret", Role.MEMBER);
+    recovered.close();
+
+    Library again = reload(new PersistenceService(dataDir));
+    assertEquals(4, again.getUserService().count());
+    assertNotNull(again.getUserService().findByEmail("lee@example.com"));
+  }
+
+  public void testReplayOverANewerSnapshotConverges() {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    openJournal(persistence, library);
+
+    // The same copy changes hands, and an email moves from one user to another
+    library.getLoanService().returnBook("l1");
+    Loan second = library.getLoanService().loanBook("0", "BC-00000001");
+    library.getUserService().update("1", "jos\u00e9", "jose@example.org", "pw");
+    library.getUserService().update("0", "admin", "jose@example.com", "pw");
+    persistence.close();
+
+    // A crash after the snapshot was written but before the journal was emptied
+    new PersistenceService(dataDir).saveAll(
+        library.getUserService(), library.getBookService(), library.getLoanService());
+
+    Library restored = reload(new PersistenceService(dataDir));
+
+    assertEquals(second.getId(), restored.getLoanService().getByBookItemId("i1").getId());
+    assertEquals(1, restored.getLoanService().count());
+    assertEquals("0", restored.getUserService().findByEmail("jose@example.com").getId());
+    assertEquals("1", restored.getUserService().findByEmail("jose@example.org").getId());
+  }
+
+  /** A condition checked by {@link #awaitCondition}. */
+  private interface Condition {
+    boolean holds() throws IOException;
+  }
+
+  /** Waits up to five seconds for something a background thread does. */
+  private static void awaitCondition(Condition condition) throws IOException {
+    long deadline = System.nanoTime() + 5_000_000_000L;
+    while (!condition.holds()) {
+      if (System.nanoTime() > deadline) {
+        fail("Timed out waiting for the background checkpoint");
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail("Interrupted");
+      }
+    }
+  }
+
+  private List<String> journalFiles() throws IOException {
+    try (Stream<Path> paths = Files.list(dataDir)) {
+      return paths.map(p -> p.getFileName().toString()).filter(n -> n.startsWith("journal")).sorted().toList();
+    }
+  }
+
+  public void testCheckpointSnapshotsTheStateAtTheMomentItStarted() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService(), MANUAL);
+
+    library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+    persistence.checkpoint();
+    // Keeps changing while the snapshot is written
+    library.getUserService().update("1", "jose", "jose@example.org", "changed");
+    library.getLoanService().returnBook("l1");
+    persistence.awaitCheckpoint();
+
+    assertEquals(List.of("journal.log"), journalFiles());
+    Library snapshotOnly = new Library("Test", "Nowhere");
+    new PersistenceService(dataDir).loadAll(
+        snapshotOnly.getUserService(), snapshotOnly.getBookService(), snapshotOnly.getLoanService());
+    assertEquals(3, snapshotOnly.getUserService().count());
+    assertEquals("jose@example.com", snapshotOnly.getUserService().getById("1").getEmail());
+    assertEquals(1, snapshotOnly.getLoanService().count());
+    persistence.close();
+
+    Library restored = reload(new PersistenceService(dataDir));
+    assertEquals("jose@example.org", restored.getUserService().getById("1").getEmail());
+    assertEquals(0, restored.getLoanService().count());
+    assertEquals(Status.AVAILABLE, restored.getBookService().findById("i1").getStatus());
+  }
+
+  public void testJournalSizeTriggersCheckpointsThatKeepReplayShort() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService(),
+        MANUAL.withCheckpointTriggers(2_000, Duration.ZERO));
+
+    for (int i = 0; i < 200; i++) {
+      library.getUserService().register("user" + i, "user" + i + "@example.com", "pw", Role.MEMBER);
+    }
+    Path journal = dataDir.resolve("journal.log");
+    awaitCondition(() -> Files.size(journal) < 2_000);
+    persistence.close();
+
+    assertEquals(List.of("journal.log"), journalFiles());
+
+    PersistenceService recovered = new PersistenceService(dataDir);
+    Library restored = new Library("Test", "Nowhere");
+    recovered.loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    int replayed = recovered.replayJournal(
+        restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    assertTrue("replayed " + replayed, replayed < 200);
+    assertEquals(202, restored.getUserService().count());
+  }
+
+  public void testQuietPeriodAutosavesABurstOnce() throws Exception {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService(),
+        MANUAL.withQuietPeriod(Duration.ofMillis(50)));
+
+    for (int i = 0; i < 20; i++) {
+      library.getUserService().register("user" + i, "user" + i + "@example.com", "pw", Role.MEMBER);
+    }
+    Path journal = dataDir.resolve("journal.log");
+    awaitCondition(() -> Files.exists(dataDir.resolve("users.json")) && Files.size(journal) == 0);
+    persistence.awaitCheckpoint();
+
+    assertEquals(List.of("journal.log"), journalFiles());
+    Library snapshotOnly = new Library("Test", "Nowhere");
+    new PersistenceService(dataDir).loadAll(
+        snapshotOnly.getUserService(), snapshotOnly.getBookService(), snapshotOnly.getLoanService());
+    assertEquals(22, snapshotOnly.getUserService().count());
+    persistence.close();
+  }
+
+  public void testSealedSegmentsLeftByACrashAreReplayedInOrder() throws IOException {
+    Library library = populatedLibrary();
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.saveAll(library.getUserService(), library.getBookService(), library.getLoanService());
+    persistence.openJournal(library.getUserService(), library.getBookService(), library.getLoanService());
+    library.getUserService().register("kim", "kim@example.com", "secret", Role.MEMBER);
+    library.getUserService().update("1", "jose", "jose@example.org", "changed");
+    persistence.close();
+
+    // As if a checkpoint had sealed the journal and crashed before its snapshot
+    Files.move(dataDir.resolve("journal.log"), dataDir.resolve("journal-7.log"));
+    Files.writeString(dataDir.resolve("journal.log"),
+        "{\"op\":\"delete\",\"type\":\"loan\",\"id\":\"l1\"}\n"
+            + "{\"op\":\"delete\",\"type\":\"user\",\"id\":\"1\"}\n");
+
+    PersistenceService recovered = new PersistenceService(dataDir);
+    Library restored = reload(recovered);
+    assertEquals(2, restored.getUserService().count());
+    assertNull(restored.getUserService().getById("1"));
+
+    recovered.openJournal(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    recovered.saveAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    recovered.close();
+    assertEquals(List.of("journal.log"), journalFiles());
+  }
+
+  public void testBinarySnapshotRoundTripsAndMigratesFromJson() throws IOException {
+    Library original = populatedLibrary();
+    PersistenceService.exportJson(dataDir, original.getUserService(), original.getBookService(),
+        original.getLoanService());
+
+    // Existing JSON data is picked up by a binary-configured service...
+    PersistenceService binary = new PersistenceService(dataDir, SnapshotFormat.BINARY);
+    assertTrue(binary.hasSnapshot());
+    Library migrated = new Library("Test", "Nowhere");
+    binary.loadAll(migrated.getUserService(), migrated.getBookService(), migrated.getLoanService());
+    assertEquals(2, migrated.getUserService().count());
+
+    // ...and written back in binary form, which then takes precedence
+    migrated.getUserService().remove("0");
+    binary.saveAll(migrated.getUserService(), migrated.getBookService(), migrated.getLoanService());
+    assertTrue(Files.size(dataDir.resolve("books.bin")) < Files.size(dataDir.resolve("books.json")));
+
+    Library restored = new Library("Test", "Nowhere");
+    binary.loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    assertEquals(1, restored.getUserService().count());
+    assertEquals("line\nbreak\ttab", restored.getUserService().getById("1").getPassword());
+    assertEquals("Harper \ud83d\udcda", restored.getBookService().findByISBN("9780060883287").getPublisher());
+    assertEquals(Status.BORROWED, restored.getBookService().findByBarcode("BC-00000001").getStatus());
+    assertEquals(T0.plus(14, ChronoUnit.DAYS), restored.getLoanService().getByBookItemId("i1").getDueDate());
+
+    Library imported = new Library("Test", "Nowhere");
+    PersistenceService.importJson(dataDir, imported.getUserService(), imported.getBookService(),
+        imported.getLoanService());
+    assertEquals(2, imported.getUserService().count());
+  }
+
+  public void testNdjsonSnapshotWritesOneRecordPerLineAndRoundTrips() throws IOException {
+    Library original = populatedLibrary();
+    PersistenceService ndjson = new PersistenceService(dataDir, SnapshotFormat.NDJSON);
+    ndjson.saveAll(original.getUserService(), original.getBookService(), original.getLoanService());
+
+    List<String> lines = Files.readAllLines(dataDir.resolve("books.ndjson"));
+    assertEquals(3, lines.size());
+    assertTrue(lines.get(0).startsWith("{\"definition\":{\"id\":\"d1\""));
+    assertTrue(lines.get(2).startsWith("{\"item\":{\"id\":\"i2\""));
+
+    Library restored = new Library("Test", "Nowhere");
+    ndjson.loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+    assertEquals(2, restored.getUserService().count());
+    assertEquals("line\nbreak\ttab", restored.getUserService().getById("1").getPassword());
+    assertEquals("Harper \ud83d\udcda", restored.getBookService().findByISBN("9780060883287").getPublisher());
+    assertEquals(2, restored.getBookService().countItems());
+    assertEquals(T0.plus(14, ChronoUnit.DAYS), restored.getLoanService().getByBookItemId("i1").getDueDate());
+  }
+
+  public void testCompressedSnapshotsAreDetectedFromTheirHeader() throws IOException {
+    Library original = populatedLibrary();
+    for (SnapshotFormat format : SnapshotFormat.values()) {
+      new PersistenceService(dataDir, format, 6)
+          .saveAll(original.getUserService(), original.getBookService(), original.getLoanService());
+
+      byte[] header = Arrays.copyOf(Files.readAllBytes(dataDir.resolve("books." + format.extension())), 2);
+      assertEquals(format.name(), 0x1F, header[0]);
+      assertEquals(format.name(), (byte) 0x8B, header[1]);
+
+      // A service that writes plain files still reads the compressed ones
+      Library restored = new Library("Test", "Nowhere");
+      new PersistenceService(dataDir, format)
+          .loadAll(restored.getUserService(), restored.getBookService(), restored.getLoanService());
+      assertEquals(format.name(), "line\nbreak\ttab", restored.getUserService().getById("1").getPassword());
+      assertEquals(format.name(), 2, restored.getBookService().countItems());
+      assertEquals(format.name(), T0.plus(14, ChronoUnit.DAYS),
+          restored.getLoanService().getByBookItemId("i1").getDueDate());
+    }
+  }
+
+  public void testCompressionLevelIsValidated() {
+    try {
+      new PersistenceService(dataDir, SnapshotFormat.JSON, 10);
+      fail("Expected an out-of-range level to be rejected");
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  public void testReadContentsReturnsRecordsTheLoaderRejects() {
+    Library original = populatedLibrary();
+    // Removing a user with an active loan leaves the loan orphaned
+    assertTrue(original.getUserService().remove("1"));
+    PersistenceService persistence = new PersistenceService(dataDir, SnapshotFormat.BINARY);
+    persistence.saveAll(original.getUserService(), original.getBookService(), original.getLoanService());
+
+    try {
+      reload(persistence);
+      fail("Expected the orphaned loan to be rejected");
+    } catch (IllegalStateException expected) {
+      assertTrue(expected.getMessage().contains("l1"));
+    }
+
+    SnapshotContents contents = persistence.readContents();
+    assertEquals(1, contents.users().size());
+    assertEquals(2, contents.items().size());
+    List<IntegrityChecker.Problem> problems = IntegrityChecker.check(contents);
+    assertEquals(1, problems.size());
+    assertEquals(IntegrityChecker.Kind.LOAN_WITHOUT_USER, problems.get(0).kind());
+    assertEquals("l1", problems.get(0).id());
+  }
+
+  public void testReferencesAreCheckedAfterTheJournalIsReplayed() {
+    Library original = populatedLibrary();
+    assertTrue(original.getUserService().remove("1"));
+    new PersistenceService(dataDir).saveAll(original.getUserService(), original.getBookService(),
+        original.getLoanService());
+
+    // The loans file references a user that only the journal holds
+    Library journaled = new Library("Test", "Nowhere");
+    PersistenceService persistence = new PersistenceService(dataDir);
+    openJournal(persistence, journaled);
+    journaled.addUser(new Member("1", "jose", "jose@example.com", "secret"));
+    persistence.close();
+
+    Library restored = reload(new PersistenceService(dataDir));
+    assertEquals("jose", restored.getUserService().getById("1").getUsername());
+    assertEquals("l1", restored.getLoanService().getByBookItemId("i1").getId());
+    assertEquals(1, restored.getLoanService().getByUserId("1").size());
+  }
+
+  public void testCheckpointCopiesAConsistentCutWhileWritersRun() throws InterruptedException {
+    // A member signs up and borrows a copy while the checkpoint copies the
+    // users, before it gets to the loans
+    AtomicReference<Runnable> duringCopy = new AtomicReference<>();
+    UserService userService = new UserService() {
+      @Override
+      public List<User> getAll() {
+        List<User> users = super.getAll();
+        Runnable hook = duringCopy.getAndSet(null);
+        if (hook != null) {
+          hook.run();
+        }
+        return users;
+      }
+    };
+    BookService bookService = new BookService();
+    LoanService loanService = new LoanService(userService, bookService);
+    bookService.bulkLoad(List.of(new BookDefinition("d1", "Dune", "Herbert", "9780441172719", "Ace")),
+        List.of(new BookItem("i1", "BC-00000001", "d1", Status.AVAILABLE, T0)));
+    PersistenceService persistence = new PersistenceService(dataDir);
+    persistence.openJournal(userService, bookService, loanService, MANUAL);
+
+    Thread[] writer = new Thread[1];
+    duringCopy.set(() -> {
+      writer[0] = Thread.ofPlatform().start(() -> {
+        User kim = userService.register("kim", "kim@example.com", "secret", Role.MEMBER);
+        loanService.loanBook(kim.getId(), "BC-00000001");
+      });
+      try {
+        // Long enough for the writer to finish if nothing held it back
+        writer[0].join(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    persistence.checkpoint().join();
+    writer[0].join();
+    persistence.close();
+
+    // The snapshot files agree with each other on their own...
+    assertEquals(List.of(), IntegrityChecker.check(new PersistenceService(dataDir).readContents()));
+    // ...and the journal adds the member and the loan on top
+    Library restored = reload(new PersistenceService(dataDir));
+    User kim = restored.getUserService().getAll().get(0);
+    assertEquals("kim", kim.getUsername());
+    assertEquals(kim.getId(), restored.getLoanService().getByBookItemId("i1").getUserId());
+  }
+}